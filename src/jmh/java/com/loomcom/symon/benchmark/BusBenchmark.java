@@ -0,0 +1,61 @@
+package com.loomcom.symon.benchmark;
+
+import com.loomcom.symon.Bus;
+import com.loomcom.symon.devices.Memory;
+import com.loomcom.symon.devices.Via6522;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bus reads and writes for RAM, ROM and I/O pages, using the Homebrew memory map:
+ * RAM up to $7EFF, a VIA on the shared $7Fxx I/O page, and ROM from $8000.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BusBenchmark {
+
+    private static final int RAM_ADDRESS = 0x1234;
+    private static final int ROM_ADDRESS = 0xc000;
+    private static final int VIA_BASE = 0x7f80;
+
+    private Bus bus;
+    private int data;
+
+    @Setup
+    public void setUp() throws Exception {
+        bus = new Bus(0x0000, 0xffff);
+        bus.addDevice(new Memory(0x0000, 0x7eff));
+        bus.addDevice(new Via6522(VIA_BASE));
+        bus.addDevice(new Memory(0x8000, 0xffff, true));
+    }
+
+    @Benchmark
+    public int readRam() throws Exception {
+        return bus.read(RAM_ADDRESS, true);
+    }
+
+    @Benchmark
+    public void writeRam() throws Exception {
+        bus.write(RAM_ADDRESS, data++ & 0xff);
+    }
+
+    @Benchmark
+    public int readRom() throws Exception {
+        return bus.read(ROM_ADDRESS, true);
+    }
+
+    @Benchmark
+    public int readIo() throws Exception {
+        return bus.read(VIA_BASE + 2, true);
+    }
+
+    @Benchmark
+    public void writeIo() throws Exception {
+        bus.write(VIA_BASE + 2, data++ & 0xff);
+    }
+}
@@ -0,0 +1,85 @@
+package com.loomcom.symon.benchmark;
+
+import com.loomcom.symon.Bus;
+import com.loomcom.symon.Cpu;
+import com.loomcom.symon.InstructionTable;
+import com.loomcom.symon.devices.Memory;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of Cpu.step() for one class of instruction at a time. Each program is a
+ * page of the same instruction, followed by a JMP back to the start.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CpuBenchmark {
+
+    private static final int PROGRAM_START = 0x0200;
+
+    @Param({"load", "store", "alu", "decimal", "rmw", "branch", "stack"})
+    public String instructionClass;
+
+    @Param({"CMOS_6502", "NMOS_6502"})
+    public String behavior;
+
+    private Cpu cpu;
+
+    @Setup
+    public void setUp() throws Exception {
+        cpu = new Cpu(InstructionTable.CpuBehavior.valueOf(behavior));
+        Bus bus = new Bus(0x0000, 0xffff);
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0xffff));
+
+        bus.write(Cpu.RST_VECTOR_L, PROGRAM_START & 0xff);
+        bus.write(Cpu.RST_VECTOR_H, PROGRAM_START >> 8);
+
+        int[] instruction = instruction(instructionClass);
+        int address = PROGRAM_START;
+        while (address < PROGRAM_START + 0x100) {
+            for (int b : instruction) {
+                bus.write(address++, b);
+            }
+        }
+        bus.write(address++, 0x4c);
+        bus.write(address++, PROGRAM_START & 0xff);
+        bus.write(address, PROGRAM_START >> 8);
+
+        cpu.reset();
+        cpu.setClockPeriodInNs(Cpu.TURBO_CLOCK_PERIOD_IN_NS);
+        if (instructionClass.equals("decimal")) {
+            cpu.setDecimalModeFlag();
+        }
+    }
+
+    private static int[] instruction(String instructionClass) {
+        switch (instructionClass) {
+            case "load":
+                return new int[] {0xa5, 0x10};       // LDA $10
+            case "store":
+                return new int[] {0x9d, 0x00, 0x04}; // STA $0400,X
+            case "alu":
+            case "decimal":
+                return new int[] {0x69, 0x01};       // ADC #$01
+            case "rmw":
+                return new int[] {0xe6, 0x10};       // INC $10
+            case "branch":
+                return new int[] {0xd0, 0x00};       // BNE *+2, taken since Z is clear
+            case "stack":
+                return new int[] {0x48, 0x68};       // PHA, PLA
+            default:
+                throw new IllegalArgumentException(instructionClass);
+        }
+    }
+
+    @Benchmark
+    public void step() throws Exception {
+        cpu.step();
+    }
+}
@@ -0,0 +1,46 @@
+package com.loomcom.symon.benchmark;
+
+import com.loomcom.symon.CpuState;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of snapshotting the CPU state for the trace log, and of formatting a trace line.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CpuStateBenchmark {
+
+    private CpuState state;
+
+    @Setup
+    public void setUp() {
+        state = new CpuState();
+        state.a = 0x12;
+        state.x = 0x34;
+        state.y = 0x56;
+        state.sp = 0xfd;
+        state.pc = 0x0203;
+        state.lastPc = 0x0200;
+        state.ir = 0xad;  // LDA $1234
+        state.args[0] = 0x34;
+        state.args[1] = 0x12;
+        state.instSize = 3;
+        state.setCarryFlag(true);
+    }
+
+    @Benchmark
+    public CpuState copy() {
+        return new CpuState(state);
+    }
+
+    @Benchmark
+    public String toTraceEvent() {
+        return state.toTraceEvent();
+    }
+}
@@ -0,0 +1,99 @@
+package com.loomcom.symon.benchmark;
+
+import com.loomcom.symon.Bus;
+import com.loomcom.symon.Cpu;
+import com.loomcom.symon.CpuState;
+import com.loomcom.symon.InstructionTable;
+import com.loomcom.symon.devices.Memory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end emulator throughput: runs Klaus Dormann's functional test images
+ * from samples/tests to their success traps. Each operation is one complete run;
+ * the "instructions" counter is reported in instructions per second. The
+ * recompiling variant runs them through the recompiler, which keeps the blocks
+ * it has translated from one run to the next, as the image is loaded again
+ * through the bus and only the bytes the test changed are written over.
+ * <p>
+ * The samples directory can be changed with -Dsymon.samples=&lt;dir&gt;.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MipsBenchmark {
+
+    private static final int CODE_START = 0x0400;
+
+    @Param({"6502_functional_test.bin:NMOS_6502:3399",
+            "65C02_extended_opcodes_test.bin:CMOS_6502:24a8"})
+    public String test;
+
+    @Param({"false", "true"})
+    public boolean recompiling;
+
+    private Cpu cpu;
+    private Bus bus;
+    private byte[] image;
+    private int successTrap;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long instructions;
+    }
+
+    @Setup(Level.Trial)
+    public void setUpTrial() throws Exception {
+        String[] fields = test.split(":");
+        image = Files.readAllBytes(new File(System.getProperty("symon.samples", "samples/tests"), fields[0]).toPath());
+        successTrap = Integer.parseInt(fields[2], 16);
+
+        cpu = new Cpu(InstructionTable.CpuBehavior.valueOf(fields[1]));
+        bus = new Bus(0x0000, 0xffff);
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0xffff));
+        cpu.setRecompiling(recompiling);
+        if (recompiling) {
+            cpu.getRecompiler().addStopAddress(successTrap);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void setUpInvocation() throws Exception {
+        bus.load(0x0000, image);
+
+        cpu.reset();
+        cpu.setClockPeriodInNs(Cpu.TURBO_CLOCK_PERIOD_IN_NS);
+        cpu.setProgramCounter(CODE_START);
+    }
+
+    @Benchmark
+    public void runToCompletion(Counters counters) throws Exception {
+        int lastPc = -1;
+        if (recompiling) {
+            // A block may stop anywhere, so look for the jump to itself
+            CpuState state = cpu.getCpuState();
+            do {
+                cpu.runBlock(Integer.MAX_VALUE, Long.MAX_VALUE);
+            } while (state.lastPc != state.pc);
+            lastPc = state.pc;
+        } else {
+            while (cpu.getProgramCounter() != lastPc) {
+                lastPc = cpu.getProgramCounter();
+                cpu.step();
+            }
+        }
+        if (lastPc != successTrap) {
+            throw new IllegalStateException(String.format("Trapped at $%04X, expected $%04X",
+                                                          lastPc, successTrap));
+        }
+        counters.instructions += cpu.getCpuState().stepCounter;
+    }
+}
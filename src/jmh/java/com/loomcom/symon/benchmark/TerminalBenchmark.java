@@ -0,0 +1,44 @@
+package com.loomcom.symon.benchmark;
+
+import com.loomcom.symon.jterminal.vt100.Vt100TerminalModel;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of printing console output through the VT100 terminal model, for plain
+ * text and for text mixed with control sequences.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TerminalBenchmark {
+
+    private static final String PLAIN = "10 PRINT \"HELLO, WORLD\": GOTO 10\r\n";
+    private static final String ESCAPES = "\u001b[2J\u001b[H\u001b[1mREADY\u001b[0m\r\n";
+
+    private Vt100TerminalModel terminal;
+
+    @Setup
+    public void setUp() {
+        terminal = new Vt100TerminalModel(80, 25);
+    }
+
+    @Benchmark
+    public void printPlain() {
+        terminal.print(PLAIN);
+    }
+
+    @Benchmark
+    public void printEscapes() {
+        terminal.print(ESCAPES);
+    }
+
+    @Benchmark
+    public void printCharacter() {
+        terminal.print("A");
+    }
+}
@@ -0,0 +1,106 @@
+package com.loomcom.symon.benchmark;
+
+import com.loomcom.symon.devices.Vdp;
+import com.loomcom.symon.ui.VdpRenderer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of rendering one VDP frame, per display mode, with 32 sprites on screen:
+ * drawn from scratch, with one character written since the last frame, and with
+ * nothing changed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class VdpBenchmark {
+
+    private static final int VDP_BASE = 0x7f60;
+
+    @Param({"graphics1", "graphics2", "text", "multicolor"})
+    public String mode;
+
+    private Vdp vdp;
+    private VdpRenderer renderer;
+    private int character;
+
+    @Setup
+    public void setUp() throws Exception {
+        vdp = new Vdp(VDP_BASE, true);
+
+        // Register 1 always keeps 16K mode and the display enabled
+        int reg0 = 0x00;
+        int reg1 = 0xc0;
+        switch (mode) {
+            case "graphics2":
+                reg0 = 0x02;
+                break;
+            case "text":
+                reg1 |= 0x10;
+                break;
+            case "multicolor":
+                reg1 |= 0x08;
+                break;
+            default:
+                break;
+        }
+
+        writeRegister(vdp, 0, reg0);
+        writeRegister(vdp, 1, reg1);
+        writeRegister(vdp, 2, 0x0e);   // Name table at $3800
+        writeRegister(vdp, 3, mode.equals("graphics2") ? 0xff : 0x80); // Color table at $2000
+        writeRegister(vdp, 4, 0x00);   // Pattern table at $0000
+        writeRegister(vdp, 5, 0x76);   // Sprite attributes at $3B00
+        writeRegister(vdp, 6, 0x03);   // Sprite patterns at $1800
+        writeRegister(vdp, 7, 0xf4);
+
+        Random random = new Random(6502);
+        for (int i = 0; i < vdp.vram.length; i++) {
+            vdp.vram[i] = random.nextInt(256);
+        }
+        for (int sprite = 0; sprite < 32; sprite++) {
+            int attributes = 0x3b00 + sprite * 4;
+            vdp.vram[attributes] = random.nextInt(0xc0);
+            vdp.vram[attributes + 1] = random.nextInt(256);
+            vdp.vram[attributes + 2] = random.nextInt(256);
+            vdp.vram[attributes + 3] = random.nextInt(16);
+        }
+
+        renderer = new VdpRenderer(vdp);
+        renderer.computeFinalPixels();
+    }
+
+    private static void writeRegister(Vdp vdp, int register, int value) throws Exception {
+        vdp.write(1, value);
+        vdp.write(1, 0x80 | register);
+    }
+
+    @Benchmark
+    public int[] fullFrame() {
+        renderer.invalidate();
+        renderer.computeFinalPixels();
+        return renderer.getFinalPixels();
+    }
+
+    @Benchmark
+    public int[] oneCharacterChanged() throws Exception {
+        // Write the next character of the name table through the data port
+        int address = 0x3800 + (character++ % 768);
+        vdp.write(1, address & 0xff);
+        vdp.write(1, 0x40 | (address >> 8));
+        vdp.write(0, character);
+        renderer.computeFinalPixels();
+        return renderer.getFinalPixels();
+    }
+
+    @Benchmark
+    public int[] staticFrame() {
+        renderer.computeFinalPixels();
+        return renderer.getFinalPixels();
+    }
+}
@@ -0,0 +1,1134 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.util.ClassFileWriter;
+import com.loomcom.symon.util.ClassFileWriter.Code;
+import com.loomcom.symon.util.ClassFileWriter.Label;
+import com.loomcom.symon.util.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+import static com.loomcom.symon.DispatchTable.*;
+import static com.loomcom.symon.util.ClassFileWriter.*;
+
+/**
+ * Translates a run of 6502 instructions into a {@link CompiledBlock}.
+ * <p>
+ * A block follows the path the code is expected to take from its start
+ * address: straight on past conditional branches, which leave the block when
+ * taken, and on through unconditional jumps and calls. A return from a call
+ * the block followed continues after the call, leaving the block if the
+ * address pulled from the stack is not the one expected. The block ends at an
+ * indirect jump, a return it cannot follow, or on coming back to an address
+ * it already holds, or after a CLI, once interrupts may be taken. It stops
+ * short of instructions that are better left to the interpreter: BRK and RTI,
+ * and illegal opcodes. It also stops short of the recompiler's stop
+ * addresses, of code that is not in memory, and after
+ * {@link #MAX_INSTRUCTIONS}.
+ * <p>
+ * The generated code does what the interpreter does, access for access, with
+ * the registers and flags in JVM locals and each flag held as 0 or 1. A branch
+ * or jump back to the start of the block goes round again, while the step and
+ * cycle limits the recompiler sets for the run allow another trip.
+ */
+final class BlockCompiler {
+
+    private final static Logger logger = LoggerFactory.getLogger(BlockCompiler.class.getName());
+
+    static final int MAX_INSTRUCTIONS = 64;
+
+    // The JVM does not compile methods larger than this to native code
+    private static final int MAX_METHOD_SIZE = 7900;
+
+    private static final String BLOCK = "com/loomcom/symon/CompiledBlock";
+    private static final String STATE = "com/loomcom/symon/CpuState";
+
+    /* Locals of the generated run() method */
+    private static final int THIS = 0;
+    private static final int CPU_STATE = 1;
+    private static final int A = 2;
+    private static final int X = 3;
+    private static final int Y = 4;
+    private static final int SP = 5;
+    private static final int C = 6;
+    private static final int Z = 7;
+    private static final int N = 8;
+    private static final int V = 9;
+    private static final int D = 10;
+    private static final int EA = 11;   // Effective address
+    private static final int T = 12;    // Temporaries
+    private static final int U = 13;
+    private static final int PC = 14;   // Program counter on leaving
+    private static final int LAST = 15; // Index of the last instruction run
+    private static final int ADDR = 16; // Address of a memory access
+    private static final int READ_PAGES = 17; // The bus page tables
+    private static final int WRITE_PAGES = 18;
+    private static final int PAGE_OFFSETS = 19;
+    private static final int CODE_BYTES = 20;
+    private static final int LOCALS = 21;
+
+    private static final int MAX_STACK = 8;
+
+    private final Bus bus;
+    private final Cpu cpu;
+
+    // The instructions of the block being translated
+    private final int[] pcs = new int[MAX_INSTRUCTIONS];
+    private final int[] opcodes = new int[MAX_INSTRUCTIONS];
+    private final int[] sizes = new int[MAX_INSTRUCTIONS];
+    private final int[] args0 = new int[MAX_INSTRUCTIONS];
+    private final int[] args1 = new int[MAX_INSTRUCTIONS];
+    private final int[] cycles = new int[MAX_INSTRUCTIONS];
+
+    // The address each instruction goes on to within the block, or -1 if that
+    // is only known when it runs
+    private final int[] follows = new int[MAX_INSTRUCTIONS];
+
+    private ClassFileWriter writer;
+    private Code code;
+    private Label top;
+    private Label epilogue;
+    private int start;
+    private int count;
+    private int maxCycles;
+    private int readSlowMethod;
+    private int writeSlowMethod;
+    private int exitField;
+    private int loopStepsField;
+    private int loopCyclesField;
+    private int stepLimitField;
+    private int cycleLimitField;
+    private int extraCyclesField;
+    private int pField;
+
+    // The index of the instruction being translated, and whether it reads or
+    // writes memory
+    private int instruction;
+    private boolean accesses;
+
+    // Whether the instruction being translated has set PC itself
+    private boolean pcSet;
+
+    BlockCompiler(Bus bus, Cpu cpu) {
+        this.bus = bus;
+        this.cpu = cpu;
+    }
+
+    /**
+     * Translate the block starting at an address.
+     *
+     * @param start         The address of the first instruction.
+     * @param stopAddresses Addresses the block must not run into.
+     * @param rewritten     Addresses of instructions that have been written
+     *                      over, which the block must not run into either.
+     * @return The block, or null if there is nothing to translate here.
+     */
+    CompiledBlock compile(int start, boolean[] stopAddresses, boolean[] rewritten) {
+        int count = decode(start, stopAddresses, rewritten);
+        if (count == 0) {
+            return null;
+        }
+
+        CompiledBlock block;
+        try {
+            // Shorten a block whose code is too large to be compiled by the JVM
+            byte[] classFile = generate(start, count);
+            while (code.size() > MAX_METHOD_SIZE && count > 1) {
+                count = Math.max(1, count * 3 / 4);
+                classFile = generate(start, count);
+            }
+            BlockLoader loader = new BlockLoader(getClass().getClassLoader());
+            Class<?> blockClass = loader.define(className(start).replace('/', '.'), classFile);
+            block = (CompiledBlock) blockClass.newInstance();
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            logger.error("Could not translate the block at $" + Utils.wordToHex(start), ex);
+            return null;
+        }
+
+        block.start = start;
+        block.pcs = Arrays.copyOf(pcs, count);
+        block.opcodes = Arrays.copyOf(opcodes, count);
+        block.sizes = Arrays.copyOf(sizes, count);
+        block.args0 = Arrays.copyOf(args0, count);
+        block.args1 = Arrays.copyOf(args1, count);
+        block.cycles = Arrays.copyOf(cycles, count);
+        block.maxCycles = maxCycles;
+        block.attach(bus, cpu);
+        return block;
+    }
+
+    // The internal name of the class generated for a block
+    private static String className(int start) {
+        return BLOCK + "$" + Utils.wordToHex(start);
+    }
+
+    /*
+     * Decoding
+     */
+
+    private int decode(int start, boolean[] stopAddresses, boolean[] rewritten) {
+        DispatchTable dispatch = cpu.getDispatchTable();
+        int[] clocks = cpu.getInstructionClocks();
+        int[] returns = new int[MAX_INSTRUCTIONS];  // Return addresses of the calls followed
+        int calls = 0;
+        int pc = start;
+        int total = 0;
+        int count = 0;
+
+        while (count < MAX_INSTRUCTIONS) {
+            int opcode = codeByte(pc);
+            if (opcode < 0 || !translatable(dispatch.operation[opcode])) {
+                break;
+            }
+            int size = Cpu.instructionSizes[opcode];
+            if (pc + size > 0x10000) {
+                break;
+            }
+            int arg0 = size > 1 ? codeByte(pc + 1) : 0;
+            int arg1 = size > 2 ? codeByte(pc + 2) : 0;
+            if (arg0 < 0 || arg1 < 0) {
+                break;
+            }
+
+            int next = (pc + size) & 0xffff;
+            int follow;
+            int clock = clocks[opcode];
+            switch (dispatch.operation[opcode]) {
+                case OP_BRA:
+                    follow = relative(next, arg0);
+                    clock += crossesPage(next, follow);
+                    break;
+                case OP_JSR:
+                    returns[calls++] = next;
+                    follow = Utils.address(arg0, arg1);
+                    break;
+                case OP_JMP_ABS:
+                    follow = Utils.address(arg0, arg1);
+                    break;
+                case OP_RTS:
+                    follow = calls > 0 ? returns[--calls] : -1;
+                    break;
+                case OP_JMP_IND:
+                case OP_JMP_IND_NMOS:
+                case OP_JMP_AIX:
+                    follow = -1;
+                    break;
+                default:
+                    follow = next;
+            }
+
+            total += clock;
+            pcs[count] = pc;
+            opcodes[count] = opcode;
+            sizes[count] = size;
+            args0[count] = arg0;
+            args1[count] = arg1;
+            cycles[count] = total;
+            follows[count] = follow;
+            count++;
+
+            if (follow < 0 || dispatch.operation[opcode] == OP_CLI ||
+                stopAddresses[follow] || rewritten[follow] || holds(follow, count)) {
+                break;
+            }
+            pc = follow;
+        }
+        return count;
+    }
+
+    // The most cycles a trip through the first instructions can take
+    private int maxCycles(int count) {
+        DispatchTable dispatch = cpu.getDispatchTable();
+        int crossings = 0;
+        int most = 0;
+        for (int i = 0; i < count; i++) {
+            crossings += dispatch.pageCrossCycles[opcodes[i]] + dispatch.decimalCycles[opcodes[i]];
+            most = Math.max(most, cycles[i] + crossings + takenCycles(i));
+        }
+        return most;
+    }
+
+    // The cycles a conditional branch takes beyond its clocks when taken
+    private int takenCycles(int i) {
+        switch (cpu.getDispatchTable().operation[opcodes[i]]) {
+            case OP_BPL:
+            case OP_BMI:
+            case OP_BVC:
+            case OP_BVS:
+            case OP_BCC:
+            case OP_BCS:
+            case OP_BNE:
+            case OP_BEQ:
+                int next = (pcs[i] + sizes[i]) & 0xffff;
+                return 1 + crossesPage(next, relative(next, args0[i]));
+            case OP_BBR:
+            case OP_BBS:
+                next = (pcs[i] + sizes[i]) & 0xffff;
+                return 1 + crossesPage(next, relative(next, args1[i]));
+            default:
+                return 0;
+        }
+    }
+
+    private static int crossesPage(int from, int to) {
+        return (from ^ to) >>> 8 != 0 ? 1 : 0;
+    }
+
+    // Whether one of the first instructions decoded is at an address
+    private boolean holds(int address, int count) {
+        for (int i = 0; i < count; i++) {
+            if (pcs[i] == address) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // A byte of code, or -1 if it is not in memory
+    private int codeByte(int address) {
+        int page = address >>> 8;
+        byte[] backing = bus.getReadPages()[page];
+        if (backing == null) {
+            return -1;
+        }
+        return backing[bus.getPageOffsets()[page] + (address & 0xff)] & 0xff;
+    }
+
+    private static boolean translatable(int operation) {
+        switch (operation) {
+            case OP_TRAP:
+            case OP_BRK:
+            case OP_RTI:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /*
+     * Code generation
+     */
+
+    private byte[] generate(int start, int count) {
+        this.start = start;
+        this.count = count;
+        this.maxCycles = maxCycles(count);
+        writer = new ClassFileWriter(className(start), BLOCK);
+        readSlowMethod = writer.methodRef(BLOCK, "readSlow", "(II)I");
+        writeSlowMethod = writer.methodRef(BLOCK, "writeSlow", "(III)V");
+        exitField = writer.fieldRef(BLOCK, "exit", "Z");
+        loopStepsField = writer.fieldRef(BLOCK, "loopSteps", "I");
+        loopCyclesField = writer.fieldRef(BLOCK, "loopCycles", "I");
+        stepLimitField = writer.fieldRef(BLOCK, "stepLimit", "I");
+        cycleLimitField = writer.fieldRef(BLOCK, "cycleLimit", "I");
+        extraCyclesField = writer.fieldRef(BLOCK, "extraCycles", "I");
+        pField = writer.fieldRef(STATE, "p", "I");
+
+        Code init = writer.method(ACC_PUBLIC, "<init>", "()V", 1, 1);
+        init.aload(THIS).ref(INVOKESPECIAL, writer.methodRef(BLOCK, "<init>", "()V")).op(RETURN);
+        init.finish();
+
+        code = writer.method(ACC_PUBLIC, "run", "(L" + STATE + ";)I", MAX_STACK, LOCALS);
+        top = code.label();
+        epilogue = code.label();
+
+        loadState("a", "I", A);
+        loadState("x", "I", X);
+        loadState("y", "I", Y);
+        loadState("sp", "I", SP);
+        // The flags a block can change are kept in locals of their own, as 0 or 1
+        loadFlag(C, 0);
+        loadFlag(Z, 1);
+        loadFlag(D, 3);
+        loadFlag(V, 6);
+        loadFlag(N, 7);
+        for (int local = EA; local <= ADDR; local++) {
+            code.iconst(0).istore(local);
+        }
+        loadTable("readPages", "[[B", READ_PAGES);
+        loadTable("writePages", "[[B", WRITE_PAGES);
+        loadTable("pageOffsets", "[I", PAGE_OFFSETS);
+        loadTable("codeBytes", "[B", CODE_BYTES);
+
+        code.mark(top);
+        for (int i = 0; i < count; i++) {
+            translate(i, i == count - 1);
+        }
+
+        code.mark(epilogue);
+        storeState("a", "I", A);
+        storeState("x", "I", X);
+        storeState("y", "I", Y);
+        storeState("sp", "I", SP);
+        storeState("pc", "I", PC);
+        code.aload(CPU_STATE);
+        code.aload(CPU_STATE).ref(GETFIELD, pField).iconst(Cpu.P_IRQ_DISABLE | Cpu.P_BREAK | 0x20).op(IAND);
+        code.iload(C).op(IOR);
+        code.iload(Z).iconst(1).op(ISHL).op(IOR);
+        code.iload(D).iconst(3).op(ISHL).op(IOR);
+        code.iload(V).iconst(6).op(ISHL).op(IOR);
+        code.iload(N).iconst(7).op(ISHL).op(IOR);
+        code.ref(PUTFIELD, pField);
+        code.iload(LAST).op(IRETURN);
+        code.finish();
+
+        return writer.toByteArray();
+    }
+
+    private void loadState(String field, String descriptor, int local) {
+        code.aload(CPU_STATE).ref(GETFIELD, writer.fieldRef(STATE, field, descriptor)).istore(local);
+    }
+
+    private void loadFlag(int local, int bit) {
+        code.aload(CPU_STATE).ref(GETFIELD, pField).iconst(bit).op(IUSHR).iconst(1).op(IAND).istore(local);
+    }
+
+    private void loadTable(String field, String descriptor, int local) {
+        code.aload(THIS).ref(GETFIELD, writer.fieldRef(BLOCK, field, descriptor)).astore(local);
+    }
+
+    private void storeState(String field, String descriptor, int local) {
+        code.aload(CPU_STATE).iload(local).ref(PUTFIELD, writer.fieldRef(STATE, field, descriptor));
+    }
+
+    /*
+     * Memory is read and written in line through the bus page tables, so that
+     * each access has a branch of its own for the JIT to profile. Anything
+     * else goes through readSlow() and writeSlow(). An address is given as a
+     * constant, or as a local when the constant is negative.
+     */
+
+    // Push the byte at an address
+    private void read(int constant, int local) {
+        Label slow = code.label();
+        Label done = code.label();
+        code.aload(READ_PAGES);
+        pushPage(constant, local);
+        code.op(AALOAD).op(DUP).jump(IFNULL, slow);
+        code.aload(PAGE_OFFSETS);
+        pushPage(constant, local);
+        code.op(IALOAD);
+        pushOffset(constant, local);
+        code.op(IADD).op(BALOAD).iconst(0xff).op(IAND).jump(GOTO, done);
+        code.mark(slow).op(POP).aload(THIS);
+        pushAddress(constant, local);
+        code.iconst(instruction).ref(INVOKEVIRTUAL, readSlowMethod);
+        code.mark(done);
+        accesses = true;
+    }
+
+    // Write the value of a local to an address
+    private void write(int constant, int local, int valueLocal) {
+        Label slow = code.label();
+        Label done = code.label();
+        code.aload(WRITE_PAGES);
+        pushPage(constant, local);
+        code.op(AALOAD).op(DUP).jump(IFNULL, slow);
+        code.aload(CODE_BYTES);
+        pushAddress(constant, local);
+        code.op(BALOAD).jump(IFNE, slow);
+        code.aload(PAGE_OFFSETS);
+        pushPage(constant, local);
+        code.op(IALOAD);
+        pushOffset(constant, local);
+        code.op(IADD).iload(valueLocal).op(BASTORE).jump(GOTO, done);
+        code.mark(slow).op(POP).aload(THIS);
+        pushAddress(constant, local);
+        code.iload(valueLocal).iconst(instruction).ref(INVOKEVIRTUAL, writeSlowMethod);
+        code.mark(done);
+        accesses = true;
+    }
+
+    private void pushAddress(int constant, int local) {
+        if (constant >= 0) {
+            code.iconst(constant);
+        } else {
+            code.iload(local);
+        }
+    }
+
+    private void pushPage(int constant, int local) {
+        if (constant >= 0) {
+            code.iconst(constant >>> 8);
+        } else {
+            code.iload(local).iconst(8).op(IUSHR);
+        }
+    }
+
+    private void pushOffset(int constant, int local) {
+        if (constant >= 0) {
+            code.iconst(constant & 0xff);
+        } else {
+            code.iload(local).iconst(0xff).op(IAND);
+        }
+    }
+
+    private void readFrom(int address) {
+        read(address, -1);
+    }
+
+    private void readFromLocal(int local) {
+        read(-1, local);
+    }
+
+    // Read the byte after the address in a local, without wrapping
+    private void readAfterLocal(int local) {
+        code.iload(local).iconst(1).op(IADD).istore(ADDR);
+        read(-1, ADDR);
+    }
+
+    // Write the value of a local to the effective address
+    private void writeEa(int eaConstant, int valueLocal) {
+        write(eaConstant, EA, valueLocal);
+    }
+
+    private void readEa(int eaConstant) {
+        read(eaConstant, EA);
+    }
+
+    // Set Z and N from the value on the stack, consuming it
+    private void setNZ() {
+        code.op(DUP).iconst(1).op(ISUB).iconst(31).op(IUSHR).istore(Z);
+        code.iconst(7).op(IUSHR).istore(N);
+    }
+
+    // Store the value on the stack into a register, and set Z and N from it
+    private void load(int register) {
+        code.op(DUP).istore(register);
+        setNZ();
+    }
+
+    private void increment(int register, int delta) {
+        code.iload(register).iconst(delta).op(IADD).iconst(0xff).op(IAND);
+        load(register);
+    }
+
+    private void push(int valueLocal) {
+        code.iconst(0x100).iload(SP).op(IADD).istore(ADDR);
+        write(-1, ADDR, valueLocal);
+        code.iload(SP).iconst(1).op(ISUB).iconst(0xff).op(IAND).istore(SP);
+    }
+
+    private void pushConstant(int value) {
+        code.iconst(value).istore(T);
+        push(T);
+    }
+
+    // Pull a byte onto the stack
+    private void pull() {
+        code.iload(SP).iconst(1).op(IADD).iconst(0xff).op(IAND).istore(SP);
+        code.iconst(0x100).iload(SP).op(IADD).istore(ADDR);
+        read(-1, ADDR);
+    }
+
+    // Read a little-endian word from two addresses into a local
+    private void readWord(int lo, int hi, int local) {
+        readFrom(lo);
+        readFrom(hi);
+        code.iconst(8).op(ISHL).op(IOR).istore(local);
+    }
+
+    private void translate(int i, boolean last) {
+        DispatchTable dispatch = cpu.getDispatchTable();
+        int opcode = opcodes[i];
+        int arg0 = args0[i];
+        int arg1 = args1[i];
+        int absolute = Utils.address(arg0, arg1);
+        int next = (pcs[i] + sizes[i]) & 0xffff;
+        int follow = follows[i];
+        int operation = dispatch.operation[opcode];
+        instruction = i;
+        accesses = false;
+        pcSet = false;
+
+        // The effective address, as a constant where it is one, or else in EA
+        int ea = -1;
+        switch (dispatch.addressing[opcode]) {
+            case EA_NONE:
+                ea = 0;
+                break;
+            case EA_IMM:
+                break;
+            case EA_ZPG:
+                ea = arg0;
+                break;
+            case EA_ABS:
+                ea = absolute;
+                break;
+            case EA_ZPI:
+                readWord(arg0, (arg0 + 1) & 0xff, EA);
+                break;
+            case EA_ZPX:
+                code.iconst(arg0).iload(X).op(IADD).iconst(0xff).op(IAND).istore(EA);
+                break;
+            case EA_ZPY:
+                code.iconst(arg0).iload(Y).op(IADD).iconst(0xff).op(IAND).istore(EA);
+                break;
+            case EA_ABX:
+                code.iconst(absolute).iload(X).op(IADD).iconst(0xffff).op(IAND).istore(EA);
+                break;
+            case EA_ABY:
+                code.iconst(absolute).iload(Y).op(IADD).iconst(0xffff).op(IAND).istore(EA);
+                break;
+            case EA_XIN:
+                // The interpreter doesn't wrap the high byte's address either
+                code.iconst(arg0).iload(X).op(IADD).iconst(0xff).op(IAND).istore(T);
+                readFromLocal(T);
+                readAfterLocal(T);
+                code.iconst(8).op(ISHL).op(IOR).istore(EA);
+                break;
+            case EA_INY:
+                readFrom(arg0);
+                readFrom((arg0 + 1) & 0xff);
+                code.iconst(8).op(ISHL).op(IOR).iload(Y).op(IADD).iconst(0xffff).op(IAND).istore(EA);
+                break;
+            default:
+                throw new IllegalStateException("Unknown addressing mode for opcode " + opcode);
+        }
+        boolean immediate = dispatch.addressing[opcode] == EA_IMM;
+        boolean mayAccess = mayAccess(operation, dispatch.addressing[opcode]);
+        int bit = 1 << ((opcode >> 4) & 0x07);
+
+        switch (operation) {
+            case OP_NOP:
+                break;
+            case OP_PHP:
+                code.iconst(0x30).iload(C).op(IOR);
+                code.iload(Z).iconst(1).op(ISHL).op(IOR);
+                code.aload(CPU_STATE).ref(GETFIELD, pField).iconst(Cpu.P_IRQ_DISABLE).op(IAND).op(IOR);
+                code.iload(D).iconst(3).op(ISHL).op(IOR);
+                code.iload(V).iconst(6).op(ISHL).op(IOR);
+                code.iload(N).iconst(7).op(ISHL).op(IOR);
+                code.istore(U);
+                push(U);
+                break;
+            case OP_PHA:
+                push(A);
+                break;
+            case OP_PHX:
+                push(X);
+                break;
+            case OP_PHY:
+                push(Y);
+                break;
+            case OP_PLA:
+                pull();
+                load(A);
+                break;
+            case OP_PLX:
+                pull();
+                load(X);
+                break;
+            case OP_PLY:
+                pull();
+                load(Y);
+                break;
+            case OP_JSR:
+                pushConstant(((pcs[i] + 2) >> 8) & 0xff);
+                pushConstant((pcs[i] + 2) & 0xff);
+                break;
+            case OP_RTS:
+                pull();
+                code.istore(T);
+                pull();
+                code.iconst(8).op(ISHL).iload(T).op(IOR).iconst(1).op(IADD).iconst(0xffff).op(IAND).istore(PC);
+                pcSet = true;
+                if (follow >= 0 && !last) {
+                    // Leave unless returning to just after the call followed
+                    Label expected = code.label();
+                    code.iload(PC).iconst(follow).jump(IF_ICMPEQ, expected);
+                    code.iconst(i).istore(LAST).jump(GOTO, epilogue);
+                    code.mark(expected);
+                }
+                break;
+
+            case OP_BPL:
+                code.iload(N);
+                branch(i, IFEQ, relative(next, arg0));
+                break;
+            case OP_BMI:
+                code.iload(N);
+                branch(i, IFNE, relative(next, arg0));
+                break;
+            case OP_BVC:
+                code.iload(V);
+                branch(i, IFEQ, relative(next, arg0));
+                break;
+            case OP_BVS:
+                code.iload(V);
+                branch(i, IFNE, relative(next, arg0));
+                break;
+            case OP_BCC:
+                code.iload(C);
+                branch(i, IFEQ, relative(next, arg0));
+                break;
+            case OP_BCS:
+                code.iload(C);
+                branch(i, IFNE, relative(next, arg0));
+                break;
+            case OP_BNE:
+                code.iload(Z);
+                branch(i, IFEQ, relative(next, arg0));
+                break;
+            case OP_BEQ:
+                code.iload(Z);
+                branch(i, IFNE, relative(next, arg0));
+                break;
+            case OP_BRA:
+            case OP_JMP_ABS:
+                if (last) {
+                    jump(i, follow);
+                }
+                break;
+            case OP_BBR:
+                readEa(ea);
+                code.iconst(bit).op(IAND);
+                branch(i, IFEQ, relative(next, arg1));
+                break;
+            case OP_BBS:
+                readEa(ea);
+                code.iconst(bit).op(IAND);
+                branch(i, IFNE, relative(next, arg1));
+                break;
+
+            case OP_CLC:
+                code.iconst(0).istore(C);
+                break;
+            case OP_SEC:
+                code.iconst(1).istore(C);
+                break;
+            case OP_CLV:
+                code.iconst(0).istore(V);
+                break;
+            case OP_CLD:
+                code.iconst(0).istore(D);
+                break;
+            case OP_SED:
+                code.iconst(1).istore(D);
+                break;
+            case OP_CLI:
+                code.aload(CPU_STATE).op(DUP).ref(GETFIELD, pField).iconst(~Cpu.P_IRQ_DISABLE & 0xff).op(IAND);
+                code.ref(PUTFIELD, pField);
+                break;
+            case OP_SEI:
+                code.aload(CPU_STATE).op(DUP).ref(GETFIELD, pField).iconst(Cpu.P_IRQ_DISABLE).op(IOR);
+                code.ref(PUTFIELD, pField);
+                break;
+            case OP_PLP:
+                pull();
+                code.istore(U);
+                // Leave if interrupts have been enabled, so that one pending is taken
+                Label stay = code.label();
+                code.aload(CPU_STATE).ref(GETFIELD, pField).op(DUP).iload(U).op(IXOR).op(IAND);
+                code.iconst(Cpu.P_IRQ_DISABLE).op(IAND).jump(IFEQ, stay);
+                code.aload(THIS).iconst(1).ref(PUTFIELD, exitField);
+                code.mark(stay);
+                code.aload(CPU_STATE).iload(U).iconst(0x20).op(IOR).ref(PUTFIELD, pField);
+                loadFlag(C, 0);
+                loadFlag(Z, 1);
+                loadFlag(D, 3);
+                loadFlag(V, 6);
+                loadFlag(N, 7);
+                break;
+
+            case OP_TAX:
+                code.iload(A);
+                load(X);
+                break;
+            case OP_TXA:
+                code.iload(X);
+                load(A);
+                break;
+            case OP_TAY:
+                code.iload(A);
+                load(Y);
+                break;
+            case OP_TYA:
+                code.iload(Y);
+                load(A);
+                break;
+            case OP_TSX:
+                code.iload(SP);
+                load(X);
+                break;
+            case OP_TXS:
+                code.iload(X).istore(SP);
+                break;
+            case OP_INX:
+                increment(X, 1);
+                break;
+            case OP_DEX:
+                increment(X, -1);
+                break;
+            case OP_INY:
+                increment(Y, 1);
+                break;
+            case OP_DEY:
+                increment(Y, -1);
+                break;
+            case OP_INC_A:
+                increment(A, 1);
+                break;
+            case OP_DEC_A:
+                increment(A, -1);
+                break;
+
+            case OP_JMP_IND:
+                readWord(absolute, absolute + 1, PC);
+                pcSet = true;
+                break;
+            case OP_JMP_IND_NMOS:
+                readWord(absolute, arg0 == 0xff ? Utils.address(0x00, arg1) : absolute + 1, PC);
+                pcSet = true;
+                break;
+            case OP_JMP_AIX:
+                code.iconst(absolute).iload(X).op(IADD).iconst(0xffff).op(IAND).istore(T);
+                readFromLocal(T);
+                readAfterLocal(T);
+                code.iconst(8).op(ISHL).op(IOR).istore(PC);
+                pcSet = true;
+                break;
+
+            case OP_ORA:
+                code.iload(A);
+                operand(immediate, arg0, ea);
+                code.op(IOR);
+                load(A);
+                break;
+            case OP_AND:
+                code.iload(A);
+                operand(immediate, arg0, ea);
+                code.op(IAND);
+                load(A);
+                break;
+            case OP_EOR:
+                code.iload(A);
+                operand(immediate, arg0, ea);
+                code.op(IXOR);
+                load(A);
+                break;
+            case OP_ADC:
+                operand(immediate, arg0, ea);
+                code.istore(T);
+                addWithCarry(false, opcode);
+                break;
+            case OP_SBC:
+                operand(immediate, arg0, ea);
+                code.istore(T);
+                addWithCarry(true, opcode);
+                break;
+            case OP_CMP:
+                compare(A, immediate, arg0, ea);
+                break;
+            case OP_CPX:
+                compare(X, immediate, arg0, ea);
+                break;
+            case OP_CPY:
+                compare(Y, immediate, arg0, ea);
+                break;
+            case OP_BIT_IMM:
+                code.iload(A).iconst(arg0).op(IAND).iconst(1).op(ISUB).iconst(31).op(IUSHR).istore(Z);
+                break;
+            case OP_BIT:
+                readEa(ea);
+                code.istore(T);
+                code.iload(A).iload(T).op(IAND).iconst(1).op(ISUB).iconst(31).op(IUSHR).istore(Z);
+                code.iload(T).iconst(7).op(IUSHR).istore(N);
+                code.iload(T).iconst(6).op(IUSHR).iconst(1).op(IAND).istore(V);
+                break;
+
+            case OP_LDA:
+                operand(immediate, arg0, ea);
+                load(A);
+                break;
+            case OP_LDX:
+                operand(immediate, arg0, ea);
+                load(X);
+                break;
+            case OP_LDY:
+                operand(immediate, arg0, ea);
+                load(Y);
+                break;
+            case OP_STA:
+                writeEa(ea, A);
+                break;
+            case OP_STX:
+                writeEa(ea, X);
+                break;
+            case OP_STY:
+                writeEa(ea, Y);
+                break;
+            case OP_STZ:
+                code.iconst(0).istore(T);
+                writeEa(ea, T);
+                break;
+
+            case OP_ASL_A:
+                code.iload(A).iconst(7).op(IUSHR).istore(C);
+                code.iload(A).iconst(1).op(ISHL).iconst(0xff).op(IAND);
+                load(A);
+                break;
+            case OP_ASL:
+                readEa(ea);
+                code.istore(T);
+                code.iload(T).iconst(7).op(IUSHR).istore(C);
+                code.iload(T).iconst(1).op(ISHL).iconst(0xff).op(IAND).istore(U);
+                readModifyWrite(ea);
+                break;
+            case OP_LSR_A:
+                code.iload(A).iconst(1).op(IAND).istore(C);
+                code.iload(A).iconst(1).op(IUSHR);
+                load(A);
+                break;
+            case OP_LSR:
+                readEa(ea);
+                code.istore(T);
+                code.iload(T).iconst(1).op(IAND).istore(C);
+                code.iload(T).iconst(1).op(IUSHR).istore(U);
+                readModifyWrite(ea);
+                break;
+            case OP_ROL_A:
+                code.iload(A).iconst(1).op(ISHL).iload(C).op(IOR).iconst(0xff).op(IAND).istore(U);
+                code.iload(A).iconst(7).op(IUSHR).istore(C);
+                code.iload(U);
+                load(A);
+                break;
+            case OP_ROL:
+                readEa(ea);
+                code.istore(T);
+                code.iload(T).iconst(1).op(ISHL).iload(C).op(IOR).iconst(0xff).op(IAND).istore(U);
+                code.iload(T).iconst(7).op(IUSHR).istore(C);
+                readModifyWrite(ea);
+                break;
+            case OP_ROR_A:
+                code.iload(A).iconst(1).op(IUSHR).iload(C).iconst(7).op(ISHL).op(IOR).istore(U);
+                code.iload(A).iconst(1).op(IAND).istore(C);
+                code.iload(U);
+                load(A);
+                break;
+            case OP_ROR:
+                readEa(ea);
+                code.istore(T);
+                code.iload(T).iconst(1).op(IUSHR).iload(C).iconst(7).op(ISHL).op(IOR).istore(U);
+                code.iload(T).iconst(1).op(IAND).istore(C);
+                readModifyWrite(ea);
+                break;
+            case OP_INC:
+                readEa(ea);
+                code.iconst(1).op(IADD).iconst(0xff).op(IAND).istore(U);
+                readModifyWrite(ea);
+                break;
+            case OP_DEC:
+                readEa(ea);
+                code.iconst(1).op(ISUB).iconst(0xff).op(IAND).istore(U);
+                readModifyWrite(ea);
+                break;
+
+            case OP_TRB:
+            case OP_TSB:
+                readEa(ea);
+                code.istore(T);
+                code.iload(A).iload(T).op(IAND).iconst(1).op(ISUB).iconst(31).op(IUSHR).istore(Z);
+                if (operation == OP_TRB) {
+                    code.iload(T).iload(A).iconst(-1).op(IXOR).op(IAND).istore(U);
+                } else {
+                    code.iload(T).iload(A).op(IOR).istore(U);
+                }
+                writeEa(ea, U);
+                break;
+            case OP_RMB:
+                readEa(ea);
+                code.iconst(~bit & 0xff).op(IAND).istore(U);
+                writeEa(ea, U);
+                break;
+            case OP_SMB:
+                readEa(ea);
+                code.iconst(bit).op(IOR).istore(U);
+                writeEa(ea, U);
+                break;
+
+            default:
+                throw new IllegalStateException("Cannot translate opcode " + opcode);
+        }
+        if (dispatch.pageCrossCycles[opcode] != 0) {
+            // A cycle more if the index carried into the high byte
+            code.aload(THIS).op(DUP).ref(GETFIELD, extraCyclesField);
+            switch (dispatch.addressing[opcode]) {
+                case EA_ABX:
+                    code.iconst(arg0).iload(X).op(IADD).iconst(8).op(IUSHR);
+                    break;
+                case EA_ABY:
+                    code.iconst(arg0).iload(Y).op(IADD).iconst(8).op(IUSHR);
+                    break;
+                default:
+                    code.iload(EA).iconst(0xff).op(IAND).iload(Y).op(ISUB).iconst(31).op(IUSHR);
+            }
+            code.op(IADD).ref(PUTFIELD, extraCyclesField);
+        }
+        if (accesses && !mayAccess) {
+            throw new IllegalStateException("Opcode " + opcode + " accesses memory unexpectedly");
+        }
+
+        if (last) {
+            // The block runs out here, so the next instruction is interpreted or
+            // starts another block
+            if (!pcSet) {
+                code.iconst(follow).istore(PC);
+            }
+            code.iconst(i).istore(LAST);
+        } else if (accesses) {
+            // Leave after an access that has to be seen before the next instruction
+            Label stay = code.label();
+            code.aload(THIS).ref(GETFIELD, exitField).jump(IFEQ, stay);
+            if (!pcSet) {
+                code.iconst(follow).istore(PC);
+            }
+            code.iconst(i).istore(LAST).jump(GOTO, epilogue);
+            code.mark(stay);
+        }
+    }
+
+    // Whether an instruction may read or write memory, and so reach a device
+    private static boolean mayAccess(int operation, int mode) {
+        switch (operation) {
+            case OP_PHP:
+            case OP_PLP:
+            case OP_PHA:
+            case OP_PLA:
+            case OP_PHX:
+            case OP_PLX:
+            case OP_PHY:
+            case OP_PLY:
+            case OP_JSR:
+            case OP_RTS:
+            case OP_JMP_IND:
+            case OP_JMP_IND_NMOS:
+            case OP_JMP_AIX:
+                return true;
+            default:
+                return mode != EA_NONE && mode != EA_IMM;
+        }
+    }
+
+    private static int relative(int next, int offset) {
+        return (next + (byte) offset) & 0xffff;
+    }
+
+    // Push the operand of an instruction
+    private void operand(boolean immediate, int arg0, int ea) {
+        if (immediate) {
+            code.iconst(arg0);
+        } else {
+            readEa(ea);
+        }
+    }
+
+    // Write U back to the effective address, and set Z and N from it
+    private void readModifyWrite(int ea) {
+        writeEa(ea, U);
+        code.iload(U);
+        setNZ();
+    }
+
+    private void compare(int register, boolean immediate, int arg0, int ea) {
+        code.iload(register);
+        operand(immediate, arg0, ea);
+        code.op(ISUB).istore(U);
+        code.iload(U).iconst(31).op(IUSHR).iconst(1).op(IXOR).istore(C);
+        code.iload(U).iconst(0xff).op(IAND);
+        setNZ();
+    }
+
+    // ADC or SBC of the operand in T
+    private void addWithCarry(boolean subtract, int opcode) {
+        Label binary = code.label();
+        Label done = code.label();
+
+        code.iload(D).jump(IFEQ, binary);
+        code.aload(THIS).iload(A).iload(T);
+        code.iload(C);
+        code.iload(Z).iconst(1).op(ISHL).op(IOR);
+        code.iload(V).iconst(2).op(ISHL).op(IOR);
+        code.iload(N).iconst(3).op(ISHL).op(IOR);
+        code.ref(INVOKEVIRTUAL, writer.methodRef(BLOCK, subtract ? "sbcDecimal" : "adcDecimal", "(III)I"));
+        code.istore(U);
+        code.iload(U).iconst(0xff).op(IAND).istore(A);
+        code.iload(U).iconst(8).op(IUSHR).iconst(1).op(IAND).istore(C);
+        code.iload(U).iconst(9).op(IUSHR).iconst(1).op(IAND).istore(Z);
+        code.iload(U).iconst(10).op(IUSHR).iconst(1).op(IAND).istore(V);
+        code.iload(U).iconst(11).op(IUSHR).iconst(1).op(IAND).istore(N);
+        int decimal = cpu.getDispatchTable().decimalCycles[opcode];
+        if (decimal != 0) {
+            code.aload(THIS).op(DUP).ref(GETFIELD, extraCyclesField).iconst(decimal).op(IADD).ref(PUTFIELD, extraCyclesField);
+        }
+        code.jump(GOTO, done);
+
+        // Subtraction adds the one's complement, as the interpreter does
+        code.mark(binary);
+        if (subtract) {
+            code.iload(T).iconst(0xff).op(IXOR).istore(T);
+        }
+        code.iload(T).iload(A).op(IADD).iload(C).op(IADD).istore(U);
+        code.iload(T).iconst(0x7f).op(IAND).iload(A).iconst(0x7f).op(IAND).op(IADD).iload(C).op(IADD);
+        code.iconst(7).op(IUSHR).iload(U).iconst(8).op(IUSHR).op(IXOR).istore(V);
+        code.iload(U).iconst(8).op(IUSHR).istore(C);
+        code.iload(U).iconst(0xff).op(IAND);
+        load(A);
+        code.mark(done);
+    }
+
+    /*
+     * A conditional branch, taken if the value on the stack passes the test.
+     * The block goes straight on when it is not taken, and leaves when it is.
+     */
+    private void branch(int i, int test, int target) {
+        Label notTaken = code.label();
+        code.jump(test == IFEQ ? IFNE : IFEQ, notTaken);
+        int taken = takenCycles(i);
+        if (taken > 0) {
+            code.aload(THIS).op(DUP).ref(GETFIELD, extraCyclesField).iconst(taken).op(IADD).ref(PUTFIELD, extraCyclesField);
+        }
+        jump(i, target);
+        code.iconst(i).istore(LAST).jump(GOTO, epilogue);
+        code.mark(notTaken);
+        pcSet = false;
+    }
+
+    /*
+     * Go from instruction i to a target outside the straight path. Going back
+     * to the start of the block loops rather than leaving, while another trip
+     * round fits in the step and cycle limits.
+     */
+    private void jump(int i, int target) {
+        if (target == start) {
+            Label leave = code.label();
+            code.aload(THIS).ref(GETFIELD, exitField).jump(IFNE, leave);
+            code.aload(THIS).ref(GETFIELD, loopStepsField).iconst(i + 1 + count).op(IADD);
+            code.aload(THIS).ref(GETFIELD, stepLimitField).jump(IF_ICMPGT, leave);
+            code.aload(THIS).ref(GETFIELD, loopCyclesField).aload(THIS).ref(GETFIELD, extraCyclesField).op(IADD);
+            code.iconst(cycles[i] + maxCycles).op(IADD);
+            code.aload(THIS).ref(GETFIELD, cycleLimitField).jump(IF_ICMPGT, leave);
+            code.aload(THIS).op(DUP).ref(GETFIELD, loopStepsField).iconst(i + 1).op(IADD).ref(PUTFIELD, loopStepsField);
+            code.aload(THIS).op(DUP).ref(GETFIELD, loopCyclesField).iconst(cycles[i]).op(IADD).ref(PUTFIELD, loopCyclesField);
+            code.jump(GOTO, top);
+            code.mark(leave);
+        }
+        code.iconst(target).istore(PC);
+        pcSet = true;
+    }
+
+    /*
+     * Each block has a class loader of its own, so that a block thrown away can
+     * be collected along with its class.
+     */
+    private static class BlockLoader extends ClassLoader {
+        BlockLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] classFile) {
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.loomcom.symon;
+
+import java.util.Locale;
+
+/**
+ * A condition on the CPU registers, attached to a breakpoint. A condition is
+ * one or more comparisons joined by "&amp;&amp;", for example
+ * <code>A == $10 &amp;&amp; X &gt;= 3 &amp;&amp; C == 1</code>. Registers are A, X,
+ * Y, SP and P, and the single flags N, V, B, D, I, Z and C. Operators are
+ * ==, !=, &lt;, &lt;=, &gt; and &gt;=. Values are in hex, with an optional "$"
+ * prefix.
+ */
+public class BreakpointCondition {
+
+    private static final String[] REGISTERS = {"A", "X", "Y", "SP", "P", "N", "V", "B", "D", "I", "Z", "C"};
+    private static final String[] OPERATORS = {"==", "!=", "<=", ">=", "<", ">"};
+
+    private static final int REG_A = 0;
+    private static final int REG_X = 1;
+    private static final int REG_Y = 2;
+    private static final int REG_SP = 3;
+    private static final int REG_P = 4;
+    private static final int FLAG_N = 5;
+    private static final int FLAG_V = 6;
+    private static final int FLAG_B = 7;
+    private static final int FLAG_D = 8;
+    private static final int FLAG_I = 9;
+    private static final int FLAG_Z = 10;
+    private static final int FLAG_C = 11;
+
+    private static final int OP_EQ = 0;
+    private static final int OP_NE = 1;
+    private static final int OP_LE = 2;
+    private static final int OP_GE = 3;
+    private static final int OP_LT = 4;
+    private static final int OP_GT = 5;
+
+    private final String text;
+    private final int[] registers;
+    private final int[] operators;
+    private final int[] values;
+
+    /**
+     * Parse a condition.
+     *
+     * @param text The condition text.
+     * @throws IllegalArgumentException If the condition can't be parsed.
+     */
+    public BreakpointCondition(String text) {
+        String[] terms = text.split("&&");
+
+        this.text = text.trim();
+        this.registers = new int[terms.length];
+        this.operators = new int[terms.length];
+        this.values = new int[terms.length];
+
+        for (int i = 0; i < terms.length; i++) {
+            parseTerm(i, terms[i].trim().toUpperCase(Locale.ENGLISH));
+        }
+    }
+
+    /**
+     * @return True if every comparison in the condition holds.
+     */
+    public boolean matches(CpuState state) {
+        for (int i = 0; i < registers.length; i++) {
+            int value = registerValue(registers[i], state);
+            int operand = values[i];
+            boolean result;
+            switch (operators[i]) {
+                case OP_EQ:
+                    result = value == operand;
+                    break;
+                case OP_NE:
+                    result = value != operand;
+                    break;
+                case OP_LE:
+                    result = value <= operand;
+                    break;
+                case OP_GE:
+                    result = value >= operand;
+                    break;
+                case OP_LT:
+                    result = value < operand;
+                    break;
+                default:
+                    result = value > operand;
+                    break;
+            }
+            if (!result) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    private void parseTerm(int index, String term) {
+        for (int op = 0; op < OPERATORS.length; op++) {
+            int split = term.indexOf(OPERATORS[op]);
+            if (split < 0) {
+                continue;
+            }
+
+            String register = term.substring(0, split).trim();
+            String value = term.substring(split + OPERATORS[op].length()).trim();
+            if (value.startsWith("$")) {
+                value = value.substring(1);
+            }
+
+            registers[index] = -1;
+            for (int r = 0; r < REGISTERS.length; r++) {
+                if (REGISTERS[r].equals(register)) {
+                    registers[index] = r;
+                }
+            }
+            if (registers[index] < 0) {
+                throw new IllegalArgumentException("Unknown register '" + register + "'");
+            }
+
+            operators[index] = op;
+            values[index] = Integer.parseInt(value, 16);
+            return;
+        }
+
+        throw new IllegalArgumentException("No comparison in '" + term + "'");
+    }
+
+    private static int registerValue(int register, CpuState state) {
+        switch (register) {
+            case REG_A:
+                return state.a;
+            case REG_X:
+                return state.x;
+            case REG_Y:
+                return state.y;
+            case REG_SP:
+                return state.sp;
+            case REG_P:
+                return state.getStatusFlag();
+            case FLAG_N:
+                return state.getNegativeFlag() ? 1 : 0;
+            case FLAG_V:
+                return state.getOverflowFlag() ? 1 : 0;
+            case FLAG_B:
+                return state.getBreakFlag() ? 1 : 0;
+            case FLAG_D:
+                return state.getDecimalModeFlag() ? 1 : 0;
+            case FLAG_I:
+                return state.getIrqDisableFlag() ? 1 : 0;
+            case FLAG_Z:
+                return state.getZeroFlag() ? 1 : 0;
+            default:
+                return state.getCarryFlag() ? 1 : 0;
+        }
+    }
+}
@@ -4,41 +4,162 @@ import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.util.Utils;
 
 import javax.swing.table.AbstractTableModel;
-import java.util.ArrayList;
-import java.util.TreeSet;
-
+import java.util.TreeMap;
+
+/**
+ * The set of breakpoints, and the table model showing them.
+ * <p>
+ * The run loop checks for a breakpoint after every instruction, so addresses
+ * are held in a 64K-bit bitset and the check is a single array lookup, or
+ * nothing at all when no breakpoints are set. Only when the bitset hits is the
+ * breakpoint's condition evaluated and its hit count updated. Breakpoints are
+ * edited on the UI thread; the bitset is replaced rather than modified, so the
+ * simulator thread always sees a consistent copy.
+ */
 public class Breakpoints extends AbstractTableModel {
 
-    private TreeSet<Integer> breakpoints;
+    /**
+     * A breakpoint at one address, with an optional condition on the registers.
+     * It breaks once it has been hit <code>breakAfter</code> times.
+     */
+    public static class Breakpoint {
+        private final int address;
+        private final BreakpointCondition condition;
+        private final int breakAfter;
+        private volatile int hitCount;
+
+        public Breakpoint(int address, BreakpointCondition condition, int breakAfter) {
+            this.address = address;
+            this.condition = condition;
+            this.breakAfter = Math.max(1, breakAfter);
+        }
+
+        public int getAddress() {
+            return address;
+        }
+
+        public BreakpointCondition getCondition() {
+            return condition;
+        }
+
+        public int getBreakAfter() {
+            return breakAfter;
+        }
+
+        /**
+         * @return The number of times the breakpoint was reached with its condition true.
+         */
+        public int getHitCount() {
+            return hitCount;
+        }
+
+        boolean hit(CpuState state) {
+            if (condition != null && !condition.matches(state)) {
+                return false;
+            }
+            return ++hitCount >= breakAfter;
+        }
+    }
+
+    private static final int BITSET_WORDS = 0x10000 / 64;
+
+    private final TreeMap<Integer, Breakpoint> breakpoints;
+    private Breakpoint[] rows;
+    private volatile long[] bits;
+    private volatile boolean empty;
     private Simulator simulator;
 
     public Breakpoints(Simulator simulator) {
-        this.breakpoints = new TreeSet<>();
+        this.breakpoints = new TreeMap<>();
+        this.rows = new Breakpoint[0];
+        this.bits = new long[BITSET_WORDS];
+        this.empty = true;
         this.simulator = simulator;
     }
 
     public boolean contains(int address) {
-        return this.breakpoints.contains(address);
+        if (empty) {
+            return false;
+        }
+        return (bits[(address & 0xffff) >>> 6] & (1L << address)) != 0;
+    }
+
+    /**
+     * Check whether the CPU should stop at its current PC. This is called after
+     * every instruction from the simulator thread.
+     *
+     * @return True if there is a breakpoint at the PC, its condition holds and
+     *         it has been hit enough times.
+     */
+    public boolean shouldBreak(CpuState state) {
+        if (empty) {
+            return false;
+        }
+        int address = state.pc;
+        if ((bits[address >>> 6] & (1L << address)) == 0) {
+            return false;
+        }
+
+        Breakpoint breakpoint;
+        synchronized (breakpoints) {
+            breakpoint = breakpoints.get(address);
+        }
+        return breakpoint != null && breakpoint.hit(state);
+    }
+
+    /**
+     * Check for a breakpoint whose condition holds at the PC, without counting a
+     * hit, for running backwards.
+     */
+    public boolean matches(CpuState state) {
+        if (empty || (bits[state.pc >>> 6] & (1L << state.pc)) == 0) {
+            return false;
+        }
+
+        Breakpoint breakpoint;
+        synchronized (breakpoints) {
+            breakpoint = breakpoints.get(state.pc);
+        }
+        return breakpoint != null && (breakpoint.condition == null || breakpoint.condition.matches(state));
     }
 
     public void addBreakpoint(int address) {
-        this.breakpoints .add(address);
+        addBreakpoint(new Breakpoint(address, null, 1));
+    }
+
+    public void addBreakpoint(Breakpoint breakpoint) {
+        synchronized (breakpoints) {
+            breakpoints.put(breakpoint.getAddress(), breakpoint);
+            update();
+        }
         fireTableDataChanged();
     }
 
     public void removeBreakpoint(int address) {
-        this.breakpoints.remove(address);
+        synchronized (breakpoints) {
+            breakpoints.remove(address);
+            update();
+        }
         fireTableDataChanged();
     }
 
     public void removeBreakpointAtIndex(int index) {
-        if (index < 0) {
+        if (index < 0 || index >= rows.length) {
             return;
         }
 
-        ArrayList<Integer> values = new ArrayList<>(breakpoints);
-        int value = values.get(index);
-        this.breakpoints.remove(value);
+        removeBreakpoint(rows[index].getAddress());
+    }
+
+    /**
+     * Clear the hit counts of all breakpoints.
+     */
+    public void resetHitCounts() {
+        synchronized (breakpoints) {
+            for (Breakpoint breakpoint : breakpoints.values()) {
+                breakpoint.hitCount = 0;
+            }
+        }
         fireTableDataChanged();
     }
 
@@ -46,40 +167,65 @@ public class Breakpoints extends AbstractTableModel {
         fireTableDataChanged();
     }
 
+    /**
+     * Rebuild the table rows and the bitset after a change.
+     */
+    private void update() {
+        long[] newBits = new long[BITSET_WORDS];
+        for (int address : breakpoints.keySet()) {
+            newBits[address >>> 6] |= 1L << address;
+        }
+        rows = breakpoints.values().toArray(new Breakpoint[breakpoints.size()]);
+        bits = newBits;
+        empty = breakpoints.isEmpty();
+    }
+
     @Override
     public String getColumnName(int index) {
-        if (index == 0) {
-            return "Address";
-        } else {
-            return "Inst";
+        switch (index) {
+            case 0:
+                return "Address";
+            case 1:
+                return "Inst";
+            case 2:
+                return "Condition";
+            default:
+                return "Hits";
         }
     }
 
     @Override
     public int getRowCount() {
-        return breakpoints.size();
+        return rows.length;
     }
 
     @Override
     public int getColumnCount() {
-        return 2;
+        return 4;
     }
 
     @Override
     public Object getValueAt(int rowIndex, int columnIndex) {
-        ArrayList<Integer> values = new ArrayList<>(breakpoints);
-
-        if (columnIndex == 0) {
-            return "$" + Utils.wordToHex(values.get(rowIndex));
-        } else if (columnIndex == 1) {
-            int address = values.get(rowIndex);
-            try {
-                return simulator.disassembleOpAtAddress(address);
-            } catch (MemoryAccessException ex) {
-                return "???";
-            }
-        } else {
-            return null;
+        Breakpoint breakpoint = rows[rowIndex];
+
+        switch (columnIndex) {
+            case 0:
+                return "$" + Utils.wordToHex(breakpoint.getAddress());
+            case 1:
+                try {
+                    return simulator.disassembleOpAtAddress(breakpoint.getAddress());
+                } catch (MemoryAccessException ex) {
+                    return "???";
+                }
+            case 2:
+                return breakpoint.getCondition() == null ? "" : breakpoint.getCondition().toString();
+            case 3:
+                if (breakpoint.getBreakAfter() > 1) {
+                    return breakpoint.getHitCount() + "/" + breakpoint.getBreakAfter();
+                }
+                return Integer.toString(breakpoint.getHitCount());
+            default:
+                return null;
         }
     }
 }
@@ -24,10 +24,12 @@
 package com.loomcom.symon;
 
 import com.loomcom.symon.devices.Device;
+import com.loomcom.symon.devices.Memory;
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.HashMap;
@@ -42,7 +44,7 @@ import java.util.TreeSet;
 public class Bus {
 
     // The default address at which to load programs
-    public static int DEFAULT_LOAD_ADDRESS = 0x0200;
+    public static final int DEFAULT_LOAD_ADDRESS = 0x0200;
 
     // By default, our bus starts at 0, and goes up to 64K
     private int startAddress = 0x0000;
@@ -51,11 +53,55 @@ public class Bus {
     // The CPU
     private Cpu cpu;
 
+    // Device events, timed in CPU cycles
+    private final Scheduler scheduler = new Scheduler();
+
     // Ordered sets of IO devices, associated with their priority
     private Map<Integer, SortedSet<Device>> deviceMap;
 
-    // an array for quick lookup of adresses, brute-force style
-    private Device[] deviceAddressArray;
+    // The address space is mapped in pages of 256 bytes
+    private static final int PAGE_SHIFT = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int PAGE_COUNT = 0x10000 >>> PAGE_SHIFT;
+
+    // Backing store of the Memory device mapped over each whole page, or null.
+    // Reads from these pages are a single array index with no call into the device.
+    private final byte[][] readPages = new byte[PAGE_COUNT][];
+
+    // As readPages, but null for read-only pages, so that writes reach the device.
+    private final byte[][] writePages = new byte[PAGE_COUNT][];
+
+    // Offset of the first byte of each page into its backing store
+    private final int[] pageOffsets = new int[PAGE_COUNT];
+
+    // The device mapped over each whole page, or null if the page is unmapped or shared
+    private final Device[] pageDevices = new Device[PAGE_COUNT];
+
+    // Per-address devices for pages that are shared between devices, or only partly mapped
+    private final Device[][] sharedPages = new Device[PAGE_COUNT][];
+
+    private boolean pagesBuilt = false;
+
+    // Watchpoints on each page, or null. Pages with read or write watchpoints are
+    // kept off the fast path, so that every access reaches the checks below.
+    private final Watchpoint[][] pageWatchpoints = new Watchpoint[PAGE_COUNT][];
+    private final List<Watchpoint> watchpoints = new ArrayList<>();
+    private int executeWatchpointCount = 0;
+    private final int[] opcodeBuffer = new int[1];
+
+    // The most recent watchpoint to fire, until it is taken by the run loop
+    private volatile Watchpoint.Hit watchpointHit;
+
+    // Records writes and device reads for rewinding, or null
+    private WriteJournal journal;
+
+    /* Flags of addresses held as code elsewhere, whose writes must reach the holder */
+    static final byte CODE_DECODED = 1;     // In the CPU's decoded instruction cache
+    static final byte CODE_TRANSLATED = 2;  // In a block translated by the recompiler
+
+    private final byte[] codeBytes = new byte[0x10000];
+    private Recompiler recompiler;
 
 
     public Bus(int size) {
@@ -76,18 +122,96 @@ public class Bus {
         return endAddress;
     }
 
-    private void buildDeviceAddressArray() {
-        int size = (this.endAddress - this.startAddress) + 1;
-        deviceAddressArray = new Device[size];
+    /**
+     * Rebuild the page table from the attached devices. Devices are laid down in the
+     * order given by getDevices(), later devices shadowing earlier ones. The cost is
+     * proportional to the number of pages, plus the bytes of any partly mapped pages.
+     */
+    private void buildPageTable() {
+        Arrays.fill(pageDevices, null);
+        Arrays.fill(sharedPages, null);
 
-        // getDevices() provides an OrderedSet with devices ordered by priorities
         for (Device device : getDevices()) {
             MemoryRange range = device.getMemoryRange();
-            for (int address = range.startAddress; address <= range.endAddress; ++address) {
-                deviceAddressArray[address - this.startAddress] = device;
+            int address = range.startAddress;
+
+            while (address <= range.endAddress) {
+                int page = address >>> PAGE_SHIFT;
+                int pageEnd = Math.min(range.endAddress, (page << PAGE_SHIFT) | PAGE_MASK);
+
+                if ((address & PAGE_MASK) == 0 && (pageEnd & PAGE_MASK) == PAGE_MASK) {
+                    pageDevices[page] = device;
+                    sharedPages[page] = null;
+                } else {
+                    Device[] shared = sharedPages[page];
+                    if (shared == null) {
+                        shared = new Device[PAGE_SIZE];
+                        Arrays.fill(shared, pageDevices[page]);
+                        sharedPages[page] = shared;
+                        pageDevices[page] = null;
+                    }
+                    Arrays.fill(shared, address & PAGE_MASK, (pageEnd & PAGE_MASK) + 1, device);
+                }
+
+                address = pageEnd + 1;
+            }
+        }
+
+        for (int page = 0; page < PAGE_COUNT; page++) {
+            // A page may have been entirely covered piece by piece
+            Device[] shared = sharedPages[page];
+            if (shared != null && isUniform(shared)) {
+                pageDevices[page] = shared[0];
+                sharedPages[page] = null;
+            }
+            mapPage(page, pageDevices[page]);
+        }
+
+        pagesBuilt = true;
+
+        // Code decoded or translated may have been read from what is no longer there
+        forgetCode();
+    }
+
+    private static boolean isUniform(Device[] shared) {
+        for (Device device : shared) {
+            if (device == null || device != shared[0]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void mapPage(int page, Device device) {
+        if (device instanceof Memory) {
+            Memory memory = (Memory) device;
+            readPages[page] = hasWatchpoint(page, Watchpoint.Type.READ) ? null : memory.getBackingStore();
+            writePages[page] = memory.isReadOnly() || hasWatchpoint(page, Watchpoint.Type.WRITE) ?
+                               null : memory.getBackingStore();
+            pageOffsets[page] = (page << PAGE_SHIFT) - memory.startAddress();
+        } else {
+            readPages[page] = null;
+            writePages[page] = null;
+            pageOffsets[page] = 0;
+        }
+    }
+
+    private boolean hasWatchpoint(int page, Watchpoint.Type type) {
+        Watchpoint[] watches = pageWatchpoints[page];
+        if (watches != null) {
+            for (Watchpoint watchpoint : watches) {
+                if (watchpoint.getType() == type) {
+                    return true;
+                }
             }
         }
+        return false;
+    }
 
+    private Device deviceAt(int address) {
+        int page = address >>> PAGE_SHIFT;
+        Device[] shared = sharedPages[page];
+        return shared == null ? pageDevices[page] : shared[address & PAGE_MASK];
     }
 
     /**
@@ -118,7 +242,7 @@ public class Bus {
 
         device.setBus(this);
         deviceSet.add(device);
-        buildDeviceAddressArray();
+        buildPageTable();
     }
 
     /**
@@ -141,7 +265,7 @@ public class Bus {
         for (SortedSet<Device> deviceSet : deviceMap.values()) {
             deviceSet.remove(device);
         }
-        buildDeviceAddressArray();
+        buildPageTable();
     }
 
     public void addCpu(Cpu cpu) {
@@ -149,18 +273,124 @@ public class Bus {
         cpu.setBus(this);
     }
 
+    /**
+     * @return The scheduler for device events on this bus. The CPU advances it
+     *         by the cycles of each instruction.
+     */
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Journal every write, and every CPU read from a device other than memory,
+     * for rewinding. Null turns journalling off.
+     */
+    public void setJournal(WriteJournal journal) {
+        this.journal = journal;
+    }
+
+    public WriteJournal getJournal() {
+        return journal;
+    }
+
+    void setRecompiler(Recompiler recompiler) {
+        this.recompiler = recompiler;
+        for (int address = 0; address < codeBytes.length; address++) {
+            codeBytes[address] &= ~CODE_TRANSLATED;
+        }
+    }
+
+    Recompiler getRecompiler() {
+        return recompiler;
+    }
+
+    /*
+     * The page tables, shared with translated code so that it can reach memory
+     * as directly as read() and write() do.
+     */
+
+    byte[][] getReadPages() {
+        return readPages;
+    }
+
+    byte[][] getWritePages() {
+        return writePages;
+    }
+
+    int[] getPageOffsets() {
+        return pageOffsets;
+    }
+
+    byte[] getCodeBytes() {
+        return codeBytes;
+    }
+
+    /**
+     * Flag an instruction the CPU keeps decoded, so that a write to any of its
+     * bytes makes the CPU forget it.
+     *
+     * @return false, flagging nothing, unless the instruction is all in memory
+     *         that reads without side effects.
+     */
+    boolean holdDecoded(int address, int length) {
+        if (address + length > codeBytes.length ||
+            readPages[address >>> PAGE_SHIFT] == null ||
+            readPages[(address + length - 1) >>> PAGE_SHIFT] == null) {
+            return false;
+        }
+        for (int i = address; i < address + length; i++) {
+            codeBytes[i] |= CODE_DECODED;
+        }
+        return true;
+    }
+
+    /*
+     * Tell whoever holds an address as code that it has changed. The recompiler
+     * tells code written by the CPU from code loaded from outside.
+     */
+    private void codeChanged(int address, boolean written) {
+        byte flags = codeBytes[address];
+        if ((flags & CODE_DECODED) != 0) {
+            codeBytes[address] &= ~CODE_DECODED;
+            cpu.forgetDecoded(address);
+        }
+        if ((flags & CODE_TRANSLATED) != 0) {
+            if (written) {
+                recompiler.codeWritten(address);
+            } else {
+                recompiler.codeLoaded(address);
+            }
+        }
+    }
+
+    /**
+     * Make the CPU and recompiler forget all the code they hold, after memory
+     * has been changed behind the bus's back, or the memory map has changed.
+     */
+    void forgetCode() {
+        for (int address = 0; address < codeBytes.length; address++) {
+            codeBytes[address] &= ~CODE_DECODED;
+        }
+        if (cpu != null) {
+            cpu.forgetAllDecoded();
+        }
+        if (recompiler != null) {
+            recompiler.invalidateAll();
+        }
+    }
+
     /**
      * Returns true if the memory map is full, i.e., there are no
      * gaps between any IO devices.  All memory locations map to some
      * device.
      */
     public boolean isComplete() {
-        if (deviceAddressArray == null) {
-            buildDeviceAddressArray();
+        if (!pagesBuilt) {
+            buildPageTable();
         }
 
         for (int address = startAddress; address <= endAddress; ++address) {
-            if (deviceAddressArray[address - startAddress] == null) {
+            if (deviceAt(address) == null) {
                 return false;
             }
         }
@@ -169,19 +399,77 @@ public class Bus {
     }
 
     public int read(int address, boolean cpuAccess) throws MemoryAccessException {
-        Device d = deviceAddressArray[address - this.startAddress];
+        int page = address >>> PAGE_SHIFT;
+        byte[] backing = readPages[page];
+        if (backing != null) {
+            return backing[pageOffsets[page] + (address & PAGE_MASK)] & 0xff;
+        }
+
+        Device d = deviceAt(address);
         if (d != null) {
             MemoryRange range = d.getMemoryRange();
             int devAddr = address - range.startAddress();
-            return d.read(devAddr, cpuAccess) & 0xff;
+            int value = d.read(devAddr, cpuAccess) & 0xff;
+            if (journal != null && cpuAccess && !(d instanceof Memory)) {
+                value = journal.read(address, value);
+            }
+            Watchpoint[] watches = pageWatchpoints[page];
+            if (watches != null && cpuAccess) {
+                checkWatchpoints(watches, Watchpoint.Type.READ, address, value);
+            }
+            return value;
         }
 
         throw new MemoryAccessException("Bus read failed. No device at address " + String.format("$%04X", address));
     }
 
+    /**
+     * Tell how long reading an address will go on giving the same value, while
+     * nothing is written to it. Memory always does, and a device says so for
+     * each of its registers. An address with watchpoints never does, so that
+     * every read of it is seen.
+     *
+     * @return The scheduler cycle before which the address reads the same, or 0
+     *         if it cannot be relied on.
+     */
+    public long stableUntil(int address) {
+        int page = address >>> PAGE_SHIFT;
+        if (pageWatchpoints[page] != null) {
+            return 0L;
+        }
+        if (readPages[page] != null) {
+            return Long.MAX_VALUE;
+        }
+        Device d = deviceAt(address);
+        if (d == null) {
+            return 0L;
+        }
+        return d.stableUntil(address - d.getMemoryRange().startAddress());
+    }
+
     public void write(int address, int value) throws MemoryAccessException {
-        Device d = deviceAddressArray[address - this.startAddress];
+        int page = address >>> PAGE_SHIFT;
+        if (codeBytes[address] != 0) {
+            codeChanged(address, true);
+        }
+        byte[] backing = writePages[page];
+        if (backing != null) {
+            backing[pageOffsets[page] + (address & PAGE_MASK)] = (byte) value;
+            if (journal != null) {
+                journal.write(address, value & 0xff);
+            }
+            return;
+        }
+
+        Device d = deviceAt(address);
         if (d != null) {
+            if (journal != null) {
+                journal.write(address, value & 0xff);
+            }
+            Watchpoint[] watches = pageWatchpoints[page];
+            if (watches != null) {
+                checkWatchpoints(watches, Watchpoint.Type.WRITE, address, value & 0xff);
+            }
             MemoryRange range = d.getMemoryRange();
             int devAddr = address - range.startAddress();
             d.write(devAddr, value);
@@ -191,6 +479,179 @@ public class Bus {
         throw new MemoryAccessException("Bus write failed. No device at address " + String.format("$%04X", address));
     }
 
+    /**
+     * Write a block of bytes to the bus, starting at the given address. Runs that
+     * fall on writable memory pages are copied in bulk, anything else is written
+     * one address at a time.
+     *
+     * @param address The bus address at which to start writing.
+     * @param data    The bytes to write.
+     * @throws MemoryAccessException if any address cannot be written.
+     */
+    public void load(int address, byte[] data) throws MemoryAccessException {
+        int i = 0;
+        while (i < data.length) {
+            int addr = address + i;
+            int page = addr >>> PAGE_SHIFT;
+            int run = Math.min(data.length - i, PAGE_SIZE - (addr & PAGE_MASK));
+            byte[] backing = writePages[page];
+            if (backing != null) {
+                int offset = pageOffsets[page] + (addr & PAGE_MASK);
+                for (int j = 0; j < run; j++) {
+                    // Loading the bytes already there changes no code
+                    if (codeBytes[addr + j] != 0 && backing[offset + j] != data[i + j]) {
+                        codeChanged(addr + j, false);
+                    }
+                }
+                System.arraycopy(data, i, backing, offset, run);
+            } else {
+                for (int j = 0; j < run; j++) {
+                    write(addr + j, data[i + j] & 0xff);
+                }
+            }
+            i += run;
+        }
+    }
+
+    /**
+     * Read a block of bytes from the bus without CPU side effects, starting at the
+     * given address. Runs that fall on memory pages are copied in bulk. Addresses
+     * that have no device, or whose device cannot be read, are returned as -1.
+     *
+     * @param address The bus address at which to start reading.
+     * @param buffer  The buffer to fill, one unsigned byte per entry.
+     */
+    public void dump(int address, int[] buffer) {
+        int i = 0;
+        while (i < buffer.length) {
+            int addr = address + i;
+            int page = addr >>> PAGE_SHIFT;
+            int run = Math.min(buffer.length - i, PAGE_SIZE - (addr & PAGE_MASK));
+            byte[] backing = readPages[page];
+            if (backing != null) {
+                int offset = pageOffsets[page] + (addr & PAGE_MASK);
+                for (int j = 0; j < run; j++) {
+                    buffer[i + j] = backing[offset + j] & 0xff;
+                }
+            } else {
+                for (int j = 0; j < run; j++) {
+                    try {
+                        buffer[i + j] = read(addr + j, false);
+                    } catch (MemoryAccessException ex) {
+                        buffer[i + j] = -1;
+                    }
+                }
+            }
+            i += run;
+        }
+    }
+
+    /**
+     * Add a watchpoint. Pages it covers leave the fast path until it is removed.
+     */
+    public void addWatchpoint(Watchpoint watchpoint) {
+        watchpoints.add(watchpoint);
+        updateWatchpoints();
+    }
+
+    public void removeWatchpoint(Watchpoint watchpoint) {
+        watchpoints.remove(watchpoint);
+        updateWatchpoints();
+    }
+
+    public void clearWatchpoints() {
+        watchpoints.clear();
+        updateWatchpoints();
+    }
+
+    public List<Watchpoint> getWatchpoints() {
+        return Collections.unmodifiableList(watchpoints);
+    }
+
+    /**
+     * Check for an execute watchpoint on the instruction about to be executed. This
+     * is called from the run loop before each instruction, and does nothing unless
+     * there are execute watchpoints.
+     *
+     * @param address The address of the next instruction.
+     * @return True if a watchpoint fired.
+     */
+    public boolean checkExecute(int address) {
+        if (executeWatchpointCount == 0) {
+            return false;
+        }
+        Watchpoint[] watches = pageWatchpoints[address >>> PAGE_SHIFT];
+        if (watches == null) {
+            return false;
+        }
+
+        dump(address, opcodeBuffer);
+        return checkWatchpoints(watches, Watchpoint.Type.EXECUTE, address, opcodeBuffer[0]);
+    }
+
+    /**
+     * @return True if there are execute watchpoints, which must be checked before
+     *         every instruction.
+     */
+    public boolean hasExecuteWatchpoints() {
+        return executeWatchpointCount > 0;
+    }
+
+    /**
+     * @return The watchpoint that has fired since the last call, or null if none has.
+     */
+    public Watchpoint.Hit takeWatchpointHit() {
+        Watchpoint.Hit hit = watchpointHit;
+        if (hit != null) {
+            watchpointHit = null;
+        }
+        return hit;
+    }
+
+    private boolean checkWatchpoints(Watchpoint[] watches, Watchpoint.Type type, int address, int value) {
+        for (Watchpoint watchpoint : watches) {
+            if (watchpoint.matches(type, address, value)) {
+                int instructionAddress = (cpu == null || type == Watchpoint.Type.EXECUTE) ?
+                                         address : cpu.getCpuState().lastPc;
+                watchpointHit = new Watchpoint.Hit(watchpoint, instructionAddress, address, value);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rebuild the per-page watchpoint lists, and take watched pages off the fast path.
+     */
+    private void updateWatchpoints() {
+        List<List<Watchpoint>> pages = new ArrayList<>(PAGE_COUNT);
+        for (int page = 0; page < PAGE_COUNT; page++) {
+            pages.add(null);
+        }
+
+        executeWatchpointCount = 0;
+        for (Watchpoint watchpoint : watchpoints) {
+            if (watchpoint.getType() == Watchpoint.Type.EXECUTE) {
+                executeWatchpointCount++;
+            }
+            int first = watchpoint.getStartAddress() >>> PAGE_SHIFT;
+            int last = watchpoint.getEndAddress() >>> PAGE_SHIFT;
+            for (int page = first; page <= last; page++) {
+                if (pages.get(page) == null) {
+                    pages.set(page, new ArrayList<Watchpoint>());
+                }
+                pages.get(page).add(watchpoint);
+            }
+        }
+
+        for (int page = 0; page < PAGE_COUNT; page++) {
+            List<Watchpoint> watches = pages.get(page);
+            pageWatchpoints[page] = watches == null ? null : watches.toArray(new Watchpoint[watches.size()]);
+        }
+
+        buildPageTable();
+    }
+
     public void assertIrq() {
         if (cpu != null) {
             cpu.assertIrq();
@@ -0,0 +1,174 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.exceptions.MemoryAccessException;
+
+/**
+ * A run of 6502 instructions translated into a JVM class by the
+ * {@link Recompiler}.
+ * <p>
+ * The generated subclass implements {@link #run(CpuState)}, which loads the
+ * registers and flags into locals, executes the instructions, and stores them
+ * back. Memory is read and written in line through the bus page tables. An
+ * access that reaches anything else goes through {@link #readSlow(int, int)}
+ * or {@link #writeSlow(int, int, int)}, which set {@link #exit}, and the block
+ * returns after the instruction that made it, so that device side effects
+ * are seen by the next instruction just as when interpreting. So does a write
+ * over the block's own code, once the recompiler has thrown the block away.
+ * <p>
+ * Generated classes live in class loaders of their own, so everything they
+ * use here is public or protected.
+ */
+public abstract class CompiledBlock {
+
+    /** Set by an access that must end the block after its instruction. */
+    protected boolean exit;
+
+    /** Steps and cycles of the trips made round the block back to its start. */
+    protected int loopSteps;
+    protected int loopCycles;
+
+    /** Cycles taken beyond the instructions' clocks, by page crossings and branches. */
+    protected int extraCycles;
+
+    /** The most steps and cycles the block may run before it leaves. */
+    protected int stepLimit;
+    protected int cycleLimit;
+
+    // Cycles of this run the scheduler has been advanced by
+    long advanced;
+
+    private Bus bus;
+    private Cpu cpu;
+    private Scheduler scheduler;
+
+    /** The bus page tables, and the marks it keeps on translated code. */
+    protected byte[][] readPages;
+    protected byte[][] writePages;
+    protected int[] pageOffsets;
+    protected byte[] codeBytes;
+
+    // The address, opcode, size and arguments of each instruction, and the
+    // cycles taken by it and those before it
+    int start;
+    int[] pcs;
+    int[] opcodes;
+    int[] sizes;
+    int[] args0;
+    int[] args1;
+    int[] cycles;
+
+    // The most cycles one trip through the block can take, counting every
+    // page crossing and taken branch that may happen on the way
+    int maxCycles;
+
+    protected CompiledBlock() {
+    }
+
+    void attach(Bus bus, Cpu cpu) {
+        this.bus = bus;
+        this.cpu = cpu;
+        this.scheduler = bus.getScheduler();
+        this.readPages = bus.getReadPages();
+        this.writePages = bus.getWritePages();
+        this.pageOffsets = bus.getPageOffsets();
+        this.codeBytes = bus.getCodeBytes();
+    }
+
+    /**
+     * Execute the block.
+     *
+     * @return The index of the last instruction executed.
+     */
+    protected abstract int run(CpuState state) throws MemoryAccessException;
+
+    /**
+     * @return The number of instructions in the block.
+     */
+    public int length() {
+        return pcs.length;
+    }
+
+    /**
+     * @return The index of the instruction translated from an address, or -1
+     *         if the block holds none.
+     */
+    int instructionAt(int address) {
+        for (int i = 0; i < pcs.length; i++) {
+            if (address >= pcs[i] && address < pcs[i] + sizes[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Read from a device, made by the instruction at an index of the block.
+     */
+    protected final int readSlow(int address, int index) throws MemoryAccessException {
+        exit = true;
+        catchUp(index);
+        return bus.read(address, true);
+    }
+
+    /**
+     * Write to a device, or over translated code, made by the instruction at
+     * an index of the block.
+     */
+    protected final void writeSlow(int address, int value, int index) throws MemoryAccessException {
+        if (writePages[address >>> 8] != null) {
+            // The bus has the recompiler throw away any block written over,
+            // which sets its exit if it is this one, and the CPU forget any
+            // instruction decoded there
+            bus.write(address, value);
+            return;
+        }
+        exit = true;
+        catchUp(index);
+        bus.write(address, value);
+    }
+
+    /*
+     * Bring the scheduler and the last PC up to the start of the instruction
+     * being run, so that a device sees the time it would when interpreted, and
+     * a watchpoint the right instruction.
+     */
+    private void catchUp(int index) {
+        long elapsed = loopCycles + extraCycles + (index == 0 ? 0 : cycles[index - 1]);
+        scheduler.advance((int) (elapsed - advanced));
+        advanced = elapsed;
+        cpu.getCpuState().lastPc = pcs[index];
+    }
+
+    /**
+     * Decimal mode ADC, as the CPU does it.
+     *
+     * @param flags The carry, zero, overflow and negative flags in bits 0 to 3.
+     * @return The result, with the flags after it in bits 8 to 11.
+     */
+    protected final int adcDecimal(int acc, int operand, int flags) {
+        CpuState state = unpackFlags(flags);
+        return packFlags(cpu.adcDecimal(acc, operand), state);
+    }
+
+    /**
+     * Decimal mode SBC, as the CPU does it.
+     *
+     * @see #adcDecimal(int, int, int)
+     */
+    protected final int sbcDecimal(int acc, int operand, int flags) {
+        CpuState state = unpackFlags(flags);
+        return packFlags(cpu.sbcDecimal(acc, operand), state);
+    }
+
+    // The flags live in locals while a block runs, so the CPU's copy is stale
+    private CpuState unpackFlags(int flags) {
+        CpuState state = cpu.getCpuState();
+        state.p = (state.p & ~(Cpu.P_CARRY | Cpu.P_ZERO | Cpu.P_OVERFLOW | Cpu.P_NEGATIVE)) |
+                  (flags & 0x3) | (flags & 0xc) << 4;
+        return state;
+    }
+
+    private static int packFlags(int result, CpuState state) {
+        return result | (state.p & 0x3) << 8 | (state.p & 0xc0) << 4;
+    }
+}
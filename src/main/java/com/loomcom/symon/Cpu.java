@@ -28,6 +28,10 @@ import com.loomcom.symon.util.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.loomcom.symon.DispatchTable.*;
 
 /**
  * This class provides a simulation of the MOS 6502 CPU's state machine.
@@ -48,6 +52,15 @@ public class Cpu implements InstructionTable {
     public static final int P_OVERFLOW    = 0x40;
     public static final int P_NEGATIVE    = 0x80;
 
+    /* The negative and zero flags for every 8-bit result */
+    static final int[] NZ = new int[256];
+
+    static {
+        for (int v = 0; v < 256; v++) {
+            NZ[v] = (v == 0 ? P_ZERO : 0) | (v & P_NEGATIVE);
+        }
+    }
+
     // NMI vector
     public static final int NMI_VECTOR_L = 0xfffa;
     public static final int NMI_VECTOR_H = 0xfffb;
@@ -58,22 +71,68 @@ public class Cpu implements InstructionTable {
     public static final int IRQ_VECTOR_L = 0xfffe;
     public static final int IRQ_VECTOR_H = 0xffff;
 
+    /* Clock cycles taken to push the state and fetch the vector of an IRQ or NMI */
+    static final int INTERRUPT_CYCLES = 7;
+
     public static final long DEFAULT_CLOCK_PERIOD_IN_NS = 371;
 
+    /* A clock period of 0 runs the CPU unthrottled, as fast as the host allows */
+    public static final long TURBO_CLOCK_PERIOD_IN_NS = 0;
+
+    /* Simulated time to run between synchronizations with the wall clock */
+    private static final long THROTTLE_BATCH_NS = 1000000L;
+
+    /* If the simulation falls further behind the wall clock than this, stop trying to catch up */
+    private static final long THROTTLE_MAX_LAG_NS = 50000000L;
+
     /* Simulated clock speed (default is 1MHz) */
     private long clockPeriodInNs = DEFAULT_CLOCK_PERIOD_IN_NS;
 
     /* Simulated behavior */
     private CpuBehavior behavior;
 
+    /* Cycles the instruction being executed takes beyond its clocks, for page
+       crossings, branches and decimal mode */
+    private int extraCycles;
+
+    /* The bits of a decimal mode result that are valid in the negative flag: none on NMOS */
+    private int decimalNegativeMask;
+
+    /* Pre-decoded addressing modes and operations for the simulated behavior */
+    private DispatchTable dispatch;
+
+    /* Clock cycles per opcode for the simulated behavior */
+    private int[] instructionClocks;
+
     /* The Bus */
     private Bus bus;
 
+    /* The bus's device event scheduler, advanced after every instruction */
+    private Scheduler scheduler;
+
     /* The CPU state */
     private final CpuState state = new CpuState();
 
-    /* start time of op execution, needed for speed simulation */
-    private long opBeginTime;
+    /* Wall clock time at which the current throttling window started */
+    private long throttleStartTime;
+
+    /* Simulated time elapsed in the current throttling window, up to the last synchronization */
+    private long throttleElapsedNs;
+
+    /* Simulated time elapsed since the last synchronization with the wall clock */
+    private long throttleBatchNs;
+
+    /* Translates hot code into JVM classes, or null to only interpret */
+    private Recompiler recompiler;
+
+    /* Skips trips round loops that poll for something to happen, or null to run them all */
+    private IdleLoopDetector idleLoopDetector;
+
+    /* Instructions fetched from memory, kept until the bus sees them written.
+       Each is its opcode and operands packed into an int with DECODED set, or
+       0 if the address holds no instruction decoded. */
+    private final int[] decoded = new int[0x10000];
+    private static final int DECODED = 1 << 24;
 
     /**
      * Construct a new CPU.
@@ -84,7 +143,7 @@ public class Cpu implements InstructionTable {
     }
 
     public Cpu(CpuBehavior behavior) {
-        this.behavior = behavior;
+        setBehavior(behavior);
     }
 
     /**
@@ -92,6 +151,8 @@ public class Cpu implements InstructionTable {
      */
     public void setBus(Bus bus) {
         this.bus = bus;
+        this.scheduler = bus.getScheduler();
+        updateSchedulerClockRate();
     }
 
     /**
@@ -103,12 +164,76 @@ public class Cpu implements InstructionTable {
 
     public void setBehavior(CpuBehavior behavior) {
         this.behavior = behavior;
+        this.dispatch = DispatchTable.forBehavior(behavior);
+        if (behavior == CpuBehavior.NMOS_WITH_ROR_BUG ||
+            behavior == CpuBehavior.NMOS_6502) {
+            this.instructionClocks = instructionClocksNmos;
+            this.decimalNegativeMask = 0;
+        } else {
+            this.instructionClocks = instructionClocksCmos;
+            this.decimalNegativeMask = P_NEGATIVE;
+        }
+        if (recompiler != null) {
+            recompiler.invalidateAll();
+        }
+        if (idleLoopDetector != null) {
+            idleLoopDetector.forget();
+        }
     }
 
     public CpuBehavior getBehavior() {
         return behavior;
     }
 
+    DispatchTable getDispatchTable() {
+        return dispatch;
+    }
+
+    int[] getInstructionClocks() {
+        return instructionClocks;
+    }
+
+    /**
+     * Turn the recompiler on or off. While it is on, runBlock() runs code that
+     * has been executed often as translated blocks. The CPU must be on a bus.
+     */
+    public void setRecompiling(boolean recompiling) {
+        if (recompiling && recompiler == null) {
+            recompiler = new Recompiler(this);
+            bus.setRecompiler(recompiler);
+        } else if (!recompiling && recompiler != null) {
+            bus.setRecompiler(null);
+            recompiler = null;
+        }
+    }
+
+    /**
+     * @return The recompiler, or null if it is off.
+     */
+    public Recompiler getRecompiler() {
+        return recompiler;
+    }
+
+    /**
+     * Turn idle loop skipping on or off. While it is on, runBlock() skips trips
+     * round loops that only poll memory and devices, waiting for something to
+     * happen. The CPU must be on a bus.
+     */
+    public void setSkippingIdleLoops(boolean skipping) {
+        if (skipping && idleLoopDetector == null) {
+            idleLoopDetector = new IdleLoopDetector(this);
+        } else if (!skipping) {
+            idleLoopDetector = null;
+        }
+    }
+
+    /**
+     * @return The idle loop detector, or null if idle loops are not skipped.
+     */
+    public IdleLoopDetector getIdleLoopDetector() {
+        return idleLoopDetector;
+    }
+
     /**
      * Reset the CPU to known initial values.
      */
@@ -125,28 +250,25 @@ public class Cpu implements InstructionTable {
         state.ir = 0;
 
         // Clear status register bits.
-        state.carryFlag = false;
-        state.zeroFlag = false;
-        state.irqDisableFlag = false;
-        state.decimalModeFlag = false;
-        state.breakFlag = false;
-        state.overflowFlag = false;
-        state.negativeFlag = false;
+        state.p = 0x20;
 
         state.irqAsserted = false;
 
         // Clear illegal opcode trap.
         state.opTrap = false;
 
-        // Reset step counter
+        // Reset step and cycle counters
         state.stepCounter = 0L;
+        state.cycleCounter = 0L;
 
         // Reset registers.
         state.a = 0;
         state.x = 0;
         state.y = 0;
 
-        peekAhead();
+        if (idleLoopDetector != null) {
+            idleLoopDetector.forget();
+        }
     }
 
     public void step(int num) throws MemoryAccessException {
@@ -159,1092 +281,587 @@ public class Cpu implements InstructionTable {
      * Performs an individual instruction cycle.
      */
     public void step() throws MemoryAccessException {
-        opBeginTime = System.nanoTime();
-
         // Store the address from which the IR was read, for debugging
         state.lastPc = state.pc;
 
+        // Counted first, so that every bus access of the step, an interrupt's
+        // included, happens under its number
+        state.stepCounter++;
+
         // Check for Interrupts before doing anything else.
         // This will set the PC and jump to the interrupt vector.
+        int interruptCycles = 0;
         if (state.nmiAsserted) {
             handleNmi();
+            interruptCycles = INTERRUPT_CYCLES;
         } else if (state.irqAsserted && !getIrqDisableFlag()) {
             handleIrq(state.pc);
+            interruptCycles = INTERRUPT_CYCLES;
         }
 
-        // Fetch memory location for this instruction.
-        state.ir = bus.read(state.pc, true);
-        int irAddressMode = (state.ir >> 2) & 0x07;  // Bits 3-5 of IR:  [ | | |X|X|X| | ]
-        int irOpMode = state.ir & 0x03;              // Bits 6-7 of IR:  [ | | | | | |X|X]
-
-        incrementPC();
+        // Fetch the instruction and operands, decoded already if they are in memory
+        int instruction = decoded[state.pc];
+        if (instruction == 0) {
+            instruction = fetch();
+        }
+        state.ir = instruction & 0xff;
+        state.instSize = Cpu.instructionSizes[state.ir];
+        if (state.instSize > 1) {
+            state.args[0] = (instruction >>> 8) & 0xff;
+        }
+        if (state.instSize > 2) {
+            state.args[1] = (instruction >>> 16) & 0xff;
+        }
+        state.pc = (state.pc + state.instSize) & 0xffff;
 
         clearOpTrap();
+        extraCycles = 0;
 
-        // Decode the instruction and operands
-        state.instSize = Cpu.instructionSizes[state.ir];
-        for (int i = 0; i < state.instSize - 1; i++) {
-            state.args[i] = bus.read(state.pc, true);
-            // Increment PC after reading
-            incrementPC();
+        // Get the data from the effective address (if any), and execute
+        int effectiveAddress = resolveEffectiveAddress(dispatch.addressing[state.ir]);
+        execute(dispatch.operation[state.ir], effectiveAddress);
+
+        int clockSteps = interruptCycles + instructionClocks[state.ir] + extraCycles;
+        state.cycleCounter += clockSteps;
+
+        scheduler.advance(clockSteps);
+
+        throttle(clockSteps);
+    }
+
+    /*
+     * Read the instruction at the program counter through the bus, and keep it
+     * decoded if it is all in memory.
+     */
+    private int fetch() throws MemoryAccessException {
+        int pc = state.pc;
+        int opcode = bus.read(pc, true);
+        int size = Cpu.instructionSizes[opcode];
+        int instruction = opcode | DECODED;
+        for (int i = 1; i < size; i++) {
+            instruction |= bus.read((pc + i) & 0xffff, true) << (8 * i);
+        }
+        if (bus.holdDecoded(pc, size)) {
+            decoded[pc] = instruction;
         }
+        return instruction;
+    }
 
-        state.stepCounter++;
+    /**
+     * Forget the instructions decoded from an address that has been written,
+     * which may be an operand of one that starts up to two bytes before.
+     */
+    void forgetDecoded(int address) {
+        decoded[address] = 0;
+        decoded[(address - 1) & 0xffff] = 0;
+        decoded[(address - 2) & 0xffff] = 0;
+    }
+
+    void forgetAllDecoded() {
+        Arrays.fill(decoded, 0);
+        if (idleLoopDetector != null) {
+            idleLoopDetector.forget();
+        }
+    }
+
+    /**
+     * Skip trips round an idle loop if the idle loop detector has found one at
+     * the program counter, or else run a translated block if the recompiler has
+     * one, or else a single instruction. Interrupts, device events and
+     * throttling are handled just as they are by step().
+     *
+     * @param maxSteps  The most instructions to run.
+     * @param maxCycles The most cycles to run. Only the last instruction run may
+     *                  reach the limit.
+     * @return The number of instructions run.
+     */
+    public int runBlock(int maxSteps, long maxCycles) throws MemoryAccessException {
+        int steps = 0;
+        if (idleLoopDetector != null && idleLoopDetector.isWatching()) {
+            steps = skipIdleTrips(maxSteps, maxCycles);
+        } else if (recompiler != null) {
+            long startCycles = state.cycleCounter;
+            steps = recompiler.execute(maxSteps, maxCycles);
+            if (steps > 0) {
+                throttle((int) (state.cycleCounter - startCycles));
+            }
+        }
+        if (steps == 0) {
+            step();
+            steps = 1;
+        }
 
-        // Get the data from the effective address (if any)
-        int effectiveAddress = 0;
+        // Only a branch or jump back can close a loop
+        if (idleLoopDetector != null && state.pc <= state.lastPc) {
+            idleLoopDetector.stepped();
+        }
+        return steps;
+    }
+
+    /*
+     * Skip trips round the loop being watched if it has been found to be idle,
+     * or else check the instruction about to be interpreted.
+     */
+    private int skipIdleTrips(int maxSteps, long maxCycles) {
+        // Skip no further ahead than one throttling batch at a time
+        if (clockPeriodInNs != TURBO_CLOCK_PERIOD_IN_NS) {
+            maxCycles = Math.min(maxCycles, Math.max(1L, THROTTLE_BATCH_NS / clockPeriodInNs));
+        }
+        long startCycles = state.cycleCounter;
+        int steps = idleLoopDetector.skip(maxSteps, maxCycles);
+        if (steps > 0) {
+            throttle((int) (state.cycleCounter - startCycles));
+        } else {
+            idleLoopDetector.check();
+        }
+        return steps;
+    }
+
+    /**
+     * Compute the effective address of the current instruction's operand.
+     *
+     * @param mode The effective address resolver from the dispatch table.
+     * @return The effective address, or -1 if the operand is an immediate value.
+     */
+    private int resolveEffectiveAddress(int mode) throws MemoryAccessException {
         int tmp; // Temporary storage
 
-        switch (irOpMode) {
-            case 0:
-            case 2:
-                switch (irAddressMode) {
-                    case 0: // #Immediate
-                        break;
-                    case 1: // Zero Page
-                        effectiveAddress = state.args[0];
-                        break;
-                    case 2: // Accumulator - ignored
-                        break;
-                    case 3: // Absolute
-                        effectiveAddress = Utils.address(state.args[0], state.args[1]);
-                        break;
-                    case 4: // 65C02 (Zero Page)
-                        if (behavior == CpuBehavior.CMOS_6502 ||
-                            behavior == CpuBehavior.CMOS_65816) {
-                            effectiveAddress = Utils.address(bus.read(state.args[0], true),
-                                                             bus.read((state.args[0] + 1) & 0xff, true));
-                        }
-                        break;
-                    case 5: // Zero Page,X / Zero Page,Y
-                        if (state.ir == 0x14) { // 65C02 TRB Zero Page
-                            effectiveAddress = state.args[0];
-                        }
-                        else if (state.ir == 0x96 || state.ir == 0xb6) {
-                            effectiveAddress = zpyAddress(state.args[0]);
-                        } else {
-                            effectiveAddress = zpxAddress(state.args[0]);
-                        }
-                        break;
-                    case 7:
-                        if (state.ir == 0x9c || state.ir == 0x1c) { // 65C02 STZ & TRB Absolute
-                            effectiveAddress = Utils.address(state.args[0], state.args[1]);
-                        }
-                        else if (state.ir == 0xbe) { // Absolute,X / Absolute,Y
-                            effectiveAddress = yAddress(state.args[0], state.args[1]);
-                        } else {
-                            effectiveAddress = xAddress(state.args[0], state.args[1]);
-                        }
-                        break;
-                }
-                break;
-            case 3: // Rockwell/WDC 65C02
-                switch (irAddressMode) {
-                    case 1: // Zero Page
-                    case 3:
-                    case 5:
-                    case 7: // Zero Page, Relative
-                        effectiveAddress = state.args[0];
-                        break;
-                }
-                break;
-            case 1:
-                switch (irAddressMode) {
-                    case 0: // (Zero Page,X)
-                        tmp = (state.args[0] + state.x) & 0xff;
-                        effectiveAddress = Utils.address(bus.read(tmp, true), bus.read(tmp + 1, true));
-                        break;
-                    case 1: // Zero Page
-                        effectiveAddress = state.args[0];
-                        break;
-                    case 2: // #Immediate
-                        effectiveAddress = -1;
-                        break;
-                    case 3: // Absolute
-                        effectiveAddress = Utils.address(state.args[0], state.args[1]);
-                        break;
-                    case 4: // (Zero Page),Y
-                        tmp = Utils.address(bus.read(state.args[0], true),
-                                      bus.read((state.args[0] + 1) & 0xff, true));
-                        effectiveAddress = (tmp + state.y) & 0xffff;
-                        break;
-                    case 5: // Zero Page,X
-                        effectiveAddress = zpxAddress(state.args[0]);
-                        break;
-                    case 6: // Absolute, Y
-                        effectiveAddress = yAddress(state.args[0], state.args[1]);
-                        break;
-                    case 7: // Absolute, X
-                        effectiveAddress = xAddress(state.args[0], state.args[1]);
-                        break;
-                }
-                break;
+        switch (mode) {
+            case EA_IMM:
+                return -1;
+            case EA_ZPG:
+                return state.args[0];
+            case EA_ABS:
+                return Utils.address(state.args[0], state.args[1]);
+            case EA_ZPI:
+                return Utils.address(bus.read(state.args[0], true),
+                                     bus.read((state.args[0] + 1) & 0xff, true));
+            case EA_ZPX:
+                return zpxAddress(state.args[0]);
+            case EA_ZPY:
+                return zpyAddress(state.args[0]);
+            case EA_ABX:
+                extraCycles = dispatch.pageCrossCycles[state.ir] & ((state.args[0] + state.x) >>> 8);
+                return xAddress(state.args[0], state.args[1]);
+            case EA_ABY:
+                extraCycles = dispatch.pageCrossCycles[state.ir] & ((state.args[0] + state.y) >>> 8);
+                return yAddress(state.args[0], state.args[1]);
+            case EA_XIN:
+                tmp = (state.args[0] + state.x) & 0xff;
+                return Utils.address(bus.read(tmp, true), bus.read(tmp + 1, true));
+            case EA_INY:
+                tmp = Utils.address(bus.read(state.args[0], true),
+                                    bus.read((state.args[0] + 1) & 0xff, true));
+                extraCycles = dispatch.pageCrossCycles[state.ir] & (((tmp & 0xff) + state.y) >>> 8);
+                return (tmp + state.y) & 0xffff;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Read the operand of the current instruction.
+     *
+     * @param effectiveAddress The effective address, or -1 for an immediate operand.
+     */
+    private int readOperand(int effectiveAddress) throws MemoryAccessException {
+        if (effectiveAddress < 0) {
+            return state.args[0];
         }
+        return bus.read(effectiveAddress, true);
+    }
+
+    /**
+     * Execute a single decoded operation.
+     *
+     * @param operation        The operation from the dispatch table.
+     * @param effectiveAddress The resolved effective address of the operand.
+     */
+    private void execute(int operation, int effectiveAddress) throws MemoryAccessException {
+        int tmp; // Temporary storage
+        int lo, hi;
 
-        // Execute
-        switch (state.ir) {
+        switch (operation) {
 
             /** Single Byte Instructions; Implied and Relative **/
-            case 0x00: // BRK - Force Interrupt - Implied
+            case OP_BRK: // BRK - Force Interrupt - Implied
                 handleBrk(state.pc + 1);
                 break;
-            case 0x08: // PHP - Push Processor Status - Implied
+            case OP_PHP: // PHP - Push Processor Status - Implied
                 // Break flag is always set in the stack value.
                 stackPush(state.getStatusFlag() | 0x10);
                 break;
-            case 0x10: // BPL - Branch if Positive - Relative
-                if (!getNegativeFlag()) {
-                    state.pc = relAddress(state.args[0]);
-                }
-                break;
-            case 0x18: // CLC - Clear Carry Flag - Implied
-                clearCarryFlag();
-                break;
-            case 0x20: // JSR - Jump to Subroutine - Implied
-                stackPush((state.pc - 1 >> 8) & 0xff); // PC high byte
-                stackPush(state.pc - 1 & 0xff);        // PC low byte
-                state.pc = Utils.address(state.args[0], state.args[1]);
-                break;
-            case 0x28: // PLP - Pull Processor Status - Implied
+            case OP_PLP: // PLP - Pull Processor Status - Implied
                 setProcessorStatus(stackPop());
                 break;
-            case 0x30: // BMI - Branch if Minus - Relative
-                if (getNegativeFlag()) {
-                    state.pc = relAddress(state.args[0]);
-                }
+            case OP_PHA: // PHA - Push Accumulator - Implied
+                stackPush(state.a);
                 break;
-            case 0x38: // SEC - Set Carry Flag - Implied
-                setCarryFlag();
+            case OP_PLA: // PLA - Pull Accumulator - Implied
+                state.a = stackPop();
+                setArithmeticFlags(state.a);
                 break;
-            case 0x40: // RTI - Return from Interrupt - Implied
-                setProcessorStatus(stackPop());
-                int lo = stackPop();
-                int hi = stackPop();
-                setProgramCounter(Utils.address(lo, hi));
+            case OP_PHX: // 65C02 PHX - Push X to stack
+                stackPush(state.x);
                 break;
-            case 0x48: // PHA - Push Accumulator - Implied
-                stackPush(state.a);
+            case OP_PLX: // 65C02 PLX - Pull X from Stack
+                state.x = stackPop();
+                setArithmeticFlags(state.x);
                 break;
-            case 0x50: // BVC - Branch if Overflow Clear - Relative
-                if (!getOverflowFlag()) {
-                    state.pc = relAddress(state.args[0]);
-                }
+            case OP_PHY: // 65C02 PHY - Push Y to stack
+                stackPush(state.y);
                 break;
-            case 0x58: // CLI - Clear Interrupt Disable - Implied
-                clearIrqDisableFlag();
+            case OP_PLY: // 65C02 PLY - Pull Y from Stack
+                state.y = stackPop();
+                setArithmeticFlags(state.y);
                 break;
-            case 0x5a: // 65C02 PHY - Push Y to stack
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                stackPush(state.y);
+            case OP_JSR: // JSR - Jump to Subroutine - Implied
+                stackPush((state.pc - 1 >> 8) & 0xff); // PC high byte
+                stackPush(state.pc - 1 & 0xff);        // PC low byte
+                state.pc = Utils.address(state.args[0], state.args[1]);
                 break;
-            case 0x60: // RTS - Return from Subroutine - Implied
+            case OP_RTS: // RTS - Return from Subroutine - Implied
                 lo = stackPop();
                 hi = stackPop();
                 setProgramCounter((Utils.address(lo, hi) + 1) & 0xffff);
                 break;
-            case 0x68: // PLA - Pull Accumulator - Implied
-                state.a = stackPop();
-                setArithmeticFlags(state.a);
+            case OP_RTI: // RTI - Return from Interrupt - Implied
+                setProcessorStatus(stackPop());
+                lo = stackPop();
+                hi = stackPop();
+                setProgramCounter(Utils.address(lo, hi));
                 break;
-            case 0x70: // BVS - Branch if Overflow Set - Relative
-                if (getOverflowFlag()) {
-                    state.pc = relAddress(state.args[0]);
+
+            /** Branches - Relative **/
+            case OP_BPL: // BPL - Branch if Positive
+                if (!getNegativeFlag()) {
+                    branch(state.args[0], 1);
                 }
                 break;
-            case 0x78: // SEI - Set Interrupt Disable - Implied
-                setIrqDisableFlag();
-                break;
-            case 0x7a: // 65C02 PLY - Pull Y from Stack
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
+            case OP_BMI: // BMI - Branch if Minus
+                if (getNegativeFlag()) {
+                    branch(state.args[0], 1);
                 }
-                state.y = stackPop();
-                setArithmeticFlags(state.y);
                 break;
-            case 0x80: // 65C02 BRA - Branch Always
-                if (behavior == CpuBehavior.CMOS_6502 ||
-                    behavior == CpuBehavior.CMOS_65816) {
-                        state.pc = relAddress(state.args[0]);
+            case OP_BVC: // BVC - Branch if Overflow Clear
+                if (!getOverflowFlag()) {
+                    branch(state.args[0], 1);
                 }
                 break;
-            case 0x88: // DEY - Decrement Y Register - Implied
-                state.y = --state.y & 0xff;
-                setArithmeticFlags(state.y);
-                break;
-            case 0x8a: // TXA - Transfer X to Accumulator - Implied
-                state.a = state.x;
-                setArithmeticFlags(state.a);
+            case OP_BVS: // BVS - Branch if Overflow Set
+                if (getOverflowFlag()) {
+                    branch(state.args[0], 1);
+                }
                 break;
-            case 0x90: // BCC - Branch if Carry Clear - Relative
+            case OP_BCC: // BCC - Branch if Carry Clear
                 if (!getCarryFlag()) {
-                    state.pc = relAddress(state.args[0]);
+                    branch(state.args[0], 1);
                 }
                 break;
-            case 0x98: // TYA - Transfer Y to Accumulator - Implied
-                state.a = state.y;
-                setArithmeticFlags(state.a);
-                break;
-            case 0x9a: // TXS - Transfer X to Stack Pointer - Implied
-                setStackPointer(state.x);
-                break;
-            case 0xa8: // TAY - Transfer Accumulator to Y - Implied
-                state.y = state.a;
-                setArithmeticFlags(state.y);
-                break;
-            case 0xaa: // TAX - Transfer Accumulator to X - Implied
-                state.x = state.a;
-                setArithmeticFlags(state.x);
-                break;
-            case 0xb0: // BCS - Branch if Carry Set - Relative
+            case OP_BCS: // BCS - Branch if Carry Set
                 if (getCarryFlag()) {
-                    state.pc = relAddress(state.args[0]);
+                    branch(state.args[0], 1);
                 }
                 break;
-            case 0xb8: // CLV - Clear Overflow Flag - Implied
-                clearOverflowFlag();
-                break;
-            case 0xba: // TSX - Transfer Stack Pointer to X - Implied
-                state.x = getStackPointer();
-                setArithmeticFlags(state.x);
-                break;
-            case 0xc8: // INY - Increment Y Register - Implied
-                state.y = ++state.y & 0xff;
-                setArithmeticFlags(state.y);
-                break;
-            case 0xca: // DEX - Decrement X Register - Implied
-                state.x = --state.x & 0xff;
-                setArithmeticFlags(state.x);
-                break;
-            case 0xd0: // BNE - Branch if Not Equal to Zero - Relative
+            case OP_BNE: // BNE - Branch if Not Equal to Zero
                 if (!getZeroFlag()) {
-                    state.pc = relAddress(state.args[0]);
-                }
-                break;
-            case 0xd8: // CLD - Clear Decimal Mode - Implied
-                clearDecimalModeFlag();
-                break;
-            case 0xda: // 65C02 PHX - Push X to stack
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
+                    branch(state.args[0], 1);
                 }
-                stackPush(state.x);
-                break;
-            case 0xe8: // INX - Increment X Register - Implied
-                state.x = ++state.x & 0xff;
-                setArithmeticFlags(state.x);
-                break;
-            case 0xea: // NOP
-                // Do nothing.
                 break;
-            case 0xf0: // BEQ - Branch if Equal to Zero - Relative
+            case OP_BEQ: // BEQ - Branch if Equal to Zero
                 if (getZeroFlag()) {
-                    state.pc = relAddress(state.args[0]);
+                    branch(state.args[0], 1);
                 }
                 break;
-            case 0xf8: // SED - Set Decimal Flag - Implied
-                setDecimalModeFlag();
-                break;
-            case 0xfa: // 65C02 PLX - Pull X from Stack
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                state.x = stackPop();
-                setArithmeticFlags(state.x);
-                break;
-
-            /** JMP *****************************************************************/
-            case 0x4c: // JMP - Absolute
-                state.pc = Utils.address(state.args[0], state.args[1]);
-                break;
-            case 0x6c: // JMP - Indirect
-                lo = Utils.address(state.args[0], state.args[1]); // Address of low byte
-
-                if (state.args[0] == 0xff &&
-                    (behavior == CpuBehavior.NMOS_6502 ||
-                     behavior == CpuBehavior.NMOS_WITH_ROR_BUG)) {
-                    hi = Utils.address(0x00, state.args[1]);
-                } else {
-                    hi = lo + 1;
-                }
-
-                state.pc = Utils.address(bus.read(lo, true), bus.read(hi, true));
-                /* TODO: For accuracy, allow a flag to enable broken behavior of early 6502s:
-                 *
-                 * "An original 6502 has does not correctly fetch the target
-                 * address if the indirect vector falls on a page boundary
-                 * (e.g. $xxFF where xx is and value from $00 to $FF). In this
-                 * case fetches the LSB from $xxFF as expected but takes the MSB
-                 * from $xx00. This is fixed in some later chips like the 65SC02
-                 * so for compatibility always ensure the indirect vector is not
-                 * at the end of the page."
-                 * (http://www.obelisk.demon.co.uk/6502/reference.html#JMP)
-                 */
-                break;
-            case 0x7c: // 65C02 JMP - (Absolute Indexed Indirect,X)
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                lo = (((state.args[1] << 8) | state.args[0]) + state.x) & 0xffff;
-                hi = lo + 1;
-                state.pc = Utils.address(bus.read(lo, true), bus.read(hi, true));
-                break;
-
-            /** ORA - Logical Inclusive Or ******************************************/
-            case 0x09: // #Immediate
-                state.a |= state.args[0];
-                setArithmeticFlags(state.a);
-                break;
-            case 0x12: // 65C02 ORA (ZP)
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-            case 0x01: // (Zero Page,X)
-            case 0x05: // Zero Page
-            case 0x0d: // Absolute
-            case 0x11: // (Zero Page),Y
-            case 0x15: // Zero Page,X
-            case 0x19: // Absolute,Y
-            case 0x1d: // Absolute,X
-                state.a |= bus.read(effectiveAddress, true);
-                setArithmeticFlags(state.a);
+            case OP_BRA: // 65C02 BRA - Branch Always
+                branch(state.args[0], 0);
                 break;
 
-
-            /** ASL - Arithmetic Shift Left *****************************************/
-            case 0x0a: // Accumulator
-                state.a = asl(state.a);
-                setArithmeticFlags(state.a);
-                break;
-            case 0x06: // Zero Page
-            case 0x0e: // Absolute
-            case 0x16: // Zero Page,X
-            case 0x1e: // Absolute,X
-                tmp = asl(bus.read(effectiveAddress, true));
-                bus.write(effectiveAddress, tmp);
-                setArithmeticFlags(tmp);
+            /** Flags - Implied **/
+            case OP_CLC: // CLC - Clear Carry Flag
+                clearCarryFlag();
                 break;
-
-
-            /** BIT - Bit Test ******************************************************/
-            case 0x89: // 65C02 #Immediate
-                setZeroFlag((state.a & state.args[0]) == 0);
+            case OP_SEC: // SEC - Set Carry Flag
+                setCarryFlag();
                 break;
-            case 0x34: // 65C02 Zero Page,X
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-            case 0x24: // Zero Page
-            case 0x2c: // Absolute
-            case 0x3c: // Absolute,X
-                tmp = bus.read(effectiveAddress, true);
-                setZeroFlag((state.a & tmp) == 0);
-                setNegativeFlag((tmp & 0x80) != 0);
-                setOverflowFlag((tmp & 0x40) != 0);
+            case OP_CLI: // CLI - Clear Interrupt Disable
+                clearIrqDisableFlag();
                 break;
-
-
-            /** AND - Logical AND ***************************************************/
-            case 0x29: // #Immediate
-                state.a &= state.args[0];
-                setArithmeticFlags(state.a);
+            case OP_SEI: // SEI - Set Interrupt Disable
+                setIrqDisableFlag();
                 break;
-            case 0x32: // 65C02 AND (ZP)
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-            case 0x21: // (Zero Page,X)
-            case 0x25: // Zero Page
-            case 0x2d: // Absolute
-            case 0x31: // (Zero Page),Y
-            case 0x35: // Zero Page,X
-            case 0x39: // Absolute,Y
-            case 0x3d: // Absolute,X
-                state.a &= bus.read(effectiveAddress, true);
-                setArithmeticFlags(state.a);
+            case OP_CLV: // CLV - Clear Overflow Flag
+                clearOverflowFlag();
                 break;
-
-
-            /** ROL - Rotate Left ***************************************************/
-            case 0x2a: // Accumulator
-                state.a = rol(state.a);
-                setArithmeticFlags(state.a);
+            case OP_CLD: // CLD - Clear Decimal Mode
+                clearDecimalModeFlag();
                 break;
-            case 0x26: // Zero Page
-            case 0x2e: // Absolute
-            case 0x36: // Zero Page,X
-            case 0x3e: // Absolute,X
-                tmp = rol(bus.read(effectiveAddress, true));
-                bus.write(effectiveAddress, tmp);
-                setArithmeticFlags(tmp);
+            case OP_SED: // SED - Set Decimal Flag
+                setDecimalModeFlag();
                 break;
 
-
-            /** EOR - Exclusive OR **************************************************/
-            case 0x49: // #Immediate
-                state.a ^= state.args[0];
-                setArithmeticFlags(state.a);
-                break;
-            case 0x52: // 65C02 EOR (ZP)
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-            case 0x41: // (Zero Page,X)
-            case 0x45: // Zero Page
-            case 0x4d: // Absolute
-            case 0x51: // (Zero Page,Y)
-            case 0x55: // Zero Page,X
-            case 0x59: // Absolute,Y
-            case 0x5d: // Absolute,X
-                state.a ^= bus.read(effectiveAddress, true);
-                setArithmeticFlags(state.a);
+            /** Register Transfers, Increments and Decrements - Implied **/
+            case OP_TAX: // TAX - Transfer Accumulator to X
+                state.x = state.a;
+                setArithmeticFlags(state.x);
                 break;
-
-
-            /** LSR - Logical Shift Right *******************************************/
-            case 0x4a: // Accumulator
-                state.a = lsr(state.a);
+            case OP_TXA: // TXA - Transfer X to Accumulator
+                state.a = state.x;
                 setArithmeticFlags(state.a);
                 break;
-            case 0x46: // Zero Page
-            case 0x4e: // Absolute
-            case 0x56: // Zero Page,X
-            case 0x5e: // Absolute,X
-                tmp = lsr(bus.read(effectiveAddress, true));
-                bus.write(effectiveAddress, tmp);
-                setArithmeticFlags(tmp);
-                break;
-
-
-            /** ADC - Add with Carry ************************************************/
-            case 0x69: // #Immediate
-                if (state.decimalModeFlag) {
-                    state.a = adcDecimal(state.a, state.args[0]);
-                } else {
-                    state.a = adc(state.a, state.args[0]);
-                }
-                break;
-            case 0x72: // 65C02 ADC (ZP)
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-            case 0x61: // (Zero Page,X)
-            case 0x65: // Zero Page
-            case 0x6d: // Absolute
-            case 0x71: // (Zero Page),Y
-            case 0x75: // Zero Page,X
-            case 0x79: // Absolute,Y
-            case 0x7d: // Absolute,X
-                if (state.decimalModeFlag) {
-                    state.a = adcDecimal(state.a, bus.read(effectiveAddress, true));
-                } else {
-                    state.a = adc(state.a, bus.read(effectiveAddress, true));
-                }
+            case OP_TAY: // TAY - Transfer Accumulator to Y
+                state.y = state.a;
+                setArithmeticFlags(state.y);
                 break;
-
-
-            /** ROR - Rotate Right **************************************************/
-            case 0x6a: // Accumulator
-                state.a = ror(state.a);
+            case OP_TYA: // TYA - Transfer Y to Accumulator
+                state.a = state.y;
                 setArithmeticFlags(state.a);
                 break;
-            case 0x66: // Zero Page
-            case 0x6e: // Absolute
-            case 0x76: // Zero Page,X
-            case 0x7e: // Absolute,X
-                tmp = ror(bus.read(effectiveAddress, true));
-                bus.write(effectiveAddress, tmp);
-                setArithmeticFlags(tmp);
-                break;
-
-
-            /** STA - Store Accumulator *********************************************/
-            case 0x92: // 65C02 STA (ZP)
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-            case 0x81: // (Zero Page,X)
-            case 0x85: // Zero Page
-            case 0x8d: // Absolute
-            case 0x91: // (Zero Page),Y
-            case 0x95: // Zero Page,X
-            case 0x99: // Absolute,Y
-            case 0x9d: // Absolute,X
-                bus.write(effectiveAddress, state.a);
+            case OP_TSX: // TSX - Transfer Stack Pointer to X
+                state.x = getStackPointer();
+                setArithmeticFlags(state.x);
                 break;
-
-
-            /** STY - Store Y Register **********************************************/
-            case 0x84: // Zero Page
-            case 0x8c: // Absolute
-            case 0x94: // Zero Page,X
-                bus.write(effectiveAddress, state.y);
+            case OP_TXS: // TXS - Transfer X to Stack Pointer
+                setStackPointer(state.x);
                 break;
-
-
-            /** STX - Store X Register **********************************************/
-            case 0x86: // Zero Page
-            case 0x8e: // Absolute
-            case 0x96: // Zero Page,Y
-                bus.write(effectiveAddress, state.x);
+            case OP_INX: // INX - Increment X Register
+                state.x = ++state.x & 0xff;
+                setArithmeticFlags(state.x);
                 break;
-
-            /** STZ - 65C02 Store Zero ****************************************************/
-            case 0x64: // Zero Page
-            case 0x74: // Zero Page,X
-            case 0x9c: // Absolute
-            case 0x9e: // Absolute,X
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                bus.write(effectiveAddress, 0);
+            case OP_DEX: // DEX - Decrement X Register
+                state.x = --state.x & 0xff;
+                setArithmeticFlags(state.x);
                 break;
-
-            /** LDY - Load Y Register ***********************************************/
-            case 0xa0: // #Immediate
-                state.y = state.args[0];
+            case OP_INY: // INY - Increment Y Register
+                state.y = ++state.y & 0xff;
                 setArithmeticFlags(state.y);
                 break;
-            case 0xa4: // Zero Page
-            case 0xac: // Absolute
-            case 0xb4: // Zero Page,X
-            case 0xbc: // Absolute,X
-                state.y = bus.read(effectiveAddress, true);
+            case OP_DEY: // DEY - Decrement Y Register
+                state.y = --state.y & 0xff;
                 setArithmeticFlags(state.y);
                 break;
-
-
-            /** LDX - Load X Register ***********************************************/
-            case 0xa2: // #Immediate
-                state.x = state.args[0];
-                setArithmeticFlags(state.x);
-                break;
-            case 0xa6: // Zero Page
-            case 0xae: // Absolute
-            case 0xb6: // Zero Page,Y
-            case 0xbe: // Absolute,Y
-                state.x = bus.read(effectiveAddress, true);
-                setArithmeticFlags(state.x);
-                break;
-
-
-            /** LDA - Load Accumulator **********************************************/
-            case 0xa9: // #Immediate
-                state.a = state.args[0];
-                setArithmeticFlags(state.a);
-                break;
-            case 0xb2: // 65C02 LDA (ZP)
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-            case 0xa1: // (Zero Page,X)
-            case 0xa5: // Zero Page
-            case 0xad: // Absolute
-            case 0xb1: // (Zero Page),Y
-            case 0xb5: // Zero Page,X
-            case 0xb9: // Absolute,Y
-            case 0xbd: // Absolute,X
-                state.a = bus.read(effectiveAddress, true);
+            case OP_INC_A: // 65C02 INC - Increment Accumulator
+                state.a = ++state.a & 0xff;
                 setArithmeticFlags(state.a);
                 break;
-
-
-            /** CPY - Compare Y Register ********************************************/
-            case 0xc0: // #Immediate
-                cmp(state.y, state.args[0]);
-                break;
-            case 0xc4: // Zero Page
-            case 0xcc: // Absolute
-                cmp(state.y, bus.read(effectiveAddress, true));
-                break;
-
-
-            /** CMP - Compare Accumulator *******************************************/
-            case 0xc9: // #Immediate
-                cmp(state.a, state.args[0]);
-                break;
-            case 0xd2: // 65C02 CMP (ZP)
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-            case 0xc1: // (Zero Page,X)
-            case 0xc5: // Zero Page
-            case 0xcd: // Absolute
-            case 0xd1: // (Zero Page),Y
-            case 0xd5: // Zero Page,X
-            case 0xd9: // Absolute,Y
-            case 0xdd: // Absolute,X
-                cmp(state.a, bus.read(effectiveAddress, true));
-                break;
-
-
-            /** DEC - Decrement Memory **********************************************/
-            case 0x3a: // 65C02 Immediate
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                state.a = --state.a & 0xFF;
+            case OP_DEC_A: // 65C02 DEC - Decrement Accumulator
+                state.a = --state.a & 0xff;
                 setArithmeticFlags(state.a);
                 break;
-            case 0xc6: // Zero Page
-            case 0xce: // Absolute
-            case 0xd6: // Zero Page,X
-            case 0xde: // Absolute,X
-                tmp = (bus.read(effectiveAddress, true) - 1) & 0xff;
-                bus.write(effectiveAddress, tmp);
-                setArithmeticFlags(tmp);
+            case OP_NOP: // NOP
+                // Do nothing.
                 break;
 
-
-            /** CPX - Compare X Register ********************************************/
-            case 0xe0: // #Immediate
-                cmp(state.x, state.args[0]);
-                break;
-            case 0xe4: // Zero Page
-            case 0xec: // Absolute
-                cmp(state.x, bus.read(effectiveAddress, true));
+            /** JMP *****************************************************************/
+            case OP_JMP_ABS: // JMP - Absolute
+                state.pc = Utils.address(state.args[0], state.args[1]);
                 break;
-
-
-            /** SBC - Subtract with Carry (Borrow) **********************************/
-            case 0xe9: // #Immediate
-                if (state.decimalModeFlag) {
-                    state.a = sbcDecimal(state.a, state.args[0]);
-                } else {
-                    state.a = sbc(state.a, state.args[0]);
-                }
+            case OP_JMP_IND: // JMP - Indirect
+                lo = Utils.address(state.args[0], state.args[1]); // Address of low byte
+                hi = lo + 1;
+                state.pc = Utils.address(bus.read(lo, true), bus.read(hi, true));
                 break;
-            case 0xf2: // 65C02 SBC (ZP)
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-            case 0xe1: // (Zero Page,X)
-            case 0xe5: // Zero Page
-            case 0xed: // Absolute
-            case 0xf1: // (Zero Page),Y
-            case 0xf5: // Zero Page,X
-            case 0xf9: // Absolute,Y
-            case 0xfd: // Absolute,X
-                if (state.decimalModeFlag) {
-                    state.a = sbcDecimal(state.a, bus.read(effectiveAddress, true));
+            case OP_JMP_IND_NMOS: // JMP - Indirect, with the NMOS page boundary bug
+                lo = Utils.address(state.args[0], state.args[1]); // Address of low byte
+                /*
+                 * "An original 6502 has does not correctly fetch the target
+                 * address if the indirect vector falls on a page boundary
+                 * (e.g. $xxFF where xx is and value from $00 to $FF). In this
+                 * case fetches the LSB from $xxFF as expected but takes the MSB
+                 * from $xx00. This is fixed in some later chips like the 65SC02
+                 * so for compatibility always ensure the indirect vector is not
+                 * at the end of the page."
+                 * (http://www.obelisk.demon.co.uk/6502/reference.html#JMP)
+                 */
+                if (state.args[0] == 0xff) {
+                    hi = Utils.address(0x00, state.args[1]);
                 } else {
-                    state.a = sbc(state.a, bus.read(effectiveAddress, true));
-                }
-                break;
-
-
-            /** INC - Increment Memory **********************************************/
-            case 0x1a: // 65C02 Increment Immediate
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
+                    hi = lo + 1;
                 }
-                state.a = ++state.a & 0xff;
-                setArithmeticFlags(state.a);
+                state.pc = Utils.address(bus.read(lo, true), bus.read(hi, true));
                 break;
-            case 0xe6: // Zero Page
-            case 0xee: // Absolute
-            case 0xf6: // Zero Page,X
-            case 0xfe: // Absolute,X
-                tmp = (bus.read(effectiveAddress, true) + 1) & 0xff;
-                bus.write(effectiveAddress, tmp);
-                setArithmeticFlags(tmp);
+            case OP_JMP_AIX: // 65C02 JMP - (Absolute Indexed Indirect,X)
+                lo = (((state.args[1] << 8) | state.args[0]) + state.x) & 0xffff;
+                hi = lo + 1;
+                state.pc = Utils.address(bus.read(lo, true), bus.read(hi, true));
                 break;
 
-
-            /** 65C02 RMB - Reset Memory Bit **************************************/
-            case 0x07: // 65C02 RMB0 - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true) & 0xff;
-                tmp &= ~(1 << 0);
-                bus.write(effectiveAddress, tmp);
-                break;
-            case 0x17: // 65C02 RMB1 - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true) & 0xff;
-                tmp &= ~(1 << 1);
-                bus.write(effectiveAddress, tmp);
+            /** Logical and Arithmetic **********************************************/
+            case OP_ORA: // ORA - Logical Inclusive Or
+                state.a |= readOperand(effectiveAddress);
+                setArithmeticFlags(state.a);
                 break;
-            case 0x27: // 65C02 RMB2 - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true) & 0xff;
-                tmp &= ~(1 << 2);
-                bus.write(effectiveAddress, tmp);
+            case OP_AND: // AND - Logical AND
+                state.a &= readOperand(effectiveAddress);
+                setArithmeticFlags(state.a);
                 break;
-            case 0x37: // 65C02 RMB3 - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true) & 0xff;
-                tmp &= ~(1 << 3);
-                bus.write(effectiveAddress, tmp);
+            case OP_EOR: // EOR - Exclusive OR
+                state.a ^= readOperand(effectiveAddress);
+                setArithmeticFlags(state.a);
                 break;
-            case 0x47: // 65C02 RMB4 - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
+            case OP_ADC: // ADC - Add with Carry
+                if ((state.p & P_DECIMAL) != 0) {
+                    state.a = adcDecimal(state.a, readOperand(effectiveAddress));
+                    extraCycles += dispatch.decimalCycles[state.ir];
+                } else {
+                    state.a = adc(state.a, readOperand(effectiveAddress));
                 }
-                tmp = bus.read(effectiveAddress, true) & 0xff;
-                tmp &= ~(1 << 4);
-                bus.write(effectiveAddress, tmp);
                 break;
-            case 0x57: // 65C02 RMB5 - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
+            case OP_SBC: // SBC - Subtract with Carry (Borrow)
+                if ((state.p & P_DECIMAL) != 0) {
+                    state.a = sbcDecimal(state.a, readOperand(effectiveAddress));
+                    extraCycles += dispatch.decimalCycles[state.ir];
+                } else {
+                    state.a = sbc(state.a, readOperand(effectiveAddress));
                 }
-                tmp = bus.read(effectiveAddress, true) & 0xff;
-                tmp &= ~(1 << 5);
-                bus.write(effectiveAddress, tmp);
                 break;
-            case 0x67: // 65C02 RMB6 - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true) & 0xff;
-                tmp &= ~(1 << 6);
-                bus.write(effectiveAddress, tmp);
+            case OP_CMP: // CMP - Compare Accumulator
+                cmp(state.a, readOperand(effectiveAddress));
                 break;
-            case 0x77: // 65C02 RMB7 - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true) & 0xff;
-                tmp &= ~(1 << 7);
-                bus.write(effectiveAddress, tmp);
+            case OP_CPX: // CPX - Compare X Register
+                cmp(state.x, readOperand(effectiveAddress));
                 break;
-
-
-            /** 65C02 SMB - Set Memory Bit **************************************/
-            case 0x87: // 65C02 SMB0 - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true) & 0xff;
-                tmp |= (1);
-                bus.write(effectiveAddress, tmp);
+            case OP_CPY: // CPY - Compare Y Register
+                cmp(state.y, readOperand(effectiveAddress));
                 break;
-            case 0x97: // 65C02 SMB1 - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true) & 0xff;
-                tmp |= (1 << 1);
-                bus.write(effectiveAddress, tmp);
+            case OP_BIT_IMM: // 65C02 BIT - Bit Test - #Immediate
+                state.p = (state.p & ~P_ZERO) | (NZ[state.a & state.args[0]] & P_ZERO);
                 break;
-            case 0xa7: // 65C02 SMB2 - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true) & 0xff;
-                tmp |= (1 << 2);
-                bus.write(effectiveAddress, tmp);
+            case OP_BIT: // BIT - Bit Test
+                tmp = bus.read(effectiveAddress, true);
+                // N and V are bits 7 and 6 of the operand, just as in P
+                state.p = (state.p & ~(P_NEGATIVE | P_OVERFLOW | P_ZERO)) |
+                          (tmp & (P_NEGATIVE | P_OVERFLOW)) | (NZ[state.a & tmp] & P_ZERO);
                 break;
-            case 0xb7: // 65C02 SMB3 - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true) & 0xff;
-                tmp |= (1 << 3);
-                bus.write(effectiveAddress, tmp);
+
+            /** Loads and Stores ****************************************************/
+            case OP_LDA: // LDA - Load Accumulator
+                state.a = readOperand(effectiveAddress);
+                setArithmeticFlags(state.a);
                 break;
-            case 0xc7: // 65C02 SMB4 - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true) & 0xff;
-                tmp |= (1 << 4);
-                bus.write(effectiveAddress, tmp);
+            case OP_LDX: // LDX - Load X Register
+                state.x = readOperand(effectiveAddress);
+                setArithmeticFlags(state.x);
                 break;
-            case 0xd7: // 65C02 SMB5 - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true) & 0xff;
-                tmp |= (1 << 5);
-                bus.write(effectiveAddress, tmp);
+            case OP_LDY: // LDY - Load Y Register
+                state.y = readOperand(effectiveAddress);
+                setArithmeticFlags(state.y);
                 break;
-            case 0xe7: // 65C02 SMB6 - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true) & 0xff;
-                tmp |= (1 << 6);
-                bus.write(effectiveAddress, tmp);
+            case OP_STA: // STA - Store Accumulator
+                bus.write(effectiveAddress, state.a);
                 break;
-            case 0xf7: // 65C02 SMB7 - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true) & 0xff;
-                tmp |= (1 << 7);
-                bus.write(effectiveAddress, tmp);
+            case OP_STX: // STX - Store X Register
+                bus.write(effectiveAddress, state.x);
                 break;
-
-            /** 65C02 TRB/TSB - Test and Reset Bit/Test and Set Bit ***************/
-            case 0x14: // 65C02 TRB - Test and Reset bit - Zero Page
-            case 0x1c: // 65C02 TRB - Test and Reset bit - Absolute
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true);
-                setZeroFlag((state.a & tmp) == 0);
-                tmp = (tmp &= ~(state.a)) & 0xff;
-                bus.write(effectiveAddress,tmp);
+            case OP_STY: // STY - Store Y Register
+                bus.write(effectiveAddress, state.y);
                 break;
-
-            case 0x04: // 65C02 TSB - Test and Set bit - Zero Page
-            case 0x0c: // 65C02 TSB - Test and Set bit - Absolute
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true);
-                setZeroFlag((state.a & tmp) == 0);
-                tmp = (tmp |= (state.a)) & 0xff;
-                bus.write(effectiveAddress,tmp);
+            case OP_STZ: // 65C02 STZ - Store Zero
+                bus.write(effectiveAddress, 0);
                 break;
 
-            /** 65C02 BBR - Branch if Bit Reset *************************************/
-            case 0x0f: // 65C02 BBR - Branch if bit 0 reset - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true);
-                if ((tmp & 1 << 0) == 0) {
-                    state.pc = relAddress(state.args[1]);
-                }
+            /** Shifts, Rotates, Increments and Decrements **************************/
+            case OP_ASL_A: // ASL - Arithmetic Shift Left - Accumulator
+                state.a = asl(state.a);
+                setArithmeticFlags(state.a);
                 break;
-
-            case 0x1f: // 65C02 BBR - Branch if bit 1 reset - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true);
-                if ((tmp & 1 << 1) == 0) {
-                    state.pc = relAddress(state.args[1]);
-                }
+            case OP_ASL: // ASL - Arithmetic Shift Left
+                tmp = asl(bus.read(effectiveAddress, true));
+                bus.write(effectiveAddress, tmp);
+                setArithmeticFlags(tmp);
                 break;
-
-            case 0x2f: // 65C02 BBR - Branch if bit 2 reset - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true);
-                if ((tmp & 1 << 2) == 0) {
-                    state.pc = relAddress(state.args[1]);
-                }
+            case OP_LSR_A: // LSR - Logical Shift Right - Accumulator
+                state.a = lsr(state.a);
+                setArithmeticFlags(state.a);
                 break;
-
-            case 0x3f: // 65C02 BBR - Branch if bit 3 reset - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true);
-                if ((tmp & 1 << 3) == 0) {
-                    state.pc = relAddress(state.args[1]);
-                }
+            case OP_LSR: // LSR - Logical Shift Right
+                tmp = lsr(bus.read(effectiveAddress, true));
+                bus.write(effectiveAddress, tmp);
+                setArithmeticFlags(tmp);
                 break;
-
-            case 0x4f: // 65C02 BBR - Branch if bit 4 reset - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true);
-                if ((tmp & 1 << 4) == 0) {
-                    state.pc = relAddress(state.args[1]);
-                }
+            case OP_ROL_A: // ROL - Rotate Left - Accumulator
+                state.a = rol(state.a);
+                setArithmeticFlags(state.a);
                 break;
-
-
-            case 0x5f: // 65C02 BBR - Branch if bit 5 reset - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true);
-                if ((tmp & 1 << 5) == 0) {
-                    state.pc = relAddress(state.args[1]);
-                }
+            case OP_ROL: // ROL - Rotate Left
+                tmp = rol(bus.read(effectiveAddress, true));
+                bus.write(effectiveAddress, tmp);
+                setArithmeticFlags(tmp);
                 break;
-
-            case 0x6f: // 65C02 BBR - Branch if bit 6 reset - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true);
-                if ((tmp & 1 << 6) == 0) {
-                    state.pc = relAddress(state.args[1]);
-                }
+            case OP_ROR_A: // ROR - Rotate Right - Accumulator
+                state.a = ror(state.a);
+                setArithmeticFlags(state.a);
                 break;
-
-            case 0x7f: // 65C02 BBR - Branch if bit 5 reset - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true);
-                if ((tmp & 1 << 7) == 0) {
-                    state.pc = relAddress(state.args[1]);
-                }
+            case OP_ROR: // ROR - Rotate Right
+                tmp = ror(bus.read(effectiveAddress, true));
+                bus.write(effectiveAddress, tmp);
+                setArithmeticFlags(tmp);
                 break;
-
-
-            /** 65C02 BBS - Branch if Bit Set  ************************************/
-            case 0x8f: // 65C02 BBS - Branch if bit 0 set - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true);
-                if ((tmp & 1 << 0) > 0) {
-                    state.pc = relAddress(state.args[1]);
-                }
+            case OP_INC: // INC - Increment Memory
+                tmp = (bus.read(effectiveAddress, true) + 1) & 0xff;
+                bus.write(effectiveAddress, tmp);
+                setArithmeticFlags(tmp);
                 break;
-
-            case 0x9f: // 65C02 BBS - Branch if bit 1 set - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true);
-                if ((tmp & 1 << 1) > 0) {
-                    state.pc = relAddress(state.args[1]);
-                }
+            case OP_DEC: // DEC - Decrement Memory
+                tmp = (bus.read(effectiveAddress, true) - 1) & 0xff;
+                bus.write(effectiveAddress, tmp);
+                setArithmeticFlags(tmp);
                 break;
 
-            case 0xaf: // 65C02 BBS - Branch if bit 2 set - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
+            /** 65C02 Bit Manipulation - Zero Page **********************************/
+            case OP_TRB: // 65C02 TRB - Test and Reset bit
                 tmp = bus.read(effectiveAddress, true);
-                if ((tmp & 1 << 2) > 0) {
-                    state.pc = relAddress(state.args[1]);
-                }
+                state.p = (state.p & ~P_ZERO) | (NZ[state.a & tmp] & P_ZERO);
+                tmp = (tmp & ~(state.a)) & 0xff;
+                bus.write(effectiveAddress, tmp);
                 break;
-
-            case 0xbf: // 65C02 BBS - Branch if bit 3 set - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
+            case OP_TSB: // 65C02 TSB - Test and Set bit
                 tmp = bus.read(effectiveAddress, true);
-                if ((tmp & 1 << 3) > 0) {
-                    state.pc = relAddress(state.args[1]);
-                }
+                state.p = (state.p & ~P_ZERO) | (NZ[state.a & tmp] & P_ZERO);
+                tmp = (tmp | (state.a)) & 0xff;
+                bus.write(effectiveAddress, tmp);
                 break;
-
-
-            case 0xcf: // 65C02 BBS - Branch if bit 4 set - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true);
-                if ((tmp & 1 << 4) > 0) {
-                    state.pc = relAddress(state.args[1]);
-                }
+            case OP_RMB: // 65C02 RMB0-7 - Reset Memory Bit
+                tmp = bus.read(effectiveAddress, true) & 0xff;
+                tmp &= ~(1 << ((state.ir >> 4) & 0x07));
+                bus.write(effectiveAddress, tmp);
                 break;
-
-
-            case 0xdf: // 65C02 BBS - Branch if bit 5 set - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
-                tmp = bus.read(effectiveAddress, true);
-                if ((tmp & 1 << 5) > 0) {
-                    state.pc = relAddress(state.args[1]);
-                }
+            case OP_SMB: // 65C02 SMB0-7 - Set Memory Bit
+                tmp = bus.read(effectiveAddress, true) & 0xff;
+                tmp |= (1 << ((state.ir >> 4) & 0x07));
+                bus.write(effectiveAddress, tmp);
                 break;
-
-            case 0xef: // 65C02 BBS - Branch if bit 6 set - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
+            case OP_BBR: // 65C02 BBR0-7 - Branch if Bit Reset
                 tmp = bus.read(effectiveAddress, true);
-                if ((tmp & 1 << 6) > 0) {
-                    state.pc = relAddress(state.args[1]);
+                if ((tmp & 1 << ((state.ir >> 4) & 0x07)) == 0) {
+                    branch(state.args[1], 1);
                 }
                 break;
-
-            case 0xff: // 65C02 BBS - Branch if bit 5 set - Zero Page
-                if (behavior == CpuBehavior.NMOS_6502 ||
-                    behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                    break;
-                }
+            case OP_BBS: // 65C02 BBS0-7 - Branch if Bit Set
                 tmp = bus.read(effectiveAddress, true);
-                if ((tmp & 1 << 7) > 0) {
-                    state.pc = relAddress(state.args[1]);
+                if ((tmp & 1 << ((state.ir >> 4) & 0x07)) != 0) {
+                    branch(state.args[1], 1);
                 }
                 break;
 
-
             /** Unimplemented Instructions ****************************************/
             // TODO: Create a flag to enable highly-accurate emulation of unimplemented instructions.
             default:
                 setOpTrap();
                 break;
         }
-
-        delayLoop(state.ir);
-
-        // Peek ahead to the next insturction and arguments
-        peekAhead();
     }
 
+    /*
+     * Read the next instruction and arguments for display. These are not CPU
+     * accesses, so a device the program counter points into sees nothing.
+     */
     private void peekAhead() throws MemoryAccessException {
-        state.nextIr = bus.read(state.pc, true);
+        state.nextIr = bus.read(state.pc, false);
         int nextInstSize = Cpu.instructionSizes[state.nextIr];
         for (int i = 1; i < nextInstSize; i++) {
             int nextRead = (state.pc + i) % bus.endAddress();
-            state.nextArgs[i-1] = bus.read(nextRead, true);
+            state.nextArgs[i-1] = bus.read(nextRead, false);
         }
     }
 
@@ -1308,39 +925,21 @@ public class Cpu implements InstructionTable {
      * @return The sum of the accumulator and the operand
      */
     private int adc(int acc, int operand) {
-        int result = (operand & 0xff) + (acc & 0xff) + getCarryBit();
-        int carry6 = (operand & 0x7f) + (acc & 0x7f) + getCarryBit();
-        setCarryFlag((result & 0x100) != 0);
-        setOverflowFlag(state.carryFlag ^ ((carry6 & 0x80) != 0));
-        result &= 0xff;
-        setArithmeticFlags(result);
-        return result;
+        int carry = state.p & P_CARRY;
+        int result = (operand & 0xff) + (acc & 0xff) + carry;
+        int carry6 = (operand & 0x7f) + (acc & 0x7f) + carry;
+        // Overflow is the carry out of bit 6 differing from the carry out of bit 7
+        int overflow = ((carry6 >> 7) ^ (result >> 8)) << 6;
+        state.p = (state.p & ~(P_NEGATIVE | P_OVERFLOW | P_ZERO | P_CARRY)) |
+                  (result >> 8) | overflow | NZ[result & 0xff];
+        return result & 0xff;
     }
 
     /**
      * Add with Carry (BCD).
      */
-
-    private int adcDecimal(int acc, int operand) {
-        int l, h, result;
-        l = (acc & 0x0f) + (operand & 0x0f) + getCarryBit();
-        if ((l & 0xff) > 9) l += 6;
-        h = (acc >> 4) + (operand >> 4) + (l > 15 ? 1 : 0);
-        if ((h & 0xff) > 9) h += 6;
-        result = (l & 0x0f) | (h << 4);
-        result &= 0xff;
-        setCarryFlag(h > 15);
-        setZeroFlag(result == 0);
-        setOverflowFlag(false); // BCD never sets overflow flag
-
-        if (behavior == CpuBehavior.NMOS_6502||
-            behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                setNegativeFlag(false); // BCD is never negative on NMOS 6502
-        }
-        else {
-            state.negativeFlag = (result & 0x80) != 0; // N Flag is valid on CMOS 6502/65816
-        }
-        return result;
+    int adcDecimal(int acc, int operand) {
+        return decimalResult(DecimalTables.ADC[decimalIndex(acc, operand)]);
     }
 
     /**
@@ -1349,34 +948,70 @@ public class Cpu implements InstructionTable {
      * flags work out nicely without any additional logic.
      */
     private int sbc(int acc, int operand) {
-        int result;
-        result = adc(acc, ~operand);
-        setArithmeticFlags(result);
-        return result;
+        return adc(acc, ~operand);
     }
 
     /**
      * Subtract with Carry, BCD mode.
      */
-    private int sbcDecimal(int acc, int operand) {
-        int l, h, result;
-        l = (acc & 0x0f) - (operand & 0x0f) - (state.carryFlag ? 0 : 1);
-        if ((l & 0x10) != 0) l -= 6;
-        h = (acc >> 4) - (operand >> 4) - ((l & 0x10) != 0 ? 1 : 0);
-        if ((h & 0x10) != 0) h -= 6;
-        result = (l & 0x0f) | (h << 4) & 0xff;
-        setCarryFlag((h & 0xff) < 15);
-        setZeroFlag(result == 0);
-        setOverflowFlag(false); // BCD never sets overflow flag
-
-        if (behavior == CpuBehavior.NMOS_6502||
-            behavior == CpuBehavior.NMOS_WITH_ROR_BUG) {
-                setNegativeFlag(false); // BCD is never negative on NMOS 6502
+    int sbcDecimal(int acc, int operand) {
+        return decimalResult(DecimalTables.SBC[decimalIndex(acc, operand)]);
+    }
+
+    private int decimalIndex(int acc, int operand) {
+        return (state.p & P_CARRY) << 16 | (acc & 0xff) << 8 | (operand & 0xff);
+    }
+
+    /*
+     * Set the flags from an entry of the decimal tables. BCD never sets the
+     * overflow flag, and N is only valid on the CMOS 6502 and 65816.
+     */
+    private int decimalResult(int entry) {
+        int result = entry & 0xff;
+        state.p = (state.p & ~(P_NEGATIVE | P_OVERFLOW | P_ZERO | P_CARRY)) |
+                  (entry >> 8) | (result & decimalNegativeMask);
+        return result;
+    }
+
+    /*
+     * Decimal mode ADC and SBC for every carry, accumulator and operand,
+     * indexed by carry << 16 | accumulator << 8 | operand. Each entry holds
+     * the result, with the carry and zero flags above it in bits 8 and 9.
+     * Worked out the first time a CPU runs in decimal mode.
+     */
+    private static class DecimalTables {
+        static final char[] ADC = new char[0x20000];
+        static final char[] SBC = new char[0x20000];
+
+        static {
+            for (int index = 0; index < ADC.length; index++) {
+                int carry = index >> 16;
+                int acc = (index >> 8) & 0xff;
+                int operand = index & 0xff;
+                ADC[index] = (char) adc(acc, operand, carry);
+                SBC[index] = (char) sbc(acc, operand, carry);
+            }
+        }
+
+        private static int adc(int acc, int operand, int carry) {
+            int l = (acc & 0x0f) + (operand & 0x0f) + carry;
+            if ((l & 0xff) > 9) l += 6;
+            int h = (acc >> 4) + (operand >> 4) + (l > 15 ? 1 : 0);
+            if ((h & 0xff) > 9) h += 6;
+            return entry(((l & 0x0f) | (h << 4)) & 0xff, h > 15);
         }
-        else {
-            state.negativeFlag = (result & 0x80) != 0; // N Flag is valid on CMOS 6502/65816
+
+        private static int sbc(int acc, int operand, int carry) {
+            int l = (acc & 0x0f) - (operand & 0x0f) - (carry != 0 ? 0 : 1);
+            if ((l & 0x10) != 0) l -= 6;
+            int h = (acc >> 4) - (operand >> 4) - ((l & 0x10) != 0 ? 1 : 0);
+            if ((h & 0x10) != 0) h -= 6;
+            return entry((l & 0x0f) | (h << 4) & 0xff, (h & 0xff) < 15);
+        }
+
+        private static int entry(int result, boolean carry) {
+            return result | (carry ? P_CARRY << 8 : 0) | (result == 0 ? P_ZERO << 8 : 0);
         }
-        return (result & 0xff);
     }
 
     /**
@@ -1384,10 +1019,8 @@ public class Cpu implements InstructionTable {
      * appropriately.
      */
     private void cmp(int reg, int operand) {
-        int tmp = (reg - operand) & 0xff;
-        setCarryFlag(reg >= operand);
-        setZeroFlag(tmp == 0);
-        setNegativeFlag((tmp & 0x80) != 0); // Negative bit set
+        state.p = (state.p & ~(P_NEGATIVE | P_ZERO | P_CARRY)) |
+                  NZ[(reg - operand) & 0xff] | (reg >= operand ? P_CARRY : 0);
     }
 
     /**
@@ -1395,8 +1028,7 @@ public class Cpu implements InstructionTable {
      * register operand.
      */
     private void setArithmeticFlags(int reg) {
-        state.zeroFlag = (reg == 0);
-        state.negativeFlag = (reg & 0x80) != 0;
+        state.p = (state.p & ~(P_NEGATIVE | P_ZERO)) | NZ[reg & 0xff];
     }
 
     /**
@@ -1443,11 +1075,35 @@ public class Cpu implements InstructionTable {
     }
 
     /**
-     * @param clockPeriodInNs The simulated clock period, in nanoseconds
+     * @param clockPeriodInNs The simulated clock period, in nanoseconds. A period of
+     *                        TURBO_CLOCK_PERIOD_IN_NS (0) runs the CPU unthrottled.
      */
     public void setClockPeriodInNs(long clockPeriodInNs) {
         logger.debug("Setting simulated clock period to {} ns.", clockPeriodInNs);
         this.clockPeriodInNs = clockPeriodInNs;
+        updateSchedulerClockRate();
+        resetThrottle(System.nanoTime());
+    }
+
+    /**
+     * Device timing is counted in cycles at the simulated clock rate. Turbo mode
+     * keeps the last rate, so that programs see the same timing at any speed.
+     */
+    private void updateSchedulerClockRate() {
+        if (scheduler != null && clockPeriodInNs != TURBO_CLOCK_PERIOD_IN_NS) {
+            scheduler.setClockRate(1000000000L / clockPeriodInNs);
+        }
+    }
+
+    public long getClockPeriodInNs() {
+        return clockPeriodInNs;
+    }
+
+    /**
+     * @return True if the CPU runs unthrottled, without pacing to the wall clock.
+     */
+    public boolean isTurbo() {
+        return clockPeriodInNs == TURBO_CLOCK_PERIOD_IN_NS;
     }
 
     /**
@@ -1463,100 +1119,100 @@ public class Cpu implements InstructionTable {
      * @return the negative flag
      */
     public boolean getNegativeFlag() {
-        return state.negativeFlag;
+        return (state.p & P_NEGATIVE) != 0;
     }
 
     /**
      * @param negativeFlag the negative flag to set
      */
     public void setNegativeFlag(boolean negativeFlag) {
-        state.negativeFlag = negativeFlag;
+        state.setNegativeFlag(negativeFlag);
     }
 
     public void setNegativeFlag() {
-        state.negativeFlag = true;
+        state.p |= P_NEGATIVE;
     }
 
     public void clearNegativeFlag() {
-        state.negativeFlag = false;
+        state.p &= ~P_NEGATIVE;
     }
 
     /**
      * @return the carry flag
      */
     public boolean getCarryFlag() {
-        return state.carryFlag;
+        return (state.p & P_CARRY) != 0;
     }
 
     /**
      * @return 1 if the carry flag is set, 0 if it is clear.
      */
     public int getCarryBit() {
-        return (state.carryFlag ? 1 : 0);
+        return state.p & P_CARRY;
     }
 
     /**
      * @param carryFlag the carry flag to set
      */
     public void setCarryFlag(boolean carryFlag) {
-        state.carryFlag = carryFlag;
+        state.setCarryFlag(carryFlag);
     }
 
     /**
      * Sets the Carry Flag
      */
     public void setCarryFlag() {
-        state.carryFlag = true;
+        state.p |= P_CARRY;
     }
 
     /**
      * Clears the Carry Flag
      */
     public void clearCarryFlag() {
-        state.carryFlag = false;
+        state.p &= ~P_CARRY;
     }
 
     /**
      * @return the zero flag
      */
     public boolean getZeroFlag() {
-        return state.zeroFlag;
+        return (state.p & P_ZERO) != 0;
     }
 
     /**
      * @param zeroFlag the zero flag to set
      */
     public void setZeroFlag(boolean zeroFlag) {
-        state.zeroFlag = zeroFlag;
+        state.setZeroFlag(zeroFlag);
     }
 
     /**
      * Sets the Zero Flag
      */
     public void setZeroFlag() {
-        state.zeroFlag = true;
+        state.p |= P_ZERO;
     }
 
     /**
      * Clears the Zero Flag
      */
     public void clearZeroFlag() {
-        state.zeroFlag = false;
+        state.p &= ~P_ZERO;
     }
 
     /**
      * @return the irq disable flag
      */
     public boolean getIrqDisableFlag() {
-        return state.irqDisableFlag;
+        return (state.p & P_IRQ_DISABLE) != 0;
     }
 
     public void setIrqDisableFlag() {
-        state.irqDisableFlag = true;
+        state.p |= P_IRQ_DISABLE;
     }
 
     public void clearIrqDisableFlag() {
-        state.irqDisableFlag = false;
+        state.p &= ~P_IRQ_DISABLE;
     }
 
 
@@ -1564,70 +1220,70 @@ public class Cpu implements InstructionTable {
      * @return the decimal mode flag
      */
     public boolean getDecimalModeFlag() {
-        return state.decimalModeFlag;
+        return (state.p & P_DECIMAL) != 0;
     }
 
     /**
      * Sets the Decimal Mode Flag to true.
      */
     public void setDecimalModeFlag() {
-        state.decimalModeFlag = true;
+        state.p |= P_DECIMAL;
     }
 
     /**
      * Clears the Decimal Mode Flag.
      */
     public void clearDecimalModeFlag() {
-        state.decimalModeFlag = false;
+        state.p &= ~P_DECIMAL;
     }
 
     /**
      * @return the break flag
      */
     public boolean getBreakFlag() {
-        return state.breakFlag;
+        return (state.p & P_BREAK) != 0;
     }
 
     /**
      * Sets the Break Flag
      */
     public void setBreakFlag() {
-        state.breakFlag = true;
+        state.p |= P_BREAK;
     }
 
     /**
      * Clears the Break Flag
      */
     public void clearBreakFlag() {
-        state.breakFlag = false;
+        state.p &= ~P_BREAK;
     }
 
     /**
      * @return the overflow flag
      */
     public boolean getOverflowFlag() {
-        return state.overflowFlag;
+        return (state.p & P_OVERFLOW) != 0;
     }
 
     /**
      * @param overflowFlag the overflow flag to set
      */
     public void setOverflowFlag(boolean overflowFlag) {
-        state.overflowFlag = overflowFlag;
+        state.setOverflowFlag(overflowFlag);
     }
 
     /**
      * Sets the Overflow Flag
      */
     public void setOverflowFlag() {
-        state.overflowFlag = true;
+        state.p |= P_OVERFLOW;
     }
 
     /**
      * Clears the Overflow Flag
      */
     public void clearOverflowFlag() {
-        state.overflowFlag = false;
+        state.p &= ~P_OVERFLOW;
     }
 
     /**
@@ -1668,20 +1324,20 @@ public class Cpu implements InstructionTable {
         state.y = val;
     }
 
+    /**
+     * @return The number of clock cycles run since reset, including those
+     *         taken by page crossings and branches.
+     */
+    public long getCycleCount() {
+        return state.cycleCounter;
+    }
+
     public int getProgramCounter() {
         return state.pc;
     }
 
     public void setProgramCounter(int addr) {
         state.pc = addr;
-
-        // As a side-effect of setting the program counter,
-        // we want to peek ahead at the next state.
-        try {
-            peekAhead();
-        } catch (MemoryAccessException ex) {
-            logger.error("Could not peek ahead at next instruction state.");
-        }
     }
 
     public int getStackPointer() {
@@ -1700,40 +1356,7 @@ public class Cpu implements InstructionTable {
      * @value The value of the Process Status Register bits to be set.
      */
     public void setProcessorStatus(int value) {
-        if ((value & P_CARRY) != 0)
-            setCarryFlag();
-        else
-            clearCarryFlag();
-
-        if ((value & P_ZERO) != 0)
-            setZeroFlag();
-        else
-            clearZeroFlag();
-
-        if ((value & P_IRQ_DISABLE) != 0)
-            setIrqDisableFlag();
-        else
-            clearIrqDisableFlag();
-
-        if ((value & P_DECIMAL) != 0)
-            setDecimalModeFlag();
-        else
-            clearDecimalModeFlag();
-
-        if ((value & P_BREAK) != 0)
-            setBreakFlag();
-        else
-            clearBreakFlag();
-
-        if ((value & P_OVERFLOW) != 0)
-            setOverflowFlag();
-        else
-            clearOverflowFlag();
-
-        if ((value & P_NEGATIVE) != 0)
-            setNegativeFlag();
-        else
-            clearNegativeFlag();
+        state.setStatusFlag(value);
     }
 
     public String getAccumulatorStatus() {
@@ -1876,29 +1499,54 @@ public class Cpu implements InstructionTable {
     }
 
     /*
-     * Perform a busy-loop until the instruction should complete on the wall clock
+     * Take a relative branch. A branch taken costs a cycle more than one not
+     * taken, and another if it lands on a different page than the next
+     * instruction. BRA is always taken, and its clocks count the first.
      */
-    private void delayLoop(int opcode) {
-        final int clockSteps;
+    private void branch(int offset, int takenCycles) {
+        int target = relAddress(offset);
+        extraCycles = takenCycles + ((state.pc ^ target) >>> 8 != 0 ? 1 : 0);
+        state.pc = target;
+    }
 
-        if (behavior == CpuBehavior.NMOS_WITH_ROR_BUG ||
-            behavior == CpuBehavior.NMOS_6502) {
-            clockSteps = Cpu.instructionClocksNmos[0xff & opcode];
-        } else {
-            clockSteps = Cpu.instructionClocksCmos[0xff & opcode];
+    /*
+     * Account for the clock cycles of the instruction just executed. Rather than
+     * waiting out every instruction, the simulated time is collected into batches,
+     * and the thread is parked once per batch until the wall clock catches up.
+     */
+    private void throttle(int clockSteps) {
+        if (clockPeriodInNs == TURBO_CLOCK_PERIOD_IN_NS) {
+            return;
         }
 
-        if (clockSteps == 0) {
-            logger.warn("Opcode {} has clock step of 0!", String.format("0x%02x", opcode));
-            return;
+        throttleBatchNs += clockSteps * clockPeriodInNs;
+
+        if (throttleBatchNs >= THROTTLE_BATCH_NS) {
+            syncToWallClock();
         }
+    }
+
+    private void syncToWallClock() {
+        long now = System.nanoTime();
+
+        throttleElapsedNs += throttleBatchNs;
+        throttleBatchNs = 0;
 
-        long interval = clockSteps * clockPeriodInNs;
-        long end;
+        long ahead = throttleStartTime + throttleElapsedNs - now;
 
-        do {
-            end = System.nanoTime();
-        } while (opBeginTime + interval >= end);
+        if (ahead > 0) {
+            LockSupport.parkNanos(ahead);
+        } else if (ahead < -THROTTLE_MAX_LAG_NS) {
+            // We were paused, single-stepped, or the host could not keep up.
+            // Start a new window instead of running flat out to catch up.
+            resetThrottle(now);
+        }
+    }
+
+    private void resetThrottle(long now) {
+        throttleStartTime = now;
+        throttleElapsedNs = 0;
+        throttleBatchNs = 0;
     }
 
     /**
@@ -1963,6 +1611,11 @@ public class Cpu implements InstructionTable {
      * @return A string representing the mnemonic and operands of the instruction
      */
     public String disassembleNextOp() {
+        try {
+            peekAhead();
+        } catch (MemoryAccessException ex) {
+            logger.error("Could not peek ahead at next instruction state.");
+        }
         return Cpu.disassembleOp(state.nextIr, state.nextArgs);
     }
 
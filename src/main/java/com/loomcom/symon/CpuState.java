@@ -2,6 +2,10 @@ package com.loomcom.symon;
 
 import com.loomcom.symon.util.Utils;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * A compact, struct-like representation of CPU state.
  */
@@ -44,19 +48,19 @@ public class CpuState {
     public int[] nextArgs = new int[2];
     public int instSize;
     public boolean opTrap;
-    public boolean irqAsserted;
-    public boolean nmiAsserted;
+    // Devices raise the interrupt lines on the simulator thread, but the lines
+    // are volatile so that one raised from any other thread is never missed
+    public volatile boolean irqAsserted;
+    public volatile boolean nmiAsserted;
     public int lastPc;
 
-    /* Status Flag Register bits */
-    public boolean carryFlag;
-    public boolean negativeFlag;
-    public boolean zeroFlag;
-    public boolean irqDisableFlag;
-    public boolean decimalModeFlag;
-    public boolean breakFlag;
-    public boolean overflowFlag;
+    /**
+     * Processor Status Register, each flag in its bit as given by Cpu.P_CARRY
+     * and the rest. Bit 5 is always set.
+     */
+    public int p = 0x20;
     public long stepCounter = 0L;
+    public long cycleCounter = 0L;
 
     public CpuState() {}
 
@@ -84,14 +88,59 @@ public class CpuState {
         this.instSize = s.instSize;
         this.opTrap = s.opTrap;
         this.irqAsserted = s.irqAsserted;
-        this.carryFlag = s.carryFlag;
-        this.negativeFlag = s.negativeFlag;
-        this.zeroFlag = s.zeroFlag;
-        this.irqDisableFlag = s.irqDisableFlag;
-        this.decimalModeFlag = s.decimalModeFlag;
-        this.breakFlag = s.breakFlag;
-        this.overflowFlag = s.overflowFlag;
+        this.p = s.p;
         this.stepCounter = s.stepCounter;
+        this.cycleCounter = s.cycleCounter;
+    }
+
+    /**
+     * Write the state, for a machine snapshot.
+     */
+    public void save(DataOutput out) throws IOException {
+        out.writeByte(a);
+        out.writeByte(x);
+        out.writeByte(y);
+        out.writeByte(sp);
+        out.writeShort(pc);
+        out.writeByte(ir);
+        out.writeByte(nextIr);
+        out.writeByte(args[0]);
+        out.writeByte(args[1]);
+        out.writeByte(nextArgs[0]);
+        out.writeByte(nextArgs[1]);
+        out.writeByte(instSize);
+        out.writeBoolean(opTrap);
+        out.writeBoolean(irqAsserted);
+        out.writeBoolean(nmiAsserted);
+        out.writeShort(lastPc);
+        out.writeByte(getStatusFlag());
+        out.writeLong(stepCounter);
+        out.writeLong(cycleCounter);
+    }
+
+    /**
+     * Read back a state written by {@link #save(DataOutput)}.
+     */
+    public void load(DataInput in) throws IOException {
+        a = in.readUnsignedByte();
+        x = in.readUnsignedByte();
+        y = in.readUnsignedByte();
+        sp = in.readUnsignedByte();
+        pc = in.readUnsignedShort();
+        ir = in.readUnsignedByte();
+        nextIr = in.readUnsignedByte();
+        args[0] = in.readUnsignedByte();
+        args[1] = in.readUnsignedByte();
+        nextArgs[0] = in.readUnsignedByte();
+        nextArgs[1] = in.readUnsignedByte();
+        instSize = in.readUnsignedByte();
+        opTrap = in.readBoolean();
+        irqAsserted = in.readBoolean();
+        nmiAsserted = in.readBoolean();
+        lastPc = in.readUnsignedShort();
+        setStatusFlag(in.readUnsignedByte());
+        stepCounter = in.readLong();
+        cycleCounter = in.readLong();
     }
 
     /**
@@ -115,29 +164,76 @@ public class CpuState {
      * @return The value of the Process Status Register, as a byte.
      */
     public int getStatusFlag() {
-        int status = 0x20;
-        if (carryFlag) {
-            status |= Cpu.P_CARRY;
-        }
-        if (zeroFlag) {
-            status |= Cpu.P_ZERO;
-        }
-        if (irqDisableFlag) {
-            status |= Cpu.P_IRQ_DISABLE;
-        }
-        if (decimalModeFlag) {
-            status |= Cpu.P_DECIMAL;
-        }
-        if (breakFlag) {
-            status |= Cpu.P_BREAK;
-        }
-        if (overflowFlag) {
-            status |= Cpu.P_OVERFLOW;
-        }
-        if (negativeFlag) {
-            status |= Cpu.P_NEGATIVE;
-        }
-        return status;
+        return p | 0x20;
+    }
+
+    /**
+     * Set the status flags from a Process Status Register byte.
+     *
+     * @param status The value of the Process Status Register.
+     */
+    public void setStatusFlag(int status) {
+        p = (status & 0xff) | 0x20;
+    }
+
+    public boolean getCarryFlag() {
+        return (p & Cpu.P_CARRY) != 0;
+    }
+
+    public void setCarryFlag(boolean carryFlag) {
+        setFlag(Cpu.P_CARRY, carryFlag);
+    }
+
+    public boolean getZeroFlag() {
+        return (p & Cpu.P_ZERO) != 0;
+    }
+
+    public void setZeroFlag(boolean zeroFlag) {
+        setFlag(Cpu.P_ZERO, zeroFlag);
+    }
+
+    public boolean getIrqDisableFlag() {
+        return (p & Cpu.P_IRQ_DISABLE) != 0;
+    }
+
+    public void setIrqDisableFlag(boolean irqDisableFlag) {
+        setFlag(Cpu.P_IRQ_DISABLE, irqDisableFlag);
+    }
+
+    public boolean getDecimalModeFlag() {
+        return (p & Cpu.P_DECIMAL) != 0;
+    }
+
+    public void setDecimalModeFlag(boolean decimalModeFlag) {
+        setFlag(Cpu.P_DECIMAL, decimalModeFlag);
+    }
+
+    public boolean getBreakFlag() {
+        return (p & Cpu.P_BREAK) != 0;
+    }
+
+    public void setBreakFlag(boolean breakFlag) {
+        setFlag(Cpu.P_BREAK, breakFlag);
+    }
+
+    public boolean getOverflowFlag() {
+        return (p & Cpu.P_OVERFLOW) != 0;
+    }
+
+    public void setOverflowFlag(boolean overflowFlag) {
+        setFlag(Cpu.P_OVERFLOW, overflowFlag);
+    }
+
+    public boolean getNegativeFlag() {
+        return (p & Cpu.P_NEGATIVE) != 0;
+    }
+
+    public void setNegativeFlag(boolean negativeFlag) {
+        setFlag(Cpu.P_NEGATIVE, negativeFlag);
+    }
+
+    private void setFlag(int bit, boolean on) {
+        p = on ? p | bit : p & ~bit;
     }
 
     public String getInstructionByteStatus() {
@@ -164,14 +260,14 @@ public class CpuState {
      * @return A string representing the current status register state.
      */
     public String getProcessorStatusString() {
-        return "[" + (negativeFlag ? 'N' : '.') +
-                (overflowFlag ? 'V' : '.') +
+        return "[" + (getNegativeFlag() ? 'N' : '.') +
+                (getOverflowFlag() ? 'V' : '.') +
                 "-" +
-                (breakFlag ? 'B' : '.') +
-                (decimalModeFlag ? 'D' : '.') +
-                (irqDisableFlag ? 'I' : '.') +
-                (zeroFlag ? 'Z' : '.') +
-                (carryFlag ? 'C' : '.') +
+                (getBreakFlag() ? 'B' : '.') +
+                (getDecimalModeFlag() ? 'D' : '.') +
+                (getIrqDisableFlag() ? 'I' : '.') +
+                (getZeroFlag() ? 'Z' : '.') +
+                (getCarryFlag() ? 'C' : '.') +
                 "]";
     }
 }
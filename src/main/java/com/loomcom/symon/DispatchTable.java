@@ -0,0 +1,489 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.InstructionTable.CpuBehavior;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Pre-decoded dispatch information for all 256 opcodes of a given CPU behavior.
+ * <p>
+ * Decoding the addressing mode from the bit fields of the instruction register,
+ * and deciding whether a 65C02 opcode is legal on the selected CPU, only needs
+ * to happen once per opcode rather than once per executed instruction. The
+ * <code>Cpu</code> looks up the effective-address resolver and the operation
+ * for the fetched opcode in these tables, and dispatches on each with a single
+ * dense switch.
+ */
+public final class DispatchTable {
+
+    /* Effective address resolvers */
+    public static final int EA_NONE = 0;  // Implied, Accumulator, Relative
+    public static final int EA_IMM  = 1;  // #Immediate, operand is args[0]
+    public static final int EA_ZPG  = 2;  // Zero Page (also Zero Page, Relative)
+    public static final int EA_ABS  = 3;  // Absolute
+    public static final int EA_ZPI  = 4;  // 65C02 (Zero Page)
+    public static final int EA_ZPX  = 5;  // Zero Page,X
+    public static final int EA_ZPY  = 6;  // Zero Page,Y
+    public static final int EA_ABX  = 7;  // Absolute,X
+    public static final int EA_ABY  = 8;  // Absolute,Y
+    public static final int EA_XIN  = 9;  // (Zero Page,X)
+    public static final int EA_INY  = 10; // (Zero Page),Y
+
+    /* Operations */
+    public static final int OP_TRAP         = 0;
+    public static final int OP_NOP          = 1;
+    public static final int OP_BRK          = 2;
+    public static final int OP_PHP          = 3;
+    public static final int OP_PLP          = 4;
+    public static final int OP_PHA          = 5;
+    public static final int OP_PLA          = 6;
+    public static final int OP_PHX          = 7;
+    public static final int OP_PLX          = 8;
+    public static final int OP_PHY          = 9;
+    public static final int OP_PLY          = 10;
+    public static final int OP_JSR          = 11;
+    public static final int OP_RTS          = 12;
+    public static final int OP_RTI          = 13;
+    public static final int OP_BPL          = 14;
+    public static final int OP_BMI          = 15;
+    public static final int OP_BVC          = 16;
+    public static final int OP_BVS          = 17;
+    public static final int OP_BCC          = 18;
+    public static final int OP_BCS          = 19;
+    public static final int OP_BNE          = 20;
+    public static final int OP_BEQ          = 21;
+    public static final int OP_BRA          = 22;
+    public static final int OP_CLC          = 23;
+    public static final int OP_SEC          = 24;
+    public static final int OP_CLI          = 25;
+    public static final int OP_SEI          = 26;
+    public static final int OP_CLV          = 27;
+    public static final int OP_CLD          = 28;
+    public static final int OP_SED          = 29;
+    public static final int OP_TAX          = 30;
+    public static final int OP_TXA          = 31;
+    public static final int OP_TAY          = 32;
+    public static final int OP_TYA          = 33;
+    public static final int OP_TSX          = 34;
+    public static final int OP_TXS          = 35;
+    public static final int OP_INX          = 36;
+    public static final int OP_DEX          = 37;
+    public static final int OP_INY          = 38;
+    public static final int OP_DEY          = 39;
+    public static final int OP_INC_A        = 40;
+    public static final int OP_DEC_A        = 41;
+    public static final int OP_INC          = 42;
+    public static final int OP_DEC          = 43;
+    public static final int OP_JMP_ABS      = 44;
+    public static final int OP_JMP_IND      = 45;
+    public static final int OP_JMP_IND_NMOS = 46; // NMOS page-wrap bug on ($xxFF)
+    public static final int OP_JMP_AIX      = 47;
+    public static final int OP_ORA          = 48;
+    public static final int OP_AND          = 49;
+    public static final int OP_EOR          = 50;
+    public static final int OP_ADC          = 51;
+    public static final int OP_SBC          = 52;
+    public static final int OP_CMP          = 53;
+    public static final int OP_CPX          = 54;
+    public static final int OP_CPY          = 55;
+    public static final int OP_BIT_IMM      = 56;
+    public static final int OP_BIT          = 57;
+    public static final int OP_LDA          = 58;
+    public static final int OP_LDX          = 59;
+    public static final int OP_LDY          = 60;
+    public static final int OP_STA          = 61;
+    public static final int OP_STX          = 62;
+    public static final int OP_STY          = 63;
+    public static final int OP_STZ          = 64;
+    public static final int OP_ASL_A        = 65;
+    public static final int OP_ASL          = 66;
+    public static final int OP_LSR_A        = 67;
+    public static final int OP_LSR          = 68;
+    public static final int OP_ROL_A        = 69;
+    public static final int OP_ROL          = 70;
+    public static final int OP_ROR_A        = 71;
+    public static final int OP_ROR          = 72;
+    public static final int OP_TRB          = 73;
+    public static final int OP_TSB          = 74;
+    public static final int OP_RMB          = 75;
+    public static final int OP_SMB          = 76;
+    public static final int OP_BBR          = 77;
+    public static final int OP_BBS          = 78;
+
+    private static final Map<CpuBehavior, DispatchTable> TABLES = new EnumMap<>(CpuBehavior.class);
+
+    static {
+        for (CpuBehavior behavior : CpuBehavior.values()) {
+            TABLES.put(behavior, new DispatchTable(behavior));
+        }
+    }
+
+    /**
+     * Effective address resolver for each opcode.
+     */
+    final int[] addressing = new int[256];
+
+    /**
+     * Operation for each opcode.
+     */
+    final int[] operation = new int[256];
+
+    /**
+     * Extra clock cycle taken by each opcode when its indexed effective address
+     * lands on another page than its base address, or 0 if it takes none.
+     */
+    final int[] pageCrossCycles = new int[256];
+
+    /**
+     * Extra clock cycle taken by each opcode when it runs in decimal mode, or 0
+     * if it takes none.
+     */
+    final int[] decimalCycles = new int[256];
+
+    private final CpuBehavior behavior;
+
+    private DispatchTable(CpuBehavior behavior) {
+        this.behavior = behavior;
+        for (int opcode = 0; opcode < 256; opcode++) {
+            operation[opcode] = decodeOperation(opcode);
+            // Opcodes that do nothing on this CPU must not touch the bus.
+            addressing[opcode] = (operation[opcode] == OP_NOP && isCmosOnly(opcode)) ?
+                    EA_NONE : decodeAddressing(opcode);
+            pageCrossCycles[opcode] = decodePageCrossCycles(operation[opcode], addressing[opcode]);
+            decimalCycles[opcode] = decodeDecimalCycles(operation[opcode]);
+        }
+    }
+
+    /**
+     * @return The dispatch table for the given CPU behavior.
+     */
+    public static DispatchTable forBehavior(CpuBehavior behavior) {
+        return TABLES.get(behavior);
+    }
+
+    public CpuBehavior getBehavior() {
+        return behavior;
+    }
+
+    public int getAddressing(int opcode) {
+        return addressing[opcode & 0xff];
+    }
+
+    public int getOperation(int opcode) {
+        return operation[opcode & 0xff];
+    }
+
+    public int getPageCrossCycles(int opcode) {
+        return pageCrossCycles[opcode & 0xff];
+    }
+
+    public int getDecimalCycles(int opcode) {
+        return decimalCycles[opcode & 0xff];
+    }
+
+    private boolean isCmos() {
+        return behavior == CpuBehavior.CMOS_6502 || behavior == CpuBehavior.CMOS_65816;
+    }
+
+    /**
+     * Returns true for the opcodes that only exist on the 65C02 and 65C816, and
+     * are treated as a NOP by the NMOS 6502 simulation.
+     */
+    private static boolean isCmosOnly(int opcode) {
+        switch (opcode) {
+            case 0x04: case 0x0c: case 0x14: case 0x1c: // TSB, TRB
+            case 0x12: case 0x32: case 0x52: case 0x72: // (ZP) modes
+            case 0x92: case 0xb2: case 0xd2: case 0xf2:
+            case 0x1a: case 0x3a:                       // INC A, DEC A
+            case 0x34:                                  // BIT Zero Page,X
+            case 0x5a: case 0x7a: case 0xda: case 0xfa: // PHY, PLY, PHX, PLX
+            case 0x64: case 0x74: case 0x9c: case 0x9e: // STZ
+            case 0x7c:                                  // JMP (Absolute,X)
+            case 0x80:                                  // BRA
+                return true;
+            default:
+                // RMB, SMB, BBR and BBS occupy every $x7 and $xF opcode.
+                return (opcode & 0x07) == 0x07;
+        }
+    }
+
+    /**
+     * Decode the effective address resolver from bits 3-5 (addressing mode)
+     * and 6-7 (operation mode) of the opcode.
+     */
+    private int decodeAddressing(int opcode) {
+        int irAddressMode = (opcode >> 2) & 0x07;  // Bits 3-5 of IR:  [ | | |X|X|X| | ]
+        int irOpMode = opcode & 0x03;              // Bits 6-7 of IR:  [ | | | | | |X|X]
+
+        switch (irOpMode) {
+            case 0:
+            case 2:
+                switch (irAddressMode) {
+                    case 0: // #Immediate
+                        return EA_IMM;
+                    case 1: // Zero Page
+                        return EA_ZPG;
+                    case 2: // Accumulator - ignored
+                        return EA_NONE;
+                    case 3: // Absolute
+                        return EA_ABS;
+                    case 4: // 65C02 (Zero Page)
+                        // Relative branches share this mode, but never use the effective address.
+                        if ((opcode & 0x1f) == 0x10) {
+                            return EA_NONE;
+                        }
+                        return isCmos() ? EA_ZPI : EA_NONE;
+                    case 5: // Zero Page,X / Zero Page,Y
+                        if (opcode == 0x14) { // 65C02 TRB Zero Page
+                            return EA_ZPG;
+                        } else if (opcode == 0x96 || opcode == 0xb6) {
+                            return EA_ZPY;
+                        } else {
+                            return EA_ZPX;
+                        }
+                    case 7:
+                        if (opcode == 0x9c || opcode == 0x1c) { // 65C02 STZ & TRB Absolute
+                            return EA_ABS;
+                        } else if (opcode == 0xbe) { // Absolute,X / Absolute,Y
+                            return EA_ABY;
+                        } else {
+                            return EA_ABX;
+                        }
+                    default:
+                        return EA_NONE;
+                }
+            case 3: // Rockwell/WDC 65C02
+                switch (irAddressMode) {
+                    case 1: // Zero Page
+                    case 3:
+                    case 5:
+                    case 7: // Zero Page, Relative
+                        return EA_ZPG;
+                    default:
+                        return EA_NONE;
+                }
+            default:
+                switch (irAddressMode) {
+                    case 0: // (Zero Page,X)
+                        return EA_XIN;
+                    case 1: // Zero Page
+                        return EA_ZPG;
+                    case 2: // #Immediate
+                        return EA_IMM;
+                    case 3: // Absolute
+                        return EA_ABS;
+                    case 4: // (Zero Page),Y
+                        return EA_INY;
+                    case 5: // Zero Page,X
+                        return EA_ZPX;
+                    case 6: // Absolute, Y
+                        return EA_ABY;
+                    default: // Absolute, X
+                        return EA_ABX;
+                }
+        }
+    }
+
+    /**
+     * Reads through Absolute,X, Absolute,Y and (Zero Page),Y take a cycle more
+     * when the index carries into the high byte of the address. Stores and
+     * read-modify-writes always take it, and it is counted in their clocks,
+     * except for the 65C02's shifts and rotates through Absolute,X.
+     */
+    private int decodePageCrossCycles(int operation, int addressing) {
+        if (addressing != EA_ABX && addressing != EA_ABY && addressing != EA_INY) {
+            return 0;
+        }
+        switch (operation) {
+            case OP_ORA:
+            case OP_AND:
+            case OP_EOR:
+            case OP_ADC:
+            case OP_SBC:
+            case OP_CMP:
+            case OP_BIT:
+            case OP_LDA:
+            case OP_LDX:
+            case OP_LDY:
+                return 1;
+            case OP_ASL:
+            case OP_LSR:
+            case OP_ROL:
+            case OP_ROR:
+                return isCmos() ? 1 : 0;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * The 65C02 takes a cycle more for ADC and SBC in decimal mode, to correct
+     * the flags. The NMOS 6502 takes none.
+     */
+    private int decodeDecimalCycles(int operation) {
+        return isCmos() && (operation == OP_ADC || operation == OP_SBC) ? 1 : 0;
+    }
+
+    /**
+     * Decode the operation performed by the opcode.
+     */
+    private int decodeOperation(int opcode) {
+        if (!isCmos() && isCmosOnly(opcode)) {
+            return OP_NOP;
+        }
+
+        switch (opcode) {
+            /* Single Byte Instructions; Implied and Relative */
+            case 0x00: return OP_BRK;
+            case 0x08: return OP_PHP;
+            case 0x10: return OP_BPL;
+            case 0x18: return OP_CLC;
+            case 0x20: return OP_JSR;
+            case 0x28: return OP_PLP;
+            case 0x30: return OP_BMI;
+            case 0x38: return OP_SEC;
+            case 0x40: return OP_RTI;
+            case 0x48: return OP_PHA;
+            case 0x50: return OP_BVC;
+            case 0x58: return OP_CLI;
+            case 0x5a: return OP_PHY;
+            case 0x60: return OP_RTS;
+            case 0x68: return OP_PLA;
+            case 0x70: return OP_BVS;
+            case 0x78: return OP_SEI;
+            case 0x7a: return OP_PLY;
+            case 0x80: return OP_BRA;
+            case 0x88: return OP_DEY;
+            case 0x8a: return OP_TXA;
+            case 0x90: return OP_BCC;
+            case 0x98: return OP_TYA;
+            case 0x9a: return OP_TXS;
+            case 0xa8: return OP_TAY;
+            case 0xaa: return OP_TAX;
+            case 0xb0: return OP_BCS;
+            case 0xb8: return OP_CLV;
+            case 0xba: return OP_TSX;
+            case 0xc8: return OP_INY;
+            case 0xca: return OP_DEX;
+            case 0xd0: return OP_BNE;
+            case 0xd8: return OP_CLD;
+            case 0xda: return OP_PHX;
+            case 0xe8: return OP_INX;
+            case 0xea: return OP_NOP;
+            case 0xf0: return OP_BEQ;
+            case 0xf8: return OP_SED;
+            case 0xfa: return OP_PLX;
+
+            /* JMP */
+            case 0x4c: return OP_JMP_ABS;
+            case 0x6c: return isCmos() ? OP_JMP_IND : OP_JMP_IND_NMOS;
+            case 0x7c: return OP_JMP_AIX;
+
+            /* ORA */
+            case 0x01: case 0x05: case 0x09: case 0x0d:
+            case 0x11: case 0x12: case 0x15: case 0x19: case 0x1d:
+                return OP_ORA;
+
+            /* ASL */
+            case 0x0a: return OP_ASL_A;
+            case 0x06: case 0x0e: case 0x16: case 0x1e:
+                return OP_ASL;
+
+            /* BIT */
+            case 0x89: return OP_BIT_IMM;
+            case 0x24: case 0x2c: case 0x34: case 0x3c:
+                return OP_BIT;
+
+            /* AND */
+            case 0x21: case 0x25: case 0x29: case 0x2d:
+            case 0x31: case 0x32: case 0x35: case 0x39: case 0x3d:
+                return OP_AND;
+
+            /* ROL */
+            case 0x2a: return OP_ROL_A;
+            case 0x26: case 0x2e: case 0x36: case 0x3e:
+                return OP_ROL;
+
+            /* EOR */
+            case 0x41: case 0x45: case 0x49: case 0x4d:
+            case 0x51: case 0x52: case 0x55: case 0x59: case 0x5d:
+                return OP_EOR;
+
+            /* LSR */
+            case 0x4a: return OP_LSR_A;
+            case 0x46: case 0x4e: case 0x56: case 0x5e:
+                return OP_LSR;
+
+            /* ADC */
+            case 0x61: case 0x65: case 0x69: case 0x6d:
+            case 0x71: case 0x72: case 0x75: case 0x79: case 0x7d:
+                return OP_ADC;
+
+            /* ROR */
+            case 0x6a: return OP_ROR_A;
+            case 0x66: case 0x6e: case 0x76: case 0x7e:
+                return OP_ROR;
+
+            /* STA, STY, STX, STZ */
+            case 0x81: case 0x85: case 0x8d:
+            case 0x91: case 0x92: case 0x95: case 0x99: case 0x9d:
+                return OP_STA;
+            case 0x84: case 0x8c: case 0x94:
+                return OP_STY;
+            case 0x86: case 0x8e: case 0x96:
+                return OP_STX;
+            case 0x64: case 0x74: case 0x9c: case 0x9e:
+                return OP_STZ;
+
+            /* LDY, LDX, LDA */
+            case 0xa0: case 0xa4: case 0xac: case 0xb4: case 0xbc:
+                return OP_LDY;
+            case 0xa2: case 0xa6: case 0xae: case 0xb6: case 0xbe:
+                return OP_LDX;
+            case 0xa1: case 0xa5: case 0xa9: case 0xad:
+            case 0xb1: case 0xb2: case 0xb5: case 0xb9: case 0xbd:
+                return OP_LDA;
+
+            /* CPY, CMP, CPX */
+            case 0xc0: case 0xc4: case 0xcc:
+                return OP_CPY;
+            case 0xc1: case 0xc5: case 0xc9: case 0xcd:
+            case 0xd1: case 0xd2: case 0xd5: case 0xd9: case 0xdd:
+                return OP_CMP;
+            case 0xe0: case 0xe4: case 0xec:
+                return OP_CPX;
+
+            /* DEC, INC */
+            case 0x3a: return OP_DEC_A;
+            case 0xc6: case 0xce: case 0xd6: case 0xde:
+                return OP_DEC;
+            case 0x1a: return OP_INC_A;
+            case 0xe6: case 0xee: case 0xf6: case 0xfe:
+                return OP_INC;
+
+            /* SBC */
+            case 0xe1: case 0xe5: case 0xe9: case 0xed:
+            case 0xf1: case 0xf2: case 0xf5: case 0xf9: case 0xfd:
+                return OP_SBC;
+
+            /* 65C02 TRB/TSB */
+            case 0x14: case 0x1c: return OP_TRB;
+            case 0x04: case 0x0c: return OP_TSB;
+
+            default:
+                break;
+        }
+
+        /* 65C02 RMB, SMB, BBR, BBS - the bit number is in bits 4-6 of the opcode */
+        if ((opcode & 0x0f) == 0x07) {
+            return (opcode & 0x80) == 0 ? OP_RMB : OP_SMB;
+        }
+        if ((opcode & 0x0f) == 0x0f) {
+            return (opcode & 0x80) == 0 ? OP_BBR : OP_BBS;
+        }
+
+        /* Unimplemented Instructions */
+        return OP_TRAP;
+    }
+}
@@ -0,0 +1,217 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Crtc;
+import com.loomcom.symon.devices.Vdp;
+import com.loomcom.symon.ui.CrtcRenderer;
+import com.loomcom.symon.ui.FrameRenderer;
+import com.loomcom.symon.ui.VdpRenderer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Renders every emulated frame of a VDP or CRTC without a display, for
+ * regression tests and CI.
+ * <p>
+ * Frames are counted from 1, and rendered on the simulator thread as each one
+ * ends: at the VDP's own frame boundary, or every 60th of an emulated second for
+ * the CRTC, which has no frame timing of its own. A CRC32 of each frame's packed
+ * ARGB pixels can be written out, one line per frame, and chosen frames can be
+ * saved as PNG images, or as raw big-endian ARGB words, row by row, with no
+ * header. Rendering is incremental, and a frame that didn't change reuses the
+ * last CRC, so a mostly static display costs little even in turbo mode.
+ */
+public class FrameCapture {
+
+    private final static Logger logger = LoggerFactory.getLogger(FrameCapture.class.getName());
+
+    public static final int CRTC_FRAME_RATE = 60;
+
+    private final FrameRenderer renderer;
+
+    private long frameCount = 0;
+    private long crc = 0;
+    private boolean crcStale = true;
+    private final CRC32 crc32 = new CRC32();
+    private byte[] crcBuffer = new byte[0];
+
+    private PrintStream crcOutput;
+    private final Map<Long, File> captures = new HashMap<>();
+    private IOException error;
+
+    // Stops frames being captured
+    private Runnable detach;
+
+    private FrameCapture(FrameRenderer renderer) {
+        this.renderer = renderer;
+    }
+
+    /**
+     * Capture the frames of a VDP, as its frame interrupt is raised. The VDP can
+     * have only one frame listener, so it can't also be shown in a window.
+     */
+    public static FrameCapture forVdp(final Vdp vdp) {
+        final FrameCapture capture = new FrameCapture(new VdpRenderer(vdp));
+        vdp.setFrameListener(new Vdp.FrameListener() {
+            @Override
+            public void frameEnded(Vdp vdp) {
+                capture.frameEnded();
+            }
+        });
+        capture.detach = new Runnable() {
+            @Override
+            public void run() {
+                vdp.setFrameListener(null);
+            }
+        };
+        return capture;
+    }
+
+    /**
+     * Capture the frames of a CRTC, every 60th of an emulated second. The cursor
+     * blinks in emulated time.
+     */
+    public static FrameCapture forCrtc(final Crtc crtc, final Scheduler scheduler) throws IOException {
+        final CrtcRenderer crtcRenderer = new CrtcRenderer(crtc);
+        final FrameCapture capture = new FrameCapture(crtcRenderer);
+        final Scheduler.Event frameEvent = new Scheduler.Event() {
+            @Override
+            public void fire() {
+                crtcRenderer.setCursorBlinkTime(capture.frameCount * 1000 / CRTC_FRAME_RATE);
+                capture.frameEnded();
+                scheduler.schedule(this, scheduler.getClockRate() / CRTC_FRAME_RATE);
+            }
+        };
+        scheduler.schedule(frameEvent, scheduler.getClockRate() / CRTC_FRAME_RATE);
+        capture.detach = new Runnable() {
+            @Override
+            public void run() {
+                scheduler.cancel(frameEvent);
+            }
+        };
+        return capture;
+    }
+
+    /**
+     * @param crcOutput Write "frame crc" for every frame to this stream, the CRC
+     *                  as 8 hex digits, or null for none.
+     */
+    public void setCrcOutput(OutputStream crcOutput) {
+        this.crcOutput = crcOutput == null ? null : new PrintStream(crcOutput, false);
+    }
+
+    /**
+     * Save a frame when it ends: as a PNG image if the file name ends in ".png",
+     * otherwise as raw ARGB words.
+     */
+    public void captureFrame(long frame, File file) {
+        captures.put(frame, file);
+    }
+
+    /**
+     * @return The number of frames that have ended.
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * @return The CRC32 of the last frame.
+     */
+    public long getCrc() {
+        return crc;
+    }
+
+    public FrameRenderer getRenderer() {
+        return renderer;
+    }
+
+    private void frameEnded() {
+        frameCount++;
+        if (renderer.computeFinalPixels() || crcStale) {
+            crc = crc(renderer.getFinalPixels());
+            crcStale = false;
+        }
+
+        if (crcOutput != null) {
+            crcOutput.printf("%d %08x%n", frameCount, crc);
+        }
+
+        File file = captures.remove(frameCount);
+        if (file != null) {
+            try {
+                save(file);
+            } catch (IOException ex) {
+                logger.error("Could not save frame " + frameCount + " to " + file, ex);
+                if (error == null) {
+                    error = ex;
+                }
+            }
+        }
+    }
+
+    private long crc(int[] pixels) {
+        if (crcBuffer.length != pixels.length * 4) {
+            crcBuffer = new byte[pixels.length * 4];
+        }
+        ByteBuffer.wrap(crcBuffer).asIntBuffer().put(pixels);
+        crc32.reset();
+        crc32.update(crcBuffer, 0, crcBuffer.length);
+        return crc32.getValue();
+    }
+
+    /**
+     * Save the last frame rendered.
+     */
+    public void save(File file) throws IOException {
+        int width = renderer.getRasterWidth();
+        int height = renderer.getRasterHeight();
+        int[] pixels = renderer.getFinalPixels();
+
+        if (file.getName().toLowerCase().endsWith(".png")) {
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            image.getRaster().setDataElements(0, 0, width, height, pixels);
+            if (!ImageIO.write(image, "png", file)) {
+                throw new IOException("No PNG writer available");
+            }
+        } else {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                for (int pixel : pixels) {
+                    out.writeInt(pixel);
+                }
+            }
+        }
+        logger.info("Saved frame {} ({}x{}) to {}", frameCount, width, height, file);
+    }
+
+    /**
+     * Stop capturing, and flush the CRC output.
+     *
+     * @throws IOException If a frame could not be saved.
+     */
+    public void close() throws IOException {
+        detach.run();
+        if (crcOutput != null) {
+            crcOutput.flush();
+        }
+        if (!captures.isEmpty()) {
+            logger.warn("{} frame(s) not reached and not saved", captures.size());
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
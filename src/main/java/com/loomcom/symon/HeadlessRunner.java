@@ -0,0 +1,266 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Acia;
+import com.loomcom.symon.exceptions.MemoryAccessException;
+import com.loomcom.symon.machines.Machine;
+import com.loomcom.symon.util.TraceFileWriter;
+import com.loomcom.symon.util.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Runs a machine to completion without any user interface, for batch jobs and CI.
+ * <p>
+ * The runner steps the CPU unthrottled until one of the configured exit conditions
+ * is met: the program counter reaching a trap address, a cycle budget running out,
+ * a BRK instruction, a watchpoint on the bus firing, a given string appearing on
+ * the ACIA output, or a number of video frames being captured. ACIA output is
+ * streamed to the given output stream, and bytes available on the input stream are
+ * fed to the ACIA receiver. A machine found idle until input arrives waits for
+ * it without using the host CPU. Every instruction executed can also be recorded
+ * to a trace file.
+ */
+public class HeadlessRunner {
+
+    private final static Logger logger = LoggerFactory.getLogger(HeadlessRunner.class.getName());
+
+    /* How many steps to run between polls of the input stream */
+    private static final int INPUT_POLL_STEPS = 1000;
+
+    public enum ExitReason {
+        TRAP(0, "PC reached trap address"),
+        OUTPUT_MATCH(0, "ACIA output matched"),
+        BRK(0, "BRK instruction executed"),
+        WATCHPOINT(0, "Watchpoint hit"),
+        FRAME_LIMIT(0, "Frame limit reached"),
+        CYCLE_BUDGET(2, "Cycle budget exhausted"),
+        ILLEGAL_OPCODE(3, "Illegal opcode"),
+        MEMORY_ERROR(3, "Memory access error");
+
+        private final int status;
+        private final String description;
+
+        ExitReason(int status, String description) {
+            this.status = status;
+            this.description = description;
+        }
+
+        /**
+         * @return The process exit status for this reason.
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    private final Machine machine;
+    private final OutputStream out;
+    private final InputStream in;
+
+    private int trapAddress = -1;
+    private long cycleBudget = 0L;
+    private boolean stopOnBrk = false;
+    private String outputMatch = null;
+    private TraceFileWriter traceWriter = null;
+    private FrameCapture frameCapture = null;
+    private long frameLimit = 0L;
+
+    // The most recent ACIA output, as long as the string being matched
+    private final StringBuilder outputTail = new StringBuilder();
+
+    /**
+     * @param machine The machine to run. It should already be reset.
+     * @param out     Stream to receive the ACIA output.
+     * @param in      Stream to feed to the ACIA receiver, or null for none.
+     */
+    public HeadlessRunner(Machine machine, OutputStream out, InputStream in) {
+        this.machine = machine;
+        this.out = out;
+        this.in = in;
+    }
+
+    /**
+     * @param trapAddress Stop when the program counter reaches this address.
+     */
+    public void setTrapAddress(int trapAddress) {
+        this.trapAddress = trapAddress;
+    }
+
+    /**
+     * @param cycleBudget Stop after this many CPU cycles. 0 means no limit.
+     */
+    public void setCycleBudget(long cycleBudget) {
+        this.cycleBudget = cycleBudget;
+    }
+
+    /**
+     * @param stopOnBrk Stop after a BRK instruction is executed.
+     */
+    public void setStopOnBrk(boolean stopOnBrk) {
+        this.stopOnBrk = stopOnBrk;
+    }
+
+    /**
+     * @param outputMatch Stop when this string has been written to the ACIA.
+     */
+    public void setOutputMatch(String outputMatch) {
+        this.outputMatch = (outputMatch == null || outputMatch.isEmpty()) ? null : outputMatch;
+    }
+
+    /**
+     * @param traceWriter Record every instruction executed to this trace, or null
+     *                    for none. The caller remains responsible for closing it.
+     */
+    public void setTraceWriter(TraceFileWriter traceWriter) {
+        this.traceWriter = traceWriter;
+    }
+
+    /**
+     * @param frameCapture The capture counting the video frames, or null for none.
+     *                     The caller remains responsible for closing it.
+     * @param frameLimit   Stop after this many frames. 0 means no limit.
+     */
+    public void setFrameCapture(FrameCapture frameCapture, long frameLimit) {
+        this.frameCapture = frameCapture;
+        this.frameLimit = frameLimit;
+    }
+
+    /**
+     * Run the machine until an exit condition is met.
+     *
+     * @return The reason the run stopped.
+     */
+    public ExitReason run() throws IOException {
+        Cpu cpu = machine.getCpu();
+        Acia acia = machine.getAcia();
+        Bus bus = machine.getBus();
+        CpuState state = cpu.getCpuState();
+
+        cpu.setClockPeriodInNs(Cpu.TURBO_CLOCK_PERIOD_IN_NS);
+
+        // Translated blocks and skipped idle loops stop short of the trap address,
+        // and are only run when nothing needs to look at every instruction
+        Recompiler recompiler = cpu.getRecompiler();
+        IdleLoopDetector idleLoopDetector = cpu.getIdleLoopDetector();
+        if (recompiler != null && trapAddress >= 0) {
+            recompiler.addStopAddress(trapAddress);
+        }
+        if (idleLoopDetector != null && trapAddress >= 0) {
+            idleLoopDetector.addStopAddress(trapAddress);
+        }
+        boolean runBlocks = (recompiler != null || idleLoopDetector != null) &&
+                            traceWriter == null && !bus.hasExecuteWatchpoints();
+
+        int stepsUntilInputPoll = INPUT_POLL_STEPS;
+        boolean inputEnded = false;
+        ExitReason reason = null;
+
+        try {
+            while (reason == null) {
+                if (state.pc == trapAddress) {
+                    reason = ExitReason.TRAP;
+                    break;
+                }
+
+                int steps = 1;
+                if (runBlocks) {
+                    steps = cpu.runBlock(in == null ? Integer.MAX_VALUE : stepsUntilInputPoll,
+                                         cycleBudget > 0 ? cycleBudget - state.cycleCounter : Long.MAX_VALUE);
+                } else {
+                    cpu.step();
+                }
+
+                if (traceWriter != null) {
+                    traceWriter.append(state);
+                }
+
+                if (acia != null) {
+                    while (acia.hasTxChar()) {
+                        if (emit(acia.txRead(true))) {
+                            reason = ExitReason.OUTPUT_MATCH;
+                        }
+                    }
+                    if (in != null && (stepsUntilInputPoll -= steps) <= 0) {
+                        stepsUntilInputPoll = INPUT_POLL_STEPS;
+                        if (!acia.hasRxChar() && in.available() > 0) {
+                            out.flush();
+                            acia.rxWrite(in.read());
+                        }
+                    }
+
+                    // Skipping through a loop that only input can end would keep a
+                    // host core busy for nothing, so block until the input comes
+                    if (in != null && !inputEnded && runBlocks && idleLoopDetector != null &&
+                        !acia.hasRxChar() && idleLoopDetector.isWaitingForInput() && in.available() == 0) {
+                        out.flush();
+                        int c = in.read();
+                        if (c < 0) {
+                            inputEnded = true;
+                        } else {
+                            acia.rxWrite(c);
+                            stepsUntilInputPoll = INPUT_POLL_STEPS;
+                        }
+                    }
+                }
+
+                bus.checkExecute(state.pc);
+                Watchpoint.Hit hit = bus.takeWatchpointHit();
+
+                if (state.opTrap) {
+                    reason = ExitReason.ILLEGAL_OPCODE;
+                } else if (hit != null) {
+                    logger.info("{}", hit);
+                    reason = ExitReason.WATCHPOINT;
+                } else if (stopOnBrk && state.ir == 0x00) {
+                    reason = ExitReason.BRK;
+                } else if (cycleBudget > 0 && state.cycleCounter >= cycleBudget) {
+                    reason = ExitReason.CYCLE_BUDGET;
+                } else if (frameLimit > 0 && frameCapture != null && frameCapture.getFrameCount() >= frameLimit) {
+                    reason = ExitReason.FRAME_LIMIT;
+                }
+            }
+        } catch (MemoryAccessException ex) {
+            logger.error("Memory access error at PC " + Utils.wordToHex(state.lastPc), ex);
+            reason = ExitReason.MEMORY_ERROR;
+        }
+
+        out.flush();
+
+        logger.info("{} at PC ${} after {} instructions, {} cycles.",
+                    reason.getDescription(), Utils.wordToHex(state.pc),
+                    state.stepCounter, state.cycleCounter);
+
+        return reason;
+    }
+
+    /**
+     * Write one character of ACIA output.
+     *
+     * @return True if the output now ends with the string being matched.
+     */
+    private boolean emit(int c) throws IOException {
+        out.write(c);
+        if (c == '\n') {
+            out.flush();
+        }
+
+        if (outputMatch == null) {
+            return false;
+        }
+
+        outputTail.append((char) c);
+        if (outputTail.length() > outputMatch.length()) {
+            outputTail.deleteCharAt(0);
+        }
+        return outputTail.length() == outputMatch.length() &&
+               outputTail.toString().equals(outputMatch);
+    }
+}
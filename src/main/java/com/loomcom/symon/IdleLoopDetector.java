@@ -0,0 +1,492 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.exceptions.MemoryAccessException;
+import com.loomcom.symon.util.Utils;
+
+import java.util.Arrays;
+
+import static com.loomcom.symon.DispatchTable.*;
+
+/**
+ * Notices when the CPU is spinning in a loop that polls memory or device
+ * registers, waiting for something to happen, and skips ahead through the
+ * trips round the loop that could not see anything change.
+ * <p>
+ * A loop is watched from the target of a short backward branch or jump, and
+ * each instruction of a trip round it is checked before it is interpreted. It
+ * may move data between registers, compare and branch, call subroutines and
+ * push and pull the stack, but not write anywhere else. Each address it reads
+ * must tell, through {@link Bus#stableUntil(int)}, how long it will go on
+ * reading the same. A trip is clean when it reads only such addresses, pushes
+ * only the values the stack already holds, and comes back to the start of the
+ * loop with the registers it started with. A loop making a trip that is not
+ * clean is left to run for a while before it is watched again.
+ * <p>
+ * After two clean trips alike, one after another, each trip that follows
+ * would do the same again until a device event fires, a register read
+ * changes by itself, or input arrives from outside the machine. Before
+ * skipping, the addresses the last trip read are read again without side
+ * effects, to catch input that has arrived since. The trips are then skipped
+ * by counting their steps and cycles, up to just before the next device event
+ * or change of a register read, and within the caller's limits. Steps, cycles
+ * and what devices see are just as when interpreting every trip.
+ */
+public class IdleLoopDetector {
+
+    // The furthest back a branch or jump may go to start a loop worth watching
+    private static final int MAX_LOOP_BYTES = 64;
+
+    // The most instructions in a trip round a loop
+    private static final int MAX_TRIP_STEPS = 64;
+
+    // Clean trips alike, one after another, before any are skipped
+    private static final int TRIPS_TO_CONFIRM = 2;
+
+    // Most cycles skipped by one call, so that throttling stays timely
+    private static final int MAX_SKIP_CYCLES = 1 << 20;
+
+    // Most arrivals at a loop start to pass by after it was found not to be idle
+    private static final int MAX_BACKOFF = 1 << 16;
+
+    private final Cpu cpu;
+    private final Bus bus;
+    private final Scheduler scheduler;
+    private final CpuState state;
+
+    // The start of the loop being watched, or -1
+    private int head = -1;
+
+    // The registers and counts at the start of the trip under way
+    private int a, x, y, p, sp;
+    private long tripStartSteps;
+    private long tripStartCycles;
+
+    // Instructions checked in the trip under way, and whether they have all
+    // been clean
+    private int tripLength;
+    private boolean clean;
+
+    // The number of clean trips alike just made, and the steps and cycles of each
+    private int trips;
+    private long tripSteps;
+    private long tripCycles;
+
+    // The addresses read in the trip under way and the last clean trip, and
+    // the values read from them
+    private int[] reads = new int[MAX_TRIP_STEPS * 3];
+    private int[] values = new int[MAX_TRIP_STEPS * 3];
+    private int readCount;
+    private int[] lastReads = new int[MAX_TRIP_STEPS * 3];
+    private int[] lastValues = new int[MAX_TRIP_STEPS * 3];
+    private int lastReadCount;
+
+    // For each loop start found not to be idle, the arrivals to pass by before
+    // watching it again, and how many those were last time
+    private final int[] passes = new int[0x10000];
+    private final int[] backoff = new int[0x10000];
+
+    // Addresses the CPU must be seen to arrive at, which no skipped trip may pass
+    private final boolean[] stopAddresses = new boolean[0x10000];
+
+    private long stepsSkipped = 0L;
+
+    IdleLoopDetector(Cpu cpu) {
+        this.cpu = cpu;
+        this.bus = cpu.getBus();
+        this.scheduler = bus.getScheduler();
+        this.state = cpu.getCpuState();
+    }
+
+    /**
+     * Never skip a trip through an address, so that the CPU arrives there with
+     * a step of its own. Used for trap addresses and the like.
+     */
+    public void addStopAddress(int address) {
+        stopAddresses[address] = true;
+    }
+
+    /**
+     * @return The number of instructions skipped rather than run.
+     */
+    public long getStepsSkipped() {
+        return stepsSkipped;
+    }
+
+    /**
+     * @return True while a loop is being watched, and every instruction must be
+     *         checked before it is interpreted.
+     */
+    boolean isWatching() {
+        return head >= 0;
+    }
+
+    /**
+     * Skip trips round the loop at the program counter, if it has been found to
+     * be idle, and account their steps and cycles to the CPU state and the
+     * scheduler.
+     *
+     * @param maxSteps  The most instructions to skip.
+     * @param maxCycles The most cycles to skip.
+     * @return The number of instructions skipped.
+     */
+    int skip(int maxSteps, long maxCycles) {
+        if (head < 0 || state.pc != head) {
+            return 0;
+        }
+        if (tripLength > 0) {
+            endTrip();
+        }
+        if (head < 0 || trips < TRIPS_TO_CONFIRM || interruptPending() || bus.getJournal() != null) {
+            return 0;
+        }
+
+        // Nothing may skip past a change the loop could see
+        long now = scheduler.now();
+        long until = scheduler.nextEventCycle();
+        for (int i = 0; i < lastReadCount; i++) {
+            if (peek(lastReads[i]) != lastValues[i]) {
+                trips = 0;
+                return 0;
+            }
+            until = Math.min(until, bus.stableUntil(lastReads[i]));
+        }
+        long cycles = Math.min(Math.min(maxCycles, MAX_SKIP_CYCLES), until - now - 1);
+        long count = Math.min(cycles / tripCycles, maxSteps / tripSteps);
+        if (count <= 0) {
+            return 0;
+        }
+
+        long steps = count * tripSteps;
+        cycles = count * tripCycles;
+        state.stepCounter += steps;
+        state.cycleCounter += cycles;
+        scheduler.advance((int) cycles);
+        tripStartSteps += steps;
+        tripStartCycles += cycles;
+        stepsSkipped += steps;
+        backoff[head] = 0;
+        return (int) steps;
+    }
+
+    /**
+     * @return True if the CPU is at the start of a loop found to be idle, which
+     *         nothing inside the machine can ever end: no device event is
+     *         pending, and every address the loop reads stays the same for good.
+     *         Only input from outside the machine can wake it, so the caller may
+     *         wait for that rather than skip trips round the loop.
+     */
+    boolean isWaitingForInput() {
+        if (head < 0 || state.pc != head || tripLength > 0 || trips < TRIPS_TO_CONFIRM ||
+            interruptPending() || scheduler.nextEventCycle() != Long.MAX_VALUE) {
+            return false;
+        }
+        for (int i = 0; i < lastReadCount; i++) {
+            if (bus.stableUntil(lastReads[i]) != Long.MAX_VALUE || peek(lastReads[i]) != lastValues[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check the instruction at the program counter, which is about to be
+     * interpreted while a loop is watched.
+     */
+    void check() {
+        int pc = state.pc;
+        if (pc == head && tripLength > 0) {
+            endTrip();
+            if (head < 0) {
+                return;
+            }
+        }
+        if (++tripLength > MAX_TRIP_STEPS || interruptPending()) {
+            stop(false);
+            return;
+        }
+
+        int opcode = peek(pc);
+        if (opcode < 0) {
+            stop(false);
+            return;
+        }
+        if (stopAddresses[pc]) {
+            clean = false;
+        }
+        int arg0 = peek((pc + 1) & 0xffff);
+        int arg1 = peek((pc + 2) & 0xffff);
+        int absolute = Utils.address(arg0, arg1);
+        DispatchTable dispatch = cpu.getDispatchTable();
+
+        switch (dispatch.operation[opcode]) {
+            case OP_NOP:
+            case OP_CLC:
+            case OP_SEC:
+            case OP_CLV:
+            case OP_CLD:
+            case OP_SED:
+            case OP_TAX:
+            case OP_TXA:
+            case OP_TAY:
+            case OP_TYA:
+            case OP_TSX:
+            case OP_TXS:
+            case OP_INX:
+            case OP_DEX:
+            case OP_INY:
+            case OP_DEY:
+            case OP_INC_A:
+            case OP_DEC_A:
+            case OP_ASL_A:
+            case OP_LSR_A:
+            case OP_ROL_A:
+            case OP_ROR_A:
+            case OP_BIT_IMM:
+            case OP_BPL:
+            case OP_BMI:
+            case OP_BVC:
+            case OP_BVS:
+            case OP_BCC:
+            case OP_BCS:
+            case OP_BNE:
+            case OP_BEQ:
+            case OP_BRA:
+            case OP_JMP_ABS:
+            case OP_ORA:
+            case OP_AND:
+            case OP_EOR:
+            case OP_ADC:
+            case OP_SBC:
+            case OP_CMP:
+            case OP_CPX:
+            case OP_CPY:
+            case OP_BIT:
+            case OP_LDA:
+            case OP_LDX:
+            case OP_LDY:
+            case OP_BBR:
+            case OP_BBS:
+                readOperand(dispatch.addressing[opcode], arg0, absolute);
+                break;
+            case OP_JMP_IND:
+                read(absolute);
+                read((absolute + 1) & 0xffff);
+                break;
+            case OP_JMP_IND_NMOS:
+                read(absolute);
+                read(arg0 == 0xff ? Utils.address(0x00, arg1) : (absolute + 1) & 0xffff);
+                break;
+            case OP_JMP_AIX:
+                read((absolute + state.x) & 0xffff);
+                read((absolute + state.x + 1) & 0xffff);
+                break;
+            case OP_PHA:
+                push(state.sp, state.a);
+                break;
+            case OP_PHX:
+                push(state.sp, state.x);
+                break;
+            case OP_PHY:
+                push(state.sp, state.y);
+                break;
+            case OP_PHP:
+                push(state.sp, state.getStatusFlag() | 0x10);
+                break;
+            case OP_JSR:
+                push(state.sp, ((pc + 2) >> 8) & 0xff);
+                push(state.sp - 1, (pc + 2) & 0xff);
+                break;
+            case OP_PLA:
+            case OP_PLX:
+            case OP_PLY:
+                read(0x100 | ((state.sp + 1) & 0xff));
+                break;
+            case OP_RTS:
+                read(0x100 | ((state.sp + 1) & 0xff));
+                read(0x100 | ((state.sp + 2) & 0xff));
+                break;
+            default:
+                // Anything else writes memory or changes how interrupts are taken
+                stop(true);
+        }
+    }
+
+    /**
+     * Look at the instruction just run, and start watching the loop it closes
+     * if it was a short branch or jump back.
+     */
+    void stepped() {
+        int pc = state.pc;
+        int distance = state.lastPc - pc;
+        if (head >= 0 || distance < 0 || distance > MAX_LOOP_BYTES) {
+            return;
+        }
+        switch (cpu.getDispatchTable().operation[state.ir]) {
+            case OP_BPL:
+            case OP_BMI:
+            case OP_BVC:
+            case OP_BVS:
+            case OP_BCC:
+            case OP_BCS:
+            case OP_BNE:
+            case OP_BEQ:
+            case OP_BRA:
+            case OP_BBR:
+            case OP_BBS:
+            case OP_JMP_ABS:
+                break;
+            default:
+                return;
+        }
+        if (passes[pc] > 0) {
+            passes[pc]--;
+            return;
+        }
+
+        head = pc;
+        trips = 0;
+        startTrip();
+    }
+
+    /**
+     * Stop watching, and forget every loop found not to be idle. Called when
+     * the code or whole machine state changes under the detector.
+     */
+    void forget() {
+        head = -1;
+        Arrays.fill(passes, 0);
+        Arrays.fill(backoff, 0);
+    }
+
+    private void endTrip() {
+        if (!clean || state.a != a || state.x != x || state.y != y || state.p != p || state.sp != sp) {
+            stop(true);
+            return;
+        }
+
+        long steps = state.stepCounter - tripStartSteps;
+        long cycles = state.cycleCounter - tripStartCycles;
+        if (trips > 0 && (steps != tripSteps || cycles != tripCycles)) {
+            trips = 0;
+        }
+        tripSteps = steps;
+        tripCycles = cycles;
+        trips++;
+
+        int[] swap = lastReads;
+        lastReads = reads;
+        reads = swap;
+        swap = lastValues;
+        lastValues = values;
+        values = swap;
+        lastReadCount = readCount;
+        startTrip();
+    }
+
+    private void startTrip() {
+        a = state.a;
+        x = state.x;
+        y = state.y;
+        p = state.p;
+        sp = state.sp;
+        tripStartSteps = state.stepCounter;
+        tripStartCycles = state.cycleCounter;
+        tripLength = 0;
+        readCount = 0;
+        clean = true;
+    }
+
+    /*
+     * Stop watching the loop. One that was found to do something other than
+     * poll is passed by for a while before it is watched again, for twice as
+     * long each time.
+     */
+    private void stop(boolean busy) {
+        if (busy) {
+            backoff[head] = Math.min(MAX_BACKOFF, Math.max(1, backoff[head] * 2));
+            passes[head] = backoff[head];
+        }
+        head = -1;
+    }
+
+    private boolean interruptPending() {
+        return state.nmiAsserted || (state.irqAsserted && (state.p & Cpu.P_IRQ_DISABLE) == 0);
+    }
+
+    // Note the addresses an instruction reads its operand through, and from
+    private void readOperand(int mode, int arg0, int absolute) {
+        int pointer;
+        switch (mode) {
+            case EA_ZPG:
+                read(arg0);
+                break;
+            case EA_ABS:
+                read(absolute);
+                break;
+            case EA_ZPI:
+                pointer = readWord(arg0, (arg0 + 1) & 0xff);
+                read(pointer);
+                break;
+            case EA_ZPX:
+                read((arg0 + state.x) & 0xff);
+                break;
+            case EA_ZPY:
+                read((arg0 + state.y) & 0xff);
+                break;
+            case EA_ABX:
+                read((absolute + state.x) & 0xffff);
+                break;
+            case EA_ABY:
+                read((absolute + state.y) & 0xffff);
+                break;
+            case EA_XIN:
+                // The interpreter doesn't wrap the high byte's address either
+                pointer = (arg0 + state.x) & 0xff;
+                read(readWord(pointer, pointer + 1));
+                break;
+            case EA_INY:
+                pointer = readWord(arg0, (arg0 + 1) & 0xff);
+                read((pointer + state.y) & 0xffff);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private int readWord(int lo, int hi) {
+        read(lo);
+        read(hi);
+        return Utils.address(peek(lo), peek(hi));
+    }
+
+    private void read(int address) {
+        if (bus.stableUntil(address) <= scheduler.now()) {
+            clean = false;
+            return;
+        }
+        if (readCount < reads.length) {
+            reads[readCount] = address;
+            values[readCount] = peek(address);
+            readCount++;
+        } else {
+            clean = false;
+        }
+    }
+
+    // A push is clean if it writes what the stack already holds
+    private void push(int sp, int value) {
+        int address = 0x100 | (sp & 0xff);
+        if (bus.stableUntil(address) <= scheduler.now() || peek(address) != value) {
+            clean = false;
+        }
+    }
+
+    // Read an address without side effects
+    private int peek(int address) {
+        try {
+            return bus.read(address, false);
+        } catch (MemoryAccessException ex) {
+            return -1;
+        }
+    }
+}
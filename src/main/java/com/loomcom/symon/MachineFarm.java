@@ -0,0 +1,355 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.machines.Machine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many independent machines headless on a fixed pool of threads, one
+ * machine per job, and collects what each one did.
+ * <p>
+ * Every job builds its own machine, so jobs share nothing but immutable
+ * tables and, if given, a {@link MachineSnapshot} to start from; a snapshot
+ * can be restored into any number of machines at once. A job's ACIA input
+ * comes from a byte array and its output is kept in memory. Each job runs
+ * with a {@link HeadlessRunner} on a single thread, so its result is the same
+ * as running it alone.
+ */
+public class MachineFarm {
+
+    private final static Logger logger = LoggerFactory.getLogger(MachineFarm.class.getName());
+
+    /**
+     * A machine to build and the conditions to run it until.
+     */
+    public static class Job {
+        private final String name;
+        private final Class<? extends Machine> machineClass;
+        private final String romFile;
+
+        private InstructionTable.CpuBehavior cpuBehavior = InstructionTable.CpuBehavior.CMOS_6502;
+        private boolean recompiling = false;
+        private boolean skippingIdleLoops = false;
+        private MachineSnapshot snapshot = null;
+        private byte[] program = null;
+        private int programAddress = Preferences.DEFAULT_PROGRAM_LOAD_ADDRESS;
+        private int startAddress = -1;
+        private byte[] input = null;
+
+        private int trapAddress = -1;
+        private long cycleBudget = 0L;
+        private boolean stopOnBrk = false;
+        private String outputMatch = null;
+        private final List<String> watchpoints = new ArrayList<>();
+
+        /**
+         * @param name         A name to report the job by.
+         * @param machineClass The type of machine to build.
+         * @param romFile      The ROM image to load, or null for none.
+         */
+        public Job(String name, Class<? extends Machine> machineClass, String romFile) {
+            this.name = name;
+            this.machineClass = machineClass;
+            this.romFile = romFile;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setCpuBehavior(InstructionTable.CpuBehavior cpuBehavior) {
+            this.cpuBehavior = cpuBehavior;
+        }
+
+        /**
+         * @see Cpu#setRecompiling(boolean)
+         */
+        public void setRecompiling(boolean recompiling) {
+            this.recompiling = recompiling;
+        }
+
+        /**
+         * @see Cpu#setSkippingIdleLoops(boolean)
+         */
+        public void setSkippingIdleLoops(boolean skippingIdleLoops) {
+            this.skippingIdleLoops = skippingIdleLoops;
+        }
+
+        /**
+         * @param snapshot Restore the machine to this snapshot after reset, before
+         *                 loading any program.
+         */
+        public void setSnapshot(MachineSnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        /**
+         * @param program Load this into memory and set the program counter to it.
+         */
+        public void setProgram(byte[] program, int address) {
+            this.program = program;
+            this.programAddress = address;
+        }
+
+        /**
+         * @param startAddress Start at this address rather than the reset vector
+         *                     or program.
+         */
+        public void setStartAddress(int startAddress) {
+            this.startAddress = startAddress;
+        }
+
+        /**
+         * @param input Feed these bytes to the ACIA receiver, or null for none.
+         */
+        public void setInput(byte[] input) {
+            this.input = input;
+        }
+
+        /**
+         * @see HeadlessRunner#setTrapAddress(int)
+         */
+        public void setTrapAddress(int trapAddress) {
+            this.trapAddress = trapAddress;
+        }
+
+        /**
+         * @see HeadlessRunner#setCycleBudget(long)
+         */
+        public void setCycleBudget(long cycleBudget) {
+            this.cycleBudget = cycleBudget;
+        }
+
+        /**
+         * @see HeadlessRunner#setStopOnBrk(boolean)
+         */
+        public void setStopOnBrk(boolean stopOnBrk) {
+            this.stopOnBrk = stopOnBrk;
+        }
+
+        /**
+         * @see HeadlessRunner#setOutputMatch(String)
+         */
+        public void setOutputMatch(String outputMatch) {
+            this.outputMatch = outputMatch;
+        }
+
+        /**
+         * @param spec A watchpoint, as accepted by {@link Watchpoint#parse(String)}.
+         */
+        public void addWatchpoint(String spec) {
+            Watchpoint.parse(spec);
+            watchpoints.add(spec);
+        }
+
+        /**
+         * Build the machine, ready to run.
+         */
+        Machine build() throws Exception {
+            Machine machine = machineClass.getConstructor(String.class).newInstance(romFile);
+            machine.getCpu().setBehavior(cpuBehavior);
+            machine.getCpu().setRecompiling(recompiling);
+            machine.getCpu().setSkippingIdleLoops(skippingIdleLoops);
+            machine.getCpu().reset();
+
+            if (snapshot != null) {
+                snapshot.restore(machine.getBus());
+            }
+            if (program != null) {
+                machine.getBus().load(programAddress, program);
+                machine.getCpu().setProgramCounter(programAddress);
+            }
+            if (startAddress >= 0) {
+                machine.getCpu().setProgramCounter(startAddress);
+            }
+            for (String spec : watchpoints) {
+                machine.getBus().addWatchpoint(Watchpoint.parse(spec));
+            }
+            return machine;
+        }
+
+        /**
+         * Build the machine and run it until an exit condition is met.
+         */
+        Result run() {
+            long started = System.nanoTime();
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            try {
+                Machine machine = build();
+                HeadlessRunner runner = new HeadlessRunner(machine, output,
+                                                           input == null ? null : new ByteArrayInputStream(input));
+                runner.setTrapAddress(trapAddress);
+                runner.setCycleBudget(cycleBudget);
+                runner.setStopOnBrk(stopOnBrk);
+                runner.setOutputMatch(outputMatch);
+
+                HeadlessRunner.ExitReason reason = runner.run();
+                CpuState state = machine.getCpu().getCpuState();
+                return new Result(this, reason, null, output.toByteArray(), state.pc,
+                                  state.stepCounter, state.cycleCounter, System.nanoTime() - started);
+            } catch (Exception ex) {
+                logger.error("Could not run job " + name, ex);
+                return new Result(this, null, ex, output.toByteArray(), -1,
+                                  0L, 0L, System.nanoTime() - started);
+            }
+        }
+    }
+
+    /**
+     * What a job's machine did.
+     */
+    public static class Result {
+        private final Job job;
+        private final HeadlessRunner.ExitReason reason;
+        private final Exception failure;
+        private final byte[] output;
+        private final int pc;
+        private final long steps;
+        private final long cycles;
+        private final long elapsedNanos;
+
+        Result(Job job, HeadlessRunner.ExitReason reason, Exception failure, byte[] output,
+               int pc, long steps, long cycles, long elapsedNanos) {
+            this.job = job;
+            this.reason = reason;
+            this.failure = failure;
+            this.output = output;
+            this.pc = pc;
+            this.steps = steps;
+            this.cycles = cycles;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public Job getJob() {
+            return job;
+        }
+
+        /**
+         * @return The reason the machine stopped, or null if it couldn't be built or run.
+         */
+        public HeadlessRunner.ExitReason getReason() {
+            return reason;
+        }
+
+        /**
+         * @return Why the machine couldn't be built or run, or null if it ran.
+         */
+        public Exception getFailure() {
+            return failure;
+        }
+
+        /**
+         * @return The exit status, as the headless runner would give it, or 1 if
+         *         the machine couldn't be built or run.
+         */
+        public int getStatus() {
+            return reason == null ? 1 : reason.getStatus();
+        }
+
+        /**
+         * @return Everything the machine wrote to its ACIA.
+         */
+        public byte[] getOutput() {
+            return output;
+        }
+
+        public int getPc() {
+            return pc;
+        }
+
+        public long getSteps() {
+            return steps;
+        }
+
+        public long getCycles() {
+            return cycles;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final int threads;
+
+    /**
+     * A farm with a thread for each available processor.
+     */
+    public MachineFarm() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public MachineFarm(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("A farm needs at least one thread");
+        }
+        this.threads = threads;
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Machine farm " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Run the jobs, as many at once as there are threads, and wait for them all.
+     *
+     * @return The results, in the order of the jobs.
+     */
+    public List<Result> run(List<Job> jobs) throws InterruptedException {
+        List<Future<Result>> futures = new ArrayList<>(jobs.size());
+        for (final Job job : jobs) {
+            futures.add(executor.submit(new Callable<Result>() {
+                @Override
+                public Result call() {
+                    return job.run();
+                }
+            }));
+        }
+
+        List<Result> results = new ArrayList<>(jobs.size());
+        try {
+            for (Future<Result> future : futures) {
+                results.add(future.get());
+            }
+        } catch (ExecutionException ex) {
+            // Job.run() catches what a machine can throw, so this is a bug
+            throw new IllegalStateException("Machine farm job failed", ex.getCause());
+        } finally {
+            // Don't leave jobs running if the caller was interrupted
+            for (Future<Result> future : futures) {
+                future.cancel(false);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Stop the farm's threads once the jobs running have finished.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,242 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Device;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * The complete state of a machine at an instruction boundary: the scheduler's
+ * cycle count, the CPU, and every device on the bus.
+ * <p>
+ * A snapshot is held in memory as a byte array, and can be restored into the
+ * machine it was taken from, or any machine built the same way, any number of
+ * times. Taking and restoring one costs little more than copying the machine's
+ * memory, so a test can boot firmware once and start each scenario from the
+ * warm snapshot.
+ * <p>
+ * The state is encoded with DataOutput, big-endian, as:
+ * <pre>
+ *   long   scheduler cycle
+ *   int    device count
+ *   for each device, in address order:
+ *     UTF  class name
+ *     int  start address
+ *     int  size
+ *     int  state length, then the state written by Device.saveState()
+ *   ...    CPU state, last, since restoring devices may raise the IRQ line
+ * </pre>
+ * On disk it follows a header of the magic "SYMSTATE", a short version, a short
+ * of flags, the length of the state and the length stored, which is less if the
+ * state was deflated. Files are written and read through a memory mapping.
+ */
+public class MachineSnapshot {
+
+    static final byte[] MAGIC = {'S', 'Y', 'M', 'S', 'T', 'A', 'T', 'E'};
+    static final int VERSION = 1;
+    static final int FLAG_COMPRESSED = 0x01;
+
+    static final int FILE_HEADER_SIZE = 20;
+
+    // Exposes the read position, to check each device read all of its state
+    private static class StateInput extends ByteArrayInputStream {
+        StateInput(byte[] state) {
+            super(state);
+        }
+
+        int position() {
+            return pos;
+        }
+    }
+
+    private final byte[] state;
+
+    private MachineSnapshot(byte[] state) {
+        this.state = state;
+    }
+
+    /**
+     * Take a snapshot of a machine. Call this between instructions, on the
+     * thread running the CPU.
+     */
+    public static MachineSnapshot take(Bus bus) throws IOException {
+        int capacity = 1024;
+        for (Device device : bus.getDevices()) {
+            capacity += device.getSize() + 64;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(capacity);
+        ByteArrayOutputStream deviceBytes = new ByteArrayOutputStream(capacity);
+        DataOutputStream out = new DataOutputStream(bytes);
+        DataOutputStream deviceOut = new DataOutputStream(deviceBytes);
+
+        out.writeLong(bus.getScheduler().now());
+
+        Device[] devices = devices(bus);
+        out.writeInt(devices.length);
+        for (Device device : devices) {
+            deviceBytes.reset();
+            device.saveState(deviceOut);
+            deviceOut.flush();
+
+            out.writeUTF(device.getClass().getName());
+            out.writeInt(device.startAddress());
+            out.writeInt(device.getSize());
+            out.writeInt(deviceBytes.size());
+            deviceBytes.writeTo(out);
+        }
+        bus.getCpu().getCpuState().save(out);
+        out.flush();
+        return new MachineSnapshot(bytes.toByteArray());
+    }
+
+    /**
+     * Restore a machine to this snapshot. The machine must have the same devices,
+     * at the same addresses, as the one the snapshot was taken from. Call this
+     * between instructions, on the thread running the CPU.
+     *
+     * @throws IOException If the machine doesn't match the snapshot.
+     */
+    public void restore(Bus bus) throws IOException {
+        StateInput bytes = new StateInput(state);
+        DataInputStream in = new DataInputStream(bytes);
+
+        // Devices restore their events at absolute cycles, so time goes first
+        bus.getScheduler().restore(in.readLong());
+
+        Device[] devices = devices(bus);
+        int count = in.readInt();
+        if (count != devices.length) {
+            throw new IOException("Snapshot has " + count + " devices, the machine has " + devices.length);
+        }
+        for (Device device : devices) {
+            String type = in.readUTF();
+            int startAddress = in.readInt();
+            int size = in.readInt();
+            int length = in.readInt();
+            if (!type.equals(device.getClass().getName()) ||
+                startAddress != device.startAddress() || size != device.getSize()) {
+                throw new IOException("Snapshot has a " + type + " of " + size + " bytes at $" +
+                                      Integer.toHexString(startAddress) + " where the machine has " +
+                                      device.getName());
+            }
+            int start = bytes.position();
+            device.loadState(in);
+            if (bytes.position() != start + length) {
+                throw new IOException("Snapshot of " + device.getName() + " has " + length +
+                                      " bytes, but " + (bytes.position() - start) + " were read");
+            }
+        }
+        bus.getCpu().getCpuState().load(in);
+
+        // Memory was restored behind the bus's back
+        bus.forgetCode();
+    }
+
+    /**
+     * @return The size of the state, uncompressed.
+     */
+    public int size() {
+        return state.length;
+    }
+
+    /**
+     * Write the snapshot to a file, replacing it if it exists.
+     *
+     * @param compress Deflate the state.
+     */
+    public void write(File file, boolean compress) throws IOException {
+        byte[] stored = state;
+        int storedLength = state.length;
+        if (compress) {
+            ByteArrayOutputStream deflated = new ByteArrayOutputStream(state.length / 2);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try (DeflaterOutputStream out = new DeflaterOutputStream(deflated, deflater)) {
+                out.write(state);
+            } finally {
+                deflater.end();
+            }
+            stored = deflated.toByteArray();
+            storedLength = stored.length;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            raf.setLength(FILE_HEADER_SIZE + storedLength);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER_SIZE + storedLength);
+            buffer.put(MAGIC);
+            buffer.putShort((short) VERSION);
+            buffer.putShort((short) (compress ? FLAG_COMPRESSED : 0));
+            buffer.putInt(state.length);
+            buffer.putInt(storedLength);
+            buffer.put(stored, 0, storedLength);
+            buffer.force();
+        }
+    }
+
+    /**
+     * Read a snapshot written by {@link #write(File, boolean)}.
+     */
+    public static MachineSnapshot read(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            if (channel.size() < FILE_HEADER_SIZE) {
+                throw new IOException(file + " is not a machine snapshot");
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(file + " is not a machine snapshot");
+            }
+            int version = buffer.getShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported machine snapshot version " + version);
+            }
+            int flags = buffer.getShort();
+            int length = buffer.getInt();
+            int storedLength = buffer.getInt();
+            if (length < 0 || storedLength < 0 || storedLength > buffer.remaining()) {
+                throw new IOException(file + " is truncated");
+            }
+
+            byte[] stored = new byte[storedLength];
+            buffer.get(stored);
+            if ((flags & FLAG_COMPRESSED) == 0) {
+                return new MachineSnapshot(stored);
+            }
+
+            byte[] state = new byte[length];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(stored);
+                if (inflater.inflate(state) != length || !inflater.finished()) {
+                    throw new IOException(file + " is corrupt");
+                }
+            } catch (DataFormatException ex) {
+                throw new IOException(file + " is corrupt", ex);
+            } finally {
+                inflater.end();
+            }
+            return new MachineSnapshot(state);
+        }
+    }
+
+    private static Device[] devices(Bus bus) {
+        return bus.getDevices().toArray(new Device[0]);
+    }
+}
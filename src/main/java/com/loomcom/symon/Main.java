@@ -29,8 +29,29 @@ import com.loomcom.symon.machines.MulticompMachine;
 import com.loomcom.symon.machines.SimpleMachine;
 import com.loomcom.symon.machines.SymonMachine;
 import com.loomcom.symon.machines.HomebrewMachine;
+import com.loomcom.symon.machines.Machine;
+import com.loomcom.symon.util.TraceFileWriter;
+import com.loomcom.symon.util.Utils;
 import org.apache.commons.cli.*;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
@@ -45,13 +66,36 @@ public class Main {
      */
     public static void main(String[] args) throws Exception {
         
-        Class machineClass = HomebrewMachine.class;
+        Class<? extends Machine> machineClass = HomebrewMachine.class;
 
         Options options = new Options();
 
         options.addOption(new Option("m", "machine", true, "Specify machine type."));
         options.addOption(new Option("c", "cpu", true, "Specify CPU type."));
         options.addOption(new Option("r", "rom", true, "Specify ROM file."));
+        options.addOption(new Option("H", "headless", false, "Run without a user interface, until an exit condition is met."));
+        options.addOption(new Option("p", "program", true, "Headless: load a program file into memory."));
+        options.addOption(new Option("a", "address", true, "Headless: program load address, in hex (default $0300)."));
+        options.addOption(new Option("s", "start", true, "Headless: start address, in hex (default is the reset vector)."));
+        options.addOption(new Option("t", "trap", true, "Headless: exit when the PC reaches this address, in hex."));
+        options.addOption(new Option("n", "cycles", true, "Headless: exit after this many CPU cycles."));
+        options.addOption(new Option("b", "brk", false, "Headless: exit when a BRK instruction is executed."));
+        options.addOption(new Option("u", "until", true, "Headless: exit when the ACIA outputs this string."));
+        options.addOption(new Option("w", "watch", true, "Headless: exit when this watchpoint fires, e.g. w:7f60. May be repeated."));
+        options.addOption(new Option("T", "trace", true, "Headless: record every instruction executed to this trace file."));
+        options.addOption(new Option("z", "compress-trace", false, "Headless: compress the trace file and the saved machine state."));
+        options.addOption(new Option("V", "video", true, "Headless: the video device to capture, vdp or crtc (default is whichever the machine has)."));
+        options.addOption(new Option("f", "frames", true, "Headless: exit after this many video frames."));
+        options.addOption(new Option("k", "frame-crc", true, "Headless: write the CRC32 of every video frame to this file."));
+        options.addOption(new Option("i", "capture", true, "Headless: save video frame N to a file, as N:file.png, or N:file for raw ARGB. May be repeated."));
+        options.addOption(new Option("L", "load-state", true, "Headless: restore the machine from this snapshot file before loading any program."));
+        options.addOption(new Option("S", "save-state", true, "Headless: save a snapshot of the machine to this file on exit."));
+        options.addOption(new Option("I", "input", true, "Headless: feed this file to the ACIA instead of standard input."));
+        options.addOption(new Option("o", "output", true, "Headless: write the ACIA output to this file instead of standard output."));
+        options.addOption(new Option("R", "recompile", false, "Headless: translate code that runs often into JVM bytecode, to run faster."));
+        options.addOption(new Option("l", "skip-idle", false, "Headless: skip ahead through loops that only poll devices, waiting for something to happen."));
+        options.addOption(new Option("F", "farm", true, "Run the jobs in this file headless, many at once. Each line holds a job's headless options."));
+        options.addOption(new Option("j", "threads", true, "Farm: the number of machines to run at once (default one per processor)."));
 
         CommandLineParser parser = new DefaultParser();
 
@@ -61,41 +105,18 @@ public class Main {
             String romFile = null;
 
             if (line.hasOption("machine")) {
-                String machine = line.getOptionValue("machine").toLowerCase(Locale.ENGLISH);
-                switch (machine) {
-                    case "multicomp":
-                        machineClass = MulticompMachine.class;
-                        break;
-                    case "simple":
-                        machineClass = SimpleMachine.class;
-                        break;
-                    case "symon":
-                        machineClass = SymonMachine.class;
-                        break;
-                    case "homebrew":
-                        machineClass = HomebrewMachine.class;
-                        break;
-                    default:
-                        System.err.println("Could not start Symon. Unknown machine type " + machine);
-                        return;
+                machineClass = parseMachine(line.getOptionValue("machine"));
+                if (machineClass == null) {
+                    System.err.println("Could not start Symon. Unknown machine type " + line.getOptionValue("machine"));
+                    return;
                 }
             }
 
             if (line.hasOption("cpu")) {
-                String cpu = line.getOptionValue("cpu").toLowerCase(Locale.ENGLISH);
-                switch (cpu) {
-                    case "6502":
-                        cpuBehavior = InstructionTable.CpuBehavior.NMOS_6502;
-                        break;
-                    case "65c02":
-                        cpuBehavior = InstructionTable.CpuBehavior.CMOS_6502;
-                        break;
-                    case "65c816":
-                        cpuBehavior = InstructionTable.CpuBehavior.CMOS_65816;
-                        break;
-                    default:
-                        System.err.println("Could not start Symon. Unknown cpu type " + cpu);
-                        return;
+                cpuBehavior = parseCpu(line.getOptionValue("cpu"));
+                if (cpuBehavior == null) {
+                    System.err.println("Could not start Symon. Unknown cpu type " + line.getOptionValue("cpu"));
+                    return;
                 }
             }
 
@@ -103,6 +124,20 @@ public class Main {
                 romFile = line.getOptionValue("rom");
             }
 
+            if (line.hasOption("farm")) {
+                if (cpuBehavior == null) {
+                    cpuBehavior = InstructionTable.CpuBehavior.CMOS_6502;
+                }
+                System.exit(runFarm(line, options, machineClass, cpuBehavior, romFile));
+            }
+
+            if (line.hasOption("headless")) {
+                if (cpuBehavior == null) {
+                    cpuBehavior = InstructionTable.CpuBehavior.CMOS_6502;
+                }
+                System.exit(runHeadless(line, machineClass, cpuBehavior, romFile));
+            }
+
             while (true) {
                 if (machineClass == null) {
                     Object[] possibilities = {"Homebrew", "Symon", "Multicomp", "Simple"};
@@ -159,4 +194,323 @@ public class Main {
             System.err.println("Could not start Symon. Reason: " + ex.getMessage());
         }
     }
+
+    /**
+     * Build a machine and run it without touching AWT or Swing.
+     *
+     * @return The process exit status.
+     */
+    private static int runHeadless(CommandLine line, Class<? extends Machine> machineClass,
+                                   InstructionTable.CpuBehavior cpuBehavior,
+                                   String romFile) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+
+        // Keep stdout for the ACIA output, and send everything else, logging
+        // included, to stderr.
+        OutputStream stdout = new BufferedOutputStream(line.hasOption("output") ?
+                                                       new FileOutputStream(line.getOptionValue("output")) :
+                                                       new FileOutputStream(FileDescriptor.out));
+        System.setOut(System.err);
+        InputStream stdin = line.hasOption("input") ? new FileInputStream(line.getOptionValue("input")) : System.in;
+
+        Machine machine;
+        HeadlessRunner runner;
+        TraceFileWriter traceWriter = null;
+        FrameCapture frameCapture = null;
+        OutputStream crcOutput = null;
+
+        try {
+            machine = machineClass.getConstructor(String.class).newInstance(romFile);
+            machine.getCpu().setBehavior(cpuBehavior);
+            machine.getCpu().setRecompiling(line.hasOption("recompile"));
+            machine.getCpu().setSkippingIdleLoops(line.hasOption("skip-idle"));
+            machine.getCpu().reset();
+
+            if (line.hasOption("load-state")) {
+                MachineSnapshot.read(new File(line.getOptionValue("load-state"))).restore(machine.getBus());
+            }
+
+            if (line.hasOption("program")) {
+                File programFile = new File(line.getOptionValue("program"));
+                byte[] program = new byte[(int) programFile.length()];
+                try (DataInputStream dis = new DataInputStream(new FileInputStream(programFile))) {
+                    dis.readFully(program);
+                }
+                int address = line.hasOption("address") ?
+                        parseAddress(line.getOptionValue("address")) :
+                        Preferences.DEFAULT_PROGRAM_LOAD_ADDRESS;
+                machine.getBus().load(address, program);
+                machine.getCpu().setProgramCounter(address);
+            }
+
+            if (line.hasOption("start")) {
+                machine.getCpu().setProgramCounter(parseAddress(line.getOptionValue("start")));
+            }
+
+            runner = new HeadlessRunner(machine, stdout, stdin);
+
+            if (line.hasOption("trap")) {
+                runner.setTrapAddress(parseAddress(line.getOptionValue("trap")));
+            }
+            if (line.hasOption("cycles")) {
+                runner.setCycleBudget(Long.parseLong(line.getOptionValue("cycles")));
+            }
+            runner.setStopOnBrk(line.hasOption("brk"));
+            runner.setOutputMatch(line.getOptionValue("until"));
+
+            if (line.hasOption("watch")) {
+                for (String spec : line.getOptionValues("watch")) {
+                    machine.getBus().addWatchpoint(Watchpoint.parse(spec));
+                }
+            }
+
+            if (line.hasOption("trace")) {
+                traceWriter = new TraceFileWriter(new File(line.getOptionValue("trace")),
+                                                  line.hasOption("compress-trace"));
+                runner.setTraceWriter(traceWriter);
+            }
+
+            if (line.hasOption("video") || line.hasOption("frames") ||
+                line.hasOption("frame-crc") || line.hasOption("capture")) {
+                frameCapture = createFrameCapture(machine, line.getOptionValue("video"));
+                if (line.hasOption("frame-crc")) {
+                    crcOutput = new BufferedOutputStream(new FileOutputStream(line.getOptionValue("frame-crc")));
+                    frameCapture.setCrcOutput(crcOutput);
+                }
+                if (line.hasOption("capture")) {
+                    for (String spec : line.getOptionValues("capture")) {
+                        int colon = spec.indexOf(':');
+                        if (colon < 1) {
+                            throw new IllegalArgumentException("Bad capture " + spec + ", expected N:file");
+                        }
+                        frameCapture.captureFrame(Long.parseLong(spec.substring(0, colon)),
+                                                  new File(spec.substring(colon + 1)));
+                    }
+                }
+                runner.setFrameCapture(frameCapture,
+                                       line.hasOption("frames") ? Long.parseLong(line.getOptionValue("frames")) : 0L);
+            }
+        } catch (Exception ex) {
+            System.err.println("Could not start Symon. Reason: " + ex.getMessage());
+            return 1;
+        }
+
+        try {
+            int status = runner.run().getStatus();
+            if (line.hasOption("save-state")) {
+                MachineSnapshot.take(machine.getBus()).write(new File(line.getOptionValue("save-state")),
+                                                             line.hasOption("compress-trace"));
+            }
+            return status;
+        } finally {
+            if (line.hasOption("output")) {
+                stdout.close();
+            }
+            if (traceWriter != null) {
+                traceWriter.close();
+            }
+            if (frameCapture != null) {
+                try {
+                    frameCapture.close();
+                } finally {
+                    if (crcOutput != null) {
+                        crcOutput.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Run a file of jobs on a machine farm, one job per line. Each line holds the
+     * headless options of a job; blank lines and lines starting with "#" are
+     * skipped. The machine, CPU and ROM default to those given with --farm.
+     * Prints a line for each job to standard output.
+     *
+     * @return The highest exit status of any job.
+     */
+    private static int runFarm(CommandLine line, Options options, Class<? extends Machine> machineClass,
+                               InstructionTable.CpuBehavior cpuBehavior,
+                               String romFile) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        PrintStream stdout = System.out;
+        System.setOut(System.err);
+
+        List<MachineFarm.Job> jobs = new ArrayList<>();
+        List<String> outputs = new ArrayList<>();
+        Map<String, MachineSnapshot> snapshots = new HashMap<>();
+        CommandLineParser parser = new DefaultParser();
+        MachineFarm farm;
+
+        try {
+            List<String> lines = Files.readAllLines(Paths.get(line.getOptionValue("farm")), StandardCharsets.UTF_8);
+            for (int i = 0; i < lines.size(); i++) {
+                String text = lines.get(i).trim();
+                if (text.isEmpty() || text.startsWith("#")) {
+                    continue;
+                }
+                String name = "Job " + (i + 1);
+                CommandLine jobLine;
+                try {
+                    jobLine = parser.parse(options, text.split("\\s+"));
+                } catch (ParseException ex) {
+                    throw new IllegalArgumentException(name + ": " + ex.getMessage());
+                }
+                for (String option : new String[]{"farm", "threads", "trace", "video", "frames",
+                                                  "frame-crc", "capture", "save-state"}) {
+                    if (jobLine.hasOption(option)) {
+                        throw new IllegalArgumentException(name + ": --" + option + " can't be used in a farm job");
+                    }
+                }
+
+                Class<? extends Machine> jobMachine = jobLine.hasOption("machine") ?
+                        parseMachine(jobLine.getOptionValue("machine")) : machineClass;
+                InstructionTable.CpuBehavior jobCpu = jobLine.hasOption("cpu") ?
+                        parseCpu(jobLine.getOptionValue("cpu")) : cpuBehavior;
+                if (jobMachine == null || jobCpu == null) {
+                    throw new IllegalArgumentException(name + ": unknown machine or cpu type");
+                }
+
+                MachineFarm.Job job = new MachineFarm.Job(name, jobMachine, jobLine.getOptionValue("rom", romFile));
+                job.setCpuBehavior(jobCpu);
+                job.setRecompiling(jobLine.hasOption("recompile"));
+                job.setSkippingIdleLoops(jobLine.hasOption("skip-idle"));
+                if (jobLine.hasOption("load-state")) {
+                    String path = jobLine.getOptionValue("load-state");
+                    if (!snapshots.containsKey(path)) {
+                        snapshots.put(path, MachineSnapshot.read(new File(path)));
+                    }
+                    job.setSnapshot(snapshots.get(path));
+                }
+                if (jobLine.hasOption("program")) {
+                    job.setProgram(Files.readAllBytes(Paths.get(jobLine.getOptionValue("program"))),
+                                   jobLine.hasOption("address") ?
+                                           parseAddress(jobLine.getOptionValue("address")) :
+                                           Preferences.DEFAULT_PROGRAM_LOAD_ADDRESS);
+                }
+                if (jobLine.hasOption("start")) {
+                    job.setStartAddress(parseAddress(jobLine.getOptionValue("start")));
+                }
+                if (jobLine.hasOption("input")) {
+                    job.setInput(Files.readAllBytes(Paths.get(jobLine.getOptionValue("input"))));
+                }
+                if (jobLine.hasOption("trap")) {
+                    job.setTrapAddress(parseAddress(jobLine.getOptionValue("trap")));
+                }
+                if (jobLine.hasOption("cycles")) {
+                    job.setCycleBudget(Long.parseLong(jobLine.getOptionValue("cycles")));
+                }
+                job.setStopOnBrk(jobLine.hasOption("brk"));
+                job.setOutputMatch(jobLine.getOptionValue("until"));
+                if (jobLine.hasOption("watch")) {
+                    for (String spec : jobLine.getOptionValues("watch")) {
+                        job.addWatchpoint(spec);
+                    }
+                }
+                jobs.add(job);
+                outputs.add(jobLine.getOptionValue("output"));
+            }
+
+            farm = line.hasOption("threads") ?
+                    new MachineFarm(Integer.parseInt(line.getOptionValue("threads"))) :
+                    new MachineFarm();
+        } catch (Exception ex) {
+            System.err.println("Could not start Symon. Reason: " + ex.getMessage());
+            return 1;
+        }
+
+        List<MachineFarm.Result> results;
+        try {
+            results = farm.run(jobs);
+        } finally {
+            farm.shutdown();
+        }
+
+        int status = 0;
+        for (int i = 0; i < results.size(); i++) {
+            MachineFarm.Result result = results.get(i);
+            if (outputs.get(i) != null) {
+                Files.write(Paths.get(outputs.get(i)), result.getOutput());
+            }
+            if (result.getReason() == null) {
+                stdout.println(result.getJob().getName() + ": failed, " + result.getFailure().getMessage());
+            } else {
+                stdout.println(result.getJob().getName() + ": " + result.getReason().getDescription() +
+                               " at PC $" + Utils.wordToHex(result.getPc()) + " after " + result.getSteps() +
+                               " instructions, " + result.getCycles() + " cycles.");
+            }
+            status = Math.max(status, result.getStatus());
+        }
+        stdout.flush();
+        return status;
+    }
+
+    /**
+     * @return The machine class for a machine type, or null if it is unknown.
+     */
+    private static Class<? extends Machine> parseMachine(String machine) {
+        switch (machine.toLowerCase(Locale.ENGLISH)) {
+            case "multicomp":
+                return MulticompMachine.class;
+            case "simple":
+                return SimpleMachine.class;
+            case "symon":
+                return SymonMachine.class;
+            case "homebrew":
+                return HomebrewMachine.class;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return The behavior for a CPU type, or null if it is unknown.
+     */
+    private static InstructionTable.CpuBehavior parseCpu(String cpu) {
+        switch (cpu.toLowerCase(Locale.ENGLISH)) {
+            case "6502":
+                return InstructionTable.CpuBehavior.NMOS_6502;
+            case "65c02":
+                return InstructionTable.CpuBehavior.CMOS_6502;
+            case "65c816":
+                return InstructionTable.CpuBehavior.CMOS_65816;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Capture the frames of the named video device, or of whichever one the machine has.
+     */
+    private static FrameCapture createFrameCapture(Machine machine, String video) throws IOException {
+        String device = video == null ? (machine.getVdp() != null ? "vdp" : "crtc") :
+                                        video.toLowerCase(Locale.ENGLISH);
+        switch (device) {
+            case "vdp":
+                if (machine.getVdp() == null) {
+                    throw new IllegalArgumentException(machine.getName() + " has no VDP");
+                }
+                return FrameCapture.forVdp(machine.getVdp());
+            case "crtc":
+                if (machine.getCrtc() == null) {
+                    throw new IllegalArgumentException(machine.getName() + " has no CRTC");
+                }
+                return FrameCapture.forCrtc(machine.getCrtc(), machine.getBus().getScheduler());
+            default:
+                throw new IllegalArgumentException("Unknown video device " + video);
+        }
+    }
+
+    /**
+     * Parse a hex address, with an optional "$" or "0x" prefix.
+     */
+    private static int parseAddress(String address) {
+        String hex = address.trim();
+        if (hex.startsWith("$")) {
+            hex = hex.substring(1);
+        } else if (hex.startsWith("0x") || hex.startsWith("0X")) {
+            hex = hex.substring(2);
+        }
+        return Integer.parseInt(hex, 16) & 0xffff;
+    }
 }
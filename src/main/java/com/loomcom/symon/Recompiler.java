@@ -0,0 +1,310 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.exceptions.MemoryAccessException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A second execution tier for the CPU, which translates code that runs often
+ * into JVM classes and runs those in place of the interpreter.
+ * <p>
+ * Each address the CPU jumps or branches to is counted, as is one a block
+ * stopped short of, and once an address has been run
+ * {@link #DEFAULT_THRESHOLD} times the block of instructions starting there
+ * is translated by a {@link BlockCompiler}. A block runs only when it
+ * cannot miss anything the interpreter would see between instructions: no
+ * interrupt may be pending, the block must finish before the next device
+ * event and the caller's step and cycle limits, and no journal may be
+ * recording for rewinding. A block counts its steps and cycles exactly as
+ * interpreting it would.
+ * <p>
+ * The bus tells the recompiler of every write to a page holding translated
+ * code, and the blocks covering the address written are thrown away. An
+ * address whose blocks keep being thrown away is left to the interpreter.
+ */
+public class Recompiler {
+
+    /** Times an address is run before the block starting there is translated. */
+    public static final int DEFAULT_THRESHOLD = 256;
+
+    // An address whose blocks are thrown away this often is never translated again
+    private static final int MAX_INVALIDATIONS = 4;
+
+    // Most cycles run by one call, so that throttling stays timely
+    private static final int MAX_RUN_CYCLES = 1 << 20;
+
+    private final Cpu cpu;
+    private final Bus bus;
+    private final Scheduler scheduler;
+    private final CpuState state;
+    private final BlockCompiler compiler;
+    private final byte[] codeBytes;
+
+    // The block starting at each address, or null
+    private final CompiledBlock[] blocks = new CompiledBlock[0x10000];
+
+    // Times each address has been run towards translation, or -1 if it never will be
+    private final int[] counts = new int[0x10000];
+
+    private final int[] invalidations = new int[0x10000];
+
+    // The blocks with code on each page
+    private final List<List<CompiledBlock>> pageBlocks = new ArrayList<>(256);
+
+    // The number of blocks translated from each address
+    private final int[] coverage = new int[0x10000];
+
+    private final boolean[] stopAddresses = new boolean[0x10000];
+
+    // Instructions the CPU has written over, such as a pointer kept in the
+    // operand of a load, which blocks stop short of so as not to be thrown
+    // away each time
+    private final boolean[] rewritten = new boolean[0x10000];
+
+    private int threshold = DEFAULT_THRESHOLD;
+    private long blocksCompiled = 0L;
+    private long blocksInvalidated = 0L;
+
+    // Whether the last instructions run were a block's
+    private boolean ranBlock;
+
+    Recompiler(Cpu cpu) {
+        this.cpu = cpu;
+        this.bus = cpu.getBus();
+        this.scheduler = bus.getScheduler();
+        this.state = cpu.getCpuState();
+        this.compiler = new BlockCompiler(bus, cpu);
+        this.codeBytes = bus.getCodeBytes();
+        for (int page = 0; page < 256; page++) {
+            pageBlocks.add(new ArrayList<CompiledBlock>());
+        }
+    }
+
+    /**
+     * @param threshold Times an address is run before the block starting there
+     *                  is translated.
+     */
+    public void setThreshold(int threshold) {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("Threshold must be positive");
+        }
+        this.threshold = threshold;
+    }
+
+    /**
+     * Never run translated code through an address, so that the CPU arrives
+     * there with a step of its own. Used for trap addresses and the like.
+     */
+    public void addStopAddress(int address) {
+        stopAddresses[address] = true;
+        invalidateAddress(address, false);
+        counts[address] = -1;
+    }
+
+    /**
+     * @return The number of blocks translated.
+     */
+    public long getBlocksCompiled() {
+        return blocksCompiled;
+    }
+
+    /**
+     * @return The number of blocks thrown away since they were translated.
+     */
+    public long getBlocksInvalidated() {
+        return blocksInvalidated;
+    }
+
+    /**
+     * Run the block at the program counter, translating it first if it has
+     * become hot, and account its steps and cycles to the CPU state and the
+     * scheduler.
+     *
+     * @param maxSteps  The most instructions to run.
+     * @param maxCycles The most cycles to run.
+     * @return The number of instructions run, or 0 if the instruction at the
+     *         program counter must be interpreted.
+     */
+    int execute(int maxSteps, long maxCycles) throws MemoryAccessException {
+        boolean afterBlock = ranBlock;
+        ranBlock = false;
+        if (state.nmiAsserted || (state.irqAsserted && (state.p & Cpu.P_IRQ_DISABLE) == 0) || bus.getJournal() != null) {
+            return 0;
+        }
+
+        int pc = state.pc;
+        CompiledBlock block = blocks[pc];
+        if (block == null) {
+            int count = counts[pc];
+            if (count < 0) {
+                return 0;
+            }
+            // Blocks start only where control is passed to, or where one had
+            // to stop short, so that the code after each branch is not
+            // translated over again
+            int lastPc = state.lastPc;
+            if (!afterBlock && ((lastPc + state.instSize) & 0xffff) == pc &&
+                !rewritten[lastPc] && !stopAddresses[lastPc]) {
+                return 0;
+            }
+            if (count + 1 < threshold) {
+                counts[pc] = count + 1;
+                return 0;
+            }
+            block = compile(pc);
+            if (block == null) {
+                counts[pc] = -1;
+                return 0;
+            }
+        }
+
+        // Run from block to block while nothing needs the interpreter's attention
+        int steps = 0;
+        long cycles = 0L;
+        CompiledBlock ran = null;
+        int last = 0;
+        while (block != null) {
+            int length = block.length();
+            int blockCycles = block.maxCycles;
+            long limit = Math.min(Math.min(maxCycles, MAX_RUN_CYCLES) - cycles,
+                                  scheduler.nextEventCycle() - scheduler.now());
+            if (length > maxSteps - steps || blockCycles > limit) {
+                break;
+            }
+
+            block.exit = false;
+            block.advanced = 0L;
+            block.loopSteps = 0;
+            block.loopCycles = 0;
+            block.extraCycles = 0;
+            block.stepLimit = maxSteps - steps;
+            block.cycleLimit = (int) limit;
+            last = block.run(state);
+            ran = block;
+
+            int blockSteps = block.loopSteps + last + 1;
+            long runCycles = block.loopCycles + block.extraCycles + block.cycles[last];
+            steps += blockSteps;
+            cycles += runCycles;
+            state.stepCounter += blockSteps;
+            state.cycleCounter += runCycles;
+            scheduler.advance((int) (runCycles - block.advanced));
+
+            if (block.exit || state.nmiAsserted || (state.irqAsserted && (state.p & Cpu.P_IRQ_DISABLE) == 0)) {
+                break;
+            }
+            block = blocks[state.pc];
+        }
+        if (ran == null) {
+            return 0;
+        }
+        ranBlock = true;
+
+        // Leave the state as the interpreter would after the last instruction
+        state.lastPc = ran.pcs[last];
+        state.ir = ran.opcodes[last];
+        state.instSize = ran.sizes[last];
+        state.opTrap = false;
+        if (state.instSize > 1) {
+            state.args[0] = ran.args0[last];
+        }
+        if (state.instSize > 2) {
+            state.args[1] = ran.args1[last];
+        }
+        return steps;
+    }
+
+    private CompiledBlock compile(int start) {
+        CompiledBlock block = compiler.compile(start, stopAddresses, rewritten);
+        if (block == null) {
+            return null;
+        }
+
+        blocks[start] = block;
+        for (int i = 0; i < block.length(); i++) {
+            for (int address = block.pcs[i]; address < block.pcs[i] + block.sizes[i]; address++) {
+                List<CompiledBlock> onPage = pageBlocks.get(address >>> 8);
+                if (!onPage.contains(block)) {
+                    onPage.add(block);
+                }
+                if (coverage[address]++ == 0) {
+                    codeBytes[address] |= Bus.CODE_TRANSLATED;
+                }
+            }
+        }
+        blocksCompiled++;
+        return block;
+    }
+
+    /**
+     * Throw away the blocks that include an address, which has been written.
+     */
+    void codeWritten(int address) {
+        invalidateAddress(address, true);
+    }
+
+    private void invalidateAddress(int address, boolean written) {
+        List<CompiledBlock> onPage = pageBlocks.get(address >>> 8);
+        for (int i = onPage.size() - 1; i >= 0; i--) {
+            CompiledBlock block = onPage.get(i);
+            int index = block.instructionAt(address);
+            if (index >= 0) {
+                if (written) {
+                    rewritten[block.pcs[index]] = true;
+                }
+                invalidate(block);
+            }
+        }
+    }
+
+    /**
+     * Throw away the blocks that include an address, which has been loaded
+     * behind the CPU's back.
+     */
+    void codeLoaded(int address) {
+        invalidateAddress(address, false);
+    }
+
+    private void invalidate(CompiledBlock block) {
+        for (int i = 0; i < block.length(); i++) {
+            for (int address = block.pcs[i]; address < block.pcs[i] + block.sizes[i]; address++) {
+                pageBlocks.get(address >>> 8).remove(block);
+                if (--coverage[address] == 0) {
+                    codeBytes[address] &= ~Bus.CODE_TRANSLATED;
+                }
+            }
+        }
+        if (blocks[block.start] == block) {
+            blocks[block.start] = null;
+        }
+        // A block writing over its own code stops after the write
+        block.exit = true;
+
+        if (++invalidations[block.start] >= MAX_INVALIDATIONS) {
+            counts[block.start] = -1;
+        } else if (counts[block.start] >= 0) {
+            counts[block.start] = 0;
+        }
+        blocksInvalidated++;
+    }
+
+    /**
+     * Throw away every block, and start counting again. Called when the memory
+     * map, CPU behavior or whole machine state changes under the blocks.
+     */
+    public void invalidateAll() {
+        Arrays.fill(blocks, null);
+        Arrays.fill(invalidations, 0);
+        Arrays.fill(rewritten, false);
+        for (List<CompiledBlock> onPage : pageBlocks) {
+            onPage.clear();
+        }
+        Arrays.fill(coverage, 0);
+        for (int address = 0; address < counts.length; address++) {
+            codeBytes[address] &= ~Bus.CODE_TRANSLATED;
+            counts[address] = stopAddresses[address] ? -1 : 0;
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.exceptions.MemoryAccessException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/**
+ * Runs a machine backwards, by restoring an earlier snapshot and running it
+ * forwards again to the point wanted.
+ * <p>
+ * While the machine runs, a keyframe {@link MachineSnapshot} is taken every so
+ * many cycles into a ring of them, and a {@link WriteJournal} on the bus
+ * records the writes and device reads in between. To go back to a step, the
+ * newest keyframe before it is restored and the instructions after it are
+ * executed again, with each device read answered from the journal, so input
+ * that came from the host the first time comes out the same. How far back the
+ * machine can go is limited by whichever runs out first, the keyframes or the
+ * journal; memory use is fixed when the rewinder is made. Recording costs a
+ * compare per instruction and a couple of array stores per write.
+ * <p>
+ * Interrupts raised by the host rather than by the program, such as the ACIA
+ * receiving a character, are not journalled, and a replay that goes astray
+ * because of one is logged. Going back forgets everything after the point
+ * reached. The rewinder is only used on the simulator thread, or while the
+ * simulator is stopped.
+ */
+public class Rewinder {
+
+    private final static Logger logger = LoggerFactory.getLogger(Rewinder.class.getName());
+
+    public static final long DEFAULT_KEYFRAME_CYCLES = 1000000L;
+    public static final int DEFAULT_KEYFRAMES = 32;
+    public static final int DEFAULT_JOURNAL_ENTRIES = 1 << 20;
+
+    /**
+     * A place to stop when running backwards.
+     */
+    public interface StopCondition {
+        /**
+         * @return True if the machine should stop after the instruction that
+         *         left it in this state.
+         */
+        boolean shouldStop(CpuState state);
+    }
+
+    private final Bus bus;
+    private final Cpu cpu;
+    private final WriteJournal journal;
+    private final long keyframeCycles;
+
+    // A ring of keyframes, oldest first from keyframeFirst, and the step each was taken after
+    private final MachineSnapshot[] keyframes;
+    private final long[] keyframeSteps;
+    private int keyframeFirst = 0;
+    private int keyframeCount = 0;
+
+    private long nextKeyframeCycle;
+
+    public Rewinder(Bus bus) {
+        this(bus, DEFAULT_KEYFRAME_CYCLES, DEFAULT_KEYFRAMES, DEFAULT_JOURNAL_ENTRIES);
+    }
+
+    /**
+     * @param keyframeCycles The number of cycles between keyframes.
+     * @param keyframes      The number of keyframes to keep.
+     * @param journalEntries The number of writes and device reads to keep.
+     */
+    public Rewinder(Bus bus, long keyframeCycles, int keyframes, int journalEntries) {
+        if (keyframeCycles <= 0 || keyframes <= 0) {
+            throw new IllegalArgumentException("Keyframe interval and count must be positive");
+        }
+        this.bus = bus;
+        this.cpu = bus.getCpu();
+        this.journal = new WriteJournal(journalEntries, cpu.getCpuState());
+        this.keyframeCycles = keyframeCycles;
+        this.keyframes = new MachineSnapshot[keyframes];
+        this.keyframeSteps = new long[keyframes];
+        bus.setJournal(journal);
+        reset();
+    }
+
+    /**
+     * Forget all history, and start again from the machine as it is now. Call
+     * this after a reset, or after loading a program or ROM.
+     */
+    public void reset() {
+        journal.clear();
+        keyframeCount = 0;
+        takeKeyframe();
+    }
+
+    /**
+     * Start recording, before the machine runs or steps. If memory was changed
+     * while it was stopped, a keyframe is taken first.
+     */
+    public void resume() {
+        if (journal.takeChangedWhileStopped()) {
+            takeKeyframe();
+        }
+        journal.setRecording(true);
+    }
+
+    /**
+     * Stop recording, when the machine stops.
+     */
+    public void pause() {
+        journal.setRecording(false);
+    }
+
+    /**
+     * Call after each instruction run while recording.
+     */
+    public void stepped() {
+        if (bus.getScheduler().now() >= nextKeyframeCycle) {
+            takeKeyframe();
+        }
+    }
+
+    /**
+     * Stop recording and take the journal off the bus.
+     */
+    public void detach() {
+        journal.setRecording(false);
+        if (bus.getJournal() == journal) {
+            bus.setJournal(null);
+        }
+    }
+
+    public long getCurrentStep() {
+        return cpu.getCpuState().stepCounter;
+    }
+
+    /**
+     * @return The earliest step the machine can go back to.
+     */
+    public long getEarliestStep() {
+        int oldest = oldestUsableKeyframe();
+        return oldest < 0 ? getCurrentStep() : keyframeSteps[oldest];
+    }
+
+    public WriteJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Go back a number of instructions, or as far as the history goes.
+     *
+     * @return False if the machine couldn't go back at all.
+     */
+    public boolean stepBack(int steps) throws MemoryAccessException {
+        long current = getCurrentStep();
+        long target = Math.max(current - steps, getEarliestStep());
+        return target < current && seek(target);
+    }
+
+    /**
+     * Go back to the step after the last instruction that wrote to an address.
+     *
+     * @return The step gone back to, or -1 if no earlier write is in the history.
+     */
+    public long runBackToWrite(int address) throws MemoryAccessException {
+        long step = journal.findWrite(address & 0xffff, getCurrentStep());
+        if (step < 0 || step < getEarliestStep()) {
+            return -1;
+        }
+        return seek(step) ? step : -1;
+    }
+
+    /**
+     * Go back to the last step before this one after which the condition held,
+     * as if the machine had stopped there running forwards.
+     *
+     * @return The step gone back to, or -1 if the condition didn't hold anywhere
+     *         in the history, in which case the machine is left where it was.
+     */
+    public long reverseContinue(StopCondition condition) throws MemoryAccessException {
+        long current = getCurrentStep();
+        long bound = current - 1;
+        long found = -1;
+
+        // Search a keyframe's worth at a time, newest first
+        for (int i = keyframeCount - 1; i >= 0 && found < 0; i--) {
+            int index = (keyframeFirst + i) % keyframes.length;
+            long start = keyframeSteps[index];
+            if (start > bound || start < journal.getLostStep()) {
+                continue;
+            }
+            replay(index, start);
+            CpuState state = cpu.getCpuState();
+            if (condition.shouldStop(state)) {
+                found = start;
+            }
+            journal.startReplay(start);
+            try {
+                while (state.stepCounter < bound) {
+                    cpu.step();
+                    if (condition.shouldStop(state)) {
+                        found = state.stepCounter;
+                    }
+                }
+            } finally {
+                reportMismatches(journal.endReplay());
+            }
+            bound = start - 1;
+        }
+
+        if (found < 0) {
+            goTo(current);
+            return -1;
+        }
+        goTo(found);
+        return found;
+    }
+
+    /**
+     * Put the machine in its state after an earlier step, and forget everything
+     * after it.
+     *
+     * @return False if the step is not in the history.
+     */
+    public boolean seek(long step) throws MemoryAccessException {
+        return step <= getCurrentStep() && goTo(step);
+    }
+
+    private boolean goTo(long step) throws MemoryAccessException {
+        int index = -1;
+        for (int i = keyframeCount - 1; i >= 0; i--) {
+            int candidate = (keyframeFirst + i) % keyframes.length;
+            if (keyframeSteps[candidate] <= step && keyframeSteps[candidate] >= journal.getLostStep()) {
+                index = candidate;
+                break;
+            }
+        }
+        if (index < 0) {
+            return false;
+        }
+
+        replay(index, step);
+
+        // Execution goes on from here, so later history no longer applies
+        journal.truncate(step);
+        while (keyframeCount > 0 && keyframeSteps[(keyframeFirst + keyframeCount - 1) % keyframes.length] > step) {
+            keyframeCount--;
+        }
+        nextKeyframeCycle = bus.getScheduler().now() + keyframeCycles;
+        return true;
+    }
+
+    /**
+     * Restore a keyframe and run forward to a step, replaying the journal.
+     */
+    private void replay(int index, long step) throws MemoryAccessException {
+        try {
+            keyframes[index].restore(bus);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Could not restore keyframe", ex);
+        }
+
+        CpuState state = cpu.getCpuState();
+        journal.startReplay(state.stepCounter);
+        try {
+            while (state.stepCounter < step) {
+                cpu.step();
+            }
+        } finally {
+            reportMismatches(journal.endReplay());
+        }
+    }
+
+    private void reportMismatches(int mismatches) {
+        if (mismatches > 0) {
+            logger.warn("Replay went astray from the recording in {} bus accesses", mismatches);
+        }
+    }
+
+    private int oldestUsableKeyframe() {
+        for (int i = 0; i < keyframeCount; i++) {
+            int index = (keyframeFirst + i) % keyframes.length;
+            if (keyframeSteps[index] >= journal.getLostStep()) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private void takeKeyframe() {
+        long step = getCurrentStep();
+        int index;
+        if (keyframeCount > 0 && keyframeSteps[(keyframeFirst + keyframeCount - 1) % keyframes.length] == step) {
+            // Replace a keyframe of the same step, taken before the machine was changed
+            index = (keyframeFirst + keyframeCount - 1) % keyframes.length;
+        } else if (keyframeCount < keyframes.length) {
+            index = (keyframeFirst + keyframeCount) % keyframes.length;
+            keyframeCount++;
+        } else {
+            index = keyframeFirst;
+            keyframeFirst = (keyframeFirst + 1) % keyframes.length;
+        }
+
+        try {
+            keyframes[index] = MachineSnapshot.take(bus);
+            keyframeSteps[index] = step;
+        } catch (IOException ex) {
+            logger.error("Could not take a keyframe", ex);
+        }
+        nextKeyframeCycle = bus.getScheduler().now() + keyframeCycles;
+    }
+}
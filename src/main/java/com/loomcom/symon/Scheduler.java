@@ -0,0 +1,219 @@
+package com.loomcom.symon;
+
+import java.util.Arrays;
+
+/**
+ * Schedules device events against emulated CPU cycles rather than the host
+ * clock, so that timing is the same whether the CPU is throttled, running in
+ * turbo mode, or running headless.
+ * <p>
+ * The CPU advances the scheduler by the cycles of each instruction. Pending
+ * events are kept in a binary min-heap ordered by the cycle at which they are
+ * due, and the cycle of the earliest one is cached, so advancing is a single
+ * add and compare unless an event is due. Events fire on the simulator thread,
+ * after the instruction that reached them has completed.
+ * <p>
+ * The scheduler's cycle count never goes backwards, not even when the CPU is
+ * reset; only restoring a machine snapshot sets it back. It is not thread-safe; events should only be scheduled from the
+ * simulator thread, or before the simulator starts.
+ */
+public class Scheduler {
+
+    /**
+     * Something that happens at a given cycle. An event is scheduled at most once
+     * at a time; scheduling it again moves it.
+     */
+    public static abstract class Event {
+        private long cycle;
+        private int heapIndex = -1;
+
+        /**
+         * Called when the event is due. It may schedule itself again.
+         */
+        public abstract void fire();
+
+        public boolean isScheduled() {
+            return heapIndex >= 0;
+        }
+
+        /**
+         * @return The cycle at which the event is, or was last, due.
+         */
+        public long getCycle() {
+            return cycle;
+        }
+    }
+
+    public static final long DEFAULT_CLOCK_RATE = 1000000L;
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private Event[] heap = new Event[8];
+    private int size = 0;
+
+    private long now = 0;
+    private long nextEventCycle = Long.MAX_VALUE;
+    private long clockRate = DEFAULT_CLOCK_RATE;
+
+    /**
+     * @return The number of cycles the scheduler has been advanced by.
+     */
+    public long now() {
+        return now;
+    }
+
+    /**
+     * @return The cycle of the earliest pending event, or Long.MAX_VALUE if none is pending.
+     */
+    public long nextEventCycle() {
+        return nextEventCycle;
+    }
+
+    /**
+     * Set the cycle count to that of a restored machine snapshot. Pending events
+     * keep their distance from now; the devices restored with the snapshot
+     * schedule their own events again at the cycles they were saved with.
+     */
+    public void restore(long cycle) {
+        long delta = cycle - now;
+        for (int i = 0; i < size; i++) {
+            heap[i].cycle += delta;
+        }
+        now = cycle;
+        nextEventCycle = size == 0 ? Long.MAX_VALUE : heap[0].cycle;
+    }
+
+    /**
+     * @return The emulated clock rate in Hz, used to convert times into cycles.
+     */
+    public long getClockRate() {
+        return clockRate;
+    }
+
+    public void setClockRate(long clockRate) {
+        if (clockRate <= 0) {
+            throw new IllegalArgumentException("Clock rate must be positive");
+        }
+        this.clockRate = clockRate;
+    }
+
+    /**
+     * @return The number of cycles in the given emulated time, at the current clock rate.
+     */
+    public long nanosToCycles(long nanos) {
+        return nanos * clockRate / NANOS_PER_SECOND;
+    }
+
+    /**
+     * Move time forward, firing every event that falls due.
+     *
+     * @param cycles The number of cycles that have passed.
+     */
+    public void advance(int cycles) {
+        now += cycles;
+        if (now >= nextEventCycle) {
+            fireDueEvents();
+        }
+    }
+
+    /**
+     * Schedule an event some number of cycles from now.
+     */
+    public void schedule(Event event, long delayCycles) {
+        scheduleAt(event, now + Math.max(0, delayCycles));
+    }
+
+    /**
+     * Schedule an event at an absolute cycle. An event in the past fires the next
+     * time the scheduler is advanced.
+     */
+    public void scheduleAt(Event event, long cycle) {
+        if (event.isScheduled()) {
+            remove(event.heapIndex);
+        }
+        event.cycle = cycle;
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, size * 2);
+        }
+        event.heapIndex = size;
+        heap[size++] = event;
+        siftUp(event.heapIndex);
+        nextEventCycle = heap[0].cycle;
+    }
+
+    /**
+     * Remove an event from the queue, if it is scheduled.
+     */
+    public void cancel(Event event) {
+        if (event.isScheduled()) {
+            remove(event.heapIndex);
+            nextEventCycle = size == 0 ? Long.MAX_VALUE : heap[0].cycle;
+        }
+    }
+
+    /**
+     * @return The number of events waiting to fire.
+     */
+    public int pendingEvents() {
+        return size;
+    }
+
+    private void fireDueEvents() {
+        while (size > 0 && heap[0].cycle <= now) {
+            Event event = heap[0];
+            remove(0);
+            event.fire();
+        }
+        nextEventCycle = size == 0 ? Long.MAX_VALUE : heap[0].cycle;
+    }
+
+    private void remove(int index) {
+        Event removed = heap[index];
+        removed.heapIndex = -1;
+        size--;
+        if (index != size) {
+            Event last = heap[size];
+            heap[index] = last;
+            last.heapIndex = index;
+            heap[size] = null;
+            siftDown(index);
+            siftUp(last.heapIndex);
+        } else {
+            heap[size] = null;
+        }
+    }
+
+    private void siftUp(int index) {
+        Event event = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (heap[parent].cycle <= event.cycle) {
+                break;
+            }
+            heap[index] = heap[parent];
+            heap[index].heapIndex = index;
+            index = parent;
+        }
+        heap[index] = event;
+        event.heapIndex = index;
+    }
+
+    private void siftDown(int index) {
+        Event event = heap[index];
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            if (child + 1 < size && heap[child + 1].cycle < heap[child].cycle) {
+                child++;
+            }
+            if (event.cycle <= heap[child].cycle) {
+                break;
+            }
+            heap[index] = heap[child];
+            heap[index].heapIndex = index;
+            index = child;
+        }
+        heap[index] = event;
+        event.heapIndex = index;
+    }
+}
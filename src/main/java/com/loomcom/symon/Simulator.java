@@ -33,6 +33,8 @@ import com.loomcom.symon.ui.ConsoleTransferHandler;
 import com.loomcom.symon.devices.Acia;
 import com.loomcom.symon.devices.Via6522Keyboard;
 import com.loomcom.symon.devices.PCVirtualKeyboard;
+import com.loomcom.symon.util.SpscByteQueue;
+import com.loomcom.symon.util.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -62,7 +64,8 @@ public class Simulator {
     private static final Font DEFAULT_FONT = new Font(Font.MONOSPACED, Font.PLAIN, DEFAULT_FONT_SIZE);
     private static final int CONSOLE_BORDER_WIDTH = 10;
 
-    // Clock periods, in NS, for each speed. 0MHz, 1MHz, 2MHz, 2.684MHz, 3MHz, 4MHz, 5MHz, 6MHz, 7MHz, 8MHz.
+    // Clock periods, in NS, for each speed. Turbo (unthrottled), 1MHz, 2MHz, 2.684MHz, 3MHz, 4MHz, 5MHz, 6MHz,
+    // 7MHz, 8MHz.
     private static final long[] CLOCK_PERIODS = {0, 1000, 500, 371,  333, 250, 200, 167, 143, 125};
     private static final double[] CLOCK_SPEEDS = {0, 1,    2,   2.68, 3,   4,   5,   6,   7,   8};
     
@@ -70,30 +73,35 @@ public class Simulator {
     private static final String[] KEYBOARD_NAMES = {"VIA6522", "PC Virtual"};
     private static final int DEFAULT_KEYBOARD = 1;
 
+    // Console I/O and CRT repaints are driven from a Swing timer rather than from the simulator
+    // thread. This is the period of the timer, for about 60 updates a second.
+    private static final int IO_REFRESH_MS = 16;
+
     // Since it is very expensive to update the UI with Swing's Event Dispatch Thread, we can't afford
-    // to refresh the status view on every simulated clock cycle. Instead, we will only refresh the status view
-    // after this number of steps when running normally.
-    //
-    // Since we're simulating a 1MHz 6502 here, we have a 1 us delay between steps. Setting this to 20000
-    // should give us a status update about every 100 ms.
+    // to refresh the status view on every I/O update. This gives a status update about every 100 ms.
     //
     // TODO: Work around the event dispatch thread with custom painting code instead of relying on Swing.
     //
-    private static final int MAX_STEPS_BETWEEN_UPDATES = 20000;
+    private static final int IO_REFRESHES_PER_UPDATE = 6;
+
+    // Size of the queues between the ACIA and the console
+    private static final int ACIA_QUEUE_SIZE = 64 * 1024;
 
     // The simulated machine
     private Machine machine;
 
-    // Number of CPU steps between CRT repaints.
-    // TODO: Dynamically refresh the value at runtime based on performance figures to reach ~ 30fps.
-    private static final long STEPS_BETWEEN_CRTC_REFRESHES = 12500; // 60Hz
-
-    // A counter to keep track of the number of UI updates that have been
-    // requested
-    private int stepsSinceLastUpdate = 0;
-    private int stepsSinceLastCrtcRefresh = 0;
+    // A counter to keep track of the number of I/O updates since the last
+    // status update
+    private int ioRefreshesSinceUpdate = 0;
     private long lastVDPSyncTime = 0;
 
+    // Bytes transmitted by the ACIA, on their way to the console, and bytes
+    // typed or pasted into the console, on their way to the ACIA.
+    private final SpscByteQueue aciaTransmitQueue = new SpscByteQueue(ACIA_QUEUE_SIZE);
+    private final SpscByteQueue aciaReceiveQueue = new SpscByteQueue(ACIA_QUEUE_SIZE);
+    private final byte[] transmitBuffer = new byte[4096];
+    private javax.swing.Timer ioTimer;
+
     // The number of steps to run per click of the "Step" button
     private int stepsPerClick = 1;
 
@@ -128,6 +136,7 @@ public class Simulator {
     private JButton reloadROMButton;
     private JButton runStopButton;
     private JButton stepButton;
+    private JButton stepBackButton;
     private JComboBox<String> stepCountBox;
 
     private JFileChooser fileChooser;
@@ -135,6 +144,9 @@ public class Simulator {
 
     private Breakpoints breakpoints;
 
+    // Keyframes and a journal of the run, for stepping backwards
+    private final Rewinder rewinder;
+
     private final Object commandMonitorObject = new Object();
 
     private MainCommand command = MainCommand.NONE;
@@ -171,6 +183,7 @@ public class Simulator {
 
         // Initialize final fields in the constructor.
         this.traceLog = new TraceLog();
+        this.rewinder = new Rewinder(machine.getBus());
         this.memoryWindow = new MemoryWindow(machine.getBus());
         this.breakpointsWindow = new BreakpointsWindow(breakpoints, mainWindow);
 
@@ -180,14 +193,17 @@ public class Simulator {
             videoWindow = null;
         }
         if (machine.getVdp() != null) {
-            vdpWindow = new VDPWindow(machine.getVdp(), 2, 2);
-            VDPWindow.cpu = machine.getCpu();
+            vdpWindow = new VDPWindow(machine.getVdp(), machine.getCpu(), 2, 2);
         } else {
             vdpWindow = null;
         }
 
         basicProgramAvailable = false;
 
+        if (machine.getAcia() != null) {
+            machine.getAcia().attachQueues(aciaTransmitQueue, aciaReceiveQueue);
+        }
+
         setKeyboard(DEFAULT_KEYBOARD);
     }
     
@@ -240,6 +256,7 @@ public class Simulator {
         reloadROMButton = new JButton("Reload ROM");
         runStopButton = new JButton("Run");
         stepButton = new JButton("Step");
+        stepBackButton = new JButton("Step Back");
         JButton softResetButton = new JButton("Soft Reset");
         JButton hardResetButton = new JButton("Hard Reset");
 
@@ -259,6 +276,7 @@ public class Simulator {
 
         buttonContainer.add(reloadROMButton);
         buttonContainer.add(runStopButton);
+        buttonContainer.add(stepBackButton);
         buttonContainer.add(stepButton);
         buttonContainer.add(stepCountBox);
         buttonContainer.add(softResetButton);
@@ -292,6 +310,13 @@ public class Simulator {
             }
         });
 
+        stepBackButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent actionEvent) {
+                Simulator.this.handleStepBack(stepsPerClick);
+            }
+        });
+
         softResetButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent actionEvent) {
@@ -330,6 +355,7 @@ public class Simulator {
 
                     // Now, reset
                     machine.getCpu().reset();
+                    rewinder.reset();
 
                     updateVisibleState();
 
@@ -354,6 +380,14 @@ public class Simulator {
         mainWindow.pack();
         mainWindow.setVisible(true);
 
+        ioTimer = new javax.swing.Timer(IO_REFRESH_MS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent actionEvent) {
+                pumpIo();
+            }
+        });
+        ioTimer.start();
+
         vdpWindow.setLocation(1000,0);
         vdpWindow.setVisible(true);
 
@@ -402,17 +436,26 @@ public class Simulator {
             logger.debug("Reset requested. Resetting CPU.");
             // Reset CPU
             machine.getCpu().reset();
-            // Clear the console.
+            // Clear the console, and anything queued to or from it.
             console.reset();
+            aciaTransmitQueue.clear();
+            if (machine.getAcia() != null) {
+                machine.getAcia().clearReceiveQueue();
+            }
             // Reset the trace log.
             traceLog.reset();
+            // Start counting breakpoint hits again.
+            breakpoints.resetHitCounts();
             // If we're doing a cold reset, clear the memory.
             if (isColdReset) {
                 Memory mem = machine.getRam();
                 if (mem != null) {
                     mem.fill(0);
+                    machine.getBus().forgetCode();
                 }
             }
+            // Forget the history of the run before.
+            rewinder.reset();
             // Update status.
             updateVisibleState();
         } catch (MemoryAccessException ex) {
@@ -424,6 +467,7 @@ public class Simulator {
      * Step the requested number of times, and immediately refresh the UI.
      */
     private void handleStep(int numSteps) {
+        rewinder.resume();
         try {
             for (int i = 0; i < numSteps; i++) {
                 step();
@@ -432,6 +476,87 @@ public class Simulator {
         } catch (SymonException ex) {
             logger.error("Exception during simulator step. PC"+Integer.toHexString(machine.getCpu().getProgramCounter())+".",ex);
             ex.printStackTrace();
+        } finally {
+            rewinder.pause();
+        }
+    }
+
+    /**
+     * Step backwards the requested number of times.
+     */
+    private void handleStepBack(final int numSteps) {
+        rewind(new Rewind() {
+            public String run() throws MemoryAccessException {
+                return rewinder.stepBack(numSteps) ? null : "There is no earlier history to step back into.";
+            }
+        });
+    }
+
+    /**
+     * Go back to the last instruction that wrote to an address.
+     */
+    private void handleRunBackToWrite(final int address) {
+        rewind(new Rewind() {
+            public String run() throws MemoryAccessException {
+                return rewinder.runBackToWrite(address) >= 0 ? null :
+                       "No earlier write to $" + Utils.wordToHex(address) + " is in the history.";
+            }
+        });
+    }
+
+    /**
+     * Run backwards to the last breakpoint.
+     */
+    private void handleReverseContinue() {
+        rewind(new Rewind() {
+            public String run() throws MemoryAccessException {
+                long step = rewinder.reverseContinue(new Rewinder.StopCondition() {
+                    public boolean shouldStop(CpuState state) {
+                        return breakpoints.matches(state);
+                    }
+                });
+                return step >= 0 ? null : "No breakpoint was reached in the history.";
+            }
+        });
+    }
+
+    /**
+     * A rewind, returning a message for the user if it couldn't be done.
+     */
+    private interface Rewind {
+        String run() throws MemoryAccessException;
+    }
+
+    /**
+     * Rewind while stopped. The ACIA is cut off from the console while the
+     * rewinder replays, so that output isn't written twice.
+     */
+    private void rewind(Rewind rewind) {
+        if (runLoop != null && runLoop.isRunning()) {
+            return;
+        }
+
+        Acia acia = machine.getAcia();
+        if (acia != null) {
+            acia.attachQueues(null, null);
+        }
+        String failure;
+        try {
+            failure = rewind.run();
+        } catch (MemoryAccessException ex) {
+            logger.error("Exception while rewinding. PC" + Integer.toHexString(machine.getCpu().getProgramCounter()) + ".", ex);
+            failure = ex.getMessage();
+        } finally {
+            if (acia != null) {
+                acia.attachQueues(aciaTransmitQueue, aciaReceiveQueue);
+            }
+        }
+
+        // The trace log no longer leads up to where the machine is
+        traceLog.reset();
+        updateVisibleState();
+        if (failure != null) {
+            JOptionPane.showMessageDialog(mainWindow, failure, "Rewind", JOptionPane.INFORMATION_MESSAGE);
         }
     }
 
@@ -442,65 +567,61 @@ public class Simulator {
         machine.getCpu().step();
 
         traceLog.append(machine.getCpu().getCpuState());
+        rewinder.stepped();
+    }
 
-        // Read from the ACIA and immediately update the console if there's
-        // output ready.
-        if (machine.getAcia() != null) {
-            while( machine.getAcia().hasTxChar()) {
-                // This is thread-safe
-                console.print(Character.toString((char) machine.getAcia().txRead(true)));
+    /**
+     * Move console I/O between the ACIA queues and the console, and refresh the
+     * UI while running. This runs on the event dispatch thread every
+     * IO_REFRESH_MS, so the simulator thread does no UI or I/O work per step.
+     * Only the queues are touched here; the ACIA moves bytes between them and
+     * its registers on the simulator thread.
+     */
+    private void pumpIo() {
+        Acia acia = machine.getAcia();
+        if (acia != null) {
+            // Console output, in one batch with a single repaint
+            StringBuilder output = null;
+            int count;
+            while ((count = aciaTransmitQueue.drainTo(transmitBuffer, transmitBuffer.length)) > 0) {
+                if (output == null) {
+                    output = new StringBuilder(count);
+                }
+                for (int i = 0; i < count; i++) {
+                    output.append((char) (transmitBuffer[i] & 0xff));
+                }
+            }
+            if (output != null) {
+                console.print(output.toString());
                 console.repaint();
             }
-        }
 
-        // If a key has been pressed, fill the ACIA.
-        try {
-            Acia acia = machine.getAcia();
-            if (acia != null) {
-                // key press from console ...
-                if (console.hasInput() && !acia.hasRxChar()) {
-                    acia.rxWrite((int) console.readInputChar());
+            // Key presses from the console ...
+            try {
+                while (console.hasInput() && aciaReceiveQueue.size() < aciaReceiveQueue.capacity()) {
+                    aciaReceiveQueue.offer(console.readInputChar());
                 }
-                // ... or pasted program
-                if (basicProgramAvailable && !acia.hasRxChar()) {
-                    acia.rxWrite((int) basicProgram[basicProgramPtr++]);
-                    if(basicProgramPtr >= basicProgramSize) {
-                        basicProgramAvailable = false;
-                    }
+            } catch (FifoUnderrunException ex) {
+                logger.error("Console type-ahead buffer underrun!");
+            }
+            // ... or pasted program
+            while (basicProgramAvailable && aciaReceiveQueue.offer(basicProgram[basicProgramPtr])) {
+                if (++basicProgramPtr >= basicProgramSize) {
+                    basicProgramAvailable = false;
                 }
             }
-        } catch (FifoUnderrunException ex) {
-            logger.error("Console type-ahead buffer underrun!");
         }
 
-        if (videoWindow != null && stepsSinceLastCrtcRefresh++ > STEPS_BETWEEN_CRTC_REFRESHES) {
-            stepsSinceLastCrtcRefresh = 0;
-            if (videoWindow.isVisible()) {
+        if (runLoop != null && runLoop.isRunning()) {
+            if (videoWindow != null && videoWindow.isVisible()) {
                 videoWindow.repaint();
             }
-        }
-        /*
-        if (vdpWindow != null && stepsSinceLastCrtcRefresh++ > STEPS_BETWEEN_CRTC_REFRESHES) {
-            stepsSinceLastCrtcRefresh = 0;
-            if (vdpWindow.isVisible()) {
-                //vdpWindow.repaint();
-                logger.info("VDP sync : "+(System.currentTimeMillis() - lastVDPSyncTime));
-                lastVDPSyncTime = System.currentTimeMillis();
-            }
-        }
-        if (vdpWindow != null && vdpWindow.isVisible() && stepsSinceLastCrtcRefresh == (48*43))
-        {
-            vdpWindow.repaint();
-        }
-        */
 
-
-        // This is a very expensive update, and we're doing it without
-        // a delay, so we don't want to overwhelm the Swing event processing thread
-        // with requests. Limit the number of ui updates that can be performed.
-        if (stepsSinceLastUpdate++ > MAX_STEPS_BETWEEN_UPDATES) {
-            updateVisibleState();
-            stepsSinceLastUpdate = 0;
+            // Updating the status is expensive, so do it less often
+            if (++ioRefreshesSinceUpdate >= IO_REFRESHES_PER_UPDATE) {
+                updateVisibleState();
+                ioRefreshesSinceUpdate = 0;
+            }
         }
     }
 
@@ -508,12 +629,9 @@ public class Simulator {
      * Load a program into memory at the simulatorDidStart address.
      */
     private void loadProgram(byte[] program, int startAddress) throws MemoryAccessException {
-        int addr = startAddress, i;
-        for (i = 0; i < program.length; i++) {
-            machine.getBus().write(addr++, program[i] & 0xff);
-        }
+        machine.getBus().load(startAddress, program);
 
-        logger.info("Loaded {} bytes at address 0x{}", i, Integer.toString(startAddress, 16));
+        logger.info("Loaded {} bytes at address 0x{}", program.length, Integer.toString(startAddress, 16));
 
         // After loading, be sure to reset and
         // Reset (but don't clear memory, naturally)
@@ -521,6 +639,7 @@ public class Simulator {
 
         // Reset the stack program counter
         machine.getCpu().setProgramCounter(preferences.getProgramStartAddress());
+        rewinder.reset();
 
         // Immediately update the UI.
         updateVisibleState();
@@ -544,6 +663,7 @@ public class Simulator {
 
                         // Now, reset
                         machine.getCpu().reset();
+                        rewinder.reset();
 
                         updateVisibleState();
 
@@ -604,6 +724,7 @@ public class Simulator {
                 public void run() {
                     // Don't allow step while the simulator is running
                     stepButton.setEnabled(false);
+                    stepBackButton.setEnabled(false);
                     stepCountBox.setEnabled(false);
                     menuBar.simulatorDidStart();
                     // Toggle the state of the run button
@@ -611,12 +732,18 @@ public class Simulator {
                 }
             });
 
+            // Forget any watchpoint hit while stepping or editing memory
+            machine.getBus().takeWatchpointHit();
+
+            rewinder.resume();
             try {
                 do {
                     step();
                 } while (shouldContinue());
             } catch (SymonException ex) {
                 logger.error("Exception in main simulator run thread. PC"+Integer.toHexString(machine.getCpu().getProgramCounter())+".", ex);
+            } finally {
+                rewinder.pause();
             }
 
             SwingUtilities.invokeLater(new Runnable() {
@@ -626,6 +753,7 @@ public class Simulator {
                     memoryWindow.updateState();
                     runStopButton.setText("Run");
                     stepButton.setEnabled(true);
+                    stepBackButton.setEnabled(true);
                     stepCountBox.setEnabled(true);
                     if (traceLog.isVisible()) {
                         traceLog.refresh();
@@ -646,16 +774,121 @@ public class Simulator {
          * @return True if the run loop should proceed to the next step.
          */
         private boolean shouldContinue() {
-            return !breakpoints.contains(machine.getCpu().getProgramCounter()) &&
+            CpuState state = machine.getCpu().getCpuState();
+            return !breakpoints.shouldBreak(state) &&
+                    !watchpointFired(state) &&
                     isRunning &&
                     !(preferences.getHaltOnBreak() && machine.getCpu().getInstruction() == 0x00);
         }
+
+        /**
+         * @return True if a watchpoint fired during the last instruction, or is
+         *         set on the next one. The hit is reported to the user.
+         */
+        private boolean watchpointFired(CpuState state) {
+            Bus bus = machine.getBus();
+            bus.checkExecute(state.pc);
+            final Watchpoint.Hit hit = bus.takeWatchpointHit();
+            if (hit == null) {
+                return false;
+            }
+
+            logger.info("{}", hit);
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    JOptionPane.showMessageDialog(mainWindow, hit.toString(), "Watchpoint",
+                                                  JOptionPane.INFORMATION_MESSAGE);
+                }
+            });
+            return true;
+        }
     }
 
     public String disassembleOpAtAddress(int address) throws MemoryAccessException {
         return machine.getCpu().disassembleOpAtAddress(address);
     }
 
+    class AddWatchpointAction extends AbstractAction {
+        public AddWatchpointAction() {
+            super("Add Watchpoint...", null);
+            putValue(SHORT_DESCRIPTION, "Stop when an address is read, written or executed");
+            putValue(MNEMONIC_KEY, KeyEvent.VK_W);
+        }
+
+        public void actionPerformed(ActionEvent actionEvent) {
+            String spec = JOptionPane.showInputDialog(mainWindow,
+                    "Watchpoint, as type:start[-end][=value[/mask]] in hex,\n" +
+                    "where type is r, w or x. For example, w:7f60 or r:7f00-7f03=80/80",
+                    "Add Watchpoint", JOptionPane.PLAIN_MESSAGE);
+            if (spec == null || spec.trim().isEmpty()) {
+                return;
+            }
+
+            try {
+                machine.getBus().addWatchpoint(Watchpoint.parse(spec));
+            } catch (IllegalArgumentException ex) {
+                JOptionPane.showMessageDialog(mainWindow, ex.getMessage(), "Failure", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
+
+    class ClearWatchpointsAction extends AbstractAction {
+        public ClearWatchpointsAction() {
+            super("Clear Watchpoints", null);
+            putValue(SHORT_DESCRIPTION, "Remove all watchpoints");
+        }
+
+        public void actionPerformed(ActionEvent actionEvent) {
+            machine.getBus().clearWatchpoints();
+        }
+    }
+
+    class StepBackAction extends AbstractAction {
+        public StepBackAction() {
+            super("Step Back", null);
+            putValue(SHORT_DESCRIPTION, "Undo the last step");
+            putValue(MNEMONIC_KEY, KeyEvent.VK_B);
+        }
+
+        public void actionPerformed(ActionEvent actionEvent) {
+            handleStepBack(stepsPerClick);
+        }
+    }
+
+    class RunBackToWriteAction extends AbstractAction {
+        public RunBackToWriteAction() {
+            super("Run Back to Previous Write...", null);
+            putValue(SHORT_DESCRIPTION, "Go back to the last instruction that wrote to an address");
+        }
+
+        public void actionPerformed(ActionEvent actionEvent) {
+            String address = JOptionPane.showInputDialog(mainWindow, "Address, in hex",
+                    "Run Back to Previous Write", JOptionPane.PLAIN_MESSAGE);
+            if (address == null || address.trim().isEmpty()) {
+                return;
+            }
+
+            try {
+                handleRunBackToWrite(Integer.parseInt(address.trim(), 16) & 0xffff);
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(mainWindow, "Not a hex address: " + address, "Failure",
+                                              JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
+
+    class ReverseContinueAction extends AbstractAction {
+        public ReverseContinueAction() {
+            super("Reverse Continue", null);
+            putValue(SHORT_DESCRIPTION, "Run backwards to the previous breakpoint");
+        }
+
+        public void actionPerformed(ActionEvent actionEvent) {
+            handleReverseContinue();
+        }
+    }
+
     class LoadProgramAction extends AbstractAction {
         public LoadProgramAction() {
             super("Load Program...", null);
@@ -678,12 +911,8 @@ public class Simulator {
                                     " bytes)");
                         } else {
                             byte[] program = new byte[(int) fileSize];
-                            int i = 0;
-                            FileInputStream fis = new FileInputStream(f);
-                            BufferedInputStream bis = new BufferedInputStream(fis);
-                            DataInputStream dis = new DataInputStream(bis);
-                            while (dis.available() != 0) {
-                                program[i++] = dis.readByte();
+                            try (DataInputStream dis = new DataInputStream(new FileInputStream(f))) {
+                                dis.readFully(program);
                             }
 
                             // Now load the program at the starting address.
@@ -761,6 +990,9 @@ public class Simulator {
             if (runLoop != null) {
                 runLoop.requestStop();
             }
+            if (ioTimer != null) {
+                ioTimer.stop();
+            }
 
             memoryWindow.dispose();
             traceLog.dispose();
@@ -819,14 +1051,17 @@ public class Simulator {
         private int speed;
 
         public SetSpeedAction(int speed) {
-            super(Double.toString(CLOCK_SPEEDS[speed]) + " MHz", null);
+            super(CLOCK_PERIODS[speed] == Cpu.TURBO_CLOCK_PERIOD_IN_NS ?
+                          "Turbo" : Double.toString(CLOCK_SPEEDS[speed]) + " MHz", null);
             this.speed = speed;
-            putValue(SHORT_DESCRIPTION, "Set simulated speed to " + CLOCK_SPEEDS[speed] + " MHz.");
+            putValue(SHORT_DESCRIPTION, CLOCK_PERIODS[speed] == Cpu.TURBO_CLOCK_PERIOD_IN_NS ?
+                    "Run the simulation as fast as possible." :
+                    "Set simulated speed to " + CLOCK_SPEEDS[speed] + " MHz.");
         }
 
         @Override
         public void actionPerformed(ActionEvent actionEvent) {
-            if (speed < 1 || speed > CLOCK_PERIODS.length - 1) {
+            if (speed < 0 || speed > CLOCK_PERIODS.length - 1) {
                 return;
             }
 
@@ -958,6 +1193,11 @@ public class Simulator {
         private JMenuItem loadRomItem;
         private JMenuItem pasteItem;
         private JMenuItem filepasteItem;
+        private JMenuItem addWatchpointItem;
+        private JMenuItem clearWatchpointsItem;
+        private JMenuItem stepBackItem;
+        private JMenuItem runBackToWriteItem;
+        private JMenuItem reverseContinueItem;
 
         /**
          * Create a new SimulatorMenu instance.
@@ -974,6 +1214,12 @@ public class Simulator {
             if (loadRomItem != null) {
                 loadRomItem.setEnabled(false);
             }
+            // The bus page table is rebuilt when watchpoints change
+            addWatchpointItem.setEnabled(false);
+            clearWatchpointsItem.setEnabled(false);
+            stepBackItem.setEnabled(false);
+            runBackToWriteItem.setEnabled(false);
+            reverseContinueItem.setEnabled(false);
         }
 
         /**
@@ -984,6 +1230,11 @@ public class Simulator {
             if (loadRomItem != null) {
                 loadRomItem.setEnabled(true);
             }
+            addWatchpointItem.setEnabled(true);
+            clearWatchpointsItem.setEnabled(true);
+            stepBackItem.setEnabled(true);
+            runBackToWriteItem.setEnabled(true);
+            reverseContinueItem.setEnabled(true);
         }
 
         private void initMenu() {
@@ -1123,6 +1374,7 @@ public class Simulator {
             makeSpeedMenuItem(3, speedSubMenu, speedGroup);
             makeSpeedMenuItem(5, speedSubMenu, speedGroup);
             makeSpeedMenuItem(9, speedSubMenu, speedGroup);
+            makeSpeedMenuItem(0, speedSubMenu, speedGroup);
 
             // "keyboard" sub-menu
             JMenu keyboardSubMenu = new JMenu("Keyboard");
@@ -1146,6 +1398,21 @@ public class Simulator {
             });
             simulatorMenu.add(showBreakpoints);
 
+            // "Watchpoints"
+            addWatchpointItem = new JMenuItem(new AddWatchpointAction());
+            simulatorMenu.add(addWatchpointItem);
+            clearWatchpointsItem = new JMenuItem(new ClearWatchpointsAction());
+            simulatorMenu.add(clearWatchpointsItem);
+
+            // "Rewinding"
+            simulatorMenu.addSeparator();
+            stepBackItem = new JMenuItem(new StepBackAction());
+            simulatorMenu.add(stepBackItem);
+            runBackToWriteItem = new JMenuItem(new RunBackToWriteAction());
+            simulatorMenu.add(runBackToWriteItem);
+            reverseContinueItem = new JMenuItem(new ReverseContinueAction());
+            simulatorMenu.add(reverseContinueItem);
+
             add(simulatorMenu);
         }
 
@@ -1159,7 +1426,7 @@ public class Simulator {
         }
 
         private void makeSpeedMenuItem(int speed, JMenu subMenu, ButtonGroup group) {
-            if (speed < 1 || speed > CLOCK_PERIODS.length - 1) {
+            if (speed < 0 || speed > CLOCK_PERIODS.length - 1) {
                 return;
             }
 
@@ -0,0 +1,101 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.util.TraceFileReader;
+import org.apache.commons.cli.*;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Command line decoder for trace files written by a headless run with the
+ * <tt>--trace</tt> option. Prints one line per instruction in the same format
+ * as the Trace Log window, optionally restricted to a PC range or a window of
+ * cycles.
+ */
+public class TraceDecoder {
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption(new Option("p", "pc", true, "Only show instructions at addresses in this hex range, e.g. c000-c0ff."));
+        options.addOption(new Option("c", "cycles", true, "Only show instructions in this cycle window, e.g. 1000-2000."));
+        options.addOption(new Option("y", "show-cycles", false, "Prefix each instruction with its cycle count."));
+
+        CommandLineParser parser = new DefaultParser();
+        int status;
+
+        try {
+            CommandLine line = parser.parse(options, args);
+            if (line.getArgs().length != 1) {
+                throw new ParseException("Expected exactly one trace file.");
+            }
+
+            int fromPc = 0;
+            int toPc = 0xffff;
+            if (line.hasOption("pc")) {
+                String[] range = splitRange(line.getOptionValue("pc"));
+                fromPc = Integer.parseInt(range[0], 16);
+                toPc = Integer.parseInt(range[1], 16);
+            }
+
+            long fromCycle = 0L;
+            long toCycle = Long.MAX_VALUE;
+            if (line.hasOption("cycles")) {
+                String[] range = splitRange(line.getOptionValue("cycles"));
+                fromCycle = Long.parseLong(range[0]);
+                toCycle = Long.parseLong(range[1]);
+            }
+
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024);
+            try (TraceFileReader reader = new TraceFileReader(new File(line.getArgs()[0]))) {
+                reader.setCycleWindow(fromCycle, toCycle);
+                decode(reader, out, fromPc, toPc, line.hasOption("show-cycles"));
+            } finally {
+                out.flush();
+            }
+            status = 0;
+        } catch (ParseException | NumberFormatException ex) {
+            System.err.println(ex.getMessage());
+            new HelpFormatter().printHelp("TraceDecoder [options] <trace file>", options);
+            status = 1;
+        } catch (IOException ex) {
+            System.err.println("Could not decode trace. Reason: " + ex.getMessage());
+            status = 1;
+        }
+
+        System.exit(status);
+    }
+
+    /**
+     * Write the trace events for every instruction with an address in the given range.
+     */
+    static void decode(TraceFileReader reader, Writer out, int fromPc, int toPc,
+                       boolean showCycles) throws IOException {
+        CpuState state = new CpuState();
+        while (reader.next(state)) {
+            if (state.lastPc < fromPc || state.lastPc > toPc) {
+                continue;
+            }
+            if (showCycles) {
+                out.write(String.format("%12d  ", state.cycleCounter));
+            }
+            out.write(state.toTraceEvent());
+        }
+    }
+
+    /**
+     * Split an inclusive "from-to" range. A single value is a range of one.
+     */
+    private static String[] splitRange(String range) throws ParseException {
+        String[] parts = range.trim().split("-");
+        if (parts.length == 1) {
+            return new String[] {parts[0], parts[0]};
+        }
+        if (parts.length != 2) {
+            throw new ParseException("Invalid range: " + range);
+        }
+        return parts;
+    }
+}
@@ -0,0 +1,198 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.util.Utils;
+
+import java.util.Locale;
+
+/**
+ * A watchpoint on a range of bus addresses. It fires when the CPU reads,
+ * writes or executes an address in the range, optionally only when the value
+ * transferred matches, i.e. <code>(value &amp; mask) == match</code>.
+ *
+ * @see Bus#addWatchpoint(Watchpoint)
+ */
+public class Watchpoint {
+
+    public enum Type {
+        READ("Read", 'r'),
+        WRITE("Write", 'w'),
+        EXECUTE("Execute", 'x');
+
+        private final String name;
+        private final char code;
+
+        Type(String name, char code) {
+            this.name = name;
+            this.code = code;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * A record of a watchpoint firing.
+     */
+    public static class Hit {
+        private final Watchpoint watchpoint;
+        private final int instructionAddress;
+        private final int address;
+        private final int value;
+
+        public Hit(Watchpoint watchpoint, int instructionAddress, int address, int value) {
+            this.watchpoint = watchpoint;
+            this.instructionAddress = instructionAddress;
+            this.address = address;
+            this.value = value;
+        }
+
+        public Watchpoint getWatchpoint() {
+            return watchpoint;
+        }
+
+        /**
+         * @return The address of the instruction that made the access.
+         */
+        public int getInstructionAddress() {
+            return instructionAddress;
+        }
+
+        /**
+         * @return The bus address that was accessed.
+         */
+        public int getAddress() {
+            return address;
+        }
+
+        /**
+         * @return The value read or written, or the opcode executed.
+         */
+        public int getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return watchpoint.getType() + " watchpoint at $" + Utils.wordToHex(address) +
+                   ": value $" + Utils.byteToHex(value) +
+                   ", instruction at $" + Utils.wordToHex(instructionAddress);
+        }
+    }
+
+    private final Type type;
+    private final int startAddress;
+    private final int endAddress;
+    private final int mask;
+    private final int match;
+
+    /**
+     * A watchpoint that fires on any value.
+     */
+    public Watchpoint(Type type, int startAddress, int endAddress) {
+        this(type, startAddress, endAddress, 0, 0);
+    }
+
+    /**
+     * @param type         The kind of access to watch.
+     * @param startAddress The first address watched.
+     * @param endAddress   The last address watched.
+     * @param mask         The bits of the value to compare. 0 matches any value.
+     * @param match        The value the masked bits must have.
+     */
+    public Watchpoint(Type type, int startAddress, int endAddress, int mask, int match) {
+        if (startAddress < 0 || endAddress > 0xffff || startAddress > endAddress) {
+            throw new IllegalArgumentException("Invalid watchpoint range");
+        }
+        this.type = type;
+        this.startAddress = startAddress;
+        this.endAddress = endAddress;
+        this.mask = mask & 0xff;
+        this.match = match & mask & 0xff;
+    }
+
+    /**
+     * Parse a watchpoint of the form <code>type:start[-end][=value[/mask]]</code>,
+     * where type is one of r, w or x, and the numbers are in hex. For example,
+     * <code>w:7f60-7f61</code> or <code>w:7f61=80/80</code>.
+     *
+     * @throws IllegalArgumentException If the watchpoint can't be parsed.
+     */
+    public static Watchpoint parse(String spec) {
+        String s = spec.trim().toLowerCase(Locale.ENGLISH);
+        if (s.length() < 3 || s.charAt(1) != ':') {
+            throw new IllegalArgumentException("Invalid watchpoint '" + spec + "'");
+        }
+
+        Type type = null;
+        for (Type t : Type.values()) {
+            if (t.code == s.charAt(0)) {
+                type = t;
+            }
+        }
+        if (type == null) {
+            throw new IllegalArgumentException("Unknown watchpoint type in '" + spec + "'");
+        }
+
+        String range = s.substring(2);
+        int mask = 0;
+        int match = 0;
+
+        int equals = range.indexOf('=');
+        if (equals >= 0) {
+            String value = range.substring(equals + 1);
+            range = range.substring(0, equals);
+            int slash = value.indexOf('/');
+            mask = 0xff;
+            if (slash >= 0) {
+                mask = Integer.parseInt(value.substring(slash + 1), 16);
+                value = value.substring(0, slash);
+            }
+            match = Integer.parseInt(value, 16);
+        }
+
+        int dash = range.indexOf('-');
+        int start = Integer.parseInt(dash < 0 ? range : range.substring(0, dash), 16);
+        int end = dash < 0 ? start : Integer.parseInt(range.substring(dash + 1), 16);
+
+        return new Watchpoint(type, start, end, mask, match);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getStartAddress() {
+        return startAddress;
+    }
+
+    public int getEndAddress() {
+        return endAddress;
+    }
+
+    /**
+     * @return True if the watchpoint fires on this access.
+     */
+    public boolean matches(Type type, int address, int value) {
+        return this.type == type &&
+               address >= startAddress && address <= endAddress &&
+               (value & mask) == match;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(type.code).append(':').append(Utils.wordToHex(startAddress));
+        if (endAddress != startAddress) {
+            sb.append('-').append(Utils.wordToHex(endAddress));
+        }
+        if (mask != 0) {
+            sb.append('=').append(Utils.byteToHex(match));
+            if (mask != 0xff) {
+                sb.append('/').append(Utils.byteToHex(mask));
+            }
+        }
+        return sb.toString();
+    }
+}
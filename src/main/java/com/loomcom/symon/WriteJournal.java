@@ -0,0 +1,202 @@
+package com.loomcom.symon;
+
+/**
+ * Records the bus accesses that a rewind needs to replay execution exactly:
+ * every write the CPU makes, and every value it reads from a device other
+ * than memory, tagged with the step of the instruction that made it.
+ * <p>
+ * Entries are kept in a preallocated ring, twelve bytes each, so recording
+ * allocates nothing and the oldest entries are overwritten once it is full.
+ * Memory is deterministic and is not journalled on reads; device reads are,
+ * since devices such as the ACIA and keyboards depend on input from the host.
+ * <p>
+ * While replaying, the bus hands accesses to the journal instead: device reads
+ * return the value recorded, and writes are checked against the recording, so
+ * that a replay that goes its own way is noticed. The journal is only used on
+ * the simulator thread.
+ */
+public class WriteJournal {
+
+    // The low bit of each step word marks a device read
+    private static final long READ = 1;
+
+    private final long[] steps;
+    private final int[] accesses;
+    private final int mask;
+    private final CpuState state;
+
+    // Entries ever appended; the next one goes at head & mask
+    private long head = 0;
+
+    // The step of the newest entry overwritten. Replay must start at or after it.
+    private long lostStep = 0;
+
+    private boolean recording = false;
+    private boolean changedWhileStopped = false;
+
+    private boolean replaying = false;
+    private long cursor;
+    private int mismatches;
+
+    /**
+     * @param capacity The number of entries to keep, rounded up to a power of two.
+     * @param state    The state of the CPU making the accesses, for its step count.
+     */
+    public WriteJournal(int capacity, CpuState state) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.steps = new long[size];
+        this.accesses = new int[size];
+        this.mask = size - 1;
+        this.state = state;
+    }
+
+    /**
+     * Record the writes and device reads of the instructions that follow. Writes
+     * made while not recording, from the memory window say, are noted, so that a
+     * keyframe can be taken before the machine runs again.
+     */
+    public void setRecording(boolean recording) {
+        this.recording = recording;
+    }
+
+    /**
+     * @return True if anything was written while not recording, since the last call.
+     */
+    public boolean takeChangedWhileStopped() {
+        boolean changed = changedWhileStopped;
+        changedWhileStopped = false;
+        return changed;
+    }
+
+    /**
+     * Called by the bus for every write.
+     */
+    public void write(int address, int value) {
+        if (replaying) {
+            if (cursor < head && (steps[(int) cursor & mask] & READ) == 0 &&
+                accesses[(int) cursor & mask] == ((address << 8) | value)) {
+                cursor++;
+            } else {
+                mismatches++;
+            }
+        } else if (recording) {
+            append(state.stepCounter << 1, (address << 8) | value);
+        } else {
+            changedWhileStopped = true;
+        }
+    }
+
+    /**
+     * Called by the bus for every CPU read from a device other than memory.
+     *
+     * @return The value the CPU should see: the one read, or while replaying,
+     *         the one recorded.
+     */
+    public int read(int address, int value) {
+        if (replaying) {
+            int index = (int) cursor & mask;
+            if (cursor < head && (steps[index] & READ) != 0 && (accesses[index] >>> 8) == address) {
+                cursor++;
+                return accesses[index] & 0xff;
+            }
+            mismatches++;
+        } else if (recording) {
+            append(state.stepCounter << 1 | READ, (address << 8) | value);
+        }
+        return value;
+    }
+
+    private void append(long step, int access) {
+        int index = (int) head & mask;
+        if (head > mask) {
+            lostStep = steps[index] >>> 1;
+        }
+        steps[index] = step;
+        accesses[index] = access;
+        head++;
+    }
+
+    /**
+     * @return The earliest step from which execution can be replayed.
+     */
+    public long getLostStep() {
+        return lostStep;
+    }
+
+    /**
+     * Replay from the state after the given step, which must not be before
+     * {@link #getLostStep()}.
+     */
+    public void startReplay(long afterStep) {
+        cursor = firstAfter(afterStep);
+        mismatches = 0;
+        replaying = true;
+    }
+
+    /**
+     * @return The number of accesses that didn't match the recording.
+     */
+    public int endReplay() {
+        replaying = false;
+        return mismatches;
+    }
+
+    /**
+     * Forget everything recorded after the given step, when execution goes on
+     * from an earlier point.
+     */
+    public void truncate(long step) {
+        head = firstAfter(step);
+    }
+
+    /**
+     * Forget everything.
+     */
+    public void clear() {
+        head = 0;
+        lostStep = 0;
+        changedWhileStopped = false;
+    }
+
+    /**
+     * @return The step of the last instruction before the given step that wrote
+     *         to the address, or -1 if there is none in the journal.
+     */
+    public long findWrite(int address, long beforeStep) {
+        long tail = Math.max(0, head - steps.length);
+        for (long i = head - 1; i >= tail; i--) {
+            int index = (int) i & mask;
+            long step = steps[index] >>> 1;
+            if (step < beforeStep && (steps[index] & READ) == 0 && (accesses[index] >>> 8) == address) {
+                return step;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The number of entries held.
+     */
+    public int size() {
+        return (int) Math.min(head, steps.length);
+    }
+
+    public int getCapacity() {
+        return steps.length;
+    }
+
+    // The index of the first retained entry made after the given step
+    private long firstAfter(long step) {
+        long low = Math.max(0, head - steps.length);
+        long high = head;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if ((steps[(int) middle & mask] >>> 1) <= step) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -23,7 +23,14 @@
 
 package com.loomcom.symon.devices;
 
+import com.loomcom.symon.Bus;
+import com.loomcom.symon.Scheduler;
 import com.loomcom.symon.exceptions.MemoryRangeException;
+import com.loomcom.symon.util.SpscByteQueue;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
 
 /**
@@ -44,6 +51,7 @@ public abstract class Acia extends Device {
     boolean overrun = false;
     boolean interrupt = false;
 
+    // Scheduler cycles at which the TX register was last written and the RX register last read
     long lastTxWrite   = 0;
     long lastRxRead    = 0;
     int  baudRate      = 0;
@@ -58,6 +66,27 @@ public abstract class Acia extends Device {
     boolean rxFull  = false;
     boolean txEmpty = true;
 
+    /**
+     * Queues to and from an attached terminal, or null if the terminal
+     * polls the TX and RX registers itself.
+     */
+    private SpscByteQueue transmitQueue;
+    private SpscByteQueue receiveQueue;
+
+    // How often bytes are moved between the queues and the registers, in emulated time
+    private static final long QUEUE_POLL_NS = 1000000L;
+
+    // Moves bytes between the queues and the registers on the thread running
+    // the CPU, while queues are attached
+    private final Scheduler.Event queueEvent = new Scheduler.Event() {
+        @Override
+        public void fire() {
+            pollQueues();
+            Scheduler scheduler = scheduler();
+            scheduler.schedule(this, Math.max(1L, scheduler.nanosToCycles(QUEUE_POLL_NS)));
+        }
+    };
+
 
     public Acia(int address, int size, String name) throws MemoryRangeException {
         super(address, address + size - 1, name);
@@ -67,8 +96,8 @@ public abstract class Acia extends Device {
 
 
     /*
-     * Calculate the delay in nanoseconds between successive read/write operations, based on the
-     * configured baud rate.
+     * Calculate the delay in nanoseconds of emulated time between successive read/write operations,
+     * based on the configured baud rate.
      */
     private long calculateBaudRateDelay() {
         if (baudRate > 0) {
@@ -103,18 +132,97 @@ public abstract class Acia extends Device {
      */
     public abstract int statusReg(boolean cpuAccess);
 
+    /**
+     * The registers are saved, but not the queues to and from the terminal.
+     */
+    @Override
+    public synchronized void saveState(DataOutput out) throws IOException {
+        out.writeBoolean(receiveIrqEnabled);
+        out.writeBoolean(transmitIrqEnabled);
+        out.writeBoolean(overrun);
+        out.writeBoolean(interrupt);
+        out.writeLong(lastTxWrite);
+        out.writeLong(lastRxRead);
+        out.writeInt(baudRate);
+        out.writeInt(rxChar);
+        out.writeInt(txChar);
+        out.writeBoolean(rxFull);
+        out.writeBoolean(txEmpty);
+    }
+
+    @Override
+    public synchronized void loadState(DataInput in) throws IOException {
+        receiveIrqEnabled = in.readBoolean();
+        transmitIrqEnabled = in.readBoolean();
+        overrun = in.readBoolean();
+        interrupt = in.readBoolean();
+        lastTxWrite = in.readLong();
+        lastRxRead = in.readLong();
+        setBaudRate(in.readInt());
+        rxChar = in.readInt();
+        txChar = in.readInt();
+        rxFull = in.readBoolean();
+        txEmpty = in.readBoolean();
+    }
+
+    /**
+     * @return The scheduler of the bus the ACIA is on, or null.
+     */
+    private Scheduler scheduler() {
+        Bus bus = getBus();
+        return bus == null ? null : bus.getScheduler();
+    }
+
+    /**
+     * @return The current cycle of the bus scheduler, or 0 if there isn't one.
+     */
+    private long now() {
+        Scheduler scheduler = scheduler();
+        return scheduler == null ? 0 : scheduler.now();
+    }
+
+    /**
+     * @return The scheduler cycle before which the status register reads the
+     *         same. It changes once a character time has passed since the last
+     *         byte was received or transmitted, and otherwise only on input.
+     */
+    synchronized long statusStableUntil() {
+        long until = Long.MAX_VALUE;
+        if (rxFull && !characterTimeElapsed(lastRxRead)) {
+            until = Math.min(until, lastRxRead + scheduler().nanosToCycles(baudRateDelay));
+        }
+        if (txEmpty && !characterTimeElapsed(lastTxWrite)) {
+            until = Math.min(until, lastTxWrite + scheduler().nanosToCycles(baudRateDelay));
+        }
+        return until;
+    }
+
+    /**
+     * @return True if a whole character time at the configured baud rate has passed
+     *         since the given scheduler cycle.
+     */
+    boolean characterTimeElapsed(long since) {
+        Scheduler scheduler = scheduler();
+        if (baudRateDelay == 0 || scheduler == null) {
+            return true;
+        }
+        return scheduler.now() >= since + scheduler.nanosToCycles(baudRateDelay);
+    }
+
     @Override
     public String toString() {
         return name + "@" + String.format("%04X", baseAddress);
     }
 
     public synchronized int rxRead(boolean cpuAccess) {
+        int data = rxChar;
         if (cpuAccess) {
-            lastRxRead = System.nanoTime();
+            lastRxRead = now();
             overrun = false;
             rxFull = false;
+            pollReceiveQueue();
         }
-        return rxChar;
+        return data;
     }
 
     public synchronized void rxWrite(int data) {
@@ -145,9 +253,70 @@ public abstract class Acia extends Device {
     }
 
     public synchronized void txWrite(int data) {
-        lastTxWrite = System.nanoTime();
+        lastTxWrite = now();
         txChar = data;
         txEmpty = false;
+        flushTransmitRegister();
+    }
+
+    /**
+     * Attach a terminal through a pair of queues. Transmitted bytes are then
+     * queued as soon as they are written, and queued received bytes are moved
+     * into the RX register when the CPU reads the last one, or every so often
+     * in emulated time. Either way the bytes are moved, and any interrupt
+     * raised, on the thread running the CPU, so the terminal only ever touches
+     * the queues. Call this only while the CPU is stopped.
+     *
+     * @param transmitQueue Receives each byte the CPU transmits. The ACIA is its producer.
+     * @param receiveQueue  Bytes to be received by the CPU. The ACIA is its consumer.
+     */
+    public synchronized void attachQueues(SpscByteQueue transmitQueue, SpscByteQueue receiveQueue) {
+        this.transmitQueue = transmitQueue;
+        this.receiveQueue = receiveQueue;
+
+        Scheduler scheduler = scheduler();
+        if (scheduler == null) {
+            return;
+        }
+        if (transmitQueue != null || receiveQueue != null) {
+            scheduler.schedule(queueEvent, Math.max(1L, scheduler.nanosToCycles(QUEUE_POLL_NS)));
+        } else {
+            scheduler.cancel(queueEvent);
+        }
+    }
+
+    /**
+     * Queue a byte left waiting in the TX register because the transmit queue
+     * was full, and take a received byte from the receive queue if the RX
+     * register is free. Called on the thread running the CPU.
+     */
+    public synchronized void pollQueues() {
+        flushTransmitRegister();
+        pollReceiveQueue();
+    }
+
+    /**
+     * Discard any bytes waiting in the receive queue.
+     */
+    public synchronized void clearReceiveQueue() {
+        if (receiveQueue != null) {
+            receiveQueue.clear();
+        }
+    }
+
+    private void pollReceiveQueue() {
+        if (receiveQueue != null && !rxFull) {
+            int data = receiveQueue.poll();
+            if (data >= 0) {
+                rxWrite(data);
+            }
+        }
+    }
+
+    private void flushTransmitRegister() {
+        if (transmitQueue != null && !txEmpty && transmitQueue.offer(txChar)) {
+            txRead(true);
+        }
     }
 
     /**
@@ -26,6 +26,10 @@ package com.loomcom.symon.devices;
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * This is a simulation of the MOS 6551 ACIA, with limited
  * functionality.  Interrupts are not supported.
@@ -71,6 +75,15 @@ public class Acia6551 extends Acia {
         }
     }
 
+    /**
+     * Reading the data register starts a new character time, so it never reads
+     * without side effects.
+     */
+    @Override
+    public long stableUntil(int address) {
+        return address == DATA_REG ? 0L : statusStableUntil();
+    }
+
     @Override
     public void write(int address, int data) throws MemoryAccessException {
         switch (address) {
@@ -92,6 +105,20 @@ public class Acia6551 extends Acia {
     }
 
 
+    @Override
+    public synchronized void saveState(DataOutput out) throws IOException {
+        super.saveState(out);
+        out.writeInt(commandRegister);
+        out.writeInt(controlRegister);
+    }
+
+    @Override
+    public synchronized void loadState(DataInput in) throws IOException {
+        super.loadState(in);
+        commandRegister = in.readInt();
+        controlRegister = in.readInt();
+    }
+
     private void setCommandRegister(int data) {
         commandRegister = data;
 
@@ -181,10 +208,10 @@ public class Acia6551 extends Acia {
     public int statusReg(boolean cpuAccess) {
         // TODO: Parity Error, Framing Error, DTR, and DSR flags.
         int stat = 0;
-        if (rxFull && System.nanoTime() >= (lastRxRead + baudRateDelay)) {
+        if (rxFull && characterTimeElapsed(lastRxRead)) {
             stat |= 0x08;
         }
-        if (txEmpty && System.nanoTime() >= (lastTxWrite + baudRateDelay)) {
+        if (txEmpty && characterTimeElapsed(lastTxWrite)) {
             stat |= 0x10;
         }
         if (overrun) {
@@ -65,6 +65,15 @@ public class Acia6850 extends Acia {
         }
     }
 
+    /**
+     * Reading the data register starts a new character time, so it never reads
+     * without side effects.
+     */
+    @Override
+    public long stableUntil(int address) {
+        return address == RX_REG ? 0L : statusStableUntil();
+    }
+
     @Override
     public void write(int address, int data) throws MemoryAccessException {
         switch (address) {
@@ -100,10 +109,10 @@ public class Acia6850 extends Acia {
     public int statusReg(boolean cpuAccess) {
         // TODO: Parity Error, Framing Error, DTR, and DSR flags.
         int stat = 0;
-        if (rxFull && System.nanoTime() >= (lastRxRead + baudRateDelay)) {
+        if (rxFull && characterTimeElapsed(lastRxRead)) {
             stat |= 0x01;
         }
-        if (txEmpty && System.nanoTime() >= (lastTxWrite + baudRateDelay)) {
+        if (txEmpty && characterTimeElapsed(lastTxWrite)) {
             stat |= 0x02;
         }
         if (overrun) {
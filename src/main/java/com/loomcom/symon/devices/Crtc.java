@@ -26,6 +26,8 @@ package com.loomcom.symon.devices;
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 
 /**
@@ -118,6 +120,43 @@ public class Crtc extends Device {
         }
     }
 
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        out.writeInt(horizontalDisplayed);
+        out.writeInt(verticalDisplayed);
+        out.writeInt(scanLinesPerRow);
+        out.writeInt(cursorStartLine);
+        out.writeInt(cursorStopLine);
+        out.writeBoolean(cursorEnabled);
+        out.writeInt(cursorBlinkRate);
+        out.writeInt(startAddress);
+        out.writeInt(cursorPosition);
+        out.writeInt(pageSize);
+        out.writeInt(currentRegister);
+        out.writeBoolean(rowColumnAddressing);
+        out.writeBoolean(displayEnableSkew);
+        out.writeBoolean(cursorSkew);
+    }
+
+    @Override
+    public void loadState(DataInput in) throws IOException {
+        horizontalDisplayed = in.readInt();
+        verticalDisplayed = in.readInt();
+        scanLinesPerRow = in.readInt();
+        cursorStartLine = in.readInt();
+        cursorStopLine = in.readInt();
+        cursorEnabled = in.readBoolean();
+        cursorBlinkRate = in.readInt();
+        startAddress = in.readInt();
+        cursorPosition = in.readInt();
+        pageSize = in.readInt();
+        currentRegister = in.readInt();
+        rowColumnAddressing = in.readBoolean();
+        displayEnableSkew = in.readBoolean();
+        cursorSkew = in.readBoolean();
+        notifyListeners();
+    }
+
     @Override
     public int read(int address, boolean cpuAccess) throws MemoryAccessException {
         switch (address) {
@@ -28,6 +28,9 @@ import com.loomcom.symon.MemoryRange;
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -76,6 +79,20 @@ public abstract class Device implements Comparable<Device> {
 
     public abstract String toString();
 
+    /**
+     * Tell how long reading a register will go on giving the same value, with
+     * no side effects beyond those of the first read, so that a CPU polling it
+     * may be treated as idle. The value is only promised while nothing writes
+     * to the device and no input reaches it from outside the machine.
+     *
+     * @param address The address within the device.
+     * @return The scheduler cycle before which the register reads the same, or
+     *         0 if it cannot be relied on. By default no register can.
+     */
+    public long stableUntil(int address) {
+        return 0L;
+    }
+
     public Bus getBus() {
         return this.bus;
     }
@@ -110,6 +127,22 @@ public abstract class Device implements Comparable<Device> {
         return size;
     }
 
+    /**
+     * Write the device's state, for a machine snapshot. Devices with state
+     * override this and {@link #loadState(DataInput)}; connections to the host,
+     * such as terminals and disk images, are not part of it. Event cycles are
+     * written as absolute scheduler cycles, which the snapshot restores first.
+     */
+    public void saveState(DataOutput out) throws IOException {
+    }
+
+    /**
+     * Read back the state written by {@link #saveState(DataOutput)}, into a
+     * device of the same type and size.
+     */
+    public void loadState(DataInput in) throws IOException {
+    }
+
     public void registerListener(DeviceChangeListener listener) {
         deviceChangeListeners.add(listener);
     }
@@ -31,7 +31,7 @@ import com.loomcom.symon.exceptions.*;
 public class Memory extends Device {
 
     private boolean readOnly;
-    private int[] mem;
+    private byte[] mem;
 
     /* Initialize all locations to 0x00 (BRK) */
     private static final int DEFAULT_FILL = 0x00;
@@ -40,7 +40,7 @@ public class Memory extends Device {
             throws MemoryRangeException {
         super(startAddress, endAddress, (readOnly ? "RO Memory" : "RW Memory"));
         this.readOnly = readOnly;
-        this.mem = new int[this.size];
+        this.mem = new byte[this.size];
         this.fill(DEFAULT_FILL);
     }
 
@@ -62,12 +62,12 @@ public class Memory extends Device {
         if (readOnly) {
             throw new MemoryAccessException("Cannot write to read-only memory at address " + address);
         } else {
-            this.mem[address] = data;
+            this.mem[address] = (byte) data;
         }
     }
 
     /**
-     * Load the memory from a file.
+     * Load the memory from a file, in a single read straight into the backing store.
      *
      * @param file The file to read an array of bytes from.
      * @throws MemoryRangeException if the file and memory size do not match.
@@ -80,12 +80,8 @@ public class Memory extends Device {
             if (fileSize > mem.length) {
                 throw new MemoryRangeException("File will not fit in available memory.");
             } else {
-                int i = 0;
-                FileInputStream fis = new FileInputStream(file);
-                BufferedInputStream bis = new BufferedInputStream(fis);
-                DataInputStream dis = new DataInputStream(bis);
-                while (dis.available() != 0) {
-                    mem[i++] = dis.readUnsignedByte();
+                try (DataInputStream dis = new DataInputStream(new FileInputStream(file))) {
+                    dis.readFully(mem, 0, (int) fileSize);
                 }
             }
         } else {
@@ -94,12 +90,89 @@ public class Memory extends Device {
 
     }
 
+    /**
+     * Copy a block of bytes into memory, bypassing the read-only check. This is
+     * the path for loading ROM images and programs.
+     *
+     * @param address The device address at which to start loading.
+     * @param data    The bytes to load.
+     * @throws MemoryRangeException if the data does not fit.
+     */
+    public void load(int address, byte[] data) throws MemoryRangeException {
+        load(address, data, 0, data.length);
+    }
+
+    public void load(int address, byte[] data, int offset, int length) throws MemoryRangeException {
+        checkBlock(address, length);
+        System.arraycopy(data, offset, mem, address, length);
+    }
+
+    /**
+     * Copy a block of bytes out of memory.
+     *
+     * @param address The device address at which to start.
+     * @param length  The number of bytes to copy.
+     * @return A new array holding the bytes.
+     * @throws MemoryRangeException if the block is not inside this memory.
+     */
+    public byte[] dump(int address, int length) throws MemoryRangeException {
+        checkBlock(address, length);
+        return Arrays.copyOfRange(mem, address, address + length);
+    }
+
+    @Override
+    public long stableUntil(int address) {
+        return Long.MAX_VALUE;
+    }
+
     public int read(int address, boolean cpuAccess) throws MemoryAccessException {
-        return this.mem[address];
+        return this.mem[address] & 0xff;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Returns the array backing this memory, indexed by device address. The Bus maps
+     * it directly into its page table, so that RAM and ROM accesses bypass read() and
+     * write().
+     */
+    public byte[] getBackingStore() {
+        return mem;
+    }
+
+    /**
+     * The whole contents are saved, ROM included, so that a snapshot restores
+     * the machine it was taken from even if a different ROM has since been loaded.
+     */
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        out.write(mem);
+    }
+
+    /**
+     * Read straight into the backing store, which the bus has mapped.
+     */
+    @Override
+    public void loadState(DataInput in) throws IOException {
+        in.readFully(mem);
     }
 
     public void fill(int val) {
-        Arrays.fill(this.mem, val);
+        Arrays.fill(this.mem, (byte) val);
+    }
+
+    public void fill(int address, int length, int val) throws MemoryRangeException {
+        checkBlock(address, length);
+        Arrays.fill(this.mem, address, address + length, (byte) val);
+    }
+
+    private void checkBlock(int address, int length) throws MemoryRangeException {
+        if (address < 0 || length < 0 || address + length > mem.length) {
+            throw new MemoryRangeException("Block of " + length + " bytes at offset " + address +
+                                           " does not fit in " + this);
+        }
     }
 
     public String toString() {
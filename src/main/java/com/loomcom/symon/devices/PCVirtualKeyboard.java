@@ -6,6 +6,9 @@ import com.loomcom.symon.exceptions.MemoryAccessException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.awt.event.KeyEvent;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
 public class PCVirtualKeyboard extends Device {
     public static final int PCVK_SIZE = 4;
@@ -38,6 +41,26 @@ public class PCVirtualKeyboard extends Device {
         devmem[address] = data;
     }
 
+    @Override
+    public long stableUntil(int address) {
+        // Only written by the CPU and by key presses
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        for (int value : devmem) {
+            out.writeInt(value);
+        }
+    }
+
+    @Override
+    public void loadState(DataInput in) throws IOException {
+        for (int i = 0; i < devmem.length; i++) {
+            devmem[i] = in.readInt();
+        }
+    }
+
     public void newkey(char ch, int key, int ext, int loc, int mods, boolean pressed){
         /*
         logger.info("Key: "+ch+"(0x"+Integer.toHexString(ch)+") 0x"+Integer.toHexString(key) +
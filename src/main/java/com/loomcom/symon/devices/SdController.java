@@ -28,6 +28,8 @@ package com.loomcom.symon.devices;
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -97,7 +99,7 @@ public class SdController extends Device {
     public int read(int address, boolean cpuAccess) throws MemoryAccessException {
         switch (address) {
             case 0:
-                return readData();
+                return readData(cpuAccess);
             case 1:
                 return readStatus();
             default:
@@ -105,6 +107,35 @@ public class SdController extends Device {
         }
     }
 
+    /**
+     * The sector buffers are saved; the SD card image itself is not.
+     */
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        out.writeInt(lba0);
+        out.writeInt(lba1);
+        out.writeInt(lba2);
+        out.writeInt(position);
+        out.writeByte(status.ordinal());
+        out.write(readBuffer);
+        out.write(writeBuffer);
+        out.writeInt(readPosition);
+        out.writeInt(writePosition);
+    }
+
+    @Override
+    public void loadState(DataInput in) throws IOException {
+        lba0 = in.readInt();
+        lba1 = in.readInt();
+        lba2 = in.readInt();
+        position = in.readInt();
+        status = Status.values()[in.readUnsignedByte()];
+        in.readFully(readBuffer);
+        in.readFully(writeBuffer);
+        readPosition = in.readInt();
+        writePosition = in.readInt();
+    }
+
     private void computePosition() {
         this.position = lba0 + (lba1 << 8) + (lba2 << 16);
         // each sector is 512 bytes, so multiply accordingly
@@ -138,10 +169,13 @@ public class SdController extends Device {
     }
 
 
-    private int readData() {
+    private int readData(boolean cpuAccess) {
         if (status != Status.READ) {
             return 0;
         }
+        if (!cpuAccess) {
+            return readBuffer[readPosition];
+        }
 
         int data = readBuffer[readPosition++];
 
@@ -23,10 +23,15 @@
 
 package com.loomcom.symon.devices;
 
+import com.loomcom.symon.Bus;
+import com.loomcom.symon.Scheduler;
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Arrays;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.awt.Color;
@@ -39,6 +44,9 @@ public class Vdp extends Device {
 
     private static final int VDP_REG_NUM = 8;
 
+    // Frames per second of the NTSC TMS9918
+    public static final int FRAME_RATE = 60;
+
     // Display Mode
     public static final int DM_GRAPHICSI  = 0;
     public static final int DM_TEXT       = 1;
@@ -46,13 +54,35 @@ public class Vdp extends Device {
     public static final int DM_GRAPHICSII = 4;
 
     // Registers
-    private static int[] Registers;
-    private static int StatusReg = 0;
+    private final int[] Registers;
+    private int StatusReg = 0;
 
     // Video RAM - not in the normal address space
     public int VramSizeInBytes = 4 * 1024;
     public int vram[];
 
+    // Flags set for each VRAM byte, and each 256 byte page, written since the renderer last
+    // looked. Plain byte stores, so the CPU never has to read-modify-write a shared word.
+    private byte[] vramDirty;
+    private byte[] vramDirtyPages;
+
+    // Count of register writes and VRAM reallocations, each of which needs a full redraw
+    private int registerWrites = 0;
+
+    // Sprite status found by the renderer, set at the end of each frame: the first
+    // fifth sprite, or -1, and whether any sprites collided
+    private int fifthSprite = -1;
+    private boolean coincidence = false;
+
+    /**
+     * Told at the end of each frame, on the thread running the CPU.
+     */
+    public interface FrameListener {
+        void frameEnded(Vdp vdp);
+    }
+
+    private volatile FrameListener frameListener;
+
     // VDP Status
     public int     DisplayMode;
     public boolean ExternalVDP;
@@ -70,6 +100,7 @@ public class Vdp extends Device {
     public int     ColorTextBG;
 
 	public Color[] colors;
+    private final int[] packedColors;
 
     // States following writes to the VDP
     enum VDP_WRITE_STATE {
@@ -106,6 +137,9 @@ public class Vdp extends Device {
             VramSizeInBytes = 4 * 1024;
         }
         vram = new int[VramSizeInBytes];
+        vramDirty = new byte[VramSizeInBytes];
+        vramDirtyPages = new byte[VramSizeInBytes >> 8];
+        registerWrites++;
     }
     public Vdp(int address, boolean b16K) throws MemoryRangeException {
         super(address, address + 3, "TMS9918A VDP");
@@ -148,8 +182,61 @@ public class Vdp extends Device {
 		colors[ 7] = new Color(0x64, 0xda, 0xee, 0xff); // cyan 
 		colors[13] = new Color(0xb5, 0x65, 0xb3, 0xff); // magenta 
 		colors[15] = new Color(0xff, 0xff, 0xff, 0xff); // white
+
+        packedColors = new int[colors.length];
+        for (int i = 0; i < colors.length; i++) {
+            // Packed as opaque ARGB, as the display has no use for transparency
+            packedColors[i] = 0xff000000 | colors[i].getRGB();
+        }
     }
     
+    /**
+     * The end of each frame, when the VDP raises its interrupt. It is timed in CPU
+     * cycles, so programs see the same frame rate at any simulation speed.
+     */
+    private final Scheduler.Event frameEvent = new Scheduler.Event() {
+        @Override
+        public void fire() {
+            endOfFrame();
+        }
+    };
+
+    @Override
+    public void setBus(Bus bus) {
+        Bus oldBus = getBus();
+        if (oldBus != null) {
+            oldBus.getScheduler().cancel(frameEvent);
+        }
+        super.setBus(bus);
+        if (bus != null) {
+            scheduleNextFrame(bus.getScheduler());
+        }
+    }
+
+    private void scheduleNextFrame(Scheduler scheduler) {
+        scheduler.schedule(frameEvent, scheduler.getClockRate() / FRAME_RATE);
+    }
+
+    private void endOfFrame() {
+        Bus bus = getBus();
+        if (fifthSprite >= 0) {
+            setFifthSprite(fifthSprite);
+        }
+        if (coincidence) {
+            setCoincidenceFlag();
+        }
+        if (InterruptEnable && !IsInterrupted()) {
+            setInterruptFlag();
+            bus.assertIrq();
+        }
+        scheduleNextFrame(bus.getScheduler());
+
+        FrameListener listener = frameListener;
+        if (listener != null) {
+            listener.frameEnded(this);
+        }
+    }
+
     @Override
     public String getName()
     {
@@ -213,21 +300,27 @@ public class Vdp extends Device {
                 switch(VDPWriteState) {
                     case HAVE_ADDRESS:
                         int data = readVRAM(CurrentVRAMAddress);
-                        CurrentVRAMAddress += 1;
+                        if (cpuAccess) {
+                            CurrentVRAMAddress += 1;
+                        }
                         return data;
                     default:
                         /* Invalid */
-                        logger.error("VDP read: invalid");
-                        VDPWriteState = VDP_WRITE_STATE.START;
+                        if (cpuAccess) {
+                            logger.error("VDP read: invalid");
+                            VDPWriteState = VDP_WRITE_STATE.START;
+                        }
                         break;
                 }
                 break;
             case VDP_CMD_READ_STATUS:
                 int data = StatusReg;
-                // reset status register after a read
-                StatusReg = 0;
-                //logger.info("VDP read "+address+" "+data);
-                VDPWriteState = VDP_WRITE_STATE.START;
+                // reset status register after a read, but not after a peek
+                if (cpuAccess) {
+                    StatusReg = 0;
+                    //logger.info("VDP read "+address+" "+data);
+                    VDPWriteState = VDP_WRITE_STATE.START;
+                }
                 return data;
             default:
                 logger.error("VDP read: unrecognised address "+address);
@@ -240,6 +333,7 @@ public class Vdp extends Device {
     {
         logger.info("VDP Write Reg "+CurrentRegister+" -> 0x"+Integer.toHexString(data));
         Registers[CurrentRegister] = data;
+        registerWrites++;
         switch (CurrentRegister) {
             case 0:
                 ExternalVDP     =  (data & 0x01) != 0;
@@ -307,6 +401,8 @@ public class Vdp extends Device {
     private void writeVRAM(int address, int data) throws MemoryAccessException {
         if (address >= VramSizeInBytes) throw new MemoryAccessException("No VRAM at address " + address);
         vram[address] = data & 0xFF;
+        vramDirty[address] = 1;
+        vramDirtyPages[address >> 8] = 1;
         //logger.info("Write VRAM 0x"+Integer.toHexString(address)+" -> 0x"+Integer.toHexString(data));
     }
 
@@ -317,6 +413,155 @@ public class Vdp extends Device {
         return data;
     }
 	
+    /**
+     * The decoded display settings are saved along with the registers, since the
+     * table addresses depend on the mode at the time they were written.
+     */
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        for (int register : Registers) {
+            out.writeByte(register);
+        }
+        out.writeByte(StatusReg);
+        out.writeInt(VramSizeInBytes);
+        byte[] bytes = new byte[VramSizeInBytes];
+        for (int i = 0; i < VramSizeInBytes; i++) {
+            bytes[i] = (byte) vram[i];
+        }
+        out.write(bytes);
+        out.writeInt(DisplayMode);
+        out.writeBoolean(ExternalVDP);
+        out.writeBoolean(Memory16K);
+        out.writeBoolean(Blank);
+        out.writeBoolean(InterruptEnable);
+        out.writeBoolean(SpriteLarge);
+        out.writeBoolean(SpriteDouble);
+        out.writeInt(BaseAddrNameTable);
+        out.writeInt(BaseAddrColorTable);
+        out.writeInt(BaseAddrPatternTable);
+        out.writeInt(BaseAddrSpriteAttribute);
+        out.writeInt(BaseAddrSpritePatternTable);
+        out.writeInt(ColorTextFG);
+        out.writeInt(ColorTextBG);
+        out.writeInt(fifthSprite);
+        out.writeBoolean(coincidence);
+        out.writeByte(VDPWriteState.ordinal());
+        out.writeInt(CurrentRegister);
+        out.writeInt(VDPWriteByte0);
+        out.writeInt(CurrentVRAMAddress);
+        out.writeLong(frameEvent.isScheduled() ? frameEvent.getCycle() : -1);
+    }
+
+    /**
+     * All of VRAM is flagged as changed, so renderers draw the restored screen.
+     */
+    @Override
+    public void loadState(DataInput in) throws IOException {
+        for (int i = 0; i < VDP_REG_NUM; i++) {
+            Registers[i] = in.readUnsignedByte();
+        }
+        StatusReg = in.readUnsignedByte();
+        int size = in.readInt();
+        if (size != VramSizeInBytes) {
+            setupVram(size > 4 * 1024);
+        }
+        byte[] bytes = new byte[VramSizeInBytes];
+        in.readFully(bytes);
+        for (int i = 0; i < VramSizeInBytes; i++) {
+            vram[i] = bytes[i] & 0xff;
+        }
+        Arrays.fill(vramDirty, (byte) 1);
+        Arrays.fill(vramDirtyPages, (byte) 1);
+        DisplayMode = in.readInt();
+        ExternalVDP = in.readBoolean();
+        Memory16K = in.readBoolean();
+        Blank = in.readBoolean();
+        InterruptEnable = in.readBoolean();
+        SpriteLarge = in.readBoolean();
+        SpriteDouble = in.readBoolean();
+        BaseAddrNameTable = in.readInt();
+        BaseAddrColorTable = in.readInt();
+        BaseAddrPatternTable = in.readInt();
+        BaseAddrSpriteAttribute = in.readInt();
+        BaseAddrSpritePatternTable = in.readInt();
+        ColorTextFG = in.readInt();
+        ColorTextBG = in.readInt();
+        fifthSprite = in.readInt();
+        coincidence = in.readBoolean();
+        VDPWriteState = VDP_WRITE_STATE.values()[in.readUnsignedByte()];
+        CurrentRegister = in.readInt();
+        VDPWriteByte0 = in.readInt();
+        CurrentVRAMAddress = in.readInt();
+        long frameCycle = in.readLong();
+        registerWrites++;
+
+        Bus bus = getBus();
+        if (bus != null && frameCycle >= 0) {
+            bus.getScheduler().scheduleAt(frameEvent, frameCycle);
+        }
+        notifyListeners();
+    }
+
+    /**
+     * Bring a snapshot up to date with the VDP, copying the registers and the VRAM
+     * bytes written since the last snapshot, and flagging those bytes as changed.
+     * The sprite status the renderer found in the snapshot is taken back, to be set
+     * at the end of each frame. Call this on the thread running the CPU.
+     */
+    public void snapshot(VdpSnapshot snapshot) {
+        if (snapshot.vram.length != VramSizeInBytes) {
+            snapshot.vram = new int[VramSizeInBytes];
+            System.arraycopy(vram, 0, snapshot.vram, 0, VramSizeInBytes);
+            Arrays.fill(vramDirty, (byte) 0);
+            Arrays.fill(vramDirtyPages, (byte) 0);
+        } else {
+            for (int page = 0; page < vramDirtyPages.length; page++) {
+                if (vramDirtyPages[page] == 0) {
+                    continue;
+                }
+                vramDirtyPages[page] = 0;
+                snapshot.changedPages[page] = true;
+                for (int address = page << 8; address < (page + 1) << 8; address++) {
+                    if (vramDirty[address] != 0) {
+                        vramDirty[address] = 0;
+                        snapshot.vram[address] = vram[address];
+                        snapshot.changed[address] = 1;
+                    }
+                }
+            }
+        }
+
+        snapshot.registerWrites = registerWrites;
+        snapshot.mode = DisplayMode;
+        snapshot.nameTable = BaseAddrNameTable;
+        snapshot.colorTable = BaseAddrColorTable;
+        snapshot.patternTable = BaseAddrPatternTable;
+        snapshot.spriteAttributeTable = BaseAddrSpriteAttribute;
+        snapshot.spritePatternTable = BaseAddrSpritePatternTable;
+        snapshot.spriteLarge = SpriteLarge;
+        snapshot.spriteMagnify = SpriteDouble;
+        snapshot.backdropColor = packedColors[ColorTextBG];
+        snapshot.textColor = packedColors[ColorTextFG];
+        snapshot.palette = packedColors;
+
+        fifthSprite = snapshot.getFifthSprite();
+        coincidence = snapshot.getCoincidence();
+    }
+
+    /**
+     * Set a listener to be told at the end of each frame, on the thread running the CPU.
+     */
+    public void setFrameListener(FrameListener frameListener) {
+        this.frameListener = frameListener;
+    }
+
+    /**
+     * @return The 16 colors, packed as opaque ARGB.
+     */
+    public int[] getPackedColors() {
+        return packedColors;
+    }
+
 	public Color getBackdropColor() {
 		return colors[ColorTextBG];
 	}
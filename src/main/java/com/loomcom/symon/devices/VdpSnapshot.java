@@ -0,0 +1,163 @@
+package com.loomcom.symon.devices;
+
+import java.util.Arrays;
+
+/**
+ * A copy of the VDP state a renderer needs, taken by {@link Vdp#snapshot(VdpSnapshot)}.
+ * <p>
+ * Only the VRAM bytes written since the last snapshot are copied, and they are
+ * flagged as changed until the renderer clears them, so the renderer can draw
+ * incrementally. The renderer can work on a snapshot on another thread while
+ * the CPU carries on changing the VDP, as long as no new snapshot is taken
+ * into it until the renderer has finished.
+ */
+public class VdpSnapshot {
+
+    private static final int PAGE_SHIFT = 8;
+
+    int[] vram = new int[0];
+    final byte[] changed = new byte[0x4000];
+    final boolean[] changedPages = new boolean[0x4000 >> PAGE_SHIFT];
+
+    int registerWrites;
+    int mode;
+    int nameTable;
+    int colorTable;
+    int patternTable;
+    int spriteAttributeTable;
+    int spritePatternTable;
+    boolean spriteLarge;
+    boolean spriteMagnify;
+    int backdropColor;
+    int textColor;
+    int[] palette;
+
+    // Written by the renderer: the first fifth sprite, or -1, and whether sprites collided
+    private int fifthSprite = -1;
+    private boolean coincidence = false;
+
+    public int[] getVram() {
+        return vram;
+    }
+
+    /**
+     * @return A count that changes whenever a VDP register was written, or VRAM
+     *         reallocated, so that everything has to be drawn again.
+     */
+    public int getRegisterWrites() {
+        return registerWrites;
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    public int getNameTable() {
+        return nameTable;
+    }
+
+    public int getColorTable() {
+        return colorTable;
+    }
+
+    public int getPatternTable() {
+        return patternTable;
+    }
+
+    public int getSpriteAttributeTable() {
+        return spriteAttributeTable;
+    }
+
+    public int getSpritePatternTable() {
+        return spritePatternTable;
+    }
+
+    public boolean getSpriteLarge() {
+        return spriteLarge;
+    }
+
+    public boolean getSpriteMagnify() {
+        return spriteMagnify;
+    }
+
+    /**
+     * @return The backdrop color, packed as ARGB.
+     */
+    public int getBackdropColor() {
+        return backdropColor;
+    }
+
+    /**
+     * @return The text mode foreground color, packed as ARGB.
+     */
+    public int getTextColor() {
+        return textColor;
+    }
+
+    /**
+     * @return The 16 colors, packed as ARGB.
+     */
+    public int[] getPalette() {
+        return palette;
+    }
+
+    /**
+     * @return True if any byte in the range changed since the changes were last cleared.
+     */
+    public boolean rangeChanged(int start, int length) {
+        int mask = vram.length - 1;
+        for (int i = 0; i < length; i++) {
+            int address = (start + i) & mask;
+            if (changedPages[address >> PAGE_SHIFT] && changed[address] != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return True if any VRAM changed since the changes were last cleared.
+     */
+    public boolean hasChanges() {
+        for (boolean page : changedPages) {
+            if (page) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean changed(int address) {
+        address &= vram.length - 1;
+        return changedPages[address >> PAGE_SHIFT] && changed[address] != 0;
+    }
+
+    /**
+     * Forget the changed bytes, once they have been drawn.
+     */
+    public void clearChanges() {
+        for (int page = 0; page < changedPages.length; page++) {
+            if (changedPages[page]) {
+                Arrays.fill(changed, page << PAGE_SHIFT, (page + 1) << PAGE_SHIFT, (byte) 0);
+                changedPages[page] = false;
+            }
+        }
+    }
+
+    /**
+     * Record the sprite status found while drawing the frame, for the VDP to set
+     * in its status register at the end of each frame.
+     */
+    public void setSpriteStatus(int fifthSprite, boolean coincidence) {
+        this.fifthSprite = fifthSprite;
+        this.coincidence = coincidence;
+    }
+
+    public int getFifthSprite() {
+        return fifthSprite;
+    }
+
+    public boolean getCoincidence() {
+        return coincidence;
+    }
+}
@@ -23,13 +23,30 @@
 
 package com.loomcom.symon.devices;
 
+import com.loomcom.symon.Bus;
+import com.loomcom.symon.Scheduler;
 import com.loomcom.symon.exceptions.MemoryAccessException;
 import com.loomcom.symon.exceptions.MemoryRangeException;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
- * Very basic implementation of a MOS 6522 VIA.
- *
- * TODO: Implement timers as threads.
+ * Implementation of a MOS 6522 VIA, with its two timers, shift register
+ * and interrupt logic. The ports are plain registers; inputs read high.
+ * <p>
+ * The timers are not ticked. Each one remembers the cycle at which it was
+ * loaded, and its count is worked out from the bus scheduler's cycle count
+ * when it is read. Expiries are caught up on the next access, and an event
+ * is only scheduled for an expiry that would raise an enabled interrupt, so
+ * an idle VIA costs nothing. The scheduler is advanced after each
+ * instruction, so an access sees the cycle count at the start of the
+ * instruction making it.
+ * <p>
+ * CA1, CA2, CB1 and CB2 are not connected: T2 can't count pulses, and the
+ * shift register can't be clocked externally. Data is shifted in from
+ * {@link #shiftIn()} and out to {@link #shiftOut(int)}.
  */
 public class Via6522 extends Pia {
     public static final int VIA_SIZE = 16;
@@ -39,71 +56,483 @@ public class Via6522 extends Pia {
         T2C_L, T2C_H, SR, ACR, PCR, IFR, IER, ORA_H
     }
 
+    // Cached, since values() allocates a new array on every call
+    static final Register[] REGISTERS = Register.values();
+
+    // Interrupt flag and enable bits
+    public static final int IRQ_CA2 = 0x01;
+    public static final int IRQ_CA1 = 0x02;
+    public static final int IRQ_SR = 0x04;
+    public static final int IRQ_CB2 = 0x08;
+    public static final int IRQ_CB1 = 0x10;
+    public static final int IRQ_T2 = 0x20;
+    public static final int IRQ_T1 = 0x40;
+    public static final int IRQ_ANY = 0x80;
+
+    // Auxiliary control register bits
+    private static final int ACR_T1_FREE_RUN = 0x40;
+    private static final int ACR_T2_PULSE_COUNT = 0x20;
+    private static final int ACR_SR_MODE = 0x1c;
+
+    // Shift register modes, ACR bits 2-4
+    private static final int SR_DISABLED = 0x00;
+    private static final int SR_IN_T2 = 0x04;
+    private static final int SR_IN_PHI2 = 0x08;
+    private static final int SR_IN_EXT = 0x0c;
+    private static final int SR_OUT_FREE_T2 = 0x10;
+    private static final int SR_OUT_T2 = 0x14;
+    private static final int SR_OUT_PHI2 = 0x18;
+    private static final int SR_OUT_EXT = 0x1c;
+
+    private static final long NEVER = Long.MAX_VALUE;
+
+    private int ora, orb, ddra, ddrb;
+    private int acr, pcr;
+    private int ifr, ier;
+
+    // True while an enabled interrupt flag is set
+    private boolean irqActive;
+
+    // Timer 1: the latch, the value last loaded into the counter and the cycle at
+    // which it was loaded, and the cycle of the next time-out, or NEVER
+    private int t1Latch;
+    private int t1Loaded;
+    private long t1LoadCycle;
+    private long t1Expiry = NEVER;
+
+    // Timer 2: as timer 1. In pulse counting mode the counter holds its value.
+    private int t2LatchLow;
+    private int t2Loaded;
+    private long t2LoadCycle;
+    private long t2Expiry = NEVER;
+
+    // The shift register, and the cycle at which the current shift completes, or NEVER
+    private int sr;
+    private long srExpiry = NEVER;
+
+    private final Scheduler.Event timerEvent = new Scheduler.Event() {
+        @Override
+        public void fire() {
+            update();
+        }
+    };
+
     public Via6522(int address) throws MemoryRangeException {
         super(address, address + VIA_SIZE - 1, "MOS 6522 VIA");
     }
 
     @Override
-    public void write(int address, int data) throws MemoryAccessException {
-        Register[] registers = Register.values();
+    public void setBus(Bus bus) {
+        Scheduler scheduler = scheduler();
+        if (scheduler != null) {
+            scheduler.cancel(timerEvent);
+        }
+        super.setBus(bus);
+    }
 
-        if (address >= registers.length) {
+    @Override
+    public void write(int address, int data) throws MemoryAccessException {
+        if (address >= REGISTERS.length) {
             throw new MemoryAccessException("Unknown register: " + address);
         }
 
-        Register r = registers[address];
+        data &= 0xff;
+        long now = now();
+        catchUp(now);
 
-        switch (r) {
+        switch (REGISTERS[address]) {
             case ORA:
+            case ORA_H:
+                ora = data;
+                break;
             case ORB:
+                orb = data;
+                break;
             case DDRA:
+                ddra = data;
+                break;
             case DDRB:
+                ddrb = data;
+                break;
             case T1C_L:
-            case T1C_H:
             case T1L_L:
+                t1Latch = (t1Latch & 0xff00) | data;
+                break;
+            case T1C_H:
+                t1Latch = (t1Latch & 0x00ff) | (data << 8);
+                t1Loaded = t1Latch;
+                t1LoadCycle = now;
+                t1Expiry = now + t1Loaded + 1;
+                ifr &= ~IRQ_T1;
+                break;
             case T1L_H:
+                t1Latch = (t1Latch & 0x00ff) | (data << 8);
+                ifr &= ~IRQ_T1;
+                break;
             case T2C_L:
+                t2LatchLow = data;
+                break;
             case T2C_H:
+                t2Loaded = (data << 8) | t2LatchLow;
+                t2LoadCycle = now;
+                t2Expiry = (acr & ACR_T2_PULSE_COUNT) != 0 ? NEVER : now + t2Loaded + 1;
+                ifr &= ~IRQ_T2;
+                break;
             case SR:
+                sr = data;
+                startShift(now);
+                break;
             case ACR:
+                writeAcr(data, now);
+                break;
             case PCR:
+                pcr = data;
+                break;
             case IFR:
+                ifr &= ~data;
+                break;
             case IER:
-            case ORA_H:
-            default:
+                if ((data & IRQ_ANY) != 0) {
+                    ier |= data & 0x7f;
+                } else {
+                    ier &= ~data;
+                }
+                break;
         }
+
+        update(now);
     }
 
     @Override
     public int read(int address, boolean cpuAccess) throws MemoryAccessException {
-        Register[] registers = Register.values();
-
-        if (address >= registers.length) {
+        if (address >= REGISTERS.length) {
             throw new MemoryAccessException("Unknown register: " + address);
         }
 
-        Register r = registers[address];
+        long now = now();
+        if (!cpuAccess) {
+            return peek(REGISTERS[address], now);
+        }
+
+        catchUp(now);
+        int data = peek(REGISTERS[address], now);
 
-        switch (r) {
+        switch (REGISTERS[address]) {
+            case T1C_L:
+                ifr &= ~IRQ_T1;
+                break;
+            case T2C_L:
+                ifr &= ~IRQ_T2;
+                break;
+            case SR:
+                startShift(now);
+                break;
+            default:
+                return data;
+        }
+
+        update(now);
+        return data;
+    }
+
+    /**
+     * The counters count down, and reading the shift register starts a shift,
+     * but the interrupt flags only change when a time-out falls due.
+     */
+    @Override
+    public long stableUntil(int address) {
+        if (address >= REGISTERS.length) {
+            return 0L;
+        }
+        switch (REGISTERS[address]) {
+            case T1C_L:
+            case T1C_H:
+            case T2C_L:
+            case T2C_H:
+            case SR:
+                return 0L;
+            case IFR:
+                return Math.min(t1Expiry, Math.min(t2Expiry, srExpiry));
+            default:
+                return NEVER;
+        }
+    }
+
+    /**
+     * @return The value of a register, without side effects.
+     */
+    private int peek(Register register, long now) {
+        switch (register) {
             case ORA:
+            case ORA_H:
+                return (ora & ddra) | (~ddra & 0xff);
             case ORB:
+                return (orb & ddrb) | (~ddrb & 0xff);
             case DDRA:
+                return ddra;
             case DDRB:
+                return ddrb;
             case T1C_L:
+                return t1Counter(now) & 0xff;
             case T1C_H:
+                return t1Counter(now) >>> 8;
             case T1L_L:
+                return t1Latch & 0xff;
             case T1L_H:
+                return t1Latch >>> 8;
             case T2C_L:
+                return t2Counter(now) & 0xff;
             case T2C_H:
+                return t2Counter(now) >>> 8;
             case SR:
+                return sr;
             case ACR:
+                return acr;
             case PCR:
+                return pcr;
             case IFR:
+                int flags = ifr | pendingFlags(now);
+                return (flags & ier) != 0 ? flags | IRQ_ANY : flags;
             case IER:
-            case ORA_H:
+                return ier | IRQ_ANY;
             default:
+                return 0;
         }
+    }
+
+    /**
+     * The timers are saved as they are held, by load and expiry cycle, so they
+     * carry on counting from the restored scheduler cycle.
+     */
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        out.writeInt(ora);
+        out.writeInt(orb);
+        out.writeInt(ddra);
+        out.writeInt(ddrb);
+        out.writeInt(acr);
+        out.writeInt(pcr);
+        out.writeInt(ifr);
+        out.writeInt(ier);
+        out.writeBoolean(irqActive);
+        out.writeInt(t1Latch);
+        out.writeInt(t1Loaded);
+        out.writeLong(t1LoadCycle);
+        out.writeLong(t1Expiry);
+        out.writeInt(t2LatchLow);
+        out.writeInt(t2Loaded);
+        out.writeLong(t2LoadCycle);
+        out.writeLong(t2Expiry);
+        out.writeInt(sr);
+        out.writeLong(srExpiry);
+    }
+
+    @Override
+    public void loadState(DataInput in) throws IOException {
+        ora = in.readInt();
+        orb = in.readInt();
+        ddra = in.readInt();
+        ddrb = in.readInt();
+        acr = in.readInt();
+        pcr = in.readInt();
+        ifr = in.readInt();
+        ier = in.readInt();
+        irqActive = in.readBoolean();
+        t1Latch = in.readInt();
+        t1Loaded = in.readInt();
+        t1LoadCycle = in.readLong();
+        t1Expiry = in.readLong();
+        t2LatchLow = in.readInt();
+        t2Loaded = in.readInt();
+        t2LoadCycle = in.readLong();
+        t2Expiry = in.readLong();
+        sr = in.readInt();
+        srExpiry = in.readLong();
+        update();
+    }
+
+    /**
+     * Called when a byte is shifted in. Input on CB2 reads high unless overridden.
+     */
+    protected int shiftIn() {
+        return 0xff;
+    }
+
+    /**
+     * Called when a byte has been shifted out on CB2.
+     */
+    protected void shiftOut(int data) {
+    }
+
+    private int t1Counter(long now) {
+        long elapsed = now - t1LoadCycle;
+        if (elapsed < 0) {
+            // Reloading: the counter passes through $FFFF for one cycle
+            return 0xffff;
+        }
+        if ((acr & ACR_T1_FREE_RUN) == 0 || elapsed <= t1Loaded) {
+            return (int) ((t1Loaded - elapsed) & 0xffff);
+        }
+        // A reload that hasn't been caught up yet
+        long phase = elapsed - t1Loaded - 2;
+        if (phase >= 0) {
+            phase %= t1Latch + 2L;
+        }
+        return phase < 0 || phase > t1Latch ? 0xffff : (int) (t1Latch - phase);
+    }
+
+    private int t2Counter(long now) {
+        if ((acr & ACR_T2_PULSE_COUNT) != 0) {
+            return t2Loaded;
+        }
+        return (int) ((t2Loaded - (now - t2LoadCycle)) & 0xffff);
+    }
+
+    private void writeAcr(int data, long now) {
+        if (((acr ^ data) & ACR_T2_PULSE_COUNT) != 0) {
+            // Freeze or restart timer 2 at its current count
+            t2Loaded = t2Counter(now);
+            t2LoadCycle = now;
+            if ((data & ACR_T2_PULSE_COUNT) != 0) {
+                t2Expiry = NEVER;
+            } else if ((ifr & IRQ_T2) == 0) {
+                t2Expiry = now + t2Loaded + 1;
+            }
+        }
+        if (((acr ^ data) & ACR_SR_MODE) != 0) {
+            srExpiry = NEVER;
+        }
+        acr = data;
+    }
+
+    /**
+     * Start shifting eight bits, after the shift register is read or written.
+     */
+    private void startShift(long now) {
+        ifr &= ~IRQ_SR;
+        switch (acr & ACR_SR_MODE) {
+            case SR_IN_PHI2:
+            case SR_OUT_PHI2:
+                srExpiry = now + 8;
+                break;
+            case SR_IN_T2:
+            case SR_OUT_T2:
+                // CB1 toggles each time the low byte of timer 2 counts down
+                srExpiry = now + 16L * (t2LatchLow + 2);
+                break;
+            case SR_DISABLED:
+            case SR_IN_EXT:
+            case SR_OUT_EXT:
+            case SR_OUT_FREE_T2:
+            default:
+                // No external clock, and free-running output never interrupts
+                srExpiry = NEVER;
+                break;
+        }
+    }
+
+    /**
+     * @return The interrupt flags of any time-outs that have passed, but not yet been caught up.
+     */
+    private int pendingFlags(long now) {
+        int flags = 0;
+        if (now >= t1Expiry) {
+            flags |= IRQ_T1;
+        }
+        if (now >= t2Expiry) {
+            flags |= IRQ_T2;
+        }
+        if (now >= srExpiry) {
+            flags |= IRQ_SR;
+        }
+        return flags;
+    }
+
+    /**
+     * Set the interrupt flags of any time-outs up to now, and work out when each
+     * timer next times out.
+     */
+    private void catchUp(long now) {
+        if (now >= t1Expiry) {
+            ifr |= IRQ_T1;
+            if ((acr & ACR_T1_FREE_RUN) != 0) {
+                // Reload from the latch one cycle after passing through $FFFF,
+                // skipping whole periods that passed unobserved
+                long period = t1Latch + 2L;
+                long reload = t1Expiry + 1;
+                if (now >= reload) {
+                    reload += ((now - reload) / period) * period;
+                }
+                if (reload + t1Latch + 1 <= now) {
+                    reload += period;
+                }
+                t1Loaded = t1Latch;
+                t1LoadCycle = reload;
+                t1Expiry = reload + t1Loaded + 1;
+            } else {
+                t1Expiry = NEVER;
+            }
+        }
+        if (now >= t2Expiry) {
+            ifr |= IRQ_T2;
+            t2Expiry = NEVER;
+        }
+        if (now >= srExpiry) {
+            ifr |= IRQ_SR;
+            srExpiry = NEVER;
+            if ((acr & ACR_SR_MODE) <= SR_IN_EXT) {
+                sr = shiftIn() & 0xff;
+            } else {
+                shiftOut(sr);
+            }
+        }
+    }
+
+    private void update() {
+        update(now());
+    }
+
+    /**
+     * Catch up the timers, raise the IRQ if an enabled flag has been set, and
+     * schedule the next time-out that would raise it.
+     */
+    private void update(long now) {
+        catchUp(now);
+        boolean active = (ifr & ier) != 0;
+        Bus bus = getBus();
+        if (active && !irqActive && bus != null) {
+            bus.assertIrq();
+        }
+        irqActive = active;
+
+        Scheduler scheduler = scheduler();
+        if (scheduler == null) {
+            return;
+        }
+        long next = NEVER;
+        if ((ier & IRQ_T1) != 0) {
+            next = Math.min(next, t1Expiry);
+        }
+        if ((ier & IRQ_T2) != 0) {
+            next = Math.min(next, t2Expiry);
+        }
+        if ((ier & IRQ_SR) != 0) {
+            next = Math.min(next, srExpiry);
+        }
+        if (next == NEVER) {
+            scheduler.cancel(timerEvent);
+        } else if (!timerEvent.isScheduled() || timerEvent.getCycle() != next) {
+            scheduler.scheduleAt(timerEvent, next);
+        }
+    }
+
+    private Scheduler scheduler() {
+        Bus bus = getBus();
+        return bus == null ? null : bus.getScheduler();
+    }
 
-        return 0;
+    private long now() {
+        Scheduler scheduler = scheduler();
+        return scheduler == null ? 0 : scheduler.now();
     }
 }
@@ -6,6 +6,9 @@ import com.loomcom.symon.exceptions.MemoryAccessException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.awt.event.KeyEvent;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
 public class Via6522Keyboard extends Via6522 {
     private char keyMatrix[];
@@ -129,13 +132,11 @@ public class Via6522Keyboard extends Via6522 {
 
     @Override
     public void write(int address, int data) throws MemoryAccessException {
-        Register[] registers = Register.values();
-
-        if (address >= registers.length) {
+        if (address >= REGISTERS.length) {
             throw new MemoryAccessException("Unknown register: " + address);
         }
 
-        Register r = registers[address];
+        Register r = REGISTERS[address];
         char bdata = (char)(data&0xFF);
         switch (r) {
             case ORA:
@@ -153,30 +154,18 @@ public class Via6522Keyboard extends Via6522 {
                 // direction bitwise 1=output 0=input
                 portBDirection = (char)(bdata&0xFF);
                 break;
-            case T1C_L:
-            case T1C_H:
-            case T1L_L:
-            case T1L_H:
-            case T2C_L:
-            case T2C_H:
-            case SR:
-            case ACR:
-            case PCR:
-            case IFR:
-            case IER:
-            case ORA_H:
             default:
+                // Timers, shift register and interrupts
+                super.write(address, data);
         }
     }
     @Override
     public int read(int address, boolean cpuAccess) throws MemoryAccessException {
-        Register[] registers = Register.values();
-
-        if (address >= registers.length) {
+        if (address >= REGISTERS.length) {
             throw new MemoryAccessException("Unknown register: " + address);
         }
 
-        Register r = registers[address];
+        Register r = REGISTERS[address];
 
         switch (r) {
             case ORA:
@@ -187,22 +176,34 @@ public class Via6522Keyboard extends Via6522 {
                 return (int) portADirection;
             case DDRB:
                 return (int) portBDirection;
-            case T1C_L:
-            case T1C_H:
-            case T1L_L:
-            case T1L_H:
-            case T2C_L:
-            case T2C_H:
-            case SR:
-            case ACR:
-            case PCR:
-            case IFR:
-            case IER:
-            case ORA_H:
             default:
+                // Timers, shift register and interrupts
+                return super.read(address, cpuAccess);
         }
+    }
 
-        return 0;
+    @Override
+    public void saveState(DataOutput out) throws IOException {
+        super.saveState(out);
+        for (char row : keyMatrix) {
+            out.writeChar(row);
+        }
+        out.writeChar(portADirection);
+        out.writeChar(portBDirection);
+        out.writeChar(portAState);
+        out.writeChar(portBState);
+    }
+
+    @Override
+    public void loadState(DataInput in) throws IOException {
+        super.loadState(in);
+        for (int i = 0; i < keyMatrix.length; i++) {
+            keyMatrix[i] = in.readChar();
+        }
+        portADirection = in.readChar();
+        portBDirection = in.readChar();
+        portAState = in.readChar();
+        portBState = in.readChar();
     }
 
     private char getKeyState(boolean isPortA)
@@ -23,6 +23,7 @@
 
 package com.loomcom.symon.ui;
 
+import com.loomcom.symon.BreakpointCondition;
 import com.loomcom.symon.Breakpoints;
 import com.loomcom.symon.util.Utils;
 import org.slf4j.Logger;
@@ -37,13 +38,15 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 
 /**
- * Simple window to enter breakpoints.
+ * Simple window to enter breakpoints. A breakpoint may have a condition on the
+ * registers, such as <code>A == $10 &amp;&amp; C == 1</code>, and may be set to
+ * break only after it has been hit a number of times.
  */
 public class BreakpointsWindow extends JFrame {
 
     private static final Logger logger = LoggerFactory.getLogger(BreakpointsWindow.class);
 
-    private static final Dimension FRAME_SIZE = new Dimension(240, 280);
+    private static final Dimension FRAME_SIZE = new Dimension(480, 280);
     private static final String EMPTY_STRING = "";
 
     private JFrame mainWindow;
@@ -75,6 +78,15 @@ public class BreakpointsWindow extends JFrame {
 
         final JTextField addTextField = new JTextField(4);
         addTextField.setFont(BP_FONT);
+        addTextField.setToolTipText("Address, in hex");
+
+        final JTextField conditionTextField = new JTextField(10);
+        conditionTextField.setFont(BP_FONT);
+        conditionTextField.setToolTipText("Optional condition, e.g. A == $10 && C == 1");
+
+        final JTextField hitsTextField = new JTextField(3);
+        hitsTextField.setFont(BP_FONT);
+        hitsTextField.setToolTipText("Break after this many hits");
 
         final JTable breakpointsTable = new JTable(breakpoints);
         breakpointsTable.setShowGrid(true);
@@ -120,16 +132,42 @@ public class BreakpointsWindow extends JFrame {
                     return;
                 }
 
-                breakpoints.addBreakpoint(value);
+                BreakpointCondition condition = null;
+                String conditionText = conditionTextField.getText().trim();
+                if (!conditionText.isEmpty()) {
+                    try {
+                        condition = new BreakpointCondition(conditionText);
+                    } catch (IllegalArgumentException ex) {
+                        logger.warn("Can't parse condition {}", conditionText);
+                        return;
+                    }
+                }
+
+                int breakAfter = 1;
+                String hitsText = hitsTextField.getText().trim();
+                if (!hitsText.isEmpty()) {
+                    try {
+                        breakAfter = Integer.parseInt(hitsText);
+                    } catch (NumberFormatException ex) {
+                        logger.warn("Can't parse hit count {}", hitsText);
+                        return;
+                    }
+                }
+
+                breakpoints.addBreakpoint(new Breakpoints.Breakpoint(value, condition, breakAfter));
 
                 logger.debug("Added breakpoint ${}", Utils.wordToHex(value));
 
                 addTextField.setText(EMPTY_STRING);
+                conditionTextField.setText(EMPTY_STRING);
+                hitsTextField.setText(EMPTY_STRING);
             }
         };
 
         addButton.addActionListener(addBreakpointListener);
         addTextField.addActionListener(addBreakpointListener);
+        conditionTextField.addActionListener(addBreakpointListener);
+        hitsTextField.addActionListener(addBreakpointListener);
 
         removeButton.addActionListener(new ActionListener() {
             @Override
@@ -139,6 +177,8 @@ public class BreakpointsWindow extends JFrame {
         });
 
         controlPanel.add(addTextField);
+        controlPanel.add(conditionTextField);
+        controlPanel.add(hitsTextField);
         controlPanel.add(addButton);
         controlPanel.add(removeButton);
 
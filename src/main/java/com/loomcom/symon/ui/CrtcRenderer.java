@@ -0,0 +1,193 @@
+package com.loomcom.symon.ui;
+
+import com.loomcom.symon.devices.Crtc;
+import com.loomcom.symon.exceptions.MemoryAccessException;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Renders the text display of a 6545 CRTC into an array of packed ARGB pixels,
+ * white on black. The renderer has no Swing dependencies; the VideoWindow copies
+ * the pixels into its image, and they can be captured headless.
+ * <p>
+ * The graphical representation of each character is derived from a character
+ * generator ROM image. Only the characters whose code or cursor overlay changed
+ * since the last frame are drawn again.
+ */
+public class CrtcRenderer implements FrameRenderer {
+
+    private static final Logger logger = Logger.getLogger(CrtcRenderer.class.getName());
+
+    private static final int CHAR_WIDTH = 8;
+    private static final int CHAR_HEIGHT = 8;
+
+    private static final int BLACK = 0xff000000;
+    private static final int WHITE = 0xffffffff;
+
+    // Marks a cell as showing the cursor, above the character code
+    private static final int CURSOR = 0x100;
+
+    private final Crtc crtc;
+
+    // One byte per pixel of each glyph, 0 or 1
+    private final byte[] charRom;
+
+    private int horizontalDisplayed;
+    private int verticalDisplayed;
+    private int scanLinesPerRow;
+    private int rasterWidth;
+    private int rasterHeight;
+    private int cursorStartLine;
+    private int cursorStopLine;
+
+    private int[] finalPixels = new int[0];
+
+    // What each cell showed when it was last drawn, or -1 to draw it again
+    private int[] cells = new int[0];
+
+    private volatile boolean cursorHidden;
+
+    public CrtcRenderer(Crtc crtc) throws IOException {
+        this.crtc = crtc;
+        this.charRom = loadCharRom("/ascii.rom");
+        resize();
+    }
+
+    /**
+     * Hide the cursor, for the off half of its blink.
+     */
+    public void setCursorHidden(boolean cursorHidden) {
+        this.cursorHidden = cursorHidden;
+    }
+
+    /**
+     * Show or hide the cursor according to its blink rate, at a given point in
+     * emulated time, so that frames captured headless are repeatable.
+     */
+    public void setCursorBlinkTime(long millis) {
+        int rate = crtc.getCursorBlinkRate();
+        setCursorHidden(rate > 0 && (millis / rate) % 2 == 1);
+    }
+
+    @Override
+    public int getRasterWidth() {
+        return rasterWidth;
+    }
+
+    @Override
+    public int getRasterHeight() {
+        return rasterHeight;
+    }
+
+    @Override
+    public int[] getFinalPixels() {
+        return finalPixels;
+    }
+
+    @Override
+    public boolean computeFinalPixels() {
+        boolean changed = false;
+        if (horizontalDisplayed != crtc.getHorizontalDisplayed() ||
+            verticalDisplayed != crtc.getVerticalDisplayed() ||
+            scanLinesPerRow != crtc.getScanLinesPerRow()) {
+            resize();
+            changed = true;
+        }
+        if (cursorStartLine != crtc.getCursorStartLine() || cursorStopLine != crtc.getCursorStopLine()) {
+            cursorStartLine = crtc.getCursorStartLine();
+            cursorStopLine = crtc.getCursorStopLine();
+            Arrays.fill(cells, -1);
+        }
+
+        boolean showCursor = !cursorHidden && crtc.isCursorEnabled();
+        int cursorPosition = crtc.getCursorPosition();
+        int pageSize = Math.min(crtc.getPageSize(), cells.length);
+
+        try {
+            for (int i = 0; i < pageSize; i++) {
+                int address = crtc.getStartAddress() + i;
+                int cell = crtc.getCharAtAddress(address) & 0xff;
+                if (showCursor && address == cursorPosition) {
+                    cell |= CURSOR;
+                }
+                if (cells[i] != cell) {
+                    cells[i] = cell;
+                    drawCell(i, cell);
+                    changed = true;
+                }
+            }
+        } catch (MemoryAccessException ex) {
+            logger.log(Level.SEVERE, "Memory Access Exception, can't render video! " + ex.getMessage());
+        }
+        return changed;
+    }
+
+    /**
+     * Draw one character, overlaid with the cursor if it is there. The cursor
+     * overlay simulates an XOR of the Character Rom output and the 6545 Cursor
+     * output.
+     */
+    private void drawCell(int i, int cell) {
+        int originX = (i % horizontalDisplayed) * CHAR_WIDTH;
+        int originY = (i / horizontalDisplayed) * scanLinesPerRow;
+        int romOffset = (cell & 0xff) * (CHAR_HEIGHT * CHAR_WIDTH);
+
+        for (int line = 0; line < scanLinesPerRow; line++) {
+            boolean inverted = (cell & CURSOR) != 0 && line >= cursorStartLine && line <= cursorStopLine;
+            int offset = (originY + line) * rasterWidth + originX;
+            for (int x = 0; x < CHAR_WIDTH; x++) {
+                boolean lit = line < CHAR_HEIGHT && romOffset + line * CHAR_WIDTH + x < charRom.length &&
+                              charRom[romOffset + line * CHAR_WIDTH + x] != 0;
+                finalPixels[offset + x] = (lit != inverted) ? WHITE : BLACK;
+            }
+        }
+    }
+
+    private void resize() {
+        horizontalDisplayed = crtc.getHorizontalDisplayed();
+        verticalDisplayed = crtc.getVerticalDisplayed();
+        scanLinesPerRow = crtc.getScanLinesPerRow();
+        rasterWidth = CHAR_WIDTH * horizontalDisplayed;
+        rasterHeight = scanLinesPerRow * verticalDisplayed;
+        finalPixels = new int[rasterWidth * rasterHeight];
+        Arrays.fill(finalPixels, BLACK);
+        cells = new int[horizontalDisplayed * verticalDisplayed];
+        Arrays.fill(cells, -1);
+    }
+
+    /**
+     * Load a Character ROM file and convert it into one byte per pixel.
+     *
+     * @param resource The ROM file resource to load.
+     * @return An array of glyphs, 64 pixels each.
+     */
+    private byte[] loadCharRom(String resource) throws IOException {
+        InputStream in = CrtcRenderer.class.getResourceAsStream(resource);
+        if (in == null) {
+            throw new IOException("Character ROM " + resource + " not found");
+        }
+        try (BufferedInputStream bis = new BufferedInputStream(in)) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            int b;
+            while ((b = bis.read()) >= 0) {
+                bos.write(b);
+            }
+            byte[] raw = bos.toByteArray();
+
+            byte[] converted = new byte[raw.length * CHAR_WIDTH];
+            int i = 0;
+            for (byte charRow : raw) {
+                for (int j = 7; j >= 0; j--) {
+                    converted[i++] = (byte) ((charRow >> j) & 1);
+                }
+            }
+            return converted;
+        }
+    }
+}
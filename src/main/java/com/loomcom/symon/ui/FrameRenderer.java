@@ -0,0 +1,26 @@
+package com.loomcom.symon.ui;
+
+/**
+ * Turns the state of a video device into a frame of packed ARGB pixels, with no
+ * Swing dependencies, so that frames can be drawn in a window or captured
+ * headless.
+ */
+public interface FrameRenderer {
+
+    int getRasterWidth();
+
+    int getRasterHeight();
+
+    /**
+     * Bring the final pixels up to date with the device.
+     *
+     * @return True if any pixels, or the size of the frame, changed.
+     */
+    boolean computeFinalPixels();
+
+    /**
+     * @return The pixels drawn by the last call to computeFinalPixels(), as
+     * packed ARGB, row by row.
+     */
+    int[] getFinalPixels();
+}
@@ -226,6 +226,7 @@ public class MemoryWindow extends JFrame implements ActionListener {
      * Refresh the view of memory
      */
     public void updateState() {
+        memoryTableModel.refresh();
         memoryTable.updateUI();
     }
 
@@ -280,11 +281,23 @@ public class MemoryWindow extends JFrame implements ActionListener {
         private Bus bus;
         private int pageNumber;
 
+        // Snapshot of the page being inspected, read from the bus in one block.
+        // Unreadable addresses hold -1.
+        private final int[] pageData = new int[256];
+
         private static final int COLUMN_COUNT = 17;
         private static final int ROW_COUNT = 32;
 
         public MemoryTableModel(Bus bus) {
             this.bus = bus;
+            refresh();
+        }
+
+        /**
+         * Re-read the current page from the bus.
+         */
+        public void refresh() {
+            bus.dump(pageNumber << 8, pageData);
         }
 
         /**
@@ -294,6 +307,7 @@ public class MemoryWindow extends JFrame implements ActionListener {
          */
         public void setPageNumber(int pageNumber) {
             this.pageNumber = pageNumber;
+            refresh();
         }
 
         /**
@@ -329,18 +343,19 @@ public class MemoryWindow extends JFrame implements ActionListener {
         }
 
         public Object getValueAt(int row, int column) {
-            try {
-                if (column == 0) {
-                    return Utils.wordToHex(fullAddress(row, 1));
-                } else if (column < 9) {
-                    // Display hex value of the data
-                    return Utils.byteToHex(bus.read(fullAddress(row, column), false));
-                } else {
-                    // Display the ASCII equivalent (if printable)
-                    return Utils.byteToAscii(bus.read(fullAddress(row, column - 8), false));
-                }
-            } catch (MemoryAccessException ex) {
+            if (column == 0) {
+                return Utils.wordToHex(fullAddress(row, 1));
+            }
+
+            int data = pageData[fullAddress(row, column < 9 ? column : column - 8) & 0xff];
+            if (data < 0) {
                 return "??";
+            } else if (column < 9) {
+                // Display hex value of the data
+                return Utils.byteToHex(data);
+            } else {
+                // Display the ASCII equivalent (if printable)
+                return Utils.byteToAscii(data);
             }
         }
 
@@ -352,6 +367,7 @@ public class MemoryWindow extends JFrame implements ActionListener {
                     int fullAddress = fullAddress(row, column);
                     int newValue = Integer.parseInt(hexValue, 16) & 0xff;
                     bus.write(fullAddress, newValue);
+                    pageData[fullAddress & 0xff] = bus.read(fullAddress, false);
                 } catch (MemoryAccessException | NumberFormatException | ClassCastException ex) {
                     // Intentionally swallow exception
                 }
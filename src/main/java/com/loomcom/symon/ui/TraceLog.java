@@ -25,7 +25,7 @@
 package com.loomcom.symon.ui;
 
 import com.loomcom.symon.CpuState;
-import com.loomcom.symon.util.FifoRingBuffer;
+import com.loomcom.symon.util.TraceRingBuffer;
 
 import javax.swing.*;
 import java.awt.*;
@@ -36,7 +36,7 @@ import java.awt.*;
  */
 public class TraceLog extends JFrame {
 
-    private final FifoRingBuffer<CpuState> traceLog;
+    private final TraceRingBuffer          traceLog;
     private final JTextArea                    traceLogTextArea;
 
     private static final Dimension MIN_SIZE       = new Dimension(356, 240);
@@ -44,7 +44,7 @@ public class TraceLog extends JFrame {
     private static final int       MAX_LOG_LENGTH = 50000;
 
     public TraceLog() {
-        traceLog = new FifoRingBuffer<>(MAX_LOG_LENGTH);
+        traceLog = new TraceRingBuffer(MAX_LOG_LENGTH);
         setMinimumSize(MIN_SIZE);
         setPreferredSize(PREFERRED_SIZE);
         setResizable(true);
@@ -68,13 +68,9 @@ public class TraceLog extends JFrame {
      * call.
      */
     public void refresh() {
-        StringBuilder logString = new StringBuilder();        
-        
-        synchronized(traceLog) {
-            for (CpuState state : traceLog) {
-                logString.append(state.toTraceEvent());
-            }
-        }
+        StringBuilder logString = new StringBuilder();
+
+        traceLog.appendTraceEvents(logString);
 
         synchronized(traceLogTextArea) {
             traceLogTextArea.setText(logString.toString());
@@ -85,9 +81,7 @@ public class TraceLog extends JFrame {
      * Reset the log area.
      */
     public void reset() {
-        synchronized(traceLog) {
-            traceLog.reset();
-        }
+        traceLog.reset();
         synchronized(traceLogTextArea) {
             traceLogTextArea.setText("");
             traceLogTextArea.setEnabled(true);
@@ -95,14 +89,14 @@ public class TraceLog extends JFrame {
     }
 
     /**
-     * Append a CPU State to the trace log.
+     * Append a CPU State to the trace log. The state is packed into a preallocated
+     * buffer, and is only decoded when the log is refreshed. This must only be
+     * called from the simulator thread.
      *
      * @param state The CPU State to append.
      */
     public void append(CpuState state) {
-        synchronized(traceLog) {
-            traceLog.push(new CpuState(state));
-        }
+        traceLog.append(state);
     }
 
     public void simulatorDidStart() {
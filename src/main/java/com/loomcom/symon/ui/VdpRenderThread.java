@@ -0,0 +1,145 @@
+package com.loomcom.symon.ui;
+
+import com.loomcom.symon.devices.Vdp;
+import com.loomcom.symon.devices.VdpSnapshot;
+
+import java.awt.Component;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Renders VDP frames on a thread of their own, into a pair of images.
+ * <p>
+ * At the end of each emulated frame the CPU thread takes a snapshot of the VDP
+ * and hands it to the render thread, which draws it into the back image and
+ * then swaps it with the front one. Painting only ever draws the front image,
+ * so neither the CPU nor the event dispatch thread waits for rendering. If the
+ * renderer is still busy with the last frame when the next one ends, the new
+ * frame is dropped; the VRAM it wrote stays flagged, and is copied with the
+ * next snapshot.
+ */
+public class VdpRenderThread implements Vdp.FrameListener, Runnable {
+
+    private static final Logger logger = Logger.getLogger(VdpRenderThread.class.getName());
+
+    private final Vdp vdp;
+    private final VdpSnapshot snapshot = new VdpSnapshot();
+    private final VdpRenderer renderer = new VdpRenderer(snapshot);
+    private final Component display;
+
+    private final Object imageLock = new Object();
+    private BufferedImage front;
+    private BufferedImage back;
+
+    private final AtomicBoolean busy = new AtomicBoolean(false);
+    private final Semaphore frameReady = new Semaphore(0);
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * @param display The component to repaint when a new frame is ready.
+     */
+    public VdpRenderThread(Vdp vdp, Component display) {
+        this.vdp = vdp;
+        this.display = display;
+        this.front = newImage();
+        this.back = newImage();
+
+        thread = new Thread(this, "VDP Renderer");
+        thread.setDaemon(true);
+        thread.start();
+
+        // Draw whatever the VDP holds now, before the CPU runs a frame
+        frameEnded(vdp);
+        vdp.setFrameListener(this);
+    }
+
+    public int getRasterWidth() {
+        return renderer.getRasterWidth();
+    }
+
+    public int getRasterHeight() {
+        return renderer.getRasterHeight();
+    }
+
+    /**
+     * @return The lock to hold while drawing the front image.
+     */
+    public Object getImageLock() {
+        return imageLock;
+    }
+
+    /**
+     * @return The last frame drawn. Hold the image lock while using it.
+     */
+    public BufferedImage getFrontImage() {
+        return front;
+    }
+
+    /**
+     * Draw everything again on the next frame.
+     */
+    public void invalidate() {
+        renderer.invalidate();
+    }
+
+    /**
+     * Called on the CPU thread at the end of each frame.
+     */
+    @Override
+    public void frameEnded(Vdp vdp) {
+        if (busy.compareAndSet(false, true)) {
+            vdp.snapshot(snapshot);
+            frameReady.release();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                frameReady.acquire();
+            } catch (InterruptedException ex) {
+                continue;
+            }
+            if (!running) {
+                break;
+            }
+            try {
+                // Every pixel is copied, so the image left at the back needs nothing from the last frame
+                if (renderer.computeFinalPixels()) {
+                    back.getRaster().setDataElements(0, 0, renderer.getRasterWidth(), renderer.getRasterHeight(),
+                                                     renderer.getFinalPixels());
+                    synchronized (imageLock) {
+                        BufferedImage drawn = back;
+                        back = front;
+                        front = drawn;
+                    }
+                    display.repaint();
+                }
+            } catch (RuntimeException ex) {
+                logger.log(Level.WARNING, "VDP render failed", ex);
+            } finally {
+                busy.set(false);
+            }
+        }
+    }
+
+    /**
+     * Stop listening to the VDP and let the render thread finish.
+     */
+    public void stop() {
+        vdp.setFrameListener(null);
+        running = false;
+        thread.interrupt();
+        frameReady.release();
+    }
+
+    private BufferedImage newImage() {
+        return new BufferedImage(renderer.getRasterWidth(), renderer.getRasterHeight(),
+                                 BufferedImage.TYPE_INT_ARGB);
+    }
+}
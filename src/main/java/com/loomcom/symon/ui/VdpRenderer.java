@@ -0,0 +1,655 @@
+package com.loomcom.symon.ui;
+
+import com.loomcom.symon.devices.Vdp;
+import com.loomcom.symon.devices.VdpSnapshot;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Renders the TMS9918 VDP display into an array of packed ARGB pixels, including
+ * the border. The renderer has no Swing dependencies, and works from a
+ * {@link VdpSnapshot} of the VDP, so it can run on its own thread.
+ * <p>
+ * The display is drawn a scanline at a time, the way the VDP does it. The
+ * background of a line is drawn into a line buffer, then the sprites the VDP
+ * would show on that line, at most four, and the line is copied into the final
+ * pixels. Sprite overlaps on a line are found with bitmasks of the pixels
+ * already covered, which set the coincidence flag, and the first fifth sprite
+ * found on any line is reported, as the VDP does.
+ * <p>
+ * Rendering is incremental. The snapshot flags every VRAM byte the CPU wrote
+ * since the last frame, and only the lines showing character cells whose name,
+ * pattern or color bytes were written are drawn again. When the sprite tables
+ * change, the lines that showed sprites and the lines that show them now are
+ * drawn again. A register write redraws everything. A static screen costs a
+ * scan of the written flags and nothing more.
+ */
+public class VdpRenderer implements FrameRenderer {
+
+    private static final Logger logger = Logger.getLogger(VdpRenderer.class.getName());
+
+    // The VDP to take a snapshot of before each frame, or null if the caller takes them
+    private final Vdp vdp;
+    private final VdpSnapshot snapshot;
+
+    private int VDPBorderWidth;
+    private int VDPBorderHeight;
+    private int VDPScreenWidth;
+    private int VDPScreenHeight;
+    private int rasterWidth;
+    private int rasterHeight;
+
+    private int[] finalPixels;
+    private final int[] lineBuffer = new int[256];
+
+    private int VDPMode;
+
+    private int VAddr_NameTable;
+    private int VAddr_PatternTable;
+    private int VAddr_ColorTable;
+    private int VAddr_SpriteAttribTable;
+    private int VAddr_SpritePatternTable;
+
+    private boolean bSpritesEnabled;
+    private boolean bLargeSprites;
+    private boolean bSpriteMagnify;
+
+    // The VDP shows at most this many sprites on a line
+    private static final int SPRITES_PER_LINE = 4;
+
+    // A sprite vertical position that ends the sprite attribute table
+    private static final int LAST_SPRITE = 0xD0;
+
+    // The bits of a byte reversed, so the leftmost pixel is bit 0, and the same
+    // with each bit doubled, for magnified sprites
+    private static final int[] REVERSED = new int[256];
+    private static final int[] REVERSED_DOUBLED = new int[256];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            for (int p = 0; p < 8; p++) {
+                if ((b & (0x80 >> p)) != 0) {
+                    REVERSED[b] |= 1 << p;
+                    REVERSED_DOUBLED[b] |= 3 << (p * 2);
+                }
+            }
+        }
+    }
+
+    // The VDP's colors, packed as ARGB, and the same with transparent showing the backdrop
+    private int[] palette;
+    private final int[] colors = new int[16];
+    private int packColBackdrop;
+    private int packColText;
+
+    // VRAM, and the mask of its size, as of the start of the frame
+    private int[] vram;
+    private int vramMask;
+
+    // Patterns (per section in Graphics II) whose pattern or color bytes were written
+    private final boolean[] patternChanged = new boolean[256 * 3];
+    private final boolean[] colorGroupChanged = new boolean[32];
+
+    // Lines to draw again
+    private final boolean[] dirtyLines = new boolean[192];
+
+    // The sprites shown on each line, in priority order, and how many there are
+    private final int[] lineSprites = new int[192 * SPRITES_PER_LINE];
+    private final int[] lineSpriteCount = new int[192];
+
+    // Pixels of the line being drawn covered by any sprite, and by a visible one, one bit each
+    private final long[] coveredPixels = new long[4];
+    private final long[] paintedPixels = new long[4];
+
+    private volatile boolean fullRedrawRequested = true;
+    private int lastRegisterWrites;
+
+    // Sprite status found while drawing the sprites: the first fifth sprite, or -1, and coincidence
+    private int fifthSprite = -1;
+    private boolean coincidence = false;
+
+    /**
+     * A renderer that takes a snapshot of the VDP itself, at the start of each frame.
+     */
+    public VdpRenderer(Vdp vdp) {
+        this(vdp, new VdpSnapshot());
+    }
+
+    /**
+     * A renderer that draws whatever is in the snapshot. The caller keeps the snapshot up to date.
+     */
+    public VdpRenderer(VdpSnapshot snapshot) {
+        this(null, snapshot);
+    }
+
+    private VdpRenderer(Vdp vdp, VdpSnapshot snapshot) {
+        this.vdp = vdp;
+        this.snapshot = snapshot;
+        this.VDPBorderWidth = 8;
+        this.VDPBorderHeight = 8;
+        this.VDPScreenWidth = 256;
+        this.VDPScreenHeight = 192;
+
+        this.rasterWidth = VDPBorderWidth*2 + VDPScreenWidth;
+        this.rasterHeight = VDPBorderHeight*2 + VDPScreenHeight;
+
+        this.finalPixels = new int[rasterWidth*rasterHeight];
+    }
+
+    @Override
+    public int getRasterWidth() {
+        return rasterWidth;
+    }
+
+    @Override
+    public int getRasterHeight() {
+        return rasterHeight;
+    }
+
+    @Override
+    public int[] getFinalPixels() {
+        return finalPixels;
+    }
+
+    private void setMode()
+    {
+        VDPMode = snapshot.getMode();
+        if (VDPMode==Vdp.DM_TEXT)
+        {
+            VDPScreenWidth = 240;
+        } else {
+            VDPScreenWidth = 256;
+        }
+        bSpritesEnabled = (VDPMode != Vdp.DM_TEXT);
+        bLargeSprites = snapshot.getSpriteLarge();
+        bSpriteMagnify = snapshot.getSpriteMagnify();
+    }
+
+    /**
+     * Draw everything again on the next frame.
+     */
+    public void invalidate() {
+        fullRedrawRequested = true;
+    }
+
+    /**
+     * Bring the final pixels up to date with the snapshot, drawing only what has
+     * changed since the last call.
+     *
+     * @return True if any pixels changed.
+     */
+    @Override
+    public boolean computeFinalPixels()
+    {
+        if (vdp != null) {
+            vdp.snapshot(snapshot);
+        }
+
+        int registerWrites = snapshot.getRegisterWrites();
+        boolean full = fullRedrawRequested ||
+                       registerWrites != lastRegisterWrites ||
+                       vram != snapshot.getVram();
+
+        if (full) {
+            fullRedrawRequested = false;
+            lastRegisterWrites = registerWrites;
+            vram = snapshot.getVram();
+            vramMask = vram.length - 1;
+            pickUpRegisters();
+        } else if (!snapshot.hasChanges()) {
+            return false;
+        }
+
+        int lines = findDirtyLines(full);
+        // sprites in modes 0,2,4 (not text mode)
+        boolean spritesChanged = bSpritesEnabled &&
+                                 (full ||
+                                  snapshot.rangeChanged(VAddr_SpriteAttribTable, 128) ||
+                                  snapshot.rangeChanged(VAddr_SpritePatternTable, 2048));
+        if (spritesChanged) {
+            lines += evaluateSprites();
+        }
+        snapshot.clearChanges();
+
+        if (lines == 0) {
+            return false;
+        }
+
+        if (full) {
+            Arrays.fill(finalPixels, packColBackdrop);
+        }
+        for (int y = 0; y < VDPScreenHeight; y++) {
+            if (dirtyLines[y]) {
+                dirtyLines[y] = false;
+                drawLine(y);
+            }
+        }
+
+        // Every line with sprites on it was drawn, so the status is complete
+        if (full || spritesChanged) {
+            snapshot.setSpriteStatus(fifthSprite, coincidence);
+        }
+        return true;
+    }
+
+    /**
+     * Draw one scanline: the background, then the sprites on it.
+     */
+    private void drawLine(int y)
+    {
+        // VDPMode is mode as defined by bits M1, M2 and M3 of VDP regs 0 and 1
+        if (VDPMode == Vdp.DM_GRAPHICSI) {
+            drawGraphicsILine(y);
+        } else if (VDPMode == Vdp.DM_TEXT) {
+            drawTextLine(y);
+        } else if (VDPMode == Vdp.DM_GRAPHICSII) {
+            drawGraphicsIILine(y);
+        } else if (VDPMode == Vdp.DM_MULTICOLOR) {
+            drawMulticolorLine(y);
+        }
+
+        if (bSpritesEnabled && lineSpriteCount[y] > 0) {
+            drawSpriteLine(y);
+        }
+
+        System.arraycopy(lineBuffer, 0, finalPixels,
+                         (y + VDPBorderHeight)*rasterWidth + VDPBorderWidth, VDPScreenWidth);
+    }
+
+    /**
+     * Put one row of a pattern into the line buffer.
+     */
+    private void drawPatternRow(int x, int width, int ch, int packColFG, int packColBG)
+    {
+        for (int p = 0; p < width; p++)
+        {
+            lineBuffer[x + p] = ((ch << p) & 0x80) == 0 ? packColBG : packColFG;
+        }
+    }
+
+    private void drawGraphicsILine(int y)
+    {
+        int names = VAddr_NameTable + (y >> 3)*32;
+        int row = y & 7;
+
+        for (int column = 0; column < 32; column++)
+        {
+            // Look up the pattern (ASCII num of char) from NameTable
+            int pat = vram[(names + column) & vramMask];
+            int ch = vram[(VAddr_PatternTable + pat*8 + row) & vramMask];
+            // Color byte contains FG and BG color, for a group of 8 patterns
+            int col = vram[(VAddr_ColorTable + (pat >> 3)) & vramMask];
+            drawPatternRow(column*8, 8, ch, colors[col >> 4], colors[col & 0xF]);
+        }
+    }
+
+    private void drawTextLine(int y)
+    {
+        int names = VAddr_NameTable + (y >> 3)*40;
+        int row = y & 7;
+
+        // 6 pixels of each pattern, in the standard Backdrop and Foreground colours
+        for (int column = 0; column < 40; column++)
+        {
+            int pat = vram[(names + column) & vramMask];
+            int ch = vram[(VAddr_PatternTable + pat*8 + row) & vramMask];
+            drawPatternRow(column*6, 6, ch, packColText, packColBackdrop);
+        }
+    }
+
+    private void drawGraphicsIILine(int y)
+    {
+        // Mode 2 screen is split into 3 sections of 256, for name, pattern and color tables
+        int section = y >> 6;
+        int names = VAddr_NameTable + (y >> 3)*32;
+        int row = y & 7;
+
+        for (int column = 0; column < 32; column++)
+        {
+            int pat = vram[(names + column) & vramMask];
+            int offset = section*0x800 + pat*8 + row;
+            int ch = vram[(VAddr_PatternTable + offset) & vramMask];
+            int col = vram[(VAddr_ColorTable + offset) & vramMask];
+            drawPatternRow(column*8, 8, ch, colors[col >> 4], colors[col & 0xF]);
+        }
+    }
+
+    private void drawMulticolorLine(int y)
+    {
+        int names = VAddr_NameTable + (y >> 3)*32;
+        // The character row picks a pair of pattern bytes, and the half of the cell one of them
+        int byteoffset = ((y >> 3) & 3)*2 + ((y >> 2) & 1);
+
+        for (int column = 0; column < 32; column++)
+        {
+            int pat = vram[(names + column) & vramMask];
+            int ch = vram[(VAddr_PatternTable + pat*8 + byteoffset) & vramMask];
+            Arrays.fill(lineBuffer, column*8, column*8 + 4, colors[ch >> 4]);
+            Arrays.fill(lineBuffer, column*8 + 4, column*8 + 8, colors[ch & 0xF]);
+        }
+    }
+
+    /**
+     * @return The first line of a sprite, from its vertical position. Positions
+     * past the last sprite marker are partly above the top of the screen.
+     */
+    private static int spriteTop(int vpos)
+    {
+        return (vpos > LAST_SPRITE ? vpos - 256 : vpos) + 1;
+    }
+
+    /**
+     * Find the sprites shown on each line, processing them from 0 until the
+     * last sprite marker, as the VDP does. A line shows the first four sprites
+     * on it; the first fifth sprite found, on the topmost line, is reported.
+     * The lines that showed sprites before, and the ones that show them now,
+     * are marked to be drawn again.
+     *
+     * @return The number of lines marked.
+     */
+    private int evaluateSprites()
+    {
+        int height = (bLargeSprites ? 16 : 8) * (bSpriteMagnify ? 2 : 1);
+        int marked = 0;
+
+        for (int y = 0; y < VDPScreenHeight; y++) {
+            if (lineSpriteCount[y] > 0) {
+                lineSpriteCount[y] = 0;
+                if (!dirtyLines[y]) {
+                    dirtyLines[y] = true;
+                    marked++;
+                }
+            }
+        }
+
+        fifthSprite = -1;
+        coincidence = false;
+        int fifthLine = VDPScreenHeight;
+
+        for (int sprite = 0; sprite < 32; sprite++)
+        {
+            int vpos = vram[(VAddr_SpriteAttribTable + sprite*4) & vramMask];
+
+            // special value in vpos means stop processing sprites
+            if (vpos == LAST_SPRITE) {
+                break;
+            }
+
+            int top = spriteTop(vpos);
+            int first = Math.max(0, top);
+            int last = Math.min(VDPScreenHeight, top + height);
+            for (int y = first; y < last; y++)
+            {
+                int count = lineSpriteCount[y];
+                if (count == SPRITES_PER_LINE) {
+                    if (y < fifthLine) {
+                        fifthLine = y;
+                        fifthSprite = sprite;
+                    }
+                    continue;
+                }
+                lineSprites[y*SPRITES_PER_LINE + count] = sprite;
+                lineSpriteCount[y] = count + 1;
+                if (!dirtyLines[y]) {
+                    dirtyLines[y] = true;
+                    marked++;
+                }
+            }
+        }
+        return marked;
+    }
+
+    /**
+     * @return One row of a sprite's pattern, magnified if need be, with the
+     * leftmost pixel in bit 0.
+     */
+    private long spriteRow(int pattern, int row)
+    {
+        if (bLargeSprites)
+        {
+            /* [ Block0 ] [ Block2 ]
+             * [ Block1 ] [ Block3 ] */
+            int address = VAddr_SpritePatternTable + (pattern & 0xFC)*8 + row;
+            int left = vram[address & vramMask];
+            int right = vram[(address + 16) & vramMask];
+            if (bSpriteMagnify) {
+                return REVERSED_DOUBLED[left] | ((long) REVERSED_DOUBLED[right] << 16);
+            }
+            return REVERSED[left] | (REVERSED[right] << 8);
+        }
+        int ch = vram[(VAddr_SpritePatternTable + pattern*8 + row) & vramMask];
+        return bSpriteMagnify ? REVERSED_DOUBLED[ch] : REVERSED[ch];
+    }
+
+    /**
+     * @return The bits of a line mask from pixel x on, with pixel x in bit 0.
+     */
+    private static long maskAt(long[] mask, int x)
+    {
+        int word = x >> 6;
+        int shift = x & 63;
+        long bits = mask[word] >>> shift;
+        if (shift != 0 && word + 1 < mask.length) {
+            bits |= mask[word + 1] << (64 - shift);
+        }
+        return bits;
+    }
+
+    /**
+     * Set bits in a line mask from pixel x on, with pixel x in bit 0.
+     */
+    private static void setMaskAt(long[] mask, int x, long bits)
+    {
+        int word = x >> 6;
+        int shift = x & 63;
+        mask[word] |= bits << shift;
+        if (shift != 0 && word + 1 < mask.length) {
+            mask[word + 1] |= bits >>> (64 - shift);
+        }
+    }
+
+    /**
+     * Draw the sprites on a line into the line buffer. Where sprites overlap the
+     * one with the lowest number shows, and the overlap sets the coincidence
+     * flag even if the sprites are transparent.
+     */
+    private void drawSpriteLine(int y)
+    {
+        int width = (bLargeSprites ? 16 : 8) * (bSpriteMagnify ? 2 : 1);
+        int count = lineSpriteCount[y];
+        Arrays.fill(coveredPixels, 0);
+        Arrays.fill(paintedPixels, 0);
+
+        for (int i = 0; i < count; i++)
+        {
+            int SABoffset = VAddr_SpriteAttribTable + lineSprites[y*SPRITES_PER_LINE + i]*4;
+            int top = spriteTop(vram[SABoffset & vramMask]);
+            int x = vram[(SABoffset + 1) & vramMask];
+            int pattern = vram[(SABoffset + 2) & vramMask];
+            int attributes = vram[(SABoffset + 3) & vramMask];
+
+            // EarlyClock bit shifts sprite to left by 32 pixels
+            if ((attributes & 0x80) != 0) {
+                x -= 32;
+            }
+
+            int row = (y - top) >> (bSpriteMagnify ? 1 : 0);
+            long bits = spriteRow(pattern, row);
+
+            // dont draw pixels outside main pattern plane
+            int visible = width;
+            if (x < 0) {
+                bits >>>= -x;
+                visible += x;
+                x = 0;
+            }
+            if (x + visible > VDPScreenWidth) {
+                visible = VDPScreenWidth - x;
+                bits &= (1L << visible) - 1;
+            }
+            if (visible <= 0 || bits == 0) {
+                continue;
+            }
+
+            if ((bits & maskAt(coveredPixels, x)) != 0) {
+                coincidence = true;
+            }
+            setMaskAt(coveredPixels, x, bits);
+
+            // colour is in low nibble, and 0 is transparent
+            int color = attributes & 0x0F;
+            if (color == 0) {
+                continue;
+            }
+            int packCol = palette[color];
+            long shown = bits & ~maskAt(paintedPixels, x);
+            setMaskAt(paintedPixels, x, bits);
+            while (shown != 0) {
+                lineBuffer[x + Long.numberOfTrailingZeros(shown)] = packCol;
+                shown &= shown - 1;
+            }
+        }
+    }
+
+    /**
+     * Mark every line as dirty on a full redraw. Otherwise mark the lines of the
+     * cells whose name, pattern or color bytes were written.
+     *
+     * @return The number of dirty lines.
+     */
+    private int findDirtyLines(boolean full)
+    {
+        int cellCount = VDPMode == Vdp.DM_TEXT ? 40*24 : 32*24;
+        int columns = VDPMode == Vdp.DM_TEXT ? 40 : 32;
+
+        if (full) {
+            Arrays.fill(dirtyLines, true);
+            return VDPScreenHeight;
+        }
+
+        // Patterns and colors, per pattern number (and section, in Graphics II)
+        int sections = VDPMode == Vdp.DM_GRAPHICSII ? 3 : 1;
+        for (int section = 0; section < sections; section++) {
+            for (int pat = 0; pat < 256; pat++) {
+                int base = section*0x800 + pat*8;
+                boolean patChanged = snapshot.rangeChanged(VAddr_PatternTable + base, 8);
+                if (VDPMode == Vdp.DM_GRAPHICSII) {
+                    patChanged |= snapshot.rangeChanged(VAddr_ColorTable + base, 8);
+                }
+                patternChanged[section*256 + pat] = patChanged;
+            }
+        }
+        if (VDPMode == Vdp.DM_GRAPHICSI) {
+            for (int group = 0; group < 32; group++) {
+                colorGroupChanged[group] = snapshot.changed(VAddr_ColorTable + group);
+            }
+        }
+
+        int count = 0;
+        for (int name = 0; name < cellCount; name++) {
+            int row = name / columns;
+            if (dirtyLines[row*8]) {
+                continue;
+            }
+            int pat = vram[(VAddr_NameTable + name) & vramMask];
+            boolean dirty = snapshot.changed(VAddr_NameTable + name);
+            if (VDPMode == Vdp.DM_GRAPHICSII) {
+                dirty |= patternChanged[(name / 256)*256 + pat];
+            } else {
+                dirty |= patternChanged[pat];
+            }
+            if (VDPMode == Vdp.DM_GRAPHICSI) {
+                dirty |= colorGroupChanged[pat >> 3];
+            }
+            if (dirty) {
+                Arrays.fill(dirtyLines, row*8, row*8 + 8, true);
+                count += 8;
+            }
+        }
+        return count;
+    }
+
+    private String VDPModeToStr(int mode)
+    {
+        switch(mode) {
+            case 0 : return "Graphics I";
+            case 1 : return "Text";
+            case 2 : return "Multicolor";
+            case 4 : return "Graphics II";
+            default: return "Unknown("+mode+")";
+        }
+    }
+
+    /**
+     * Called by the VDPWindow when the VDP changes state. Everything is drawn
+     * again on the next frame.
+     */
+    public void deviceStateChanged() {
+        invalidate();
+    }
+
+    /**
+     * Pick up mode, color and table address changes from the VDP registers.
+     */
+    private void pickUpRegisters() {
+
+        palette = snapshot.getPalette();
+        int backdrop = snapshot.getBackdropColor();
+        if (backdrop != packColBackdrop)
+        {
+            packColBackdrop = backdrop;
+            logger.info("Backdrop color 0x"+Integer.toHexString(backdrop));
+        }
+        packColText = snapshot.getTextColor();
+        System.arraycopy(palette, 0, colors, 0, colors.length);
+        colors[0] = packColBackdrop;
+
+        int mode = VDPMode;
+        boolean magnify = bSpriteMagnify;
+        boolean large  = bLargeSprites;
+        setMode();
+        if ((mode != VDPMode) ||
+            (magnify != bSpriteMagnify) ||
+            (large != bLargeSprites))
+        {
+            if (bSpritesEnabled)
+            {
+                logger.info("Mode changed to "+VDPModeToStr(VDPMode)+" Sprites "+
+                        (bLargeSprites?"16x16":"8x8")+" "+
+                        (bSpriteMagnify?"2x2 mag":"no mag"));
+            }
+            else
+            {
+                logger.info("Mode changed to "+VDPModeToStr(VDPMode)+" (no sprites) ");
+            }
+        }
+        // Sprites are evaluated again, if the mode has them
+        Arrays.fill(lineSpriteCount, 0);
+        fifthSprite = -1;
+        coincidence = false;
+
+        int nt = VAddr_NameTable;
+        int pt = VAddr_PatternTable;
+        int ct = VAddr_ColorTable;
+        int sa = VAddr_SpriteAttribTable;
+        int sp = VAddr_SpritePatternTable;
+        VAddr_NameTable = snapshot.getNameTable();
+        VAddr_PatternTable = snapshot.getPatternTable();
+        VAddr_ColorTable = snapshot.getColorTable();
+        VAddr_SpriteAttribTable = snapshot.getSpriteAttributeTable();
+        VAddr_SpritePatternTable = snapshot.getSpritePatternTable();
+        if ( nt != VAddr_NameTable ||
+            pt != VAddr_PatternTable ||
+            ct != VAddr_ColorTable ||
+            sa != VAddr_SpriteAttribTable ||
+            sp != VAddr_SpritePatternTable)
+        {
+            logger.info("TableAddresses: Name: 0x"+Integer.toHexString(VAddr_NameTable)+
+                        " Pattern: 0x"+Integer.toHexString(VAddr_PatternTable)+
+                        " Color: 0x"+Integer.toHexString(VAddr_ColorTable)+
+                        " Sprite Attr: 0x"+Integer.toHexString(VAddr_SpriteAttribTable)+
+                        " Sprite Patt: 0x"+Integer.toHexString(VAddr_SpritePatternTable));
+        }
+    }
+}
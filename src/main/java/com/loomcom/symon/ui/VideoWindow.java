@@ -25,27 +25,22 @@ package com.loomcom.symon.ui;
 
 import com.loomcom.symon.devices.Crtc;
 import com.loomcom.symon.devices.DeviceChangeListener;
-import com.loomcom.symon.exceptions.MemoryAccessException;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static java.lang.System.*;
-
 /**
  * VideoWindow represents a graphics framebuffer backed by a 6545 CRTC.
  * Each time the window's VideoPanel is repainted, the video memory is
- * scanned and converted to the appropriate bitmap representation.
+ * scanned and converted to the appropriate bitmap representation by a
+ * CrtcRenderer.
  * <p>
  * The graphical representation of each character is derived from a
  * character generator ROM image. For this simulation, the Commodore PET
@@ -61,14 +56,12 @@ public class VideoWindow extends JFrame implements DeviceChangeListener {
 
     private static final Logger logger = Logger.getLogger(VideoWindow.class.getName());
 
-    private static final int CHAR_WIDTH = 8;
-    private static final int CHAR_HEIGHT = 8;
-
     private final int scaleX, scaleY;
     private final boolean shouldScale;
 
     private BufferedImage image;
-    private int[] charRom;
+    private boolean imageStale;
+    private final CrtcRenderer renderer;
 
     private int horizontalDisplayed;
     private int verticalDisplayed;
@@ -88,21 +81,19 @@ public class VideoWindow extends JFrame implements DeviceChangeListener {
     private class VideoPanel extends JPanel {
         @Override
         public void paintComponent(Graphics g) {
-            try {
-                for (int i = 0; i < crtc.getPageSize(); i++) {
-                    int address = crtc.getStartAddress() + i;
-                    int originX = (i % horizontalDisplayed) * CHAR_WIDTH;
-                    int originY = (i / horizontalDisplayed) * scanLinesPerRow;
-                    image.getRaster().setPixels(originX, originY, CHAR_WIDTH, scanLinesPerRow, getGlyph(address));
-                }
-                Graphics2D g2d = (Graphics2D) g;
-                if (shouldScale) {
-                    g2d.scale(scaleX, scaleY);
-                }
-                g2d.drawImage(image, 0, 0, null);
-            } catch (MemoryAccessException ex) {
-                logger.log(Level.SEVERE, "Memory Access Exception, can't paint video window! " + ex.getMessage());
+            renderer.setCursorHidden(hideCursor);
+            if ((renderer.computeFinalPixels() || imageStale) &&
+                renderer.getRasterWidth() == image.getWidth() &&
+                renderer.getRasterHeight() == image.getHeight()) {
+                image.getRaster().setDataElements(0, 0, image.getWidth(), image.getHeight(),
+                                                  renderer.getFinalPixels());
+                imageStale = false;
             }
+            Graphics2D g2d = (Graphics2D) g;
+            if (shouldScale) {
+                g2d.scale(scaleX, scaleY);
+            }
+            g2d.drawImage(image, 0, 0, null);
         }
 
         @Override
@@ -139,7 +130,7 @@ public class VideoWindow extends JFrame implements DeviceChangeListener {
 
         this.scheduler = Executors.newSingleThreadScheduledExecutor();
         this.crtc = crtc;
-        this.charRom = loadCharRom("/ascii.rom");
+        this.renderer = new CrtcRenderer(crtc);
         this.scaleX = scaleX;
         this.scaleY = scaleY;
         this.shouldScale = (scaleX > 1 || scaleY > 1);
@@ -231,83 +222,12 @@ public class VideoWindow extends JFrame implements DeviceChangeListener {
         pack();
     }
 
-    /**
-     * Returns an array of pixels (including extra scanlines, if any) corresponding to the
-     * Character ROM plus cursor overlay (if any). The cursor overlay simulates an XOR
-     * of the Character Rom output and the 6545 Cursor output.
-     *
-     * @param address The address of the character being requested.
-     * @return An array of integers representing the pixel data.
-     */
-    private int[] getGlyph(int address) throws MemoryAccessException {
-        int chr = crtc.getCharAtAddress(address);
-        int romOffset = (chr & 0xff) * (CHAR_HEIGHT * CHAR_WIDTH);
-        int[] glyph = new int[CHAR_WIDTH * scanLinesPerRow];
-
-        // Populate the character
-        arraycopy(charRom, romOffset, glyph, 0, CHAR_WIDTH * Math.min(CHAR_HEIGHT, scanLinesPerRow));
-
-        // Overlay the cursor
-        if (!hideCursor && crtc.isCursorEnabled() && crtc.getCursorPosition() == address) {
-            int cursorStart = Math.min(glyph.length, crtc.getCursorStartLine() * CHAR_WIDTH);
-            int cursorStop = Math.min(glyph.length, (crtc.getCursorStopLine() + 1) * CHAR_WIDTH);
-
-            for (int i = cursorStart; i < cursorStop; i++) {
-                glyph[i] ^= 0xff;
-            }
-        }
-
-        return glyph;
-    }
-
     private void buildImage() {
-        int rasterWidth = CHAR_WIDTH * horizontalDisplayed;
-        int rasterHeight = scanLinesPerRow * verticalDisplayed;
-        this.image = new BufferedImage(rasterWidth, rasterHeight, BufferedImage.TYPE_BYTE_BINARY);
+        renderer.computeFinalPixels();
+        int rasterWidth = renderer.getRasterWidth();
+        int rasterHeight = renderer.getRasterHeight();
+        this.image = new BufferedImage(rasterWidth, rasterHeight, BufferedImage.TYPE_INT_RGB);
+        this.imageStale = true;
         this.dimensions = new Dimension(rasterWidth * scaleX, rasterHeight * scaleY);
     }
-
-    /**
-     * Load a Character ROM file and convert it into an array of pixel data usable
-     * by the underlying BufferedImage's Raster.
-     * <p>
-     * Since the BufferedImage is a TYPE_BYTE_BINARY, the data must be converted
-     * into a single byte per pixel, 0 for black and 255 for white.
-
-     * @param resource The ROM file resource to load.
-     * @return An array of glyphs, each ready for insertion.
-     * @throws IOException
-     */
-    private int[] loadCharRom(String resource) throws IOException {
-        BufferedInputStream bis = null;
-        try {
-            bis = new BufferedInputStream(this.getClass().getResourceAsStream(resource));
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            while (bis.available() > 0) {
-                bos.write(bis.read());
-            }
-            bos.flush();
-            bos.close();
-
-            byte[] raw = bos.toByteArray();
-
-            // Now convert the raw ROM image into a format suitable for
-            // insertion directly into the BufferedImage.
-            int[] converted = new int[raw.length * CHAR_WIDTH];
-
-            int romIndex = 0;
-            for (int i = 0; i < converted.length;) {
-                byte charRow = raw[romIndex++];
-
-                for (int j = 7; j >= 0; j--) {
-                    converted[i++] = ((charRow & (1 << j)) == 0) ? 0 : 0xff;
-                }
-            }
-            return converted;
-        } finally {
-            if (bis != null) {
-                bis.close();
-            }
-        }
-    }
 }
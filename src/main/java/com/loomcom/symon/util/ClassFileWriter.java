@@ -0,0 +1,370 @@
+package com.loomcom.symon.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal assembler for JVM class files, enough to generate small classes
+ * of straight-line integer code at run time.
+ * <p>
+ * Classes are written as version 49 (Java 5), which the JVM verifies by type
+ * inference, so no stack map frames are needed. The constant pool holds
+ * UTF-8 strings, classes, integers, fields and methods, each entered once.
+ * Branches take labels, which are resolved when the method is finished;
+ * offsets are 16 bits, so a method must stay under 32KB of code. The caller
+ * gives the maximum stack depth and number of locals of each method.
+ */
+public class ClassFileWriter {
+
+    private static final int MAGIC = 0xcafebabe;
+    private static final int MAJOR_VERSION = 49;
+
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+
+    /* Opcodes */
+    public static final int ICONST_0 = 3;
+    public static final int BIPUSH = 16;
+    public static final int SIPUSH = 17;
+    public static final int LDC_W = 19;
+    public static final int ILOAD = 21;
+    public static final int ALOAD = 25;
+    public static final int IALOAD = 46;
+    public static final int AALOAD = 50;
+    public static final int BALOAD = 51;
+    public static final int ISTORE = 54;
+    public static final int ASTORE = 58;
+    public static final int BASTORE = 84;
+    public static final int POP = 87;
+    public static final int DUP = 89;
+    public static final int IADD = 96;
+    public static final int ISUB = 100;
+    public static final int ISHL = 120;
+    public static final int IUSHR = 124;
+    public static final int IAND = 126;
+    public static final int IOR = 128;
+    public static final int IXOR = 130;
+    public static final int IFEQ = 153;
+    public static final int IFNE = 154;
+    public static final int IF_ICMPEQ = 159;
+    public static final int IF_ICMPGT = 163;
+    public static final int GOTO = 167;
+    public static final int IRETURN = 172;
+    public static final int RETURN = 177;
+    public static final int GETFIELD = 180;
+    public static final int PUTFIELD = 181;
+    public static final int INVOKEVIRTUAL = 182;
+    public static final int INVOKESPECIAL = 183;
+    public static final int IFNULL = 198;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final List<byte[]> methods = new ArrayList<>();
+
+    /**
+     * @param name      The internal name of the class, such as "com/example/Foo".
+     * @param superName The internal name of its superclass.
+     */
+    public ClassFileWriter(String name, String superName) {
+        this.thisClass = classRef(name);
+        this.superClass = classRef(superName);
+    }
+
+    public int utf8(String text) {
+        Integer index = poolIndex.get("U" + text);
+        if (index != null) {
+            return index;
+        }
+        try {
+            pool.writeByte(1);
+            pool.writeUTF(text);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return enter("U" + text, 1);
+    }
+
+    public int classRef(String name) {
+        Integer index = poolIndex.get("C" + name);
+        if (index != null) {
+            return index;
+        }
+        return entry("C" + name, 7, utf8(name), -1);
+    }
+
+    public int integer(int value) {
+        Integer index = poolIndex.get("I" + value);
+        if (index != null) {
+            return index;
+        }
+        try {
+            pool.writeByte(3);
+            pool.writeInt(value);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return enter("I" + value, 1);
+    }
+
+    public int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(9, owner, name, descriptor);
+    }
+
+    public int methodRef(String owner, String name, String descriptor) {
+        return memberRef(10, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        String key = "M" + tag + owner + "." + name + ":" + descriptor;
+        Integer index = poolIndex.get(key);
+        if (index != null) {
+            return index;
+        }
+        int nameAndType = poolIndex.containsKey("N" + name + ":" + descriptor) ?
+                          poolIndex.get("N" + name + ":" + descriptor) :
+                          entry("N" + name + ":" + descriptor, 12, utf8(name), utf8(descriptor));
+        return entry(key, tag, classRef(owner), nameAndType);
+    }
+
+    // An entry of one or two constant pool indexes
+    private int entry(String key, int tag, int first, int second) {
+        try {
+            pool.writeByte(tag);
+            pool.writeShort(first);
+            if (second >= 0) {
+                pool.writeShort(second);
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return enter(key, 1);
+    }
+
+    private int enter(String key, int slots) {
+        int index = poolCount;
+        poolIndex.put(key, index);
+        poolCount += slots;
+        return index;
+    }
+
+    /**
+     * Start a method. Its code is added to the class by {@link Code#finish()}.
+     */
+    public Code method(int access, String name, String descriptor, int maxStack, int maxLocals) {
+        return new Code(access, utf8(name), utf8(descriptor), maxStack, maxLocals);
+    }
+
+    /**
+     * @return The class file.
+     */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(0);
+            out.writeShort(MAJOR_VERSION);
+            out.writeShort(poolCount);
+            pool.flush();
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+            out.writeShort(0); // attributes
+            out.flush();
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A position in a method's code, to branch to.
+     */
+    public static class Label {
+        private int position = -1;
+    }
+
+    /**
+     * The code of one method.
+     */
+    public class Code {
+        private final int access;
+        private final int name;
+        private final int descriptor;
+        private final int maxStack;
+        private final int maxLocals;
+
+        private byte[] code = new byte[1024];
+        private int length = 0;
+
+        // Branch instructions to patch, and the labels they go to
+        private final List<Integer> branches = new ArrayList<>();
+        private final List<Label> targets = new ArrayList<>();
+
+        private Code(int access, int name, int descriptor, int maxStack, int maxLocals) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+        }
+
+        private void emit(int value) {
+            if (length == code.length) {
+                code = Arrays.copyOf(code, length * 2);
+            }
+            code[length++] = (byte) value;
+        }
+
+        public Code op(int opcode) {
+            emit(opcode);
+            return this;
+        }
+
+        private void u2(int value) {
+            emit(value >> 8);
+            emit(value);
+        }
+
+        /**
+         * Push an int constant, in the shortest form.
+         */
+        public Code iconst(int value) {
+            if (value >= -1 && value <= 5) {
+                emit(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                emit(BIPUSH);
+                emit(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                emit(SIPUSH);
+                u2(value);
+            } else {
+                emit(LDC_W);
+                u2(integer(value));
+            }
+            return this;
+        }
+
+        public Code iload(int local) {
+            return local(ILOAD, local);
+        }
+
+        public Code istore(int local) {
+            return local(ISTORE, local);
+        }
+
+        public Code aload(int local) {
+            return local(ALOAD, local);
+        }
+
+        public Code astore(int local) {
+            return local(ASTORE, local);
+        }
+
+        private Code local(int opcode, int local) {
+            if (local > 0xff) {
+                throw new IllegalArgumentException("Local " + local + " needs a wide instruction");
+            }
+            emit(opcode);
+            emit(local);
+            return this;
+        }
+
+        /**
+         * Emit an instruction with a constant pool operand, such as a field or
+         * method reference.
+         */
+        public Code ref(int opcode, int index) {
+            emit(opcode);
+            u2(index);
+            return this;
+        }
+
+        public Label label() {
+            return new Label();
+        }
+
+        public Code mark(Label label) {
+            label.position = length;
+            return this;
+        }
+
+        /**
+         * Emit a branch to a label, which may be marked before or after.
+         */
+        public Code jump(int opcode, Label target) {
+            branches.add(length);
+            targets.add(target);
+            emit(opcode);
+            u2(0);
+            return this;
+        }
+
+        /**
+         * @return The number of bytes of code so far.
+         */
+        public int size() {
+            return length;
+        }
+
+        /**
+         * Resolve the branches and add the method to the class.
+         */
+        public void finish() {
+            byte[] bytes = Arrays.copyOf(code, length);
+            if (bytes.length > Short.MAX_VALUE) {
+                throw new IllegalStateException("Method too large, " + bytes.length + " bytes");
+            }
+            for (int i = 0; i < branches.size(); i++) {
+                int at = branches.get(i);
+                Label target = targets.get(i);
+                if (target.position < 0) {
+                    throw new IllegalStateException("Branch to an unmarked label");
+                }
+                int offset = target.position - at;
+                bytes[at + 1] = (byte) (offset >> 8);
+                bytes[at + 2] = (byte) offset;
+            }
+
+            ByteArrayOutputStream method = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(method);
+            try {
+                out.writeShort(access);
+                out.writeShort(name);
+                out.writeShort(descriptor);
+                out.writeShort(1);
+                out.writeShort(utf8("Code"));
+                out.writeInt(12 + bytes.length);
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                out.writeShort(0); // exception table
+                out.writeShort(0); // attributes
+                out.flush();
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+            methods.add(method.toByteArray());
+        }
+    }
+}
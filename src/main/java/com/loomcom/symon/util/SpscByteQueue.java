@@ -0,0 +1,95 @@
+package com.loomcom.symon.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, lock-free queue of bytes for exactly one producer thread and one
+ * consumer thread, such as the simulator thread and the console.
+ * <p>
+ * The producer only advances the tail and the consumer only advances the head,
+ * each with an ordered store, so neither side ever blocks or allocates.
+ */
+public class SpscByteQueue {
+
+    private final byte[] buffer;
+    private final int mask;
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * @param capacity The maximum number of bytes queued, rounded up to a power of two.
+     */
+    public SpscByteQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity));
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.buffer = new byte[size];
+        this.mask = size - 1;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * Add a byte. Producer only.
+     *
+     * @return False if the queue is full.
+     */
+    public boolean offer(int value) {
+        long t = tail.get();
+        if (t - head.get() == buffer.length) {
+            return false;
+        }
+        buffer[(int) t & mask] = (byte) value;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Remove the oldest byte. Consumer only.
+     *
+     * @return The byte, or -1 if the queue is empty.
+     */
+    public int poll() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return -1;
+        }
+        int value = buffer[(int) h & mask] & 0xff;
+        head.lazySet(h + 1);
+        return value;
+    }
+
+    /**
+     * Remove up to <code>max</code> bytes in one go. Consumer only.
+     *
+     * @return The number of bytes copied into <code>dest</code>.
+     */
+    public int drainTo(byte[] dest, int max) {
+        long h = head.get();
+        int count = (int) Math.min(Math.min(tail.get() - h, max), dest.length);
+        for (int i = 0; i < count; i++) {
+            dest[i] = buffer[(int) (h + i) & mask];
+        }
+        head.lazySet(h + count);
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * Discard everything queued. Consumer only.
+     */
+    public void clear() {
+        head.lazySet(tail.get());
+    }
+}
@@ -0,0 +1,232 @@
+package com.loomcom.symon.util;
+
+import com.loomcom.symon.CpuState;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static com.loomcom.symon.util.TraceFileWriter.*;
+
+/**
+ * Reads back a trace written by {@link TraceFileWriter}.
+ * <p>
+ * The file starts with a 12 byte header: the magic "SYMTRACE", a version
+ * short and a flags short. It is followed by blocks, each with a 28 byte
+ * header (stored length, raw length, record count, first cycle and last
+ * cycle) and then the block's records, deflated if the file is compressed.
+ * <p>
+ * Each record is a flags byte, the opcode and its operands, then one byte
+ * for each of A, X, Y, SP and P that changed, the PC if it is not the one
+ * following the previous instruction, and finally the zig-zag varint delta
+ * of the cycle counter. The first record in a block carries every field.
+ */
+public class TraceFileReader implements Closeable {
+
+    private final FileChannel channel;
+    private final boolean compressed;
+    private final Inflater inflater;
+    private final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+
+    private long fromCycle = 0L;
+    private long toCycle = Long.MAX_VALUE;
+
+    private byte[] stored = new byte[BLOCK_SIZE];
+    private byte[] data = new byte[BLOCK_SIZE];
+    private int length;
+    private int pos;
+
+    // Decoder state, carried from one record to the next
+    private int a, x, y, sp, p, nextPc;
+    private long cycle;
+
+    public TraceFileReader(File file) throws IOException {
+        this.channel = new FileInputStream(file).getChannel();
+
+        ByteBuffer fileHeader = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        readFully(fileHeader);
+        fileHeader.flip();
+        byte[] magic = new byte[MAGIC.length];
+        fileHeader.get(magic);
+        int version = fileHeader.getShort();
+        int flags = fileHeader.getShort();
+
+        if (!Arrays.equals(magic, MAGIC)) {
+            channel.close();
+            throw new IOException(file + " is not a Symon trace file.");
+        }
+        if (version != VERSION) {
+            channel.close();
+            throw new IOException("Unsupported trace file version " + version + ".");
+        }
+
+        this.compressed = (flags & FLAG_COMPRESSED) != 0;
+        this.inflater = compressed ? new Inflater() : null;
+    }
+
+    /**
+     * Only return records whose cycle counter lies in the given window. Blocks
+     * entirely outside the window are skipped without being decoded.
+     */
+    public void setCycleWindow(long fromCycle, long toCycle) {
+        this.fromCycle = fromCycle;
+        this.toCycle = toCycle;
+    }
+
+    /**
+     * Decode the next record.
+     *
+     * @param state The state to decode into. Its cycleCounter holds the absolute count.
+     * @return False at the end of the trace, or past the end of the cycle window.
+     */
+    public boolean next(CpuState state) throws IOException {
+        while (true) {
+            while (pos >= length) {
+                if (!readBlock()) {
+                    return false;
+                }
+            }
+
+            decodeRecord(state);
+
+            if (cycle > toCycle) {
+                return false;
+            }
+            if (cycle >= fromCycle) {
+                return true;
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        if (inflater != null) {
+            inflater.end();
+        }
+        channel.close();
+    }
+
+    private void decodeRecord(CpuState state) throws IOException {
+        int flags = data[pos++] & 0xff;
+        int ir = data[pos++] & 0xff;
+        int size = instructionSize(ir);
+
+        state.ir = ir;
+        state.args[0] = size > 1 ? data[pos++] & 0xff : 0;
+        state.args[1] = size > 2 ? data[pos++] & 0xff : 0;
+
+        if ((flags & F_A) != 0) {
+            a = data[pos++] & 0xff;
+        }
+        if ((flags & F_X) != 0) {
+            x = data[pos++] & 0xff;
+        }
+        if ((flags & F_Y) != 0) {
+            y = data[pos++] & 0xff;
+        }
+        if ((flags & F_SP) != 0) {
+            sp = data[pos++] & 0xff;
+        }
+        if ((flags & F_P) != 0) {
+            p = data[pos++] & 0xff;
+        }
+        int pc = nextPc;
+        if ((flags & F_PC) != 0) {
+            pc = ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+            pos += 2;
+        }
+        nextPc = (pc + size) & 0xffff;
+
+        long v = 0L;
+        int shift = 0;
+        int b;
+        do {
+            if (pos >= length || shift > 63) {
+                throw new IOException("Corrupt trace record.");
+            }
+            b = data[pos++];
+            v |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        cycle += (v >>> 1) ^ -(v & 1);
+
+        state.lastPc = pc;
+        state.a = a;
+        state.x = x;
+        state.y = y;
+        state.sp = sp;
+        state.setStatusFlag(p);
+        state.cycleCounter = cycle;
+    }
+
+    /**
+     * Read the next block in the cycle window.
+     *
+     * @return False if there are no more.
+     */
+    private boolean readBlock() throws IOException {
+        while (true) {
+            header.clear();
+            if (channel.read(header) <= 0) {
+                return false;
+            }
+            readFully(header);
+            header.flip();
+
+            int storedLength = header.getInt();
+            int rawLength = header.getInt();
+            header.getInt(); // record count
+            long firstCycle = header.getLong();
+            long lastCycle = header.getLong();
+
+            if (firstCycle > toCycle) {
+                return false;
+            }
+            if (lastCycle < fromCycle) {
+                channel.position(channel.position() + storedLength);
+                continue;
+            }
+
+            if (data.length < rawLength) {
+                data = new byte[rawLength];
+            }
+
+            if (compressed) {
+                if (stored.length < storedLength) {
+                    stored = new byte[storedLength];
+                }
+                readFully(ByteBuffer.wrap(stored, 0, storedLength));
+                inflater.reset();
+                inflater.setInput(stored, 0, storedLength);
+                try {
+                    if (inflater.inflate(data, 0, rawLength) != rawLength) {
+                        throw new IOException("Corrupt trace block.");
+                    }
+                } catch (DataFormatException ex) {
+                    throw new IOException("Corrupt trace block.", ex);
+                }
+            } else {
+                readFully(ByteBuffer.wrap(data, 0, rawLength));
+            }
+
+            length = rawLength;
+            pos = 0;
+            cycle = 0L;
+            return true;
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Truncated trace file.");
+            }
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package com.loomcom.symon.util;
+
+import com.loomcom.symon.Cpu;
+import com.loomcom.symon.CpuState;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Streams a full execution trace to disk, one record per executed instruction.
+ * <p>
+ * Records are encoded on the simulator thread into preallocated blocks, each
+ * holding only what changed since the previous instruction: the opcode and
+ * its operands, any changed registers, the PC if execution did not simply fall
+ * through, and the cycle delta as a varint. Full blocks are handed to a
+ * background thread, which optionally deflates them and writes them out through
+ * a FileChannel. Blocks are encoded independently, so a reader can skip any
+ * block outside the cycle window it is interested in.
+ * <p>
+ * If the writer thread falls behind, append() waits for a free block rather
+ * than dropping records. The file format is described in {@link TraceFileReader}.
+ */
+public class TraceFileWriter implements Closeable {
+
+    static final byte[] MAGIC = {'S', 'Y', 'M', 'T', 'R', 'A', 'C', 'E'};
+    static final int VERSION = 1;
+    static final int FLAG_COMPRESSED = 0x01;
+
+    static final int FILE_HEADER_SIZE = 12;
+    static final int BLOCK_HEADER_SIZE = 28;
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    // Field presence bits in each record's flags byte
+    static final int F_A = 0x01;
+    static final int F_X = 0x02;
+    static final int F_Y = 0x04;
+    static final int F_SP = 0x08;
+    static final int F_P = 0x10;
+    static final int F_PC = 0x20;
+
+    // Flags, opcode, two operands, five registers, PC and a 10 byte varint
+    private static final int MAX_RECORD_SIZE = 21;
+    private static final int BLOCK_COUNT = 4;
+
+    private static class Block {
+        final byte[] data = new byte[BLOCK_SIZE];
+        int length;
+        int records;
+        long firstCycle;
+        long lastCycle;
+    }
+
+    // Tells the writer thread to finish
+    private static final Block END = new Block();
+
+    private final FileChannel channel;
+    private final boolean compress;
+    private final BlockingQueue<Block> freeBlocks = new ArrayBlockingQueue<>(BLOCK_COUNT);
+    private final BlockingQueue<Block> fullBlocks = new ArrayBlockingQueue<>(BLOCK_COUNT + 1);
+    private final Thread writerThread;
+
+    private volatile IOException writeError;
+    private boolean closed = false;
+
+    // Encoder state, owned by the simulator thread
+    private Block block;
+    private int prevA, prevX, prevY, prevSp, prevP, nextPc;
+    private long prevCycle;
+
+    /**
+     * @param file     The file to write the trace to. It is replaced if it exists.
+     * @param compress Deflate each block before writing it.
+     */
+    public TraceFileWriter(File file, boolean compress) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        this.channel = raf.getChannel();
+        this.compress = compress;
+
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.put(MAGIC);
+        header.putShort((short) VERSION);
+        header.putShort((short) (compress ? FLAG_COMPRESSED : 0));
+        header.flip();
+        writeFully(header);
+
+        for (int i = 0; i < BLOCK_COUNT; i++) {
+            freeBlocks.add(new Block());
+        }
+        startBlock(freeBlocks.remove());
+
+        writerThread = new Thread(new Runnable() {
+            public void run() {
+                writeBlocks();
+            }
+        }, "Trace Writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Append a record for the instruction just executed. This must only be called
+     * from the simulator thread.
+     *
+     * @param state The CPU State after executing the instruction.
+     */
+    public void append(CpuState state) {
+        Block b = block;
+        if (b.length > BLOCK_SIZE - MAX_RECORD_SIZE) {
+            b = nextBlock();
+        }
+
+        byte[] data = b.data;
+        int start = b.length;
+        int pos = start + 1;
+        int flags = 0;
+
+        int ir = state.ir;
+        int size = instructionSize(ir);
+        data[pos++] = (byte) ir;
+        if (size > 1) {
+            data[pos++] = (byte) state.args[0];
+        }
+        if (size > 2) {
+            data[pos++] = (byte) state.args[1];
+        }
+
+        if (state.a != prevA) {
+            flags |= F_A;
+            data[pos++] = (byte) state.a;
+            prevA = state.a;
+        }
+        if (state.x != prevX) {
+            flags |= F_X;
+            data[pos++] = (byte) state.x;
+            prevX = state.x;
+        }
+        if (state.y != prevY) {
+            flags |= F_Y;
+            data[pos++] = (byte) state.y;
+            prevY = state.y;
+        }
+        if (state.sp != prevSp) {
+            flags |= F_SP;
+            data[pos++] = (byte) state.sp;
+            prevSp = state.sp;
+        }
+        int p = state.getStatusFlag();
+        if (p != prevP) {
+            flags |= F_P;
+            data[pos++] = (byte) p;
+            prevP = p;
+        }
+        if (state.lastPc != nextPc) {
+            flags |= F_PC;
+            data[pos++] = (byte) (state.lastPc >>> 8);
+            data[pos++] = (byte) state.lastPc;
+        }
+        nextPc = (state.lastPc + size) & 0xffff;
+
+        // Zig-zag encode the delta, in case the counter is reset mid-trace
+        long delta = state.cycleCounter - prevCycle;
+        long v = (delta << 1) ^ (delta >> 63);
+        while ((v & ~0x7fL) != 0) {
+            data[pos++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        data[pos++] = (byte) v;
+        prevCycle = state.cycleCounter;
+
+        data[start] = (byte) flags;
+        b.length = pos;
+        if (b.records++ == 0) {
+            b.firstCycle = state.cycleCounter;
+        }
+        b.lastCycle = state.cycleCounter;
+    }
+
+    /**
+     * Write out any buffered records, wait for the writer thread to finish, and
+     * close the file.
+     *
+     * @throws IOException If any block could not be written.
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            if (block.records > 0) {
+                fullBlocks.put(block);
+            }
+            fullBlocks.put(END);
+            writerThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            channel.close();
+        }
+
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+
+    /**
+     * The opcode's length in bytes, as used when rendering trace events.
+     */
+    static int instructionSize(int ir) {
+        int size = Cpu.instructionSizes[ir];
+        return size == 0 ? 1 : size;
+    }
+
+    /**
+     * Hand the current block to the writer thread and start a new one. Records are
+     * never dropped, so an interrupt is deferred until a block is available.
+     */
+    private Block nextBlock() {
+        boolean interrupted = false;
+        Block full = block;
+        Block free = null;
+
+        while (full != null) {
+            try {
+                fullBlocks.put(full);
+                full = null;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        while (free == null) {
+            try {
+                free = freeBlocks.take();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        startBlock(free);
+        return free;
+    }
+
+    /**
+     * Start a new block. Each block is decoded independently, so the encoder's
+     * notion of the previous record is reset.
+     */
+    private void startBlock(Block b) {
+        b.length = 0;
+        b.records = 0;
+        block = b;
+        prevA = prevX = prevY = prevSp = prevP = nextPc = -1;
+        prevCycle = 0L;
+    }
+
+    private void writeBlocks() {
+        Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+        byte[] compressed = compress ? new byte[BLOCK_SIZE + BLOCK_SIZE / 8] : null;
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+
+        try {
+            while (true) {
+                Block b = fullBlocks.take();
+                if (b == END) {
+                    break;
+                }
+
+                // After an error, keep recycling blocks so the simulator never stalls
+                if (writeError == null) {
+                    try {
+                        byte[] stored = b.data;
+                        int storedLength = b.length;
+                        if (deflater != null) {
+                            deflater.reset();
+                            deflater.setInput(b.data, 0, b.length);
+                            deflater.finish();
+                            storedLength = 0;
+                            while (!deflater.finished()) {
+                                if (storedLength == compressed.length) {
+                                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                                }
+                                storedLength += deflater.deflate(compressed, storedLength,
+                                                                 compressed.length - storedLength);
+                            }
+                            stored = compressed;
+                        }
+
+                        header.clear();
+                        header.putInt(storedLength);
+                        header.putInt(b.length);
+                        header.putInt(b.records);
+                        header.putLong(b.firstCycle);
+                        header.putLong(b.lastCycle);
+                        header.flip();
+                        writeFully(header);
+                        writeFully(ByteBuffer.wrap(stored, 0, storedLength));
+                    } catch (IOException ex) {
+                        writeError = ex;
+                    }
+                }
+
+                freeBlocks.put(b);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
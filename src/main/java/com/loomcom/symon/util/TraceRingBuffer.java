@@ -0,0 +1,154 @@
+package com.loomcom.symon.util;
+
+import com.loomcom.symon.CpuState;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size circular buffer of executed instructions, for the trace log.
+ * <p>
+ * Each entry is packed into two longs held in parallel, preallocated arrays,
+ * alongside the number of the entry each slot holds:
+ * <pre>
+ *   registers: lastPc(16) ir(8) arg0(8) arg1(8) a(8) x(8) y(8)
+ *   status:    sp(8) p(8) cycleCounter(48)
+ * </pre>
+ * Appending an entry allocates nothing and takes no lock. There must be a single
+ * writer, the simulator thread. Readers on other threads decode entries only when
+ * the log is rendered, and skip any entry the writer overwrote while it was being
+ * read.
+ */
+public class TraceRingBuffer {
+
+    private static final long CYCLE_MASK = 0xffffffffffffL;
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicLongArray registers;
+    private final AtomicLongArray status;
+
+    // The number of the entry in each slot, or -1 while the writer replaces it
+    private final AtomicLongArray sequence;
+
+    // Total number of entries ever appended. Only the writer advances it.
+    private final AtomicLong written = new AtomicLong();
+
+    /**
+     * @param capacity The number of most recent entries to keep.
+     */
+    public TraceRingBuffer(int capacity) {
+        this.capacity = capacity;
+        // Size the arrays to a power of two, which also leaves readers some slack
+        // before the writer wraps around onto the entries they are decoding.
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.registers = new AtomicLongArray(size);
+        this.status = new AtomicLongArray(size);
+        this.sequence = new AtomicLongArray(size);
+    }
+
+    /**
+     * Append the state of the CPU after executing an instruction.
+     *
+     * @param state The CPU State to record. It is not retained.
+     */
+    public void append(CpuState state) {
+        long n = written.get();
+        int slot = (int) n & mask;
+
+        // Ordered stores keep the slot marked as being replaced until both halves
+        // of the new entry are in place
+        sequence.lazySet(slot, -1L);
+        registers.lazySet(slot, ((long) state.lastPc << 48) |
+                          ((long) state.ir << 40) |
+                          ((long) state.args[0] << 32) |
+                          ((long) state.args[1] << 24) |
+                          (state.a << 16) |
+                          (state.x << 8) |
+                          state.y);
+        status.lazySet(slot, ((long) state.sp << 56) |
+                             ((long) state.getStatusFlag() << 48) |
+                             (state.cycleCounter & CYCLE_MASK));
+        sequence.lazySet(slot, n);
+
+        // Publish the entry. An ordered store is enough for a single writer.
+        written.lazySet(n + 1);
+    }
+
+    /**
+     * @return The number of entries held, at most the capacity.
+     */
+    public int size() {
+        return (int) Math.min(written.get(), capacity);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Clear the buffer. This must not race with append(), so call it only while
+     * the simulator is stopped.
+     */
+    public void reset() {
+        written.set(0);
+    }
+
+    /**
+     * Decode an entry.
+     *
+     * @param index The entry to decode, from 0 (the oldest held) to size() - 1.
+     * @param state The state to decode into.
+     * @return False if the entry is no longer held, because the writer has moved on.
+     */
+    public boolean get(int index, CpuState state) {
+        long end = written.get();
+        long n = Math.max(0, end - capacity) + index;
+        if (index < 0 || n >= end) {
+            return false;
+        }
+
+        // The writer may have wrapped around and replaced the entry before or
+        // while we read it
+        int slot = (int) n & mask;
+        if (sequence.get(slot) != n) {
+            return false;
+        }
+        long r = registers.get(slot);
+        long s = status.get(slot);
+        if (sequence.get(slot) != n) {
+            return false;
+        }
+
+        state.lastPc = (int) (r >>> 48) & 0xffff;
+        state.ir = (int) (r >>> 40) & 0xff;
+        state.args[0] = (int) (r >>> 32) & 0xff;
+        state.args[1] = (int) (r >>> 24) & 0xff;
+        state.a = (int) (r >>> 16) & 0xff;
+        state.x = (int) (r >>> 8) & 0xff;
+        state.y = (int) r & 0xff;
+        state.sp = (int) (s >>> 56) & 0xff;
+        state.setStatusFlag((int) (s >>> 48) & 0xff);
+        state.cycleCounter = s & CYCLE_MASK;
+        return true;
+    }
+
+    /**
+     * Decode all held entries as trace log text, oldest first.
+     *
+     * @param out The builder to append the trace events to.
+     */
+    public void appendTraceEvents(StringBuilder out) {
+        CpuState state = new CpuState();
+        int size = size();
+        for (int i = 0; i < size; i++) {
+            if (get(i, state)) {
+                out.append(state.toTraceEvent());
+            }
+        }
+    }
+}
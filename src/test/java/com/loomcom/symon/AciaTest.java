@@ -2,9 +2,12 @@ package com.loomcom.symon;
 
 import com.loomcom.symon.devices.Acia;
 import com.loomcom.symon.devices.Acia6551;
+import com.loomcom.symon.util.SpscByteQueue;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 
 public class AciaTest {
@@ -254,4 +257,102 @@ public class AciaTest {
 
         assertEquals(0x08, acia.read(0x0001, true));
     }
+
+    @Test
+    public void shouldQueueTransmittedBytesWhenQueuesAttached() throws Exception {
+        Acia acia = new Acia6551(0x0000);
+        SpscByteQueue tx = new SpscByteQueue(2);
+        acia.attachQueues(tx, new SpscByteQueue(2));
+
+        acia.write(0x0000, 'a');
+        acia.write(0x0000, 'b');
+        assertFalse(acia.hasTxChar());
+
+        // The queue is full, so the byte waits in the TX register
+        acia.write(0x0000, 'c');
+        assertTrue(acia.hasTxChar());
+        assertEquals(0x00, acia.read(0x0001, true) & 0x10);
+
+        assertEquals('a', tx.poll());
+        acia.pollQueues();
+        assertFalse(acia.hasTxChar());
+        assertEquals('b', tx.poll());
+        assertEquals('c', tx.poll());
+        assertEquals(-1, tx.poll());
+    }
+
+    @Test
+    public void shouldReceiveQueuedBytesAsTheCpuReadsThem() throws Exception {
+        Acia acia = new Acia6551(0x0000);
+        SpscByteQueue rx = new SpscByteQueue(16);
+        acia.attachQueues(new SpscByteQueue(16), rx);
+
+        rx.offer('a');
+        rx.offer('b');
+        acia.pollQueues();
+
+        assertEquals(0x08, acia.read(0x0001, true) & 0x08);
+        assertEquals('a', acia.read(0x0000, true));
+        assertEquals(0x08, acia.read(0x0001, true) & 0x08);
+        assertEquals('b', acia.read(0x0000, true));
+        assertEquals(0x00, acia.read(0x0001, true) & 0x08);
+
+        // Reads without side effects don't take the next byte
+        rx.offer('c');
+        acia.pollQueues();
+        assertEquals('c', acia.read(0x0000, false));
+        assertEquals('c', acia.read(0x0000, false));
+        assertTrue(acia.hasRxChar());
+    }
+
+    @Test
+    public void shouldTimeCharactersInSchedulerCycles() throws Exception {
+        Bus bus = new Bus(0x0000, 0xffff);
+        Acia acia = new Acia6551(0x0000);
+        bus.addDevice(acia);
+        acia.setBaudRate(9600);
+
+        // One character at 9600 baud is 833 cycles at the default 1 MHz
+        acia.rxWrite('a');
+        assertEquals(0x00, acia.read(0x0001, true) & 0x08);
+        bus.getScheduler().advance(832);
+        assertEquals(0x00, acia.read(0x0001, true) & 0x08);
+        bus.getScheduler().advance(1);
+        assertEquals(0x08, acia.read(0x0001, true) & 0x08);
+
+        acia.txWrite('b');
+        acia.txRead(true);
+        assertEquals(0x00, acia.read(0x0001, true) & 0x10);
+        bus.getScheduler().advance(833);
+        assertEquals(0x10, acia.read(0x0001, true) & 0x10);
+    }
+
+    @Test
+    public void shouldMoveQueuedBytesOnlyAsTheSchedulerRuns() throws Exception {
+        Bus bus = new Bus(0x0000, 0xffff);
+        Cpu cpu = new Cpu();
+        bus.addCpu(cpu);
+        Acia acia = new Acia6551(0x0000);
+        bus.addDevice(acia);
+        SpscByteQueue rx = new SpscByteQueue(16);
+        acia.attachQueues(new SpscByteQueue(16), rx);
+
+        // Enable RX IRQ
+        acia.write(2, 0x00);
+
+        // The terminal only fills the queue; the byte and its interrupt arrive
+        // when the scheduler next moves bytes, on the thread running the CPU
+        rx.offer('a');
+        assertFalse(acia.hasRxChar());
+        assertFalse(cpu.getCpuState().irqAsserted);
+
+        bus.getScheduler().advance((int) bus.getScheduler().nanosToCycles(1000000L));
+        assertTrue(acia.hasRxChar());
+        assertTrue(cpu.getCpuState().irqAsserted);
+        assertEquals('a', acia.read(0x0000, true));
+
+        // Detached queues are no longer polled
+        acia.attachQueues(null, null);
+        assertEquals(0, bus.getScheduler().pendingEvents());
+    }
 }
@@ -0,0 +1,118 @@
+package com.loomcom.symon;
+
+import junit.framework.TestCase;
+
+public class BreakpointsTest extends TestCase {
+
+    private Breakpoints breakpoints;
+    private CpuState state;
+
+    protected void setUp() {
+        breakpoints = new Breakpoints(null);
+        state = new CpuState();
+    }
+
+    public void testNoBreakpoints() {
+        for (int address = 0; address <= 0xffff; address++) {
+            state.pc = address;
+            assertFalse(breakpoints.shouldBreak(state));
+            assertFalse(breakpoints.contains(address));
+        }
+    }
+
+    public void testAddAndRemove() {
+        breakpoints.addBreakpoint(0x0000);
+        breakpoints.addBreakpoint(0x003f);
+        breakpoints.addBreakpoint(0x0040);
+        breakpoints.addBreakpoint(0xffff);
+
+        assertTrue(breakpoints.contains(0x0000));
+        assertTrue(breakpoints.contains(0x003f));
+        assertTrue(breakpoints.contains(0x0040));
+        assertTrue(breakpoints.contains(0xffff));
+        assertFalse(breakpoints.contains(0x0001));
+        assertFalse(breakpoints.contains(0x0041));
+        assertFalse(breakpoints.contains(0xfffe));
+        assertEquals(4, breakpoints.getRowCount());
+
+        breakpoints.removeBreakpoint(0x003f);
+        assertFalse(breakpoints.contains(0x003f));
+        assertTrue(breakpoints.contains(0x0040));
+
+        breakpoints.removeBreakpointAtIndex(0);
+        assertFalse(breakpoints.contains(0x0000));
+        assertEquals(2, breakpoints.getRowCount());
+        assertEquals("$0040", breakpoints.getValueAt(0, 0));
+        assertEquals("$FFFF", breakpoints.getValueAt(1, 0));
+    }
+
+    public void testShouldBreak() {
+        breakpoints.addBreakpoint(0xc000);
+
+        state.pc = 0xc000;
+        assertTrue(breakpoints.shouldBreak(state));
+        state.pc = 0xc001;
+        assertFalse(breakpoints.shouldBreak(state));
+    }
+
+    public void testConditionalBreakpoint() {
+        breakpoints.addBreakpoint(new Breakpoints.Breakpoint(
+                0xc000, new BreakpointCondition("A == $10 && x >= 3 && C == 1"), 1));
+
+        state.pc = 0xc000;
+        state.a = 0x10;
+        state.x = 0x02;
+        state.setCarryFlag(true);
+        assertFalse(breakpoints.shouldBreak(state));
+
+        state.x = 0x03;
+        assertTrue(breakpoints.shouldBreak(state));
+
+        state.setCarryFlag(false);
+        assertFalse(breakpoints.shouldBreak(state));
+
+        assertEquals("A == $10 && x >= 3 && C == 1", breakpoints.getValueAt(0, 2));
+    }
+
+    public void testHitCount() {
+        breakpoints.addBreakpoint(new Breakpoints.Breakpoint(
+                0xc000, new BreakpointCondition("Y != 0"), 3));
+
+        state.pc = 0xc000;
+        state.y = 0;
+        assertFalse(breakpoints.shouldBreak(state));
+        state.y = 1;
+        assertFalse(breakpoints.shouldBreak(state));
+        assertFalse(breakpoints.shouldBreak(state));
+        assertTrue(breakpoints.shouldBreak(state));
+        assertEquals("3/3", breakpoints.getValueAt(0, 3));
+
+        breakpoints.resetHitCounts();
+        assertEquals("0/3", breakpoints.getValueAt(0, 3));
+        assertFalse(breakpoints.shouldBreak(state));
+    }
+
+    public void testConditionComparisons() {
+        state.sp = 0xf0;
+        state.setStatusFlag(Cpu.P_NEGATIVE | Cpu.P_ZERO);
+
+        assertTrue(new BreakpointCondition("SP < F1").matches(state));
+        assertTrue(new BreakpointCondition("SP <= $F0").matches(state));
+        assertFalse(new BreakpointCondition("SP > F0").matches(state));
+        assertTrue(new BreakpointCondition("sp >= f0").matches(state));
+        assertTrue(new BreakpointCondition("P == A2").matches(state));
+        assertTrue(new BreakpointCondition("N == 1 && Z == 1 && V == 0").matches(state));
+    }
+
+    public void testInvalidConditions() {
+        String[] invalid = {"", "A", "Q == 1", "A == zz", "A = 1"};
+        for (String text : invalid) {
+            try {
+                new BreakpointCondition(text);
+                fail("Should not have parsed '" + text + "'");
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+    }
+}
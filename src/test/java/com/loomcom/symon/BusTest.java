@@ -135,4 +135,201 @@ public class BusTest extends TestCase {
         assertFalse(c.getCpuState().nmiAsserted);
     }
 
+    public void testReadAndWriteThroughPagesSharedBetweenDevices() throws Exception {
+        Memory low = new Memory(0x0000, 0x7eff);
+        Memory io1 = new Memory(0x7f00, 0x7f0f);
+        Memory io2 = new Memory(0x7f10, 0x7fff);
+
+        Bus b = new Bus(0x0000, 0xffff);
+        b.addDevice(low);
+        b.addDevice(io1);
+        b.addDevice(io2);
+
+        b.write(0x7efe, 0x11);
+        b.write(0x7f03, 0x22);
+        b.write(0x7f10, 0x33);
+
+        assertEquals(0x11, low.read(0x7efe, false));
+        assertEquals(0x22, io1.read(0x03, false));
+        assertEquals(0x33, io2.read(0x00, false));
+
+        assertEquals(0x11, b.read(0x7efe, true));
+        assertEquals(0x22, b.read(0x7f03, true));
+        assertEquals(0x33, b.read(0x7f10, true));
+    }
+
+    public void testUnalignedMemoryIsMappedAtTheRightOffset() throws Exception {
+        Memory mem = new Memory(0x1080, 0x327f);
+
+        Bus b = new Bus(0x0000, 0xffff);
+        b.addDevice(mem);
+
+        b.write(0x1080, 0x01);
+        b.write(0x2000, 0x02);
+        b.write(0x327f, 0x03);
+
+        assertEquals(0x01, mem.read(0x0000, false));
+        assertEquals(0x02, mem.read(0x0f80, false));
+        assertEquals(0x03, mem.read(0x21ff, false));
+        assertEquals(0x02, b.read(0x2000, true));
+    }
+
+    public void testWriteToReadOnlyPageFails() throws Exception {
+        Bus b = new Bus(0x0000, 0xffff);
+        b.addDevice(new Memory(0x8000, 0xffff, true));
+
+        try {
+            b.write(0x8000, 0xea);
+            fail("Should have thrown MemoryAccessException");
+        } catch (MemoryAccessException ex) {
+            // Expected
+        }
+    }
+
+    public void testAccessToUnmappedAddressFails() throws Exception {
+        Bus b = new Bus(0x0000, 0xffff);
+        b.addDevice(new Memory(0x0000, 0x7f7f));
+
+        try {
+            b.read(0x7f80, true);
+            fail("Should have thrown MemoryAccessException");
+        } catch (MemoryAccessException ex) {
+            // Expected
+        }
+    }
+
+    public void testRemoveDeviceUnmapsItsPages() throws Exception {
+        Memory rom = new Memory(0x8000, 0xffff, true);
+        Bus b = new Bus(0x0000, 0xffff);
+        b.addDevice(new Memory(0x0000, 0x7fff));
+        b.addDevice(rom);
+        assertTrue(b.isComplete());
+
+        b.removeDevice(rom);
+        assertFalse(b.isComplete());
+
+        Memory ram = new Memory(0x8000, 0xffff);
+        b.addDevice(ram);
+        b.write(0xc000, 0x42);
+        assertEquals(0x42, ram.read(0x4000, false));
+        assertTrue(b.isComplete());
+    }
+
+    public void testLoadAndDumpBlocksAcrossDevices() throws Exception {
+        Memory ram = new Memory(0x0000, 0x01ff);
+        Memory io = new Memory(0x0200, 0x020f);
+
+        Bus b = new Bus(0x0000, 0xffff);
+        b.addDevice(ram);
+        b.addDevice(io);
+
+        byte[] data = new byte[0x20];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (0x80 + i);
+        }
+        b.load(0x01f0, data);
+
+        assertEquals(0x80, ram.read(0x01f0, false));
+        assertEquals(0x8f, ram.read(0x01ff, false));
+        assertEquals(0x90, io.read(0x00, false));
+        assertEquals(0x9f, io.read(0x0f, false));
+
+        int[] dump = new int[0x22];
+        b.dump(0x01ef, dump);
+        assertEquals(0x00, dump[0]);
+        assertEquals(0x80, dump[1]);
+        assertEquals(0x9f, dump[0x20]);
+        assertEquals(-1, dump[0x21]);
+    }
+
+    public void testWriteWatchpoint() throws Exception {
+        Memory ram = new Memory(0x0000, 0xffff);
+        Bus b = new Bus(0x0000, 0xffff);
+        b.addDevice(ram);
+
+        b.addWatchpoint(Watchpoint.parse("w:7f60-7f61=80/80"));
+
+        b.write(0x7f5f, 0xff);
+        b.write(0x7f60, 0x7f);
+        assertNull(b.takeWatchpointHit());
+
+        b.write(0x7f61, 0x81);
+        Watchpoint.Hit hit = b.takeWatchpointHit();
+        assertNotNull(hit);
+        assertEquals(0x7f61, hit.getAddress());
+        assertEquals(0x81, hit.getValue());
+        assertEquals(0x81, ram.read(0x7f61, false));
+        assertNull(b.takeWatchpointHit());
+
+        // Reads don't trigger a write watchpoint
+        assertEquals(0x81, b.read(0x7f61, true));
+        assertNull(b.takeWatchpointHit());
+
+        b.clearWatchpoints();
+        b.write(0x7f61, 0x81);
+        assertNull(b.takeWatchpointHit());
+    }
+
+    public void testReadWatchpointIgnoresNonCpuAccess() throws Exception {
+        Bus b = new Bus(0x0000, 0xffff);
+        b.addDevice(new Memory(0x0000, 0xffff));
+        b.write(0x1234, 0x56);
+
+        b.addWatchpoint(new Watchpoint(Watchpoint.Type.READ, 0x1234, 0x1234));
+
+        assertEquals(0x56, b.read(0x1234, false));
+        int[] dump = new int[4];
+        b.dump(0x1232, dump);
+        assertEquals(0x56, dump[2]);
+        assertNull(b.takeWatchpointHit());
+
+        assertEquals(0x56, b.read(0x1234, true));
+        Watchpoint.Hit hit = b.takeWatchpointHit();
+        assertNotNull(hit);
+        assertEquals(0x1234, hit.getAddress());
+        assertEquals(0x56, hit.getValue());
+    }
+
+    public void testExecuteWatchpoint() throws Exception {
+        Bus b = new Bus(0x0000, 0xffff);
+        b.addDevice(new Memory(0x0000, 0xffff));
+        b.write(0xc000, 0xea);
+
+        assertFalse(b.checkExecute(0xc000));
+
+        b.addWatchpoint(Watchpoint.parse("x:c000"));
+        assertFalse(b.checkExecute(0xc001));
+        assertTrue(b.checkExecute(0xc000));
+
+        Watchpoint.Hit hit = b.takeWatchpointHit();
+        assertEquals(0xc000, hit.getInstructionAddress());
+        assertEquals(0xea, hit.getValue());
+    }
+
+    public void testWatchpointsSurviveDeviceChanges() throws Exception {
+        Bus b = new Bus(0x0000, 0xffff);
+        b.addWatchpoint(Watchpoint.parse("w:8000"));
+
+        Memory ram = new Memory(0x8000, 0x80ff);
+        b.addDevice(ram);
+        b.write(0x8000, 0x01);
+        assertNotNull(b.takeWatchpointHit());
+        assertEquals(0x01, ram.read(0x0000, false));
+    }
+
+    public void testParseWatchpoints() {
+        assertEquals("w:7F60", Watchpoint.parse("w:7f60").toString());
+        assertEquals("r:7F00-7F03=80/80", Watchpoint.parse("R:7F00-7F03=80/80").toString());
+        assertEquals("x:C000=EA", Watchpoint.parse("x:c000=ea").toString());
+
+        String[] invalid = {"", "w", "q:1000", "w:", "w:2000-1000", "w:10000", "r:zz"};
+        for (String spec : invalid) {
+            try {
+                Watchpoint.parse(spec);
+                fail("Should not have parsed '" + spec + "'");
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+    }
 }
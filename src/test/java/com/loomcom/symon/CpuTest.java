@@ -669,4 +669,159 @@ public class CpuTest extends TestCase {
         cpu.step();
         assertEquals(0x3E, cpu.getAccumulator());
     }
-}
\ No newline at end of file
+
+    public void testThrottledCpuPacesToWallClock() throws Exception {
+        // JMP $0200, 3 cycles per iteration
+        bus.loadProgram(0x4c, 0x00, 0x02);
+        cpu.setClockPeriodInNs(1000);
+        assertFalse(cpu.isTurbo());
+
+        long start = System.nanoTime();
+        // 10,000 iterations is 30ms of simulated time at 1MHz
+        cpu.step(10000);
+        long elapsed = System.nanoTime() - start;
+
+        assertTrue("elapsed " + elapsed + "ns", elapsed >= 25000000L);
+    }
+
+    public void testTurboCpuIsNotThrottled() throws Exception {
+        bus.loadProgram(0x4c, 0x00, 0x02);
+        cpu.setClockPeriodInNs(Cpu.TURBO_CLOCK_PERIOD_IN_NS);
+        assertTrue(cpu.isTurbo());
+
+        cpu.step(10000);
+        assertEquals(0x0200, cpu.getProgramCounter());
+    }
+
+    public void testRunsCodeWrittenOverAfterDecodingIt() throws Exception {
+        bus.loadProgram(0xa9, 0x01);  // LDA #$01
+        cpu.step();
+        assertEquals(0x01, cpu.getAccumulator());
+
+        bus.write(0x0201, 0x42);
+        cpu.setProgramCounter(0x0200);
+        cpu.step();
+        assertEquals(0x42, cpu.getAccumulator());
+
+        bus.load(0x0200, new byte[] {(byte) 0xa2, 0x17});  // LDX #$17
+        cpu.setProgramCounter(0x0200);
+        cpu.step();
+        assertEquals(0x17, cpu.getXRegister());
+    }
+
+    public void testDecimalNegativeFlagDependsOnBehavior() throws Exception {
+        bus.loadProgram(0xf8,        // SED
+                        0x18,        // CLC
+                        0xa9, 0x79,  // LDA #$79
+                        0x69, 0x01); // ADC #$01
+        cpu.setBehavior(Cpu.CpuBehavior.NMOS_6502);
+        cpu.step(4);
+        assertEquals(0x80, cpu.getAccumulator());
+        assertFalse(cpu.getNegativeFlag());
+        assertFalse(cpu.getCarryFlag());
+
+        cpu.reset();
+        cpu.setBehavior(Cpu.CpuBehavior.CMOS_6502);
+        cpu.step(4);
+        assertEquals(0x80, cpu.getAccumulator());
+        assertTrue(cpu.getNegativeFlag());
+        assertFalse(cpu.getCarryFlag());
+    }
+
+    public void testPageCrossingsAndTakenBranchesTakeExtraCycles() throws Exception {
+        bus.loadProgram(0xa2, 0x01,        // $0200 LDX #$01
+                        0xbd, 0x00, 0x03,  // $0202 LDA $0300,X
+                        0xbd, 0xff, 0x03,  // $0205 LDA $03FF,X
+                        0x9d, 0xff, 0x03,  // $0208 STA $03FF,X
+                        0x18,              // $020B CLC
+                        0xb0, 0x00,        // $020C BCS $020E
+                        0x90, 0x00,        // $020E BCC $0210
+                        0x0f, 0x10, 0x00,  // $0210 BBR0 $10,$0213
+                        0x8f, 0x10, 0x00,  // $0213 BBS0 $10,$0216
+                        0x1f, 0x10, 0xd7); // $0216 BBR1 $10,$01F0
+        int[] expected = {2, 4, 5, 5, 2, 2, 3, 6, 5, 7};
+        for (int i = 0; i < expected.length; i++) {
+            long before = cpu.getCycleCount();
+            cpu.step();
+            assertEquals("Step " + i, expected[i], cpu.getCycleCount() - before);
+        }
+        assertEquals(0x01f0, cpu.getProgramCounter());
+    }
+
+    public void testInterruptsTakeSevenCycles() throws Exception {
+        bus.write(Cpu.IRQ_VECTOR_L, 0x00);
+        bus.write(Cpu.IRQ_VECTOR_H, 0x03);
+        bus.write(Cpu.NMI_VECTOR_L, 0x00);
+        bus.write(Cpu.NMI_VECTOR_H, 0x04);
+        bus.write(0x0300, 0xea);  // NOP
+        bus.write(0x0400, 0xea);  // NOP
+        bus.loadProgram(0xea);    // $0200 NOP
+
+        long before = cpu.getCycleCount();
+        cpu.assertIrq();
+        cpu.step();
+        assertEquals(0x0301, cpu.getProgramCounter());
+        assertEquals(7 + 2, cpu.getCycleCount() - before);
+        cpu.clearIrq();
+
+        before = cpu.getCycleCount();
+        cpu.assertNmi();
+        cpu.step();
+        assertEquals(0x0401, cpu.getProgramCounter());
+        assertEquals(7 + 2, cpu.getCycleCount() - before);
+    }
+
+    public void testCmosDecimalArithmeticTakesAnExtraCycle() throws Exception {
+        bus.loadProgram(0x69, 0x01,  // $0200 ADC #$01
+                        0xe9, 0x01,  // $0202 SBC #$01
+                        0xf8,        // $0204 SED
+                        0x69, 0x01,  // $0205 ADC #$01
+                        0xe9, 0x01,  // $0207 SBC #$01
+                        0x65, 0x10); // $0209 ADC $10
+        int[] cmos = {2, 2, 2, 3, 3, 4};
+        int[] nmos = {2, 2, 2, 2, 2, 3};
+        int[][] expected = {cmos, nmos};
+        Cpu.CpuBehavior[] behaviors = {Cpu.CpuBehavior.CMOS_6502, Cpu.CpuBehavior.NMOS_6502};
+        for (int b = 0; b < behaviors.length; b++) {
+            cpu.setBehavior(behaviors[b]);
+            cpu.reset();
+            for (int i = 0; i < expected[b].length; i++) {
+                long before = cpu.getCycleCount();
+                cpu.step();
+                assertEquals(behaviors[b] + " step " + i, expected[b][i], cpu.getCycleCount() - before);
+            }
+        }
+    }
+
+    public void testDisassemblingNextOpDoesNotAccessDevices() throws Exception {
+        final int[] cpuReads = new int[1];
+        Bus bus = new Bus(0x0000, 0xffff);
+        Cpu cpu = new Cpu();
+        bus.addCpu(cpu);
+        bus.addDevice(new Memory(0x0000, 0x7fff));
+        bus.addDevice(new Device(0x8000, 0x80ff, "Counter") {
+            public void write(int address, int data) {
+            }
+
+            public int read(int address, boolean cpuAccess) {
+                if (cpuAccess) {
+                    cpuReads[0]++;
+                }
+                return 0xea;  // NOP
+            }
+
+            public String toString() {
+                return "Counter";
+            }
+        });
+
+        cpu.setProgramCounter(0x8000);
+        assertEquals("NOP", cpu.disassembleNextOp());
+        assertEquals(0, cpuReads[0]);
+
+        cpu.step();
+        assertEquals(1, cpuReads[0]);
+        assertEquals("NOP", cpu.disassembleNextOp());
+        assertEquals(1, cpuReads[0]);
+    }
+}
@@ -0,0 +1,63 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.InstructionTable.CpuBehavior;
+import junit.framework.TestCase;
+
+import static com.loomcom.symon.DispatchTable.*;
+
+public class DispatchTableTest extends TestCase {
+
+    public void testTablesAreSharedPerBehavior() {
+        assertSame(DispatchTable.forBehavior(CpuBehavior.CMOS_6502),
+                   DispatchTable.forBehavior(CpuBehavior.CMOS_6502));
+        assertNotSame(DispatchTable.forBehavior(CpuBehavior.NMOS_6502),
+                      DispatchTable.forBehavior(CpuBehavior.CMOS_6502));
+    }
+
+    public void testAddressingModes() {
+        DispatchTable table = DispatchTable.forBehavior(CpuBehavior.NMOS_6502);
+
+        assertEquals(EA_IMM, table.getAddressing(0xa9)); // LDA #
+        assertEquals(EA_ZPG, table.getAddressing(0xa5)); // LDA zp
+        assertEquals(EA_ZPX, table.getAddressing(0xb5)); // LDA zp,X
+        assertEquals(EA_ZPY, table.getAddressing(0xb6)); // LDX zp,Y
+        assertEquals(EA_ABS, table.getAddressing(0xad)); // LDA abs
+        assertEquals(EA_ABX, table.getAddressing(0xbd)); // LDA abs,X
+        assertEquals(EA_ABY, table.getAddressing(0xbe)); // LDX abs,Y
+        assertEquals(EA_XIN, table.getAddressing(0xa1)); // LDA (zp,X)
+        assertEquals(EA_INY, table.getAddressing(0xb1)); // LDA (zp),Y
+        assertEquals(EA_NONE, table.getAddressing(0xd0)); // BNE
+        assertEquals(EA_NONE, table.getAddressing(0x0a)); // ASL A
+    }
+
+    public void testCmosOnlyOpcodesAreNopsOnNmos() {
+        DispatchTable nmos = DispatchTable.forBehavior(CpuBehavior.NMOS_6502);
+        DispatchTable cmos = DispatchTable.forBehavior(CpuBehavior.CMOS_6502);
+
+        int[][] cmosOnly = {
+                {0x80, OP_BRA}, {0x64, OP_STZ}, {0x04, OP_TSB}, {0x14, OP_TRB},
+                {0xda, OP_PHX}, {0x1a, OP_INC_A}, {0xb2, OP_LDA}, {0x07, OP_RMB},
+                {0x87, OP_SMB}, {0x0f, OP_BBR}, {0x8f, OP_BBS}
+        };
+
+        for (int[] entry : cmosOnly) {
+            assertEquals(OP_NOP, nmos.getOperation(entry[0]));
+            assertEquals(EA_NONE, nmos.getAddressing(entry[0]));
+            assertEquals(entry[1], cmos.getOperation(entry[0]));
+        }
+
+        assertEquals(EA_ZPI, cmos.getAddressing(0xb2));
+    }
+
+    public void testIndirectJumpSelectsPageWrapBehavior() {
+        assertEquals(OP_JMP_IND_NMOS, DispatchTable.forBehavior(CpuBehavior.NMOS_6502).getOperation(0x6c));
+        assertEquals(OP_JMP_IND_NMOS, DispatchTable.forBehavior(CpuBehavior.NMOS_WITH_ROR_BUG).getOperation(0x6c));
+        assertEquals(OP_JMP_IND, DispatchTable.forBehavior(CpuBehavior.CMOS_6502).getOperation(0x6c));
+    }
+
+    public void testIllegalOpcodesTrap() {
+        DispatchTable table = DispatchTable.forBehavior(CpuBehavior.NMOS_6502);
+        assertEquals(OP_TRAP, table.getOperation(0x02));
+        assertEquals(OP_TRAP, table.getOperation(0x03));
+    }
+}
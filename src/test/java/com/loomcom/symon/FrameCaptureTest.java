@@ -0,0 +1,133 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Crtc;
+import com.loomcom.symon.devices.Memory;
+import com.loomcom.symon.devices.Vdp;
+import junit.framework.TestCase;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+
+public class FrameCaptureTest extends TestCase {
+
+    private Bus bus;
+    private Scheduler scheduler;
+
+    protected void setUp() throws Exception {
+        bus = new Bus(0x0000, 0xffff);
+        bus.addCpu(new Cpu());
+        scheduler = bus.getScheduler();
+    }
+
+    private void runFrames(int frames, int frameRate) {
+        for (int i = 0; i < frames; i++) {
+            scheduler.advance((int) (scheduler.getClockRate() / frameRate));
+        }
+    }
+
+    private void writeVram(Vdp vdp, int address, int value) throws Exception {
+        vdp.write(1, address & 0xff);
+        vdp.write(1, 0x40 | (address >> 8));
+        vdp.write(0, value);
+    }
+
+    public void testVdpFramesAreHashed() throws Exception {
+        Vdp vdp = new Vdp(0xc000, true);
+        bus.addDevice(vdp);
+        FrameCapture capture = FrameCapture.forVdp(vdp);
+        ByteArrayOutputStream crcs = new ByteArrayOutputStream();
+        capture.setCrcOutput(crcs);
+
+        runFrames(2, Vdp.FRAME_RATE);
+        assertEquals(2, capture.getFrameCount());
+        long blank = capture.getCrc();
+
+        // Name table entry 0 on a pattern with a set pixel
+        writeVram(vdp, 0x0000, 0x80);
+        writeVram(vdp, 0x2000, 0xf4);
+        runFrames(1, Vdp.FRAME_RATE);
+        assertFalse(blank == capture.getCrc());
+        long drawn = capture.getCrc();
+
+        runFrames(1, Vdp.FRAME_RATE);
+        capture.close();
+        assertEquals(drawn, capture.getCrc());
+
+        String[] lines = crcs.toString().split("\\r?\\n");
+        assertEquals(4, lines.length);
+        assertEquals(String.format("1 %08x", blank), lines[0]);
+        assertEquals(String.format("4 %08x", drawn), lines[3]);
+
+        // Detached, frames are no longer counted
+        runFrames(1, Vdp.FRAME_RATE);
+        assertEquals(4, capture.getFrameCount());
+    }
+
+    public void testCapturedFramesMatchTheRenderer() throws Exception {
+        Memory memory = new Memory(0x0000, 0x7fff);
+        bus.addDevice(memory);
+        Crtc crtc = new Crtc(0x9000, memory);
+        bus.addDevice(crtc);
+        memory.fill(0x7000, 1000, 'A');
+
+        File png = File.createTempFile("frame", ".png");
+        File raw = File.createTempFile("frame", ".raw");
+        png.deleteOnExit();
+        raw.deleteOnExit();
+
+        FrameCapture capture = FrameCapture.forCrtc(crtc, scheduler);
+        capture.captureFrame(3, png);
+        capture.captureFrame(4, raw);
+        capture.captureFrame(9, raw);
+        runFrames(4, FrameCapture.CRTC_FRAME_RATE);
+        capture.close();
+
+        int width = capture.getRenderer().getRasterWidth();
+        int height = capture.getRenderer().getRasterHeight();
+        int[] pixels = capture.getRenderer().getFinalPixels();
+        assertEquals(4, capture.getFrameCount());
+        assertEquals(320, width);
+        assertEquals(225, height);
+
+        BufferedImage image = ImageIO.read(png);
+        assertEquals(width, image.getWidth());
+        assertEquals(height, image.getHeight());
+        for (int y = 0; y < height; y += 7) {
+            for (int x = 0; x < width; x += 3) {
+                assertEquals(pixels[y * width + x], image.getRGB(x, y));
+            }
+        }
+
+        assertEquals(width * height * 4, raw.length());
+        try (DataInputStream in = new DataInputStream(new FileInputStream(raw))) {
+            for (int pixel : pixels) {
+                assertEquals(pixel, in.readInt());
+            }
+        }
+    }
+
+    public void testCrtcCursorBlinksInEmulatedTime() throws Exception {
+        Memory memory = new Memory(0x0000, 0x7fff);
+        bus.addDevice(memory);
+        Crtc crtc = new Crtc(0x9000, memory);
+        bus.addDevice(crtc);
+        memory.fill(0x7000, 1000, ' ');
+
+        FrameCapture capture = FrameCapture.forCrtc(crtc, scheduler);
+        runFrames(1, FrameCapture.CRTC_FRAME_RATE);
+        long cursorOn = capture.getCrc();
+
+        // Blinking every 500ms, the cursor is off from frame 31
+        runFrames(29, FrameCapture.CRTC_FRAME_RATE);
+        assertEquals(cursorOn, capture.getCrc());
+        runFrames(1, FrameCapture.CRTC_FRAME_RATE);
+        assertFalse(cursorOn == capture.getCrc());
+        runFrames(30, FrameCapture.CRTC_FRAME_RATE);
+        assertEquals(cursorOn, capture.getCrc());
+        capture.close();
+    }
+}
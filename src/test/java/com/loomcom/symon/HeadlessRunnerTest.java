@@ -0,0 +1,101 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.machines.Machine;
+import com.loomcom.symon.machines.SimpleMachine;
+import com.loomcom.symon.machines.SymonMachine;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+public class HeadlessRunnerTest extends TestCase {
+
+    private ByteArrayOutputStream out;
+
+    public void setUp() {
+        out = new ByteArrayOutputStream();
+    }
+
+    private Machine loadSimpleMachine(int... program) throws Exception {
+        Machine machine = new SimpleMachine(null);
+        machine.getCpu().reset();
+        machine.getCpu().setProgramCounter(0x0300);
+        machine.getBus().loadProgram(program);
+        return machine;
+    }
+
+    public void testStopsAtTrapAddress() throws Exception {
+        Machine machine = loadSimpleMachine(0xe8,              // $0300 INX
+                                            0xe0, 0x10,        // $0301 CPX #$10
+                                            0xd0, 0xfb,        // $0303 BNE $0300
+                                            0x4c, 0x05, 0x03); // $0305 JMP $0305
+        HeadlessRunner runner = new HeadlessRunner(machine, out, null);
+        runner.setTrapAddress(0x0305);
+
+        assertEquals(HeadlessRunner.ExitReason.TRAP, runner.run());
+        assertEquals(0x10, machine.getCpu().getXRegister());
+        assertEquals(0x0305, machine.getCpu().getProgramCounter());
+    }
+
+    public void testStopsWhenCycleBudgetIsExhausted() throws Exception {
+        Machine machine = loadSimpleMachine(0x4c, 0x00, 0x03); // JMP $0300
+        HeadlessRunner runner = new HeadlessRunner(machine, out, null);
+        runner.setCycleBudget(3000);
+
+        HeadlessRunner.ExitReason reason = runner.run();
+        assertEquals(HeadlessRunner.ExitReason.CYCLE_BUDGET, reason);
+        assertEquals(2, reason.getStatus());
+        assertEquals(3000, machine.getCpu().getCpuState().cycleCounter);
+    }
+
+    public void testStopsOnBrk() throws Exception {
+        Machine machine = loadSimpleMachine(0xea,  // NOP
+                                            0xea,  // NOP
+                                            0x00); // BRK
+        HeadlessRunner runner = new HeadlessRunner(machine, out, null);
+        runner.setStopOnBrk(true);
+
+        assertEquals(HeadlessRunner.ExitReason.BRK, runner.run());
+        assertEquals(3, machine.getCpu().getCpuState().stepCounter);
+    }
+
+    public void testStreamsAciaOutputAndStopsOnMatch() throws Exception {
+        // The Symon machine has a 6551 ACIA at $8800
+        Machine machine = new SymonMachine(null);
+        machine.getCpu().reset();
+        machine.getCpu().setProgramCounter(0x0300);
+        machine.getBus().loadProgram(0xa2, 0x00,        // $0300 LDX #$00
+                                     0xbd, 0x10, 0x03,  // $0302 LDA $0310,X
+                                     0x8d, 0x00, 0x88,  // $0305 STA $8800
+                                     0xe8,              // $0308 INX
+                                     0x4c, 0x02, 0x03); // $0309 JMP $0302
+        machine.getBus().load(0x0310, "HELLO, WORLD".getBytes("US-ASCII"));
+
+        HeadlessRunner runner = new HeadlessRunner(machine, out, null);
+        runner.setOutputMatch("WORLD");
+        runner.setCycleBudget(100000);
+
+        assertEquals(HeadlessRunner.ExitReason.OUTPUT_MATCH, runner.run());
+        assertEquals("HELLO, WORLD", out.toString("US-ASCII"));
+    }
+
+    public void testFeedsInputToAcia() throws Exception {
+        Machine machine = new SymonMachine(null);
+        machine.getCpu().reset();
+        machine.getCpu().setProgramCounter(0x0300);
+        // Echo every received character
+        machine.getBus().loadProgram(0xad, 0x01, 0x88,  // $0300 LDA $8801
+                                     0x29, 0x08,        // $0303 AND #$08
+                                     0xf0, 0xf9,        // $0305 BEQ $0300
+                                     0xad, 0x00, 0x88,  // $0307 LDA $8800
+                                     0x8d, 0x00, 0x88,  // $030A STA $8800
+                                     0x4c, 0x00, 0x03); // $030D JMP $0300
+
+        HeadlessRunner runner = new HeadlessRunner(machine, out,
+                new ByteArrayInputStream("ECHO".getBytes("US-ASCII")));
+        runner.setOutputMatch("ECHO");
+        runner.setCycleBudget(1000000);
+
+        assertEquals(HeadlessRunner.ExitReason.OUTPUT_MATCH, runner.run());
+    }
+}
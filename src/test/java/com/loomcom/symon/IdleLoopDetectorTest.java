@@ -0,0 +1,122 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.machines.Machine;
+import com.loomcom.symon.machines.SymonMachine;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+public class IdleLoopDetectorTest extends TestCase {
+
+    // Prints text at 19200 baud, polling the ACIA until each byte is sent
+    private static final int[] PRINT = {
+            0xa9, 0x1f,          // $0300 LDA #$1F
+            0x8d, 0x03, 0x88,    // $0302 STA $8803
+            0xa2, 0x00,          // $0305 LDX #$00
+            0xad, 0x01, 0x88,    // $0307 LDA $8801
+            0x29, 0x10,          // $030A AND #$10
+            0xf0, 0xf9,          // $030C BEQ $0307
+            0xbd, 0x20, 0x03,    // $030E LDA $0320,X
+            0x8d, 0x00, 0x88,    // $0311 STA $8800
+            0xe8,                // $0314 INX
+            0x4c, 0x07, 0x03     // $0315 JMP $0307
+    };
+
+    // Starts the VIA's timer 1, and polls until it times out
+    private static final int[] WAIT = {
+            0xa9, 0x00,          // $0300 LDA #$00
+            0x8d, 0x0b, 0x80,    // $0302 STA $800B
+            0xa9, 0xff,          // $0305 LDA #$FF
+            0x8d, 0x04, 0x80,    // $0307 STA $8004
+            0x8d, 0x05, 0x80,    // $030A STA $8005
+            0xa9, 0x40,          // $030D LDA #$40
+            0x2c, 0x0d, 0x80,    // $030F BIT $800D
+            0xf0, 0xfb,          // $0312 BEQ $030F
+            0x4c, 0x14, 0x03     // $0314 JMP $0314
+    };
+
+    // Waits for a byte from the ACIA, and stores it
+    private static final int[] READ = {
+            0xad, 0x01, 0x88,    // $0300 LDA $8801
+            0x29, 0x08,          // $0303 AND #$08
+            0xf0, 0xf9,          // $0305 BEQ $0300
+            0xad, 0x00, 0x88,    // $0307 LDA $8800
+            0x8d, 0x00, 0x04,    // $030A STA $0400
+            0x4c, 0x0d, 0x03     // $030D JMP $030D
+    };
+
+    private Machine runSymonMachine(boolean skipping, HeadlessRunner.ExitReason expected,
+                                    String outputMatch, int trapAddress, ByteArrayOutputStream out,
+                                    int... program) throws Exception {
+        Machine machine = new SymonMachine(null);
+        machine.getCpu().setSkippingIdleLoops(skipping);
+        machine.getCpu().reset();
+        machine.getCpu().setProgramCounter(0x0300);
+        machine.getBus().loadProgram(program);
+        StringBuilder text = new StringBuilder();
+        for (int line = 0; line < 20; line++) {
+            text.append("LINE ").append(line).append('\n');
+        }
+        machine.getBus().load(0x0320, text.append("END").toString().getBytes("US-ASCII"));
+
+        HeadlessRunner runner = new HeadlessRunner(machine, out, null);
+        runner.setOutputMatch(outputMatch);
+        runner.setTrapAddress(trapAddress);
+        runner.setCycleBudget(10000000);
+        assertEquals(expected, runner.run());
+        return machine;
+    }
+
+    private static void assertSameState(Machine expected, Machine actual) {
+        CpuState expectedState = expected.getCpu().getCpuState();
+        CpuState actualState = actual.getCpu().getCpuState();
+        assertEquals(expectedState.toTraceEvent(), actualState.toTraceEvent());
+        assertEquals(expectedState.stepCounter, actualState.stepCounter);
+        assertEquals(expectedState.cycleCounter, actualState.cycleCounter);
+    }
+
+    public void testSkipsPollingTheAcia() throws Exception {
+        ByteArrayOutputStream[] out = {new ByteArrayOutputStream(), new ByteArrayOutputStream()};
+        Machine run = runSymonMachine(false, HeadlessRunner.ExitReason.OUTPUT_MATCH, "END", -1, out[0], PRINT);
+        Machine skipped = runSymonMachine(true, HeadlessRunner.ExitReason.OUTPUT_MATCH, "END", -1, out[1], PRINT);
+
+        assertEquals(out[0].toString("US-ASCII"), out[1].toString("US-ASCII"));
+        assertSameState(run, skipped);
+        assertTrue(skipped.getCpu().getIdleLoopDetector().getStepsSkipped() > 0);
+    }
+
+    public void testSkipsWaitingForTheViaTimer() throws Exception {
+        Machine run = runSymonMachine(false, HeadlessRunner.ExitReason.TRAP, null, 0x0314,
+                                      new ByteArrayOutputStream(), WAIT);
+        Machine skipped = runSymonMachine(true, HeadlessRunner.ExitReason.TRAP, null, 0x0314,
+                                          new ByteArrayOutputStream(), WAIT);
+
+        assertSameState(run, skipped);
+        assertTrue(run.getCpu().getCpuState().cycleCounter > 0xffff);
+        assertTrue(skipped.getCpu().getIdleLoopDetector().getStepsSkipped() > 0);
+    }
+
+    public void testWaitsForInputRatherThanSkipping() throws Exception {
+        // Input that never says it is available, as from a terminal
+        final int[] reads = new int[1];
+        InputStream in = new InputStream() {
+            public int read() {
+                return reads[0]++ == 0 ? 'x' : -1;
+            }
+        };
+        Machine machine = new SymonMachine(null);
+        machine.getCpu().setSkippingIdleLoops(true);
+        machine.getCpu().reset();
+        machine.getCpu().setProgramCounter(0x0300);
+        machine.getBus().loadProgram(READ);
+
+        HeadlessRunner runner = new HeadlessRunner(machine, new ByteArrayOutputStream(), in);
+        runner.setTrapAddress(0x030d);
+        runner.setCycleBudget(10000000);
+        assertEquals(HeadlessRunner.ExitReason.TRAP, runner.run());
+        assertEquals('x', machine.getBus().read(0x0400, false));
+        assertEquals(1, reads[0]);
+        assertTrue(machine.getCpu().getCpuState().cycleCounter < 10000);
+    }
+}
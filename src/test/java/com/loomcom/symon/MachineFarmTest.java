@@ -0,0 +1,107 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Vdp;
+import com.loomcom.symon.machines.SimpleMachine;
+import com.loomcom.symon.machines.SymonMachine;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class MachineFarmTest extends TestCase {
+
+    // Echoes each character read from the 6551 ACIA at $8800 as the next one up,
+    // until it reads a "."
+    private static final byte[] PROGRAM = {
+            (byte) 0xad, 0x01, (byte) 0x88,     // $0300 LDA $8801
+            0x29, 0x08,                         // $0303 AND #$08
+            (byte) 0xf0, (byte) 0xf9,           // $0305 BEQ $0300
+            (byte) 0xad, 0x00, (byte) 0x88,     // $0307 LDA $8800
+            (byte) 0xc9, 0x2e,                  // $030A CMP #'.'
+            (byte) 0xf0, 0x0f,                  // $030C BEQ $031D
+            (byte) 0xa8,                        // $030E TAY
+            (byte) 0xc8,                        // $030F INY
+            (byte) 0xad, 0x01, (byte) 0x88,     // $0310 LDA $8801
+            0x29, 0x10,                         // $0313 AND #$10
+            (byte) 0xf0, (byte) 0xf9,           // $0315 BEQ $0310
+            (byte) 0x8c, 0x00, (byte) 0x88,     // $0317 STY $8800
+            0x4c, 0x00, 0x03,                   // $031A JMP $0300
+            0x4c, 0x1d, 0x03                    // $031D JMP $031D
+    };
+
+    private MachineFarm.Job echoJob(String input) {
+        MachineFarm.Job job = new MachineFarm.Job(input, SymonMachine.class, null);
+        job.setProgram(PROGRAM, 0x0300);
+        job.setInput(input.getBytes());
+        job.setTrapAddress(0x031d);
+        job.setCycleBudget(10000000);
+        return job;
+    }
+
+    private static String shifted(String input) {
+        StringBuilder expected = new StringBuilder();
+        for (char c : input.substring(0, input.indexOf('.')).toCharArray()) {
+            expected.append((char) (c + 1));
+        }
+        return expected.toString();
+    }
+
+    public void testRunsJobsInParallel() throws Exception {
+        List<MachineFarm.Job> jobs = new ArrayList<>();
+        for (int i = 0; i < 24; i++) {
+            jobs.add(echoJob("HAL " + i + " ROUTINE " + Integer.toHexString(i * 7919) + "."));
+        }
+
+        MachineFarm farm = new MachineFarm(4);
+        List<MachineFarm.Result> results;
+        try {
+            results = farm.run(jobs);
+        } finally {
+            farm.shutdown();
+        }
+
+        assertEquals(jobs.size(), results.size());
+        for (int i = 0; i < jobs.size(); i++) {
+            MachineFarm.Result result = results.get(i);
+            assertSame(jobs.get(i), result.getJob());
+            assertEquals(HeadlessRunner.ExitReason.TRAP, result.getReason());
+            assertEquals(0x031d, result.getPc());
+            assertEquals(shifted(jobs.get(i).getName()), new String(result.getOutput()));
+        }
+
+        // Each machine does exactly what it would alone
+        MachineFarm.Result alone = echoJob(jobs.get(5).getName()).run();
+        assertEquals(results.get(5).getSteps(), alone.getSteps());
+        assertEquals(results.get(5).getCycles(), alone.getCycles());
+    }
+
+    public void testReportsJobsThatCannotRun() throws Exception {
+        MachineFarm.Job job = echoJob("X.");
+        job.setSnapshot(MachineSnapshot.take(new SimpleMachine(null).getBus()));
+
+        MachineFarm farm = new MachineFarm(1);
+        try {
+            MachineFarm.Result result = farm.run(Collections.singletonList(job)).get(0);
+            assertNull(result.getReason());
+            assertNotNull(result.getFailure());
+            assertEquals(1, result.getStatus());
+        } finally {
+            farm.shutdown();
+        }
+    }
+
+    public void testVdpStateIsPerMachine() throws Exception {
+        Vdp first = new Vdp(0x8000, false);
+        Vdp second = new Vdp(0x8000, false);
+
+        // Register 7 holds the text colours
+        first.write(1, 0xf4);
+        first.write(1, 0x87);
+        second.write(1, 0x1e);
+        second.write(1, 0x87);
+
+        assertEquals(0xf4, first.getRegister(7));
+        assertEquals(0x1e, second.getRegister(7));
+    }
+}
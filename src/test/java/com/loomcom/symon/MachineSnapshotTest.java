@@ -0,0 +1,145 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Memory;
+import com.loomcom.symon.devices.Vdp;
+import com.loomcom.symon.devices.Via6522;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class MachineSnapshotTest extends TestCase {
+
+    // Counts in $10-$11 forever, with VIA timer 1 interrupts counted in $20
+    private static final int[] PROGRAM = {
+            0xa9, 0xc0,             // LDA #$C0
+            0x8d, 0x0e, 0x80,       // STA $800E   ; enable the T1 interrupt
+            0xa9, 0x40,             // LDA #$40
+            0x8d, 0x0b, 0x80,       // STA $800B   ; T1 free running
+            0xa9, 0x00,             // LDA #$00
+            0x8d, 0x04, 0x80,       // STA $8004
+            0xa9, 0x01,             // LDA #$01
+            0x8d, 0x05, 0x80,       // STA $8005   ; every $0100 cycles
+            0x58,                   // CLI
+            0xe6, 0x10,             // INC $10
+            0xd0, 0xfc,             // BNE $0315
+            0xe6, 0x11,             // INC $11
+            0x4c, 0x15, 0x03,       // JMP $0315
+            0xe6, 0x20,             // INC $20     ; IRQ handler
+            0xad, 0x04, 0x80,       // LDA $8004   ; clear the T1 flag
+            0x40                    // RTI
+    };
+
+    private static class TestMachine {
+        final Bus bus = new Bus(0x0000, 0xffff);
+        final Cpu cpu = new Cpu();
+        final Memory ram;
+        final Vdp vdp;
+
+        TestMachine() throws Exception {
+            bus.addCpu(cpu);
+            ram = new Memory(0x0000, 0x7fff);
+            bus.addDevice(ram);
+            bus.addDevice(new Via6522(0x8000));
+            vdp = new Vdp(0x8100, false);
+            bus.addDevice(vdp);
+            bus.addDevice(new Memory(0xe000, 0xffff));
+
+            for (int i = 0; i < PROGRAM.length; i++) {
+                bus.write(0x0300 + i, PROGRAM[i]);
+            }
+            bus.write(0xfffc, 0x00);
+            bus.write(0xfffd, 0x03);
+            bus.write(0xfffe, 0x1e);
+            bus.write(0xffff, 0x03);
+            cpu.reset();
+        }
+
+        void writeVram(int address, int value) throws Exception {
+            vdp.write(1, address & 0xff);
+            vdp.write(1, 0x40 | (address >> 8));
+            vdp.write(0, value);
+        }
+
+        // Everything the program and devices can have changed
+        String fingerprint() throws Exception {
+            CpuState state = cpu.getCpuState();
+            return state.toTraceEvent() + " pc=" + state.pc + " cycles=" + state.cycleCounter +
+                   " steps=" + state.stepCounter + " now=" + bus.getScheduler().now() +
+                   " irq=" + state.irqAsserted + " vram=" + vdp.readVRAM(0x0123) +
+                   " ram=" + Arrays.toString(ram.dump(0, 0x200));
+        }
+    }
+
+    public void testRestoreRepeatsExecution() throws Exception {
+        TestMachine machine = new TestMachine();
+        machine.cpu.step(1000);
+        machine.writeVram(0x0123, 0x5a);
+        MachineSnapshot snapshot = MachineSnapshot.take(machine.bus);
+
+        machine.cpu.step(20000);
+        machine.writeVram(0x0123, 0xa5);
+        String expected = machine.fingerprint();
+        assertTrue(machine.ram.read(0x20, false) > 0);
+
+        // Fan out from the same snapshot, with something else run in between
+        for (int i = 0; i < 3; i++) {
+            machine.cpu.step(1234 * i);
+            snapshot.restore(machine.bus);
+            assertEquals(0x5a, machine.vdp.readVRAM(0x0123));
+            machine.cpu.step(20000);
+            machine.writeVram(0x0123, 0xa5);
+            assertEquals(expected, machine.fingerprint());
+        }
+    }
+
+    public void testSnapshotFilesRestoreIntoAnotherMachine() throws Exception {
+        TestMachine machine = new TestMachine();
+        machine.cpu.step(5000);
+        MachineSnapshot snapshot = MachineSnapshot.take(machine.bus);
+        machine.cpu.step(5000);
+        String expected = machine.fingerprint();
+
+        for (boolean compress : new boolean[]{false, true}) {
+            File file = File.createTempFile("machine", ".state");
+            file.deleteOnExit();
+            snapshot.write(file, compress);
+            if (compress) {
+                assertTrue(file.length() < snapshot.size());
+            } else {
+                assertEquals(MachineSnapshot.FILE_HEADER_SIZE + snapshot.size(), file.length());
+            }
+
+            TestMachine copy = new TestMachine();
+            MachineSnapshot.read(file).restore(copy.bus);
+            copy.cpu.step(5000);
+            assertEquals(expected, copy.fingerprint());
+        }
+    }
+
+    public void testRestoreChecksTheMachine() throws Exception {
+        MachineSnapshot snapshot = MachineSnapshot.take(new TestMachine().bus);
+
+        Bus other = new Bus(0x0000, 0xffff);
+        other.addCpu(new Cpu());
+        other.addDevice(new Memory(0x0000, 0xffff));
+        try {
+            snapshot.restore(other);
+            fail("Restored into a different machine");
+        } catch (IOException expected) {
+        }
+
+        File file = File.createTempFile("machine", ".state");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("not a snapshot at all".getBytes("US-ASCII"));
+        }
+        try {
+            MachineSnapshot.read(file);
+            fail("Read a file that isn't a snapshot");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Memory;
+import com.loomcom.symon.exceptions.MemoryAccessException;
+import com.loomcom.symon.exceptions.MemoryRangeException;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+public class MemoryTest extends TestCase {
+
+    public void testReadAndWriteAreUnsignedBytes() throws Exception {
+        Memory mem = new Memory(0x0000, 0x00ff);
+        mem.write(0x10, 0xff);
+        assertEquals(0xff, mem.read(0x10, true));
+        mem.write(0x11, 0x1a5);
+        assertEquals(0xa5, mem.read(0x11, true));
+    }
+
+    public void testWriteToReadOnlyMemoryFails() throws Exception {
+        Memory rom = new Memory(0x0000, 0x00ff, true);
+        try {
+            rom.write(0x00, 0xea);
+            fail("Should have thrown MemoryAccessException");
+        } catch (MemoryAccessException ex) {
+            // Expected
+        }
+    }
+
+    public void testLoadAndDump() throws Exception {
+        Memory rom = new Memory(0x8000, 0x80ff, true);
+        rom.load(0x10, new byte[] {(byte) 0xa9, 0x01, (byte) 0x8d});
+
+        assertEquals(0xa9, rom.read(0x10, false));
+        assertEquals(0x01, rom.read(0x11, false));
+        assertEquals(0x8d, rom.read(0x12, false));
+
+        byte[] dump = rom.dump(0x0f, 5);
+        assertEquals(5, dump.length);
+        assertEquals(0x00, dump[0]);
+        assertEquals((byte) 0xa9, dump[1]);
+        assertEquals(0x00, dump[4]);
+    }
+
+    public void testBlocksOutsideMemoryAreRejected() throws Exception {
+        Memory mem = new Memory(0x0000, 0x00ff);
+        try {
+            mem.load(0xff, new byte[2]);
+            fail("Should have thrown MemoryRangeException");
+        } catch (MemoryRangeException ex) {
+            // Expected
+        }
+        try {
+            mem.dump(0x80, 0x81);
+            fail("Should have thrown MemoryRangeException");
+        } catch (MemoryRangeException ex) {
+            // Expected
+        }
+    }
+
+    public void testFillRange() throws Exception {
+        Memory mem = new Memory(0x0000, 0x00ff);
+        mem.fill(0x10, 0x20, 0xea);
+        assertEquals(0x00, mem.read(0x0f, false));
+        assertEquals(0xea, mem.read(0x10, false));
+        assertEquals(0xea, mem.read(0x2f, false));
+        assertEquals(0x00, mem.read(0x30, false));
+    }
+
+    public void testMakeRomLoadsFile() throws Exception {
+        File f = File.createTempFile("symon", ".rom");
+        f.deleteOnExit();
+        byte[] image = new byte[0x100];
+        for (int i = 0; i < image.length; i++) {
+            image[i] = (byte) i;
+        }
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(image);
+        }
+
+        Memory rom = Memory.makeROM(0xff00, 0xffff, f);
+        assertTrue(rom.isReadOnly());
+        assertEquals(0x00, rom.read(0x00, false));
+        assertEquals(0x80, rom.read(0x80, false));
+        assertEquals(0xff, rom.read(0xff, false));
+    }
+}
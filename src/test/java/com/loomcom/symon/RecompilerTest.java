@@ -0,0 +1,234 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.machines.Machine;
+import com.loomcom.symon.machines.SimpleMachine;
+import com.loomcom.symon.machines.SymonMachine;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+public class RecompilerTest extends TestCase {
+
+    // Calls a subroutine 2048 times, which adds in decimal mode and stores
+    // through a pointer
+    private static final int[] CALLS = {
+            0xa9, 0x04,          // $0300 LDA #$04
+            0x85, 0x13,          // $0302 STA $13
+            0xa2, 0x00,          // $0304 LDX #$00
+            0xa0, 0x00,          // $0306 LDY #$00
+            0x20, 0x20, 0x03,    // $0308 JSR $0320
+            0xe8,                // $030B INX
+            0xd0, 0xfa,          // $030C BNE $0308
+            0xc8,                // $030E INY
+            0xc0, 0x08,          // $030F CPY #$08
+            0xd0, 0xf5,          // $0311 BNE $0308
+            0x4c, 0x13, 0x03,    // $0313 JMP $0313
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+            0xf8,                // $0320 SED
+            0x18,                // $0321 CLC
+            0xa5, 0x10,          // $0322 LDA $10
+            0x69, 0x01,          // $0324 ADC #$01
+            0x85, 0x10,          // $0326 STA $10
+            0xd8,                // $0328 CLD
+            0x8a,                // $0329 TXA
+            0x91, 0x12,          // $032A STA ($12),Y
+            0x60                 // $032C RTS
+    };
+
+    // Adds 0 to 255 by writing each into the operand of an ADC
+    private static final int[] SELF_MODIFYING = {
+            0xa2, 0x00,          // $0300 LDX #$00
+            0x8e, 0x07, 0x03,    // $0302 STX $0307
+            0x18,                // $0305 CLC
+            0x69, 0x00,          // $0306 ADC #$00
+            0xe8,                // $0308 INX
+            0xd0, 0xf7,          // $0309 BNE $0302
+            0x4c, 0x0b, 0x03     // $030B JMP $030B
+    };
+
+    // Keeps interrupts disabled round a loop of PHP and PLP, and then enables
+    // them with a PLP while one is pending
+    private static final int[] ENABLES_INTERRUPTS = {
+            0x78,                // $0300 SEI
+            0xa2, 0x00,          // $0301 LDX #$00
+            0x08,                // $0303 PHP
+            0x28,                // $0304 PLP
+            0xe8,                // $0305 INX
+            0xd0, 0xfb,          // $0306 BNE $0303
+            0xa9, 0x00,          // $0308 LDA #$00
+            0x48,                // $030A PHA
+            0x28,                // $030B PLP
+            0xe8,                // $030C INX
+            0x4c, 0x0c, 0x03     // $030D JMP $030C
+    };
+
+    private Machine runSimpleMachine(boolean recompiling, int trapAddress, int... program) throws Exception {
+        Machine machine = new SimpleMachine(null);
+        machine.getCpu().setRecompiling(recompiling);
+        machine.getCpu().reset();
+        if (recompiling) {
+            machine.getCpu().getRecompiler().setThreshold(2);
+        }
+        machine.getCpu().setProgramCounter(0x0300);
+        machine.getBus().loadProgram(program);
+
+        HeadlessRunner runner = new HeadlessRunner(machine, new ByteArrayOutputStream(), null);
+        runner.setTrapAddress(trapAddress);
+        runner.setCycleBudget(10000000);
+        assertEquals(HeadlessRunner.ExitReason.TRAP, runner.run());
+        return machine;
+    }
+
+    private static void assertSameState(Machine expected, Machine actual) {
+        CpuState expectedState = expected.getCpu().getCpuState();
+        CpuState actualState = actual.getCpu().getCpuState();
+        assertEquals(expectedState.toTraceEvent(), actualState.toTraceEvent());
+        assertEquals(expectedState.stepCounter, actualState.stepCounter);
+        assertEquals(expectedState.cycleCounter, actualState.cycleCounter);
+    }
+
+    public void testRunsLikeTheInterpreter() throws Exception {
+        Machine interpreted = runSimpleMachine(false, 0x0313, CALLS);
+        Machine recompiled = runSimpleMachine(true, 0x0313, CALLS);
+
+        assertSameState(interpreted, recompiled);
+        assertEquals(0x48, recompiled.getBus().read(0x0010, false));
+        for (int address = 0x0400; address < 0x0408; address++) {
+            assertEquals(0xff, recompiled.getBus().read(address, false));
+        }
+        assertTrue(recompiled.getCpu().getRecompiler().getBlocksCompiled() > 0);
+    }
+
+    public void testSeesCodeWrittenOver() throws Exception {
+        Machine interpreted = runSimpleMachine(false, 0x030b, SELF_MODIFYING);
+        Machine recompiled = runSimpleMachine(true, 0x030b, SELF_MODIFYING);
+
+        assertSameState(interpreted, recompiled);
+        assertEquals(0x80, recompiled.getCpu().getAccumulator());
+        assertTrue(recompiled.getCpu().getRecompiler().getBlocksInvalidated() > 0);
+    }
+
+    public void testTakesInterruptOncePlpEnablesThem() throws Exception {
+        Machine[] machines = new Machine[2];
+        for (int i = 0; i < 2; i++) {
+            Machine machine = new SimpleMachine(null);
+            Cpu cpu = machine.getCpu();
+            cpu.setRecompiling(i == 1);
+            cpu.reset();
+            if (i == 1) {
+                cpu.getRecompiler().setThreshold(2);
+            }
+            cpu.setProgramCounter(0x0300);
+            machine.getBus().loadProgram(ENABLES_INTERRUPTS);
+            // The handler at $0340 loops on itself
+            machine.getBus().write(0xfffe, 0x40);
+            machine.getBus().write(0xffff, 0x03);
+            machine.getBus().write(0x0340, 0x4c);
+            machine.getBus().write(0x0341, 0x40);
+            machine.getBus().write(0x0342, 0x03);
+            cpu.setIrqDisableFlag();
+            cpu.assertIrq();
+
+            HeadlessRunner runner = new HeadlessRunner(machine, new ByteArrayOutputStream(), null);
+            runner.setTrapAddress(0x0340);
+            runner.setCycleBudget(10000000);
+            assertEquals(HeadlessRunner.ExitReason.TRAP, runner.run());
+            machines[i] = machine;
+        }
+
+        assertSameState(machines[0], machines[1]);
+        // The interrupt returns to the instruction after the PLP
+        assertEquals(0x03, machines[1].getBus().read(0x01ff, false));
+        assertEquals(0x0c, machines[1].getBus().read(0x01fe, false));
+        assertTrue(machines[1].getCpu().getRecompiler().getBlocksCompiled() > 0);
+    }
+
+    public void testDevicesSeeInterpreterTiming() throws Exception {
+        Machine[] machines = new Machine[2];
+        String[] output = new String[2];
+        for (int i = 0; i < 2; i++) {
+            // The Symon machine has a 6551 ACIA at $8800
+            Machine machine = new SymonMachine(null);
+            machine.getCpu().setRecompiling(i == 1);
+            machine.getCpu().reset();
+            machine.getCpu().setProgramCounter(0x0300);
+            machine.getBus().loadProgram(0xa2, 0x00,        // $0300 LDX #$00
+                                         0xad, 0x01, 0x88,  // $0302 LDA $8801
+                                         0x29, 0x10,        // $0305 AND #$10
+                                         0xf0, 0xf9,        // $0307 BEQ $0302
+                                         0xbd, 0x20, 0x03,  // $0309 LDA $0320,X
+                                         0x8d, 0x00, 0x88,  // $030C STA $8800
+                                         0xe8,              // $030F INX
+                                         0x4c, 0x02, 0x03); // $0310 JMP $0302
+            StringBuilder text = new StringBuilder();
+            for (int line = 0; line < 20; line++) {
+                text.append("LINE ").append(line).append('\n');
+            }
+            machine.getBus().load(0x0320, text.append("END").toString().getBytes("US-ASCII"));
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            HeadlessRunner runner = new HeadlessRunner(machine, out, null);
+            runner.setOutputMatch("END");
+            runner.setCycleBudget(10000000);
+            assertEquals(HeadlessRunner.ExitReason.OUTPUT_MATCH, runner.run());
+            machines[i] = machine;
+            output[i] = out.toString("US-ASCII");
+        }
+
+        assertEquals(output[0], output[1]);
+        assertSameState(machines[0], machines[1]);
+    }
+
+    public void testRunsFunctionalTestLikeTheInterpreter() throws Exception {
+        byte[] image = Files.readAllBytes(Paths.get("samples/tests/6502_functional_test.bin"));
+        Machine[] machines = new Machine[2];
+        for (int i = 0; i < 2; i++) {
+            Machine machine = new SimpleMachine(null);
+            machine.getCpu().setRecompiling(i == 1);
+            machine.getCpu().reset();
+            machine.getBus().load(0x0000, image);
+            machine.getCpu().setProgramCounter(0x0400);
+
+            HeadlessRunner runner = new HeadlessRunner(machine, new ByteArrayOutputStream(), null);
+            runner.setTrapAddress(0x3399);
+            runner.setCycleBudget(200000000);
+            assertEquals(HeadlessRunner.ExitReason.TRAP, runner.run());
+            machines[i] = machine;
+        }
+
+        assertSameState(machines[0], machines[1]);
+        assertEquals(0x3399, machines[1].getCpu().getProgramCounter());
+    }
+
+    public void testRunsExtendedOpcodesTestLikeTheInterpreter() throws Exception {
+        byte[] image = Files.readAllBytes(Paths.get("samples/tests/65C02_extended_opcodes_test.bin"));
+        Machine[] machines = new Machine[2];
+        for (int i = 0; i < 2; i++) {
+            Machine machine = new SimpleMachine(null);
+            Cpu cpu = machine.getCpu();
+            cpu.setBehavior(InstructionTable.CpuBehavior.CMOS_6502);
+            cpu.setClockPeriodInNs(Cpu.TURBO_CLOCK_PERIOD_IN_NS);
+            cpu.setRecompiling(i == 1);
+            cpu.reset();
+            if (i == 1) {
+                cpu.getRecompiler().addStopAddress(0x24a8);
+            }
+            machine.getBus().load(0x0000, image);
+            cpu.setProgramCounter(0x0400);
+
+            // The suite runs opcodes the 65C02 leaves undefined, which trap in
+            // headless runs, so drive the CPU directly until the success trap
+            CpuState state = cpu.getCpuState();
+            while (state.pc != 0x24a8 && state.cycleCounter < 100000000L) {
+                cpu.runBlock(Integer.MAX_VALUE, 100000000L - state.cycleCounter);
+            }
+            machines[i] = machine;
+        }
+
+        assertSameState(machines[0], machines[1]);
+        assertEquals(0x24a8, machines[1].getCpu().getProgramCounter());
+        assertTrue(machines[1].getCpu().getRecompiler().getBlocksCompiled() > 0);
+    }
+}
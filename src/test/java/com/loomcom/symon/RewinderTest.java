@@ -0,0 +1,151 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Memory;
+import com.loomcom.symon.devices.PCVirtualKeyboard;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class RewinderTest extends TestCase {
+
+    // Copies whatever the keyboard holds into $0200,X forever
+    private static final int[] PROGRAM = {
+            0xad, 0x00, 0x90,       // LDA $9000
+            0x9d, 0x00, 0x02,       // STA $0200,X
+            0xe8,                   // INX
+            0x4c, 0x00, 0x03        // JMP $0300
+    };
+
+    private Bus bus;
+    private Cpu cpu;
+    private Memory ram;
+    private PCVirtualKeyboard keyboard;
+
+    // What the machine looked like after each step, by step
+    private Map<Long, String> history;
+
+    protected void setUp() throws Exception {
+        bus = new Bus(0x0000, 0xffff);
+        cpu = new Cpu();
+        bus.addCpu(cpu);
+        ram = new Memory(0x0000, 0x7fff);
+        bus.addDevice(ram);
+        keyboard = new PCVirtualKeyboard(0x9000);
+        bus.addDevice(keyboard);
+        bus.addDevice(new Memory(0xe000, 0xffff));
+
+        for (int i = 0; i < PROGRAM.length; i++) {
+            bus.write(0x0300 + i, PROGRAM[i]);
+        }
+        bus.write(0xfffc, 0x00);
+        bus.write(0xfffd, 0x03);
+        cpu.reset();
+        history = new HashMap<>();
+    }
+
+    private String fingerprint() throws Exception {
+        CpuState state = cpu.getCpuState();
+        return state.toTraceEvent() + " steps=" + state.stepCounter + " cycles=" + state.cycleCounter +
+               " now=" + bus.getScheduler().now() + " ram=" + Arrays.toString(ram.dump(0x0200, 0x100));
+    }
+
+    // Run with the keyboard changing under the program, as a host would change it
+    private void record(Rewinder rewinder, int steps) throws Exception {
+        rewinder.resume();
+        for (int i = 0; i < steps; i++) {
+            keyboard.write(0, (int) (cpu.getCpuState().stepCounter * 7) & 0xff);
+            cpu.step();
+            rewinder.stepped();
+            history.put(cpu.getCpuState().stepCounter, fingerprint());
+        }
+        rewinder.pause();
+    }
+
+    private String recorded(long step) {
+        return history.get(step);
+    }
+
+    public void testStepBackReplaysHostInput() throws Exception {
+        Rewinder rewinder = new Rewinder(bus, 50, 8, 1024);
+        record(rewinder, 100);
+        keyboard.write(0, 0xee);
+
+        assertTrue(rewinder.stepBack(1));
+        assertEquals(99, rewinder.getCurrentStep());
+        assertEquals(recorded(99), fingerprint());
+
+        assertTrue(rewinder.stepBack(40));
+        assertEquals(recorded(59), fingerprint());
+
+        // Going on from there records a new history
+        record(rewinder, 10);
+        assertTrue(rewinder.stepBack(5));
+        assertEquals(recorded(64), fingerprint());
+    }
+
+    public void testRunBackToWrite() throws Exception {
+        Rewinder rewinder = new Rewinder(bus, 50, 8, 1024);
+        record(rewinder, 100);
+
+        // STA $0200,X is every fourth step, from the second; $0205 was written by step 22
+        long step = rewinder.runBackToWrite(0x0205);
+        assertEquals(22, step);
+        assertEquals(recorded(22), fingerprint());
+        assertEquals(0x0303, cpu.getCpuState().lastPc);
+
+        assertEquals(-1, rewinder.runBackToWrite(0x0205));
+        assertEquals(-1, rewinder.runBackToWrite(0x7000));
+        assertEquals(22, rewinder.getCurrentStep());
+    }
+
+    public void testReverseContinue() throws Exception {
+        Rewinder rewinder = new Rewinder(bus, 50, 8, 1024);
+        record(rewinder, 100);
+
+        Rewinder.StopCondition atInx = new Rewinder.StopCondition() {
+            @Override
+            public boolean shouldStop(CpuState state) {
+                return state.pc == 0x0306;
+            }
+        };
+        // The PC is at INX after each STA: steps 98, 94, ...
+        assertEquals(98, rewinder.reverseContinue(atInx));
+        assertEquals(recorded(98), fingerprint());
+        assertEquals(94, rewinder.reverseContinue(atInx));
+        assertEquals(recorded(94), fingerprint());
+
+        Rewinder.StopCondition never = new Rewinder.StopCondition() {
+            @Override
+            public boolean shouldStop(CpuState state) {
+                return false;
+            }
+        };
+        assertEquals(-1, rewinder.reverseContinue(never));
+        assertEquals(recorded(94), fingerprint());
+    }
+
+    public void testHistoryIsBounded() throws Exception {
+        Rewinder rewinder = new Rewinder(bus, 50, 4, 64);
+        record(rewinder, 1000);
+
+        long earliest = rewinder.getEarliestStep();
+        assertTrue(earliest > 900);
+        assertTrue(rewinder.stepBack(10000));
+        assertEquals(earliest, rewinder.getCurrentStep());
+        assertEquals(recorded(earliest), fingerprint());
+        assertFalse(rewinder.stepBack(1));
+    }
+
+    public void testChangesWhileStoppedAreKept() throws Exception {
+        Rewinder rewinder = new Rewinder(bus, 1000, 8, 1024);
+        record(rewinder, 20);
+        bus.write(0x02f0, 0x42);
+        record(rewinder, 20);
+
+        assertTrue(rewinder.stepBack(10));
+        assertEquals(recorded(30), fingerprint());
+        assertEquals(0x42, ram.read(0x02f0, false));
+    }
+}
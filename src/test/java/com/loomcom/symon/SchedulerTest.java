@@ -0,0 +1,111 @@
+package com.loomcom.symon;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class SchedulerTest extends TestCase {
+
+    private Scheduler scheduler;
+    private List<String> fired;
+
+    private class NamedEvent extends Scheduler.Event {
+        private final String name;
+
+        NamedEvent(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void fire() {
+            fired.add(name + "@" + scheduler.now());
+        }
+    }
+
+    protected void setUp() {
+        scheduler = new Scheduler();
+        fired = new ArrayList<>();
+    }
+
+    public void testEventsFireInCycleOrder() {
+        scheduler.schedule(new NamedEvent("c"), 30);
+        scheduler.schedule(new NamedEvent("a"), 10);
+        scheduler.schedule(new NamedEvent("b"), 20);
+        assertEquals(3, scheduler.pendingEvents());
+
+        scheduler.advance(9);
+        assertTrue(fired.isEmpty());
+        scheduler.advance(1);
+        assertEquals("[a@10]", fired.toString());
+        scheduler.advance(25);
+        assertEquals("[a@10, b@35, c@35]", fired.toString());
+        assertEquals(0, scheduler.pendingEvents());
+    }
+
+    public void testCancelAndReschedule() {
+        NamedEvent a = new NamedEvent("a");
+        NamedEvent b = new NamedEvent("b");
+        scheduler.schedule(a, 10);
+        scheduler.schedule(b, 20);
+
+        scheduler.cancel(a);
+        assertFalse(a.isScheduled());
+        scheduler.advance(15);
+        assertTrue(fired.isEmpty());
+
+        // Scheduling an event again moves it
+        scheduler.schedule(b, 100);
+        scheduler.advance(10);
+        assertTrue(fired.isEmpty());
+        scheduler.schedule(b, 1);
+        scheduler.advance(1);
+        assertEquals("[b@26]", fired.toString());
+    }
+
+    public void testRecurringEvent() {
+        Scheduler.Event tick = new Scheduler.Event() {
+            @Override
+            public void fire() {
+                fired.add(Long.toString(scheduler.now()));
+                scheduler.scheduleAt(this, getCycle() + 100);
+            }
+        };
+        scheduler.schedule(tick, 100);
+
+        for (int i = 0; i < 100; i++) {
+            scheduler.advance(7);
+        }
+        assertEquals("[105, 203, 301, 406, 504, 602, 700]", fired.toString());
+        assertEquals(800, tick.getCycle());
+    }
+
+    public void testManyEvents() {
+        List<NamedEvent> events = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            NamedEvent event = new NamedEvent(Integer.toString(i));
+            events.add(event);
+            scheduler.schedule(event, (i * 37) % 200);
+        }
+        for (int i = 0; i < 200; i += 2) {
+            scheduler.cancel(events.get(i));
+        }
+
+        long last = -1;
+        for (int cycle = 0; cycle < 200; cycle++) {
+            scheduler.advance(1);
+        }
+        assertEquals(100, fired.size());
+        for (String entry : fired) {
+            long cycle = Long.parseLong(entry.substring(entry.indexOf('@') + 1));
+            assertTrue(cycle >= last);
+            last = cycle;
+        }
+    }
+
+    public void testNanosToCycles() {
+        assertEquals(833, scheduler.nanosToCycles(833333));
+        scheduler.setClockRate(2000000);
+        assertEquals(1666, scheduler.nanosToCycles(833333));
+    }
+}
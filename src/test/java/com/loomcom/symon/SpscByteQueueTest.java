@@ -0,0 +1,85 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.util.SpscByteQueue;
+import junit.framework.TestCase;
+
+public class SpscByteQueueTest extends TestCase {
+
+    public void testCapacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(8, new SpscByteQueue(5).capacity());
+        assertEquals(8, new SpscByteQueue(8).capacity());
+        assertEquals(1, new SpscByteQueue(0).capacity());
+    }
+
+    public void testOfferAndPoll() {
+        SpscByteQueue queue = new SpscByteQueue(4);
+        assertTrue(queue.isEmpty());
+        assertEquals(-1, queue.poll());
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(0xfc + i));
+        }
+        assertFalse(queue.offer(0x00));
+        assertEquals(4, queue.size());
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(0xfc + i, queue.poll());
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    public void testDrainToWrapsAround() {
+        SpscByteQueue queue = new SpscByteQueue(4);
+        byte[] dest = new byte[8];
+
+        queue.offer(1);
+        queue.offer(2);
+        queue.offer(3);
+        assertEquals(2, queue.drainTo(dest, 2));
+        queue.offer(4);
+        queue.offer(5);
+        queue.offer(6);
+
+        assertEquals(4, queue.drainTo(dest, dest.length));
+        assertEquals(3, dest[0]);
+        assertEquals(4, dest[1]);
+        assertEquals(5, dest[2]);
+        assertEquals(6, dest[3]);
+        assertEquals(0, queue.drainTo(dest, dest.length));
+    }
+
+    public void testClear() {
+        SpscByteQueue queue = new SpscByteQueue(4);
+        queue.offer(1);
+        queue.offer(2);
+        queue.clear();
+        assertTrue(queue.isEmpty());
+        assertEquals(-1, queue.poll());
+    }
+
+    public void testProducerAndConsumerThreads() throws Exception {
+        final SpscByteQueue queue = new SpscByteQueue(64);
+        final int count = 1000000;
+
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    while (!queue.offer(i & 0xff)) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        producer.start();
+
+        for (int i = 0; i < count; i++) {
+            int value;
+            while ((value = queue.poll()) < 0) {
+                Thread.yield();
+            }
+            assertEquals(i & 0xff, value);
+        }
+        producer.join();
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,127 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.util.TraceFileReader;
+import com.loomcom.symon.util.TraceFileWriter;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TraceFileTest extends TestCase {
+
+    // Enough records to span several blocks
+    private static final int RECORD_COUNT = 50000;
+
+    private File traceFile;
+
+    protected void setUp() throws Exception {
+        traceFile = File.createTempFile("symon", ".trace");
+    }
+
+    protected void tearDown() throws Exception {
+        traceFile.delete();
+    }
+
+    /**
+     * A made-up but plausible run: mostly straight-line code with some jumps,
+     * and registers changing now and then.
+     */
+    private List<CpuState> makeStates() {
+        List<CpuState> states = new ArrayList<>();
+        CpuState state = new CpuState();
+        int pc = 0x0400;
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            state.lastPc = pc;
+            state.ir = (i % 7 == 0) ? 0x4c : 0xad; // JMP abs or LDA abs
+            state.args[0] = i & 0xff;
+            state.args[1] = (i >> 8) & 0xff;
+            state.a = (i / 3) & 0xff;
+            state.x = (i / 5) & 0xff;
+            state.y = (i / 11) & 0xff;
+            state.sp = 0xff - (i / 13 & 0x0f);
+            state.setStatusFlag(0x20 | (i & 0x83));
+            state.cycleCounter += 3 + (i & 1);
+            states.add(new CpuState(state));
+
+            pc = (state.ir == 0x4c) ? (i * 31) & 0xffff : (pc + 3) & 0xffff;
+        }
+        return states;
+    }
+
+    private void write(List<CpuState> states, boolean compress) throws IOException {
+        TraceFileWriter writer = new TraceFileWriter(traceFile, compress);
+        for (CpuState state : states) {
+            writer.append(state);
+        }
+        writer.close();
+    }
+
+    private void assertSameState(CpuState expected, CpuState actual) {
+        assertEquals(expected.toTraceEvent(), actual.toTraceEvent());
+        assertEquals(expected.cycleCounter, actual.cycleCounter);
+    }
+
+    private void assertRoundTrip(boolean compress) throws IOException {
+        List<CpuState> states = makeStates();
+        write(states, compress);
+
+        CpuState state = new CpuState();
+        try (TraceFileReader reader = new TraceFileReader(traceFile)) {
+            for (CpuState expected : states) {
+                assertTrue(reader.next(state));
+                assertSameState(expected, state);
+            }
+            assertFalse(reader.next(state));
+        }
+    }
+
+    public void testRoundTrip() throws Exception {
+        assertRoundTrip(false);
+    }
+
+    public void testCompressedRoundTrip() throws Exception {
+        assertRoundTrip(true);
+    }
+
+    public void testCycleWindow() throws Exception {
+        List<CpuState> states = makeStates();
+        write(states, true);
+
+        long from = states.get(40000).cycleCounter;
+        long to = states.get(40100).cycleCounter;
+
+        CpuState state = new CpuState();
+        try (TraceFileReader reader = new TraceFileReader(traceFile)) {
+            reader.setCycleWindow(from, to);
+            for (int i = 40000; i <= 40100; i++) {
+                assertTrue(reader.next(state));
+                assertSameState(states.get(i), state);
+            }
+            assertFalse(reader.next(state));
+        }
+    }
+
+    public void testEmptyTrace() throws Exception {
+        write(new ArrayList<CpuState>(), false);
+
+        try (TraceFileReader reader = new TraceFileReader(traceFile)) {
+            assertFalse(reader.next(new CpuState()));
+        }
+    }
+
+    public void testRejectsOtherFiles() throws Exception {
+        try (FileOutputStream out = new FileOutputStream(traceFile)) {
+            out.write("Not a trace file".getBytes("US-ASCII"));
+        }
+
+        try {
+            new TraceFileReader(traceFile);
+            fail("Should have thrown an IOException");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.util.TraceRingBuffer;
+import junit.framework.TestCase;
+
+public class TraceRingBufferTest extends TestCase {
+
+    private CpuState makeState(int lastPc, long cycles) {
+        CpuState state = new CpuState();
+        state.lastPc = lastPc;
+        state.ir = 0xad;
+        state.args[0] = 0x34;
+        state.args[1] = 0x12;
+        state.a = 0xfe;
+        state.x = 0x81;
+        state.y = 0x7f;
+        state.sp = 0xf3;
+        state.setCarryFlag(true);
+        state.setNegativeFlag(true);
+        state.setDecimalModeFlag(true);
+        state.cycleCounter = cycles;
+        return state;
+    }
+
+    public void testRoundTrip() {
+        TraceRingBuffer buffer = new TraceRingBuffer(4);
+        CpuState in = makeState(0xc123, 0x123456789aL);
+        buffer.append(in);
+
+        assertEquals(1, buffer.size());
+
+        CpuState out = new CpuState();
+        assertTrue(buffer.get(0, out));
+        assertEquals(0xc123, out.lastPc);
+        assertEquals(0xad, out.ir);
+        assertEquals(0x34, out.args[0]);
+        assertEquals(0x12, out.args[1]);
+        assertEquals(0xfe, out.a);
+        assertEquals(0x81, out.x);
+        assertEquals(0x7f, out.y);
+        assertEquals(0xf3, out.sp);
+        assertEquals(in.getStatusFlag(), out.getStatusFlag());
+        assertEquals(0x123456789aL, out.cycleCounter);
+        assertEquals(in.toTraceEvent(), out.toTraceEvent());
+    }
+
+    public void testKeepsMostRecentEntries() {
+        TraceRingBuffer buffer = new TraceRingBuffer(3);
+        for (int i = 0; i < 10; i++) {
+            buffer.append(makeState(i, i));
+        }
+
+        assertEquals(3, buffer.size());
+
+        CpuState out = new CpuState();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(buffer.get(i, out));
+            assertEquals(7 + i, out.lastPc);
+        }
+        assertFalse(buffer.get(3, out));
+    }
+
+    public void testAppendTraceEvents() {
+        TraceRingBuffer buffer = new TraceRingBuffer(8);
+        CpuState first = makeState(0x1000, 2);
+        CpuState second = makeState(0x1003, 6);
+        buffer.append(first);
+        buffer.append(second);
+
+        StringBuilder text = new StringBuilder();
+        buffer.appendTraceEvents(text);
+        assertEquals(first.toTraceEvent() + second.toTraceEvent(), text.toString());
+    }
+
+    public void testReset() {
+        TraceRingBuffer buffer = new TraceRingBuffer(4);
+        buffer.append(makeState(0x1000, 1));
+        buffer.reset();
+
+        assertEquals(0, buffer.size());
+        assertFalse(buffer.get(0, new CpuState()));
+    }
+
+    public void testReaderNeverSeesTornEntries() throws Exception {
+        final TraceRingBuffer buffer = new TraceRingBuffer(4);
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                CpuState state = new CpuState();
+                for (int i = 0; i < 2000000; i++) {
+                    state.lastPc = i & 0xffff;
+                    state.cycleCounter = i;
+                    buffer.append(state);
+                }
+            }
+        });
+        writer.start();
+
+        // Each entry's halves were written together, so must agree when read
+        CpuState out = new CpuState();
+        while (writer.isAlive()) {
+            for (int i = 0; i < buffer.size(); i++) {
+                if (buffer.get(i, out)) {
+                    assertEquals(out.cycleCounter & 0xffff, out.lastPc);
+                }
+            }
+        }
+        writer.join();
+    }
+}
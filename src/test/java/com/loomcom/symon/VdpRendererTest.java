@@ -0,0 +1,239 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Vdp;
+import com.loomcom.symon.devices.VdpSnapshot;
+import com.loomcom.symon.ui.VdpRenderer;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class VdpRendererTest extends TestCase {
+
+    private Vdp vdp;
+    private Random random;
+
+    protected void setUp() throws Exception {
+        vdp = new Vdp(0x0000, true);
+        random = new Random(9918);
+    }
+
+    private void writeRegister(int register, int value) throws Exception {
+        vdp.write(1, value);
+        vdp.write(1, 0x80 | register);
+    }
+
+    private void writeVram(int address, int value) throws Exception {
+        vdp.write(1, address & 0xff);
+        vdp.write(1, 0x40 | (address >> 8));
+        vdp.write(0, value);
+    }
+
+    private void setMode(int reg0, int reg1, int colorTable) throws Exception {
+        writeRegister(0, reg0);
+        writeRegister(1, 0xc0 | reg1);
+        writeRegister(2, 0x0e);         // Name table at $3800
+        writeRegister(3, colorTable);
+        writeRegister(4, 0x00);         // Pattern table at $0000
+        writeRegister(5, 0x76);         // Sprite attributes at $3B00
+        writeRegister(6, 0x03);         // Sprite patterns at $1800
+        writeRegister(7, 0xf4);
+    }
+
+    /**
+     * Draw frames with a few random writes between them, and check each one
+     * against a frame drawn from scratch.
+     */
+    private void checkIncrementalFrames() throws Exception {
+        for (int i = 0; i < vdp.vram.length; i++) {
+            writeVram(i, random.nextInt(256));
+        }
+        for (int sprite = 0; sprite < 32; sprite++) {
+            writeVram(0x3b00 + sprite * 4, random.nextInt(0xc0));
+        }
+
+        VdpRenderer renderer = new VdpRenderer(vdp);
+        assertTrue(renderer.computeFinalPixels());
+        assertFalse(renderer.computeFinalPixels());
+
+        for (int frame = 0; frame < 50; frame++) {
+            for (int i = 0; i < 8; i++) {
+                int address = random.nextInt(vdp.vram.length);
+                if (address >= 0x3b00 && address < 0x3b80 && (address & 3) == 0) {
+                    continue;
+                }
+                writeVram(address, random.nextInt(256));
+            }
+            renderer.computeFinalPixels();
+
+            VdpRenderer reference = new VdpRenderer(vdp);
+            reference.computeFinalPixels();
+            int[] expected = reference.getFinalPixels();
+            assertTrue("Frame " + frame, Arrays.equals(expected, renderer.getFinalPixels()));
+        }
+    }
+
+    public void testGraphicsI() throws Exception {
+        setMode(0x00, 0x00, 0x80);
+        checkIncrementalFrames();
+    }
+
+    public void testGraphicsII() throws Exception {
+        setMode(0x02, 0x00, 0xff);
+        checkIncrementalFrames();
+    }
+
+    public void testText() throws Exception {
+        setMode(0x00, 0x10, 0x80);
+        checkIncrementalFrames();
+    }
+
+    public void testMulticolor() throws Exception {
+        setMode(0x00, 0x08, 0x80);
+        checkIncrementalFrames();
+    }
+
+    public void testRegisterWriteRedraws() throws Exception {
+        setMode(0x00, 0x00, 0x80);
+        VdpRenderer renderer = new VdpRenderer(vdp);
+        renderer.computeFinalPixels();
+        int before = renderer.getFinalPixels()[0];
+
+        writeRegister(7, 0xf1);
+        assertTrue(renderer.computeFinalPixels());
+        assertEquals(vdp.getPackedColors()[1], renderer.getFinalPixels()[0]);
+        assertFalse(before == renderer.getFinalPixels()[0]);
+    }
+
+    public void testSnapshotCarriesWritesFromSkippedFrames() throws Exception {
+        setMode(0x00, 0x00, 0x80);
+        VdpSnapshot snapshot = new VdpSnapshot();
+        VdpRenderer renderer = new VdpRenderer(snapshot);
+        vdp.snapshot(snapshot);
+        assertTrue(renderer.computeFinalPixels());
+
+        // Two frames' worth of writes, with only one snapshot taken after them
+        writeVram(0x0000, 0xff);
+        writeVram(0x0080, 0x1f);
+        vdp.snapshot(snapshot);
+        writeVram(0x3800, 0x01);
+        vdp.snapshot(snapshot);
+        assertTrue(snapshot.changed(0x0000));
+        assertTrue(snapshot.changed(0x3800));
+        assertFalse(snapshot.changed(0x0001));
+
+        assertTrue(renderer.computeFinalPixels());
+        assertFalse(snapshot.hasChanges());
+
+        VdpRenderer reference = new VdpRenderer(vdp);
+        reference.computeFinalPixels();
+        assertTrue(Arrays.equals(reference.getFinalPixels(), renderer.getFinalPixels()));
+    }
+
+    private void putSprite(int sprite, int vpos, int hpos, int pattern, int color) throws Exception {
+        writeVram(0x3b00 + sprite * 4, vpos);
+        writeVram(0x3b01 + sprite * 4, hpos);
+        writeVram(0x3b02 + sprite * 4, pattern);
+        writeVram(0x3b03 + sprite * 4, color);
+    }
+
+    private int pixel(VdpRenderer renderer, int x, int y) {
+        return renderer.getFinalPixels()[(y + 8) * renderer.getRasterWidth() + x + 8];
+    }
+
+    /**
+     * A screen of blank patterns, with a solid sprite pattern 1 and a sprite
+     * pattern 2 of one pixel at the top left.
+     */
+    private VdpSnapshot spriteScreen() throws Exception {
+        setMode(0x00, 0x00, 0x80);
+        for (int i = 0; i < vdp.vram.length; i++) {
+            writeVram(i, 0);
+        }
+        for (int row = 0; row < 8; row++) {
+            writeVram(0x1808 + row, 0xff);
+        }
+        writeVram(0x1810, 0x80);
+        return new VdpSnapshot();
+    }
+
+    public void testOnlyFourSpritesShowOnALine() throws Exception {
+        VdpSnapshot snapshot = spriteScreen();
+        for (int sprite = 0; sprite < 5; sprite++) {
+            putSprite(sprite, 99, sprite * 16, 1, 8 + sprite);
+        }
+        putSprite(5, 0xd0, 0, 0, 0);
+        VdpRenderer renderer = new VdpRenderer(snapshot);
+        vdp.snapshot(snapshot);
+        renderer.computeFinalPixels();
+
+        int[] palette = vdp.getPackedColors();
+        for (int sprite = 0; sprite < 4; sprite++) {
+            assertEquals(palette[8 + sprite], pixel(renderer, sprite * 16, 100));
+        }
+        // The backdrop shows through the transparent patterns, above and beside the sprites
+        assertEquals(palette[4], pixel(renderer, 0, 99));
+        assertEquals(palette[4], pixel(renderer, 64, 100));
+        assertEquals(4, snapshot.getFifthSprite());
+        assertFalse(snapshot.getCoincidence());
+
+        // Moved down a line, the fifth sprite shows on the line it has to itself
+        putSprite(4, 100, 64, 1, 12);
+        vdp.snapshot(snapshot);
+        renderer.computeFinalPixels();
+        assertEquals(palette[12], pixel(renderer, 64, 108));
+        assertEquals(palette[4], pixel(renderer, 64, 100));
+        assertEquals(4, snapshot.getFifthSprite());
+
+        putSprite(4, 0xd0, 0, 0, 0);
+        vdp.snapshot(snapshot);
+        renderer.computeFinalPixels();
+        assertEquals(-1, snapshot.getFifthSprite());
+        assertEquals(palette[4], pixel(renderer, 64, 108));
+    }
+
+    public void testSpriteCoincidence() throws Exception {
+        VdpSnapshot snapshot = spriteScreen();
+        putSprite(0, 49, 100, 1, 4);
+        putSprite(1, 49, 108, 1, 6);
+        putSprite(2, 0xd0, 0, 0, 0);
+        VdpRenderer renderer = new VdpRenderer(snapshot);
+        vdp.snapshot(snapshot);
+        renderer.computeFinalPixels();
+        assertFalse(snapshot.getCoincidence());
+
+        // Touching at one pixel, under a transparent sprite of higher priority
+        putSprite(0, 49, 115, 1, 0);
+        vdp.snapshot(snapshot);
+        renderer.computeFinalPixels();
+        assertTrue(snapshot.getCoincidence());
+        int[] palette = vdp.getPackedColors();
+        assertEquals(palette[6], pixel(renderer, 115, 50));
+
+        // Overlapping only where the sprite pattern is clear
+        putSprite(0, 49, 100, 2, 4);
+        putSprite(1, 49, 101, 1, 6);
+        vdp.snapshot(snapshot);
+        renderer.computeFinalPixels();
+        assertFalse(snapshot.getCoincidence());
+        assertEquals(palette[4], pixel(renderer, 100, 50));
+        assertEquals(palette[6], pixel(renderer, 101, 50));
+    }
+
+    public void testPeekingLeavesTheVdpAlone() throws Exception {
+        writeVram(0x0010, 0x55);
+        writeVram(0x0011, 0x66);
+        vdp.write(1, 0x10);
+        vdp.write(1, 0x00);
+        assertEquals(0x55, vdp.read(2, false));
+        assertEquals(0x55, vdp.read(2, false));
+        assertEquals(0x55, vdp.read(2, true));
+        assertEquals(0x66, vdp.read(2, true));
+
+        vdp.setInterruptFlag();
+        assertEquals(0x80, vdp.read(3, false));
+        assertEquals(0x80, vdp.read(3, false));
+        assertEquals(0x80, vdp.read(3, true));
+        assertEquals(0x00, vdp.read(3, true));
+    }
+}
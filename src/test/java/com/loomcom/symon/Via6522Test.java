@@ -0,0 +1,181 @@
+package com.loomcom.symon;
+
+import com.loomcom.symon.devices.Via6522;
+import junit.framework.TestCase;
+
+public class Via6522Test extends TestCase {
+
+    private static final int T1C_L = 4;
+    private static final int T1C_H = 5;
+    private static final int T1L_L = 6;
+    private static final int T1L_H = 7;
+    private static final int T2C_L = 8;
+    private static final int T2C_H = 9;
+    private static final int SR = 10;
+    private static final int ACR = 11;
+    private static final int IFR = 13;
+    private static final int IER = 14;
+
+    private Bus bus;
+    private Cpu cpu;
+    private Scheduler scheduler;
+    private Via6522 via;
+
+    protected void setUp() throws Exception {
+        bus = new Bus(0x0000, 0xffff);
+        cpu = new Cpu();
+        bus.addCpu(cpu);
+        via = new Via6522(0x0000);
+        bus.addDevice(via);
+        scheduler = bus.getScheduler();
+    }
+
+    private int t1Counter() throws Exception {
+        return via.read(T1C_L, false) | (via.read(T1C_H, false) << 8);
+    }
+
+    public void testTimer1OneShot() throws Exception {
+        via.write(T1C_L, 0x10);
+        via.write(T1C_H, 0x00);
+
+        scheduler.advance(5);
+        assertEquals(0x0b, t1Counter());
+        assertEquals(0, via.read(IFR, true) & Via6522.IRQ_T1);
+
+        // Times out as the counter passes through zero to $FFFF
+        scheduler.advance(11);
+        assertEquals(0x0000, t1Counter());
+        assertEquals(0, via.read(IFR, true) & Via6522.IRQ_T1);
+        scheduler.advance(1);
+        assertEquals(0xffff, t1Counter());
+        assertEquals(Via6522.IRQ_T1, via.read(IFR, true) & Via6522.IRQ_T1);
+
+        // Reading the low counter clears the flag, and a one-shot doesn't fire again
+        via.read(T1C_L, true);
+        assertEquals(0, via.read(IFR, true));
+        scheduler.advance(0x20000);
+        assertEquals(0, via.read(IFR, true));
+    }
+
+    public void testTimer1FreeRunningInterrupts() throws Exception {
+        via.write(ACR, 0x40);
+        via.write(IER, 0x80 | Via6522.IRQ_T1);
+        assertEquals(0xc0, via.read(IER, true));
+        via.write(T1C_L, 98);
+        via.write(T1C_H, 0);
+
+        // The period is the latch plus two
+        int interrupts = 0;
+        for (int cycle = 1; cycle <= 1000; cycle++) {
+            scheduler.advance(1);
+            if (cpu.getCpuState().irqAsserted) {
+                assertEquals(99, cycle % 100);
+                assertEquals(0xc0, via.read(IFR, true));
+                cpu.clearIrq();
+                via.read(T1C_L, true);
+                interrupts++;
+            }
+        }
+        assertEquals(10, interrupts);
+    }
+
+    public void testTimer1FreeRunningCatchesUpLazily() throws Exception {
+        via.write(ACR, 0x40);
+        via.write(T1C_L, 0x30);
+        via.write(T1C_H, 0x01);
+        assertEquals(0, scheduler.pendingEvents());
+
+        // The counter runs $130 .. 0, $FFFF, then reloads: a period of $132
+        scheduler.advance(0x132 * 1000 + 0x10);
+        assertEquals(0x120, t1Counter());
+        assertEquals(Via6522.IRQ_T1, via.read(IFR, true));
+        via.read(T1C_L, true);
+        assertEquals(0, via.read(IFR, true));
+        scheduler.advance(0x121);
+        assertEquals(0xffff, t1Counter());
+        assertEquals(Via6522.IRQ_T1, via.read(IFR, true));
+        scheduler.advance(1);
+        assertEquals(0x130, t1Counter());
+    }
+
+    public void testLatchWritesDoNotRestartTimer1() throws Exception {
+        via.write(T1C_L, 0x00);
+        via.write(T1C_H, 0x10);
+        via.write(T1L_L, 0x34);
+        via.write(T1L_H, 0x12);
+        assertEquals(0x34, via.read(T1L_L, true));
+        assertEquals(0x12, via.read(T1L_H, true));
+        assertEquals(0x1000, t1Counter());
+    }
+
+    public void testTimer2OneShot() throws Exception {
+        via.write(IER, 0x80 | Via6522.IRQ_T2);
+        via.write(T2C_L, 0x20);
+        via.write(T2C_H, 0x00);
+
+        scheduler.advance(0x20);
+        assertFalse(cpu.getCpuState().irqAsserted);
+        assertEquals(0x00, via.read(T2C_L, false));
+        scheduler.advance(1);
+        assertTrue(cpu.getCpuState().irqAsserted);
+        assertEquals(0xa0, via.read(IFR, true));
+        via.read(T2C_L, true);
+        assertEquals(0, via.read(IFR, true));
+    }
+
+    public void testTimer2PulseCountingHolds() throws Exception {
+        via.write(ACR, 0x20);
+        via.write(T2C_L, 0x55);
+        via.write(T2C_H, 0x01);
+        scheduler.advance(0x1000);
+        assertEquals(0x55, via.read(T2C_L, true));
+        assertEquals(0x01, via.read(T2C_H, true));
+        assertEquals(0, via.read(IFR, true));
+    }
+
+    public void testShiftRegisterPhi2() throws Exception {
+        via.write(ACR, 0x18);
+        via.write(SR, 0xa5);
+        scheduler.advance(7);
+        assertEquals(0, via.read(IFR, true) & Via6522.IRQ_SR);
+        scheduler.advance(1);
+        assertEquals(Via6522.IRQ_SR, via.read(IFR, true) & Via6522.IRQ_SR);
+        assertEquals(0xa5, via.read(SR, true));
+        assertEquals(0, via.read(IFR, true) & Via6522.IRQ_SR);
+    }
+
+    public void testShiftRegisterInUnderTimer2() throws Exception {
+        via.write(T2C_L, 0x02);
+        via.write(ACR, 0x04);
+        via.read(SR, true);
+        scheduler.advance(16 * 4 - 1);
+        assertEquals(0, via.read(IFR, true) & Via6522.IRQ_SR);
+        scheduler.advance(1);
+        assertEquals(Via6522.IRQ_SR, via.read(IFR, true) & Via6522.IRQ_SR);
+        // CB2 floats high
+        assertEquals(0xff, via.read(SR, false));
+    }
+
+    public void testInterruptFlagsAndEnable() throws Exception {
+        via.write(T1C_L, 0x01);
+        via.write(T1C_H, 0x00);
+        scheduler.advance(10);
+
+        // Flag set but not enabled: no IRQ, and bit 7 stays clear
+        assertEquals(Via6522.IRQ_T1, via.read(IFR, true));
+        assertFalse(cpu.getCpuState().irqAsserted);
+
+        // Enabling an interrupt whose flag is already set raises the IRQ
+        via.write(IER, 0x80 | Via6522.IRQ_T1);
+        assertTrue(cpu.getCpuState().irqAsserted);
+        assertEquals(0xc0, via.read(IFR, true));
+
+        // Writing a one to a flag clears it
+        via.write(IFR, Via6522.IRQ_T1);
+        assertEquals(0, via.read(IFR, true));
+
+        via.write(IER, Via6522.IRQ_T1);
+        assertEquals(0x80, via.read(IER, true));
+        assertEquals(0, scheduler.pendingEvents());
+    }
+}